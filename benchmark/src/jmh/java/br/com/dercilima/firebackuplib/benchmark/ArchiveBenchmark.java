@@ -0,0 +1,111 @@
+package br.com.dercilima.firebackuplib.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import br.com.dercilima.firebackuplib.archive.ArchiveManifest;
+import br.com.dercilima.firebackuplib.archive.ArchiveReader;
+import br.com.dercilima.firebackuplib.archive.ArchiveWriter;
+import br.com.dercilima.firebackuplib.compress.Codec;
+import br.com.dercilima.firebackuplib.compress.DeflateCodec;
+import br.com.dercilima.firebackuplib.compress.FixedCodecPolicy;
+import br.com.dercilima.firebackuplib.compress.Lz4Codec;
+import br.com.dercilima.firebackuplib.compress.StoreCodec;
+import br.com.dercilima.firebackuplib.compress.ZstdCodec;
+
+/**
+ * Gravação e extração do zip de um banco de dados sintético (de 1 MB a 2 GB) com cada codec.
+ * A taxa é medida sobre o tamanho do banco de dados (não compactado).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ArchiveBenchmark {
+
+    @Param({"1", "16", "128", "512", "2048"})
+    public int sizeMb;
+
+    @Param({"deflate", "lz4", "zstd", "store"})
+    public String codec;
+
+    private File dir;
+
+    private File database;
+
+    private File archive;
+
+    // Zip gravado no setup, usado na extração
+    private File extractArchive;
+
+    private File extracted;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = SyntheticData.createTempDir("archive");
+        database = SyntheticData.sqliteLike(new File(dir, "app.db"), sizeMb * SyntheticData.MB);
+        archive = new File(dir, "backup.zip");
+        extractArchive = writeArchive(new File(dir, "extract.zip"));
+        extracted = new File(dir, "extracted.db");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SyntheticData.delete(dir);
+    }
+
+    @Benchmark
+    public long write(ByteCounter counter) throws IOException {
+        writeArchive(archive);
+        counter.bytes += database.length();
+        return archive.length();
+    }
+
+    @Benchmark
+    public long extract(ByteCounter counter) throws IOException {
+        final ArchiveReader reader = new ArchiveReader(extractArchive);
+        try {
+            reader.findEntry(database.getName());
+            reader.copyEntryTo(extracted);
+        } finally {
+            reader.close();
+        }
+        counter.bytes += extracted.length();
+        return extracted.length();
+    }
+
+    private File writeArchive(File file) throws IOException {
+        final ArchiveWriter writer = new ArchiveWriter(file);
+        writer.setCodecPolicy(new FixedCodecPolicy(newCodec()));
+        writer.describeEntry(database.getName(), ArchiveManifest.Kind.DATABASE, database.getPath());
+        writer.putFile(database.getName(), database);
+        writer.close();
+        return file;
+    }
+
+    private Codec newCodec() {
+        switch (codec) {
+            case "lz4":
+                return new Lz4Codec();
+            case "zstd":
+                return new ZstdCodec();
+            case "store":
+                return new StoreCodec();
+            default:
+                return new DeflateCodec(Deflater.DEFAULT_COMPRESSION);
+        }
+    }
+
+}
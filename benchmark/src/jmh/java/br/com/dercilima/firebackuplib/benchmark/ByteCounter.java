@@ -0,0 +1,24 @@
+package br.com.dercilima.firebackuplib.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Bytes processados pelos benchmarks. Com o OutputTimeUnit em microssegundos, o JMH reporta
+ * "bytes" em bytes/us, que é o mesmo que MB/s (10^6 bytes por segundo).
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class ByteCounter {
+
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        bytes = 0;
+    }
+
+}
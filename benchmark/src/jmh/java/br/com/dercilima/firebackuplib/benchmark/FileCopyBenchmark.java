@@ -0,0 +1,60 @@
+package br.com.dercilima.firebackuplib.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import br.com.dercilima.firebackuplib.utils.FileUtil;
+
+/**
+ * Cópia de arquivos com cada estratégia do {@link FileUtil}, para definir os limites do modo AUTO
+ * ({@link FileUtil#DIRECT_MAX_SIZE} e {@link FileUtil#MAPPED_MIN_SIZE}).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class FileCopyBenchmark {
+
+    @Param({"1", "16", "256", "1024"})
+    public int sizeMb;
+
+    @Param({"AUTO", "DIRECT", "TRANSFER", "MAPPED"})
+    public FileUtil.Mode mode;
+
+    private File dir;
+
+    private File source;
+
+    private File dest;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = SyntheticData.createTempDir("copy");
+        source = SyntheticData.sqliteLike(new File(dir, "source.db"), sizeMb * SyntheticData.MB);
+        dest = new File(dir, "dest.db");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SyntheticData.delete(dir);
+    }
+
+    @Benchmark
+    public long copy(ByteCounter counter) throws IOException {
+        final FileUtil.CopyResult result = FileUtil.copy(source, dest, mode, false);
+        counter.bytes += result.getBytes();
+        return result.getBytes();
+    }
+
+}
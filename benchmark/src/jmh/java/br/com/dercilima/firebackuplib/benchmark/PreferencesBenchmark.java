@@ -0,0 +1,100 @@
+package br.com.dercilima.firebackuplib.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import br.com.dercilima.firebackuplib.preferences.PreferencesReader;
+import br.com.dercilima.firebackuplib.preferences.PreferencesWriter;
+
+/**
+ * Gravação e leitura das preferências no formato binário do backup.
+ * A taxa é medida sobre o tamanho do conteúdo gravado.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class PreferencesBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int keys;
+
+    private Map<String, Object> values;
+
+    private byte[] serialized;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        values = SyntheticData.preferences(keys);
+        serialized = write(values).toByteArray();
+    }
+
+    @Benchmark
+    public int serialize(ByteCounter counter) throws IOException {
+        final int size = write(values).size();
+        counter.bytes += size;
+        return size;
+    }
+
+    @Benchmark
+    public void deserialize(ByteCounter counter, final Blackhole blackhole) throws IOException {
+        PreferencesReader.read(new ByteArrayInputStream(serialized), new PreferencesReader.Handler() {
+            @Override
+            public void onBoolean(String key, boolean value) {
+                blackhole.consume(value);
+            }
+
+            @Override
+            public void onInt(String key, int value) {
+                blackhole.consume(value);
+            }
+
+            @Override
+            public void onLong(String key, long value) {
+                blackhole.consume(value);
+            }
+
+            @Override
+            public void onFloat(String key, float value) {
+                blackhole.consume(value);
+            }
+
+            @Override
+            public void onString(String key, String value) {
+                blackhole.consume(value);
+            }
+
+            @Override
+            public void onStringSet(String key, Set<String> values) {
+                blackhole.consume(values);
+            }
+        });
+        counter.bytes += serialized.length;
+    }
+
+    private static ByteArrayOutputStream write(Map<String, ?> values) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final PreferencesWriter writer = new PreferencesWriter(bytes);
+        try {
+            writer.putAll(values);
+        } finally {
+            writer.close();
+        }
+        return bytes;
+    }
+
+}
@@ -0,0 +1,193 @@
+package br.com.dercilima.firebackuplib.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import br.com.dercilima.firebackuplib.archive.ArchiveManifest;
+import br.com.dercilima.firebackuplib.archive.ArchiveReader;
+import br.com.dercilima.firebackuplib.archive.ArchiveWriter;
+import br.com.dercilima.firebackuplib.crypto.EncryptedOutputStream;
+import br.com.dercilima.firebackuplib.crypto.KeyProvider;
+import br.com.dercilima.firebackuplib.preferences.PreferencesReader;
+import br.com.dercilima.firebackuplib.preferences.PreferencesWriter;
+import br.com.dercilima.firebackuplib.restore.RestoreTransaction;
+
+/**
+ * Backup completo seguido do restore, com os mesmos passos do BackupTask e do RestoreBackupTask:
+ * preferências e banco de dados no zip (opcionalmente criptografado), extração para arquivos
+ * preparados e troca pela RestoreTransaction. A taxa é medida sobre o tamanho do banco de dados.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class RoundTripBenchmark {
+
+    private static final String PREFERENCES_ENTRY = "settings.xml";
+
+    @Param({"1", "64", "512"})
+    public int sizeMb;
+
+    @Param({"false", "true"})
+    public boolean encrypted;
+
+    private File dir;
+
+    private File database;
+
+    private Map<String, Object> preferences;
+
+    private File archive;
+
+    private File restoreDir;
+
+    private KeyProvider keyProvider;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = SyntheticData.createTempDir("roundtrip");
+        database = SyntheticData.sqliteLike(new File(dir, "app.db"), sizeMb * SyntheticData.MB);
+        preferences = SyntheticData.preferences(500);
+        archive = new File(dir, "backup.zip");
+        restoreDir = new File(dir, "restore");
+        restoreDir.mkdirs();
+
+        final byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        final SecretKey secretKey = new SecretKeySpec(key, "AES");
+        keyProvider = new KeyProvider() {
+            @Override
+            public String getCurrentKeyId() {
+                return "benchmark";
+            }
+
+            @Override
+            public SecretKey getKey(String keyId) {
+                return secretKey;
+            }
+        };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SyntheticData.delete(dir);
+    }
+
+    @Benchmark
+    public long roundTrip(ByteCounter counter) throws IOException {
+        backup();
+        restore();
+        counter.bytes += database.length();
+        return archive.length();
+    }
+
+    private void backup() throws IOException {
+        final OutputStream output = new FileOutputStream(archive);
+        try {
+            final ArchiveWriter writer = new ArchiveWriter(encrypted ? new EncryptedOutputStream(output, keyProvider) : output);
+
+            writer.describeEntry(PREFERENCES_ENTRY, ArchiveManifest.Kind.PREFERENCES, PREFERENCES_ENTRY);
+            final PreferencesWriter prefs = new PreferencesWriter(writer.openEntry(PREFERENCES_ENTRY));
+            try {
+                prefs.putAll(preferences);
+            } finally {
+                prefs.close();
+            }
+
+            writer.describeEntry(database.getName(), ArchiveManifest.Kind.DATABASE, database.getPath());
+            writer.putFile(database.getName(), database);
+            writer.close();
+        } finally {
+            output.close();
+        }
+    }
+
+    private void restore() throws IOException {
+        final RestoreTransaction transaction = new RestoreTransaction(new File(restoreDir, ".restore.journal"));
+        final ArchiveReader reader = new ArchiveReader(archive, keyProvider);
+        try {
+            String entryName;
+            while ((entryName = reader.nextEntry()) != null) {
+                if (entryName.equals(PREFERENCES_ENTRY)) {
+                    reader.copyEntryTo(transaction.stageApply(entryName, new File(restoreDir, entryName + RestoreTransaction.STAGED_SUFFIX)));
+                } else {
+                    reader.copyEntryTo(transaction.stage(new File(restoreDir, entryName)));
+                }
+            }
+            transaction.commit(new RestoreTransaction.Applier() {
+                @Override
+                public void apply(String key, File staged) throws IOException {
+                    readPreferences(staged);
+                }
+            });
+        } finally {
+            reader.close();
+            transaction.rollback();
+        }
+    }
+
+    // No app, as preferências vão para um Editor. Aqui, para um Map.
+    private static Map<String, Object> readPreferences(File file) throws IOException {
+        final Map<String, Object> values = new HashMap<>();
+        final InputStream input = new FileInputStream(file);
+        try {
+            PreferencesReader.read(input, new PreferencesReader.Handler() {
+                @Override
+                public void onBoolean(String key, boolean value) {
+                    values.put(key, value);
+                }
+
+                @Override
+                public void onInt(String key, int value) {
+                    values.put(key, value);
+                }
+
+                @Override
+                public void onLong(String key, long value) {
+                    values.put(key, value);
+                }
+
+                @Override
+                public void onFloat(String key, float value) {
+                    values.put(key, value);
+                }
+
+                @Override
+                public void onString(String key, String value) {
+                    values.put(key, value);
+                }
+
+                @Override
+                public void onStringSet(String key, Set<String> set) {
+                    values.put(key, set);
+                }
+            });
+        } finally {
+            input.close();
+        }
+        return values;
+    }
+
+}
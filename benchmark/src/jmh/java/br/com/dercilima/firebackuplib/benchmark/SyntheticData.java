@@ -0,0 +1,138 @@
+package br.com.dercilima.firebackuplib.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Dados sintéticos dos benchmarks, sempre gerados com a mesma semente para que os resultados
+ * de versões diferentes sejam comparáveis.
+ */
+final class SyntheticData {
+
+    static final long MB = 1024 * 1024;
+
+    static final int PAGE_SIZE = 4096;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String[] WORDS = {
+            "cliente", "pedido", "produto", "estoque", "entrega", "pagamento", "nota", "fiscal",
+            "endereço", "cidade", "São Paulo", "Rio de Janeiro", "ativo", "cancelado", "pendente"
+    };
+
+    private SyntheticData() {
+    }
+
+    /**
+     * Grava um arquivo com a estrutura de um banco SQLite: o cabeçalho na primeira página e páginas
+     * de 4 KiB com registros (texto e números) no final da página e espaço livre zerado no meio.
+     * A compressão fica próxima da de um banco de dados real.
+     */
+    static File sqliteLike(File file, long size) throws IOException {
+        final Random random = new Random(size);
+        final byte[] page = new byte[PAGE_SIZE];
+        final OutputStream output = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        try {
+            long written = 0;
+            long pageNumber = 0;
+            while (written < size) {
+                Arrays.fill(page, (byte) 0);
+                if (pageNumber == 0) {
+                    final byte[] header = "SQLite format 3\0".getBytes(UTF8);
+                    System.arraycopy(header, 0, page, 0, header.length);
+                    page[16] = (byte) (PAGE_SIZE >> 8);
+                    page[17] = (byte) PAGE_SIZE;
+                } else {
+                    fillPage(page, pageNumber, random);
+                }
+                final int count = (int) Math.min(PAGE_SIZE, size - written);
+                output.write(page, 0, count);
+                written += count;
+                pageNumber++;
+            }
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    // Página folha de uma tabela: cabeçalho, registros a partir do final e 20% a 40% de espaço livre
+    private static void fillPage(byte[] page, long pageNumber, Random random) {
+        page[0] = 0x0D;
+        int end = PAGE_SIZE;
+        final int limit = PAGE_SIZE * (20 + random.nextInt(21)) / 100;
+        long rowId = pageNumber * 100;
+        while (end > limit) {
+            final StringBuilder record = new StringBuilder();
+            record.append(rowId++).append('|');
+            record.append(WORDS[random.nextInt(WORDS.length)]).append(' ').append(WORDS[random.nextInt(WORDS.length)]).append('|');
+            record.append(random.nextInt(100000)).append('|').append(random.nextInt(1000)).append('.').append(random.nextInt(100));
+            final byte[] bytes = record.toString().getBytes(UTF8);
+            if (end - bytes.length <= limit) {
+                break;
+            }
+            end -= bytes.length;
+            System.arraycopy(bytes, 0, page, end, bytes.length);
+        }
+    }
+
+    /**
+     * Preferências com todos os tipos suportados
+     */
+    static Map<String, Object> preferences(int keys) {
+        final Random random = new Random(keys);
+        final Map<String, Object> values = new LinkedHashMap<>();
+        for (int i = 0; i < keys; i++) {
+            final String key = "pref_" + WORDS[i % WORDS.length] + "_" + i;
+            switch (i % 6) {
+                case 0:
+                    values.put(key, random.nextBoolean());
+                    break;
+                case 1:
+                    values.put(key, random.nextInt());
+                    break;
+                case 2:
+                    values.put(key, random.nextLong());
+                    break;
+                case 3:
+                    values.put(key, random.nextFloat());
+                    break;
+                case 4:
+                    values.put(key, WORDS[random.nextInt(WORDS.length)] + " " + random.nextInt(1000));
+                    break;
+                default:
+                    values.put(key, new HashSet<>(Arrays.asList(WORDS[random.nextInt(WORDS.length)], WORDS[random.nextInt(WORDS.length)])));
+                    break;
+            }
+        }
+        return values;
+    }
+
+    static File createTempDir(String prefix) throws IOException {
+        final File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("Não foi possível criar o diretório \"" + dir + "\"!");
+        }
+        return dir;
+    }
+
+    static void delete(File file) {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+}
@@ -0,0 +1,97 @@
+package br.com.dercilima.firebackuplib.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import br.com.dercilima.firebackuplib.upload.ChunkedUploader;
+import br.com.dercilima.firebackuplib.upload.InMemoryStorageBackend;
+
+/**
+ * Upload de um backup para o {@link InMemoryStorageBackend}, com a latência e a banda de uma rede
+ * móvel simulada: o zip inteiro de uma vez (como o upload simples do BackupTask) ou em partes,
+ * com cada concorrência do {@link ChunkedUploader}. Mostra quanto as partes simultâneas escondem
+ * a latência de cada requisição, sem um projeto do Firebase.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class UploadBenchmark {
+
+    private static final String REMOTE_PATH = "backups/backup.zip";
+
+    private static final int PART_SIZE = 1024 * 1024;
+
+    @Param({"1", "16"})
+    public int sizeMb;
+
+    @Param({"0", "50"})
+    public int latencyMillis;
+
+    // 0 = sem limite; 2.5 MB/s é uma rede 4G comum (20 Mbit/s)
+    @Param({"0", "2500000"})
+    public long bytesPerSecond;
+
+    // 0 = zip inteiro de uma vez; 1 ou mais = partes simultâneas
+    @Param({"0", "1", "4"})
+    public int concurrency;
+
+    private File dir;
+
+    private File backup;
+
+    private InMemoryStorageBackend backend;
+
+    private ChunkedUploader uploader;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = SyntheticData.createTempDir("upload");
+        backup = SyntheticData.sqliteLike(new File(dir, "backup.zip"), sizeMb * SyntheticData.MB);
+        backend = new InMemoryStorageBackend()
+                .setLatency(latencyMillis)
+                .setBandwidth(bytesPerSecond);
+        if (concurrency > 0) {
+            uploader = new ChunkedUploader(backend, new File(dir, ".uploads"))
+                    .setPartSize(PART_SIZE)
+                    .setConcurrency(concurrency);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SyntheticData.delete(dir);
+    }
+
+    @Benchmark
+    public String upload(ByteCounter counter) throws IOException {
+        final String location;
+        if (uploader != null) {
+            location = uploader.upload(backup, REMOTE_PATH);
+        } else {
+            final InputStream input = new FileInputStream(backup);
+            try {
+                location = backend.put(REMOTE_PATH, input, backup.length());
+            } finally {
+                input.close();
+            }
+        }
+        backend.delete(REMOTE_PATH);
+        counter.bytes += backup.length();
+        return location;
+    }
+
+}
@@ -0,0 +1,148 @@
+package br.com.dercilima.firebackuplib;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+import br.com.dercilima.firebackuplib.engine.DataSource;
+import br.com.dercilima.firebackuplib.engine.PreferencesEditor;
+import br.com.dercilima.firebackuplib.snapshot.DatabaseCopy;
+import br.com.dercilima.firebackuplib.snapshot.DatabaseSnapshot;
+
+/**
+ * Dados do app no Android: os bancos de dados do Context, as SharedPreferences e o journal
+ * do restore no filesDir. É o DataSource usado pelo BackupTask e pelo RestoreBackupTask.
+ */
+public class AndroidDataSource implements DataSource {
+
+    private final Context context;
+
+    // Forma de fazer a cópia consistente dos bancos de dados
+    private DatabaseSnapshot.Mode snapshotMode = DatabaseSnapshot.Mode.AUTO;
+
+
+    public AndroidDataSource(Context context) {
+        this.context = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+    }
+
+    /**
+     * Indica como será feita a cópia dos bancos de dados enquanto o app continua escrevendo neles
+     */
+    public AndroidDataSource setSnapshotMode(DatabaseSnapshot.Mode snapshotMode) {
+        this.snapshotMode = snapshotMode;
+        return this;
+    }
+
+    public File getAppDataDir() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return context.getDataDir();
+        } else {
+            return new File(context.getFilesDir(), "../");
+        }
+    }
+
+    @Override
+    public File getDatabaseFile(String databaseName) {
+        return context.getDatabasePath(databaseName);
+    }
+
+    @Override
+    public File getDatabasesDir() {
+        return mkdirs(new File(getAppDataDir(), "databases"));
+    }
+
+    @Override
+    public File getPreferencesFile(String preferencesName) {
+        return new File(getPreferencesDir(), (preferencesName.endsWith(".xml") ? preferencesName : preferencesName + ".xml"));
+    }
+
+    @Override
+    public File getPreferencesDir() {
+        return mkdirs(new File(getAppDataDir(), "shared_prefs"));
+    }
+
+    @Override
+    public Map<String, ?> readPreferences(String preferencesName) {
+        return context.getSharedPreferences(preferencesName, Context.MODE_PRIVATE).getAll();
+    }
+
+    @Override
+    public PreferencesEditor editPreferences(String preferencesName) {
+        final SharedPreferences.Editor editor = context.getSharedPreferences(preferencesName, Context.MODE_PRIVATE).edit();
+        // As preferências atuais são apagadas no mesmo commit
+        editor.clear();
+        return new SharedPreferencesEditor(preferencesName, editor);
+    }
+
+    @Override
+    public DatabaseCopy openDatabase(File databaseFile) throws IOException {
+        return DatabaseSnapshot.open(databaseFile, snapshotMode, context.getCacheDir());
+    }
+
+    @Override
+    public File getRestoreJournal() {
+        return new File(context.getFilesDir(), ".restore.journal");
+    }
+
+    private static File mkdirs(File dir) {
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        return dir;
+    }
+
+    private static class SharedPreferencesEditor implements PreferencesEditor {
+
+        private final String name;
+
+        private final SharedPreferences.Editor editor;
+
+        SharedPreferencesEditor(String name, SharedPreferences.Editor editor) {
+            this.name = name;
+            this.editor = editor;
+        }
+
+        @Override
+        public void onBoolean(String key, boolean value) {
+            editor.putBoolean(key, value);
+        }
+
+        @Override
+        public void onInt(String key, int value) {
+            editor.putInt(key, value);
+        }
+
+        @Override
+        public void onLong(String key, long value) {
+            editor.putLong(key, value);
+        }
+
+        @Override
+        public void onFloat(String key, float value) {
+            editor.putFloat(key, value);
+        }
+
+        @Override
+        public void onString(String key, String value) {
+            editor.putString(key, value);
+        }
+
+        @Override
+        public void onStringSet(String key, Set<String> values) {
+            editor.putStringSet(key, values);
+        }
+
+        @Override
+        public void commit() throws IOException {
+            if (!editor.commit()) {
+                throw new IOException("Erro ao gravar as preferências \"" + name + "\"!");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+package br.com.dercilima.firebackuplib;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+import br.com.dercilima.firebackuplib.schedule.DeviceState;
+
+/**
+ * Estado do aparelho no Android, para as condições dos jobs do BackupScheduler. A condição de rede
+ * sem cobrança exige a permissão ACCESS_NETWORK_STATE no AndroidManifest do app.
+ */
+public class AndroidDeviceState implements DeviceState {
+
+    private final Context context;
+
+
+    public AndroidDeviceState(Context context) {
+        this.context = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+    }
+
+    @Override
+    public boolean isCharging() {
+        // O broadcast da bateria é "sticky": o último estado é retornado sem registrar um receiver
+        final Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    @Override
+    public boolean isUnmeteredNetwork() {
+        final ConnectivityManager connectivity = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        final NetworkInfo network = connectivity != null ? connectivity.getActiveNetworkInfo() : null;
+        if (network == null || !network.isConnected()) {
+            return false;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return !connectivity.isActiveNetworkMetered();
+        }
+        return network.getType() == ConnectivityManager.TYPE_WIFI || network.getType() == ConnectivityManager.TYPE_ETHERNET;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public boolean isIdle() {
+        final PowerManager power = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (power == null) {
+            return false;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && power.isDeviceIdleMode()) {
+            return true;
+        }
+        // Sem o modo Doze, o aparelho está sem uso quando a tela está desligada
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH) {
+            return !power.isInteractive();
+        }
+        return !power.isScreenOn();
+    }
+
+}
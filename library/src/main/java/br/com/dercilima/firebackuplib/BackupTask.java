@@ -2,6 +2,7 @@ package br.com.dercilima.firebackuplib;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Environment;
 import android.support.annotation.NonNull;
 import android.util.Log;
@@ -9,6 +10,7 @@ import android.util.Log;
 import com.google.android.gms.tasks.Continuation;
 import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.dynamiclinks.FirebaseDynamicLinks;
 import com.google.firebase.dynamiclinks.ShortDynamicLink;
 import com.google.firebase.storage.FirebaseStorage;
@@ -16,17 +18,34 @@ import com.google.firebase.storage.StorageReference;
 import com.google.firebase.storage.UploadTask;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.List;
 import java.util.Locale;
-
-import br.com.dercilima.firebackuplib.utils.FileUtil;
-import br.com.dercilima.zipfileslib.ZipFiles;
+import java.util.Map;
+
+import br.com.dercilima.firebackuplib.catalog.BackupCatalog;
+import br.com.dercilima.firebackuplib.catalog.CatalogEntry;
+import br.com.dercilima.firebackuplib.compress.CodecPolicy;
+import br.com.dercilima.firebackuplib.crypto.KeyProvider;
+import br.com.dercilima.firebackuplib.engine.BackupEngine;
+import br.com.dercilima.firebackuplib.engine.ProgressListener;
+import br.com.dercilima.firebackuplib.engine.ProgressTracker;
+import br.com.dercilima.firebackuplib.metrics.MetricsListener;
+import br.com.dercilima.firebackuplib.metrics.MetricsReport;
+import br.com.dercilima.firebackuplib.metrics.Stage;
+import br.com.dercilima.firebackuplib.retention.RetentionEngine;
+import br.com.dercilima.firebackuplib.retention.RetentionPolicy;
+import br.com.dercilima.firebackuplib.snapshot.DatabaseSnapshot;
+import br.com.dercilima.firebackuplib.upload.ChunkedUploader;
+import br.com.dercilima.firebackuplib.upload.FirebaseResumableUploader;
+import br.com.dercilima.firebackuplib.upload.FirebaseStorageBackend;
+import br.com.dercilima.firebackuplib.upload.PipelinedUploader;
+import br.com.dercilima.firebackuplib.upload.StorageBackend;
+import br.com.dercilima.firebackuplib.utils.MonitoredInputStream;
 
 public class BackupTask extends BaseTask<Void, Exception, File> {
 
@@ -34,7 +53,8 @@ public class BackupTask extends BaseTask<Void, Exception, File> {
         /**
          * Quando finaliza o backup com sucesso
          *
-         * @param backupFile Arquivo de backup local
+         * @param backupFile Arquivo de backup local, ou null se o backup foi enviado sem cópia local
+         *                   (setPipelinedUpload(false))
          */
         void onBackupSuccess(File backupFile);
 
@@ -53,6 +73,19 @@ public class BackupTask extends BaseTask<Void, Exception, File> {
         void onBackupError(Exception error);
     }
 
+    /**
+     * Callback que também recebe as métricas do backup. Com ele, o onBackupSuccess(File) não é chamado.
+     */
+    public interface ReportCallback extends Callback {
+        /**
+         * Quando finaliza o backup com sucesso
+         *
+         * @param backupFile Arquivo de backup local, ou null se o backup foi enviado sem cópia local
+         * @param report     Totais de cada etapa (o upload em partes feito em background já está incluído)
+         */
+        void onBackupSuccess(File backupFile, MetricsReport report);
+    }
+
     private Callback mCallback;
 
     // Diretório onde será armazenado os backups
@@ -76,6 +109,67 @@ public class BackupTask extends BaseTask<Void, Exception, File> {
     // Indica se exclui o arquivo após upload para o Storage
     private boolean deleteBackupAfterUpload = false;
 
+    // Forma de fazer a cópia consistente dos bancos de dados
+    private DatabaseSnapshot.Mode snapshotMode = DatabaseSnapshot.Mode.AUTO;
+
+    // Indica se grava apenas as páginas dos bancos de dados que mudaram desde o último backup
+    private boolean incremental = false;
+
+    // Quantidade máxima de backups incrementais seguidos, antes de um novo backup completo
+    private int maxIncrementalBackups = 7;
+
+    // Motor do último backup (tempo que as escritas ficaram bloqueadas em cada banco de dados)
+    private BackupEngine lastEngine;
+
+    // Quantidade de bancos de dados copiados e compactados ao mesmo tempo
+    private int parallelism = 1;
+
+    // Threads usadas para compactar em blocos um único arquivo grande (1 = sem blocos paralelos)
+    private int compressionThreads = 1;
+
+    // Tamanho de cada bloco na compactação paralela
+    private int compressionBlockSize = 1024 * 1024;
+
+    // Escolhe o codec de cada entrada (null = deflate padrão em todas)
+    private CodecPolicy codecPolicy;
+
+    // Grava os backups em um repositório de chunks deduplicados, em vez de um zip por backup
+    private boolean repository = false;
+
+    // Chaves da criptografia do zip (null: sem criptografia)
+    private KeyProvider keyProvider;
+    // Destino do upload (null = Storage do Firebase)
+    // Upload em partes, com checkpoint (null = upload do arquivo inteiro com putFile)
+    private StorageBackend storageBackend;
+
+    private boolean resumableUpload = false;
+
+    private int uploadPartSize = 4 * 1024 * 1024;
+
+    private int uploadConcurrency = 2;
+
+    // Envia as partes do zip enquanto ele é gravado
+    private boolean pipelinedUpload = false;
+
+    // No upload simultâneo, grava também o zip no diretório de backup
+    private boolean keepLocalCopy = true;
+
+    // Resultado do upload em partes, feito ainda em background
+    private Uri uploadedUri;
+
+    private Exception uploadError;
+
+    // Recebe as métricas de cada etapa
+    private MetricsListener metricsListener;
+
+    // Progresso do backup e do upload em partes, na thread principal
+    private ProgressListener progressListener;
+
+    // Backups mantidos no aparelho e no Storage depois de cada backup
+    private RetentionPolicy retentionPolicy;
+
+    private RetentionPolicy remoteRetentionPolicy;
+
 
     public BackupTask(Context context) {
         super(context);
@@ -84,29 +178,81 @@ public class BackupTask extends BaseTask<Void, Exception, File> {
     @Override
     protected File doInBackground(Void... arg0) {
 
+        File fileZip = null;
+
         try {
 
-            // Criar uma pasta tmp para salvar os arquivos, para compactar todos juntos
-            createTempDir();
+            if (getPreferencesList().isEmpty() && getDbList().isEmpty()) {
+                throw new IllegalArgumentException("Nenhum arquivo para fazer backup!");
+            }
 
-            // Copiar os arquivos para a pasta temp
-            copyFiles();
+            // Um restore interrompido deixaria o backup com bancos e preferências de momentos diferentes
+            RestoreBackupTask.recoverInterruptedRestore(getContext());
 
-            // Zipar os arquivos
-            return zipar();
+            if (isRepository()) {
+                if (isUploadToStorage()) {
+                    throw new IllegalArgumentException("O upload para o Storage não é suportado no modo repositório!");
+                }
+                // Apenas os chunks que ainda não estão no repositório são gravados
+                return snapshot();
+            }
+
+            // Arquivo zip
+            fileZip = new File(getBackupDirectory(), getBackupFileName());
+
+            if (isUploadToStorage() && isPipelinedUpload()) {
+                if (getStorageBackend() == null) {
+                    throw new IllegalArgumentException("O upload junto com a compactação exige um destino (setStorageBackend())!");
+                }
+                // Compactar e enviar ao mesmo tempo
+                addToCatalog(zipAndUpload(fileZip));
+                if (uploadError == null) {
+                    updateCatalogUpload(fileZip, CatalogEntry.UploadState.UPLOADED, String.valueOf(uploadedUri));
+                }
+                applyRetention();
+                // Sem a cópia local, o backup existe apenas no destino (no catálogo, como enviado)
+                return isKeepLocalCopy() ? fileZip : null;
+            }
+
+            // Gravar as preferências e os bancos de dados direto no zip, sem pasta temp
+            final CatalogEntry catalogEntry = newEngine().backup(fileZip);
+
+            final File backup = fileZip;
+            fileZip = null;
+            addToCatalog(catalogEntry);
+
+            // O upload em partes (e o upload para um destino informado) bloqueia a thread, então é feito
+            // aqui mesmo. Em caso de erro, o backup é mantido e o upload em partes continua do
+            // checkpoint na próxima execução.
+            if (isUploadToStorage() && isUploadInBackground()) {
+                try {
+                    uploadedUri = Uri.parse(isResumableUpload() ? uploadResumable(backup) : uploadDirect(backup));
+                } catch (Exception e) {
+                    uploadError = e;
+                }
+                if (uploadError == null) {
+                    updateCatalogUpload(backup, CatalogEntry.UploadState.UPLOADED, String.valueOf(uploadedUri));
+                } else if (!isResumableUpload()) {
+                    updateCatalogUpload(backup, CatalogEntry.UploadState.FAILED, null);
+                }
+            }
+
+            applyRetention();
+            return backup;
 
         } catch (Exception e) {
+            // Não deixar um backup incompleto no diretório de backups
+            if (fileZip != null && fileZip.exists() && fileZip.delete()) {
+                Log.d(getContext().getString(R.string.app_name), "Arquivo de backup incompleto \"" + fileZip.getName() + "\" excluído!");
+            }
             publishProgress(e);
             cancel(true);
-        } finally {
-            // Apagar a pasta temp
-            deleteTempDir();
         }
 
         return null;
     }
 
-    private File zipar() throws IOException {
+    private String getBackupFileName() {
 
         // Verificar se tem um nome de backup informado
         if (backupName == null || backupName.trim().isEmpty()) {
@@ -118,92 +264,129 @@ public class BackupTask extends BaseTask<Void, Exception, File> {
             backupName += ".zip";
         }
 
-        // Arquivo zip
-        final File fileZip = new File(getBackupDirectory(), backupName);
+        return backupName;
+    }
 
-        // Zipar
-        new ZipFiles(getListFiles(), fileZip).zip();
+    private File snapshot() throws IOException {
 
-        return fileZip;
-    }
+        final String fileName = getBackupFileName();
+        final String snapshotName = fileName.substring(0, fileName.lastIndexOf('.'));
 
-    private List<File> getListFiles() {
-        final List<File> files = new ArrayList<>();
+        final BackupEngine engine = newEngine();
+        final CatalogEntry catalogEntry = engine.snapshot(snapshotName);
 
-        // Adicionar os arquivos de preferências
-        for (String key : getPreferencesList()) {
-            files.add(getTempFilePreferences(key));
-        }
+        Log.d(getContext().getString(R.string.app_name), "Snapshot \"" + snapshotName + "\": " + engine.getNewBytes()
+                + " de " + catalogEntry.getSize() + " bytes gravados no repositório");
 
-        // Adicionar os databases
-        for (String databaseName : getDbList()) {
-            files.add(getTempFileDatabase(databaseName));
-        }
+        addToCatalog(catalogEntry);
+        applyRetention();
 
-        return files;
+        return getCatalog().getFile(catalogEntry);
     }
 
-    private void copyFiles() throws IOException {
-        if (getPreferencesList().isEmpty() && getDbList().isEmpty()) {
-            throw new IllegalArgumentException("Nenhum arquivo para fazer backup!");
+    // Motor do backup com a configuração desta task
+    private BackupEngine newEngine() {
+        // O VACUUM INTO reorganiza as páginas: no backup incremental, o AUTO usa a cópia do arquivo
+        final DatabaseSnapshot.Mode snapshotMode = isIncremental() && getSnapshotMode() == DatabaseSnapshot.Mode.AUTO
+                ? DatabaseSnapshot.Mode.LOCKED_COPY : getSnapshotMode();
+        final BackupEngine engine = new BackupEngine(getDataSource().setSnapshotMode(snapshotMode), getBackupDirectory())
+                .setIncremental(isIncremental(), getMaxIncrementalBackups())
+                .setParallelism(getParallelism())
+                .setCodecPolicy(getCodecPolicy())
+                .setEncryption(getKeyProvider())
+                .setMetricsListener(getMetricsListener())
+                .setProgressListener(onMainThread(getProgressListener()))
+                .setCancellationSignal(getCancellationSignal());
+        for (String databaseName : getDbList()) {
+            engine.addDatabase(databaseName);
         }
-        copyPreferences();
-        copyDatabase();
-    }
-
-    private void copyPreferences() throws IOException {
-
-        // A forma de copiar as preferencias é diferente, não se pode copiar o
-        // arquivo de preferência diretamente, pois o android não lê o arquivo
-        // quando restaura o backup
-
         for (String preferenceName : getPreferencesList()) {
+            engine.addPreferences(preferenceName);
+        }
+        // O SYNC_FLUSH do Deflater, usado na compactação em blocos paralelos, exige o Android 4.4
+        if (getCompressionThreads() > 1 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            engine.setParallelCompression(getCompressionThreads(), getCompressionBlockSize());
+        }
+        lastEngine = engine;
+        return engine;
+    }
 
-            ObjectOutputStream oos = null;
-
-            try {
-
-                oos = new ObjectOutputStream(new FileOutputStream(getTempFilePreferences(preferenceName)));
-                oos.writeObject(getContext().getSharedPreferences(preferenceName, Context.MODE_PRIVATE).getAll());
-
-            } finally {
-
-                if (oos != null) {
-                    oos.flush();
-                    oos.close();
-                }
+    private CatalogEntry zipAndUpload(File fileZip) throws IOException {
 
-            }
+        final PipelinedUploader uploader = new PipelinedUploader(getUploadBackend(), getUploadCheckpointDir())
+                .setPartSize(getUploadPartSize())
+                .setConcurrency(getUploadConcurrency());
 
+        final long start = System.nanoTime();
+        final PipelinedUploader.Upload upload = uploader.open(getUploadFilePath(fileZip), isKeepLocalCopy() ? fileZip : null);
+        final BackupEngine engine = newEngine();
+        final CatalogEntry catalogEntry;
+        try {
+            catalogEntry = engine.writeArchive(upload, fileZip.getName());
+        } catch (IOException | RuntimeException e) {
+            // Não deixar um backup incompleto no destino
+            upload.abort();
+            throw e;
         }
 
-    }
-
-    private void copyDatabase() throws IOException {
-        for (String databaseName : getDbList()) {
-            FileUtil.copyFile(getContext(), getFileDatabase(databaseName), getTempFileDatabase(databaseName), true);
+        // Com a cópia local, uma falha no upload não perde o backup: o upload continua depois
+        if (upload.getError() != null) {
+            uploadError = upload.getError();
+        } else {
+            uploadedUri = Uri.parse(upload.getLocation());
+            // O upload acontece junto com a compactação, então o tempo inclui o backup inteiro
+            engine.getMetricsReport().record(Stage.UPLOAD, fileZip.getName(), upload.getSize(), upload.getSize(), System.nanoTime() - start, upload.getRetries());
         }
+        return catalogEntry;
     }
 
-    private File getTempFilePreferences(String fileName) {
-        return new File(getTempDir(), getFilePreferences(fileName).getName());
+    private BackupCatalog getCatalog() {
+        return BackupCatalog.forDirectory(getBackupDirectory());
     }
 
-    private File getFilePreferences(String fileName) {
-        return new File(getPreferencesDir(), (fileName.endsWith(".xml") ? fileName : fileName + ".xml"));
-    }
-
-    private File getTempFileDatabase(String databaseName) {
-        return new File(getTempDir(), getFileDatabase(databaseName).getName());
+    // O catálogo é apenas um índice: uma falha ao atualizá-lo não invalida o backup
+    private void addToCatalog(CatalogEntry entry) {
+        try {
+            final BackupCatalog catalog = getCatalog();
+            catalog.put(entry);
+            if (isUploadToStorage()) {
+                catalog.setUploadState(entry.getName(), CatalogEntry.UploadState.PENDING, null);
+            }
+        } catch (IOException e) {
+            Log.e(getContext().getString(R.string.app_name), "Erro ao atualizar o catálogo de backups", e);
+        }
     }
 
-    @Override
-    protected File getTempDir() {
-        return new File(getBackupDirectory(), "temp");
+    // O backup já foi gravado: uma falha na retenção não invalida o backup, e é tentada de novo no próximo
+    private void applyRetention() {
+        final RetentionEngine retention = new RetentionEngine(getCatalog());
+        if (getRetentionPolicy() != null) {
+            try {
+                for (CatalogEntry entry : retention.applyLocal(getRetentionPolicy())) {
+                    Log.d(getContext().getString(R.string.app_name), "Backup \"" + entry.getName() + "\" excluído pela retenção!");
+                }
+            } catch (IOException e) {
+                Log.e(getContext().getString(R.string.app_name), "Erro ao aplicar a retenção dos backups", e);
+            }
+        }
+        if (getRemoteRetentionPolicy() != null && isUploadToStorage()) {
+            try {
+                for (CatalogEntry entry : retention.applyRemote(getRemoteRetentionPolicy(), getUploadBackend(), getUploadPath())) {
+                    Log.d(getContext().getString(R.string.app_name), "Backup \"" + entry.getName() + "\" excluído do Storage pela retenção!");
+                }
+            } catch (IOException e) {
+                Log.e(getContext().getString(R.string.app_name), "Erro ao aplicar a retenção dos backups no Storage", e);
+            }
+        }
     }
 
-    private File getFileDatabase(String databaseName) {
-        return getContext().getDatabasePath(databaseName);
+    private void updateCatalogUpload(File backup, CatalogEntry.UploadState state, String location) {
+        try {
+            final BackupCatalog catalog = getCatalog();
+            catalog.setUploadState(catalog.getName(backup), state, location);
+        } catch (IOException e) {
+            Log.e(getContext().getString(R.string.app_name), "Erro ao atualizar o catálogo de backups", e);
+        }
     }
 
     @Override
@@ -225,27 +408,144 @@ public class BackupTask extends BaseTask<Void, Exception, File> {
         }
     }
 
+    private StorageBackend getUploadBackend() {
+        return getStorageBackend() != null ? getStorageBackend() : new FirebaseStorageBackend(FirebaseStorage.getInstance().getReference());
+    }
+
+    private File getUploadCheckpointDir() {
+        return new File(getBackupDirectory(), ".uploads");
+    }
+
+    private String uploadResumable(File backup) throws IOException {
+
+        if (getStorageBackend() == null) {
+            return uploadFirebaseResumable(backup);
+        }
+
+        final ChunkedUploader uploader = new ChunkedUploader(getUploadBackend(), getUploadCheckpointDir())
+                .setPartSize(getUploadPartSize())
+                .setConcurrency(getUploadConcurrency());
+
+        // Primeiro, terminar os uploads que foram interrompidos em execuções anteriores
+        try {
+            uploader.resumePending(new ChunkedUploader.ResumeListener() {
+                @Override
+                public void onResumed(File file, String location) {
+                    updateCatalogUpload(file, CatalogEntry.UploadState.UPLOADED, location);
+                }
+            });
+        } catch (IOException e) {
+            Log.e(getContext().getString(R.string.app_name), "Erro ao continuar os uploads pendentes", e);
+        }
+
+        // O upload é informado em seguida ao backup, de 0 ao tamanho do zip, e também pode ser cancelado
+        final ProgressTracker progress = new ProgressTracker(onMainThread(getProgressListener()), getCancellationSignal(),
+                "Upload cancelado!", ProgressTracker.DEFAULT_INTERVAL_MILLIS);
+        progress.start(backup.length());
+        uploader.setTransferMonitor(progress);
+
+        final long start = System.nanoTime();
+        final int retries = uploader.getRetries();
+        final String location = uploader.upload(backup, getUploadFilePath(backup));
+        getMetricsReport().record(Stage.UPLOAD, backup.getName(), backup.length(), backup.length(), System.nanoTime() - start, uploader.getRetries() - retries);
+        progress.finish();
+        return location;
+    }
+
+    // No Storage do Firebase, a sessão resumível do próprio Firebase mantém o backup como um objeto só
+    private String uploadFirebaseResumable(File backup) throws IOException {
+
+        final FirebaseResumableUploader uploader = new FirebaseResumableUploader(FirebaseStorage.getInstance().getReference(), getUploadCheckpointDir());
+
+        // Primeiro, terminar os uploads que foram interrompidos em execuções anteriores
+        try {
+            uploader.resumePending(new ChunkedUploader.ResumeListener() {
+                @Override
+                public void onResumed(File file, String location) {
+                    updateCatalogUpload(file, CatalogEntry.UploadState.UPLOADED, location);
+                }
+            });
+        } catch (IOException e) {
+            Log.e(getContext().getString(R.string.app_name), "Erro ao continuar os uploads pendentes", e);
+        }
+
+        final ProgressTracker progress = new ProgressTracker(onMainThread(getProgressListener()), getCancellationSignal(),
+                "Upload cancelado!", ProgressTracker.DEFAULT_INTERVAL_MILLIS);
+        progress.start(backup.length());
+        uploader.setTransferMonitor(progress);
+
+        // As novas tentativas são feitas pelo próprio Firebase e não são contadas
+        final long start = System.nanoTime();
+        final String location = uploader.upload(backup, getUploadFilePath(backup));
+        getMetricsReport().record(Stage.UPLOAD, backup.getName(), backup.length(), backup.length(), System.nanoTime() - start, 0);
+        progress.finish();
+        return location;
+    }
+
+    // Envia o zip inteiro de uma vez para o destino informado em setStorageBackend()
+    private String uploadDirect(File backup) throws IOException {
+
+        final ProgressTracker progress = new ProgressTracker(onMainThread(getProgressListener()), getCancellationSignal(),
+                "Upload cancelado!", ProgressTracker.DEFAULT_INTERVAL_MILLIS);
+        progress.start(backup.length());
+
+        final long start = System.nanoTime();
+        final String location;
+        final InputStream input = MonitoredInputStream.wrap(new FileInputStream(backup), progress);
+        try {
+            location = getStorageBackend().put(getUploadFilePath(backup), input, backup.length());
+        } finally {
+            input.close();
+        }
+        getMetricsReport().record(Stage.UPLOAD, backup.getName(), backup.length(), backup.length(), System.nanoTime() - start, 0);
+        progress.finish();
+        return location;
+    }
+
+    // Sem um destino informado, o upload simples usa as tasks do Firebase, na thread principal
+    private boolean isUploadInBackground() {
+        return isResumableUpload() || getStorageBackend() != null;
+    }
+
     private void uploadBackup(final File backup) {
 
         try {
 
-            // Obter uma referência do storage do firebase
-            final StorageReference backupRef = getBackupStorageReference(backup);
+            Task<Uri> task;
+
+            if (isUploadInBackground()) {
+
+                // O upload já foi feito (em partes ou para o destino informado), em background
+                if (uploadError != null) {
+                    onBackupError(uploadError);
+                    return;
+                }
+                task = Tasks.forResult(uploadedUri);
 
-            // Adicionar um timeout de 5 segundos
-            backupRef.getStorage().setMaxUploadRetryTimeMillis(5000);
+            } else {
 
-            // Fazer o backup
-            Task<Uri> task = backupRef.putFile(Uri.fromFile(backup))
-                    .continueWithTask(new Continuation<UploadTask.TaskSnapshot, Task<Uri>>() {
-                        @Override
-                        public Task<Uri> then(@NonNull Task<UploadTask.TaskSnapshot> task) throws Exception {
-                            if (!task.isSuccessful() && task.getException() != null) {
-                                throw task.getException();
+                // Obter uma referência do storage do firebase
+                final StorageReference backupRef = getBackupStorageReference(backup);
+
+                // Adicionar um timeout de 5 segundos
+                backupRef.getStorage().setMaxUploadRetryTimeMillis(5000);
+
+                // Fazer o backup
+                final long start = System.nanoTime();
+                task = backupRef.putFile(Uri.fromFile(backup))
+                        .continueWithTask(new Continuation<UploadTask.TaskSnapshot, Task<Uri>>() {
+                            @Override
+                            public Task<Uri> then(@NonNull Task<UploadTask.TaskSnapshot> task) throws Exception {
+                                if (!task.isSuccessful() && task.getException() != null) {
+                                    throw task.getException();
+                                }
+                                // Depois do onBackupSuccess(): vai para o listener e para o mesmo relatório
+                                getMetricsReport().record(Stage.UPLOAD, backup.getName(), backup.length(), backup.length(), System.nanoTime() - start, 0);
+                                return backupRef.getDownloadUrl();
                             }
-                            return backupRef.getDownloadUrl();
-                        }
-                    });
+                        });
+
+            }
 
             // Verificar se está configurado para encurtar a url
             if (isShortenUrlWithDynamicLink()) {
@@ -275,10 +575,20 @@ public class BackupTask extends BaseTask<Void, Exception, File> {
             task.addOnCompleteListener(new OnCompleteListener<Uri>() {
                 @Override
                 public void onComplete(@NonNull Task<Uri> task) {
-                    if (isDeleteBackupAfterUpload()) {
-                        deleteBackupsLocal();
+                    // O catálogo é atualizado antes, para que os backups enviados continuem nele.
+                    // Sem cópia local (backup == null), ele já foi atualizado em background.
+                    if (backup != null) {
+                        if (task.isSuccessful()) {
+                            updateCatalogUpload(backup, CatalogEntry.UploadState.UPLOADED, String.valueOf(task.getResult()));
+                        } else if (!isResumableUpload()) {
+                            // No upload em partes, o upload continua pendente: o checkpoint é retomado no próximo backup
+                            updateCatalogUpload(backup, CatalogEntry.UploadState.FAILED, null);
+                        }
                     }
                     if (task.isSuccessful()) {
+                        if (isDeleteBackupAfterUpload() && backup != null) {
+                            deleteUploadedBackup(backup);
+                        }
                         onUploadSucess(task.getResult());
                     } else {
                         onBackupError(task.getException());
@@ -297,6 +607,13 @@ public class BackupTask extends BaseTask<Void, Exception, File> {
      *
      * @param backup
      */
+    protected String getUploadFilePath(final File backup) {
+        if (getUploadPath() != null && !getUploadPath().trim().isEmpty()) {
+            return getUploadPath() + "/" + backup.getName();
+        }
+        return backup.getName();
+    }
+
     protected StorageReference getBackupStorageReference(final File backup) {
         // Obter uma referência do Storage
         StorageReference storage = FirebaseStorage.getInstance().getReference();
@@ -387,12 +704,92 @@ public class BackupTask extends BaseTask<Void, Exception, File> {
         return this;
     }
 
+    protected boolean isResumableUpload() {
+        return resumableUpload;
+    }
+
+    protected StorageBackend getStorageBackend() {
+        return storageBackend;
+    }
+
+    protected int getUploadPartSize() {
+        return uploadPartSize;
+    }
+
+    protected int getUploadConcurrency() {
+        return uploadConcurrency;
+    }
+
+    /**
+     * Faz um upload que continua de onde parou: se o upload falhar, o backup é mantido e o próximo
+     * BackupTask continua o upload. No Storage do Firebase, é usada a sessão resumível do próprio
+     * Firebase (o backup é um objeto só, com a URL de download de sempre). No destino informado em
+     * setStorageBackend(), o upload é feito em partes, algumas ao mesmo tempo, salvando um checkpoint
+     * a cada parte enviada, e cada parte é reenviada algumas vezes se a conexão cair.
+     *
+     * @param partSize    Tamanho de cada parte, em bytes (mínimo de 64 KiB). Ex.: 4 MiB. Não usado no Firebase.
+     * @param concurrency Quantidade de partes enviadas ao mesmo tempo. Não usado no Firebase.
+     */
+    public BackupTask setResumableUpload(int partSize, int concurrency) {
+        if (partSize < 64 * 1024) {
+            throw new IllegalArgumentException("O tamanho da parte precisa ser de pelo menos 64 KiB!");
+        }
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency precisa ser maior que zero!");
+        }
+        this.resumableUpload = true;
+        this.uploadPartSize = partSize;
+        this.uploadConcurrency = concurrency;
+        return this;
+    }
+
+    protected boolean isPipelinedUpload() {
+        return pipelinedUpload;
+    }
+
+    protected boolean isKeepLocalCopy() {
+        return keepLocalCopy;
+    }
+
+    /**
+     * Envia o backup em partes enquanto ele ainda está sendo compactado, em vez de esperar o zip
+     * ficar pronto. O tempo total fica perto do maior entre compactar e enviar, e não da soma.
+     * Usa o tamanho de parte e a concorrência de setResumableUpload(). Exige um destino informado em
+     * setStorageBackend(): no Storage do Firebase, o backup só pode ser enviado depois de pronto.
+     *
+     * @param keepLocalCopy Grava também o zip no diretório de backup. Com a cópia local, se o upload
+     *                      falhar, ele continua do checkpoint na próxima execução. Sem a cópia, uma
+     *                      falha no upload é uma falha do backup, o backup fica no catálogo apenas como
+     *                      enviado (a retenção local e a exclusão após o upload o ignoram) e
+     *                      onBackupSuccess() recebe null.
+     */
+    public BackupTask setPipelinedUpload(boolean keepLocalCopy) {
+        this.resumableUpload = true;
+        this.pipelinedUpload = true;
+        this.keepLocalCopy = keepLocalCopy;
+        return this;
+    }
+
+    /**
+     * Destino dos uploads e da retenção dos backups enviados. Por padrão, o Storage do Firebase.
+     * Com um destino informado, o upload simples também é feito por ele, em background, o que
+     * permite testar e medir o upload sem o Firebase (LocalStorageBackend, InMemoryStorageBackend).
+     *
+     * @param storageBackend Destino do upload
+     */
+    public BackupTask setStorageBackend(StorageBackend storageBackend) {
+        this.storageBackend = storageBackend;
+        return this;
+    }
+
     protected boolean isDeleteBackupAfterUpload() {
         return deleteBackupAfterUpload;
     }
 
     /**
-     * Indica que após upload do backup, o arquivo será excluído.
+     * Indica que após o upload do backup com sucesso, o arquivo do backup será excluído do aparelho
+     * (exceto se um upload interrompido ou um backup incremental ainda depender dele). Os outros
+     * backups do diretório não são afetados; para eles, use setRetentionPolicy().
      * Se deleteBackupAfterUpload == true, o método "onBackupSuccess" do callback não será chamado.
      *
      * @param deleteBackupAfterUpload Flag indicativa
@@ -402,6 +799,228 @@ public class BackupTask extends BaseTask<Void, Exception, File> {
         return this;
     }
 
+    protected DatabaseSnapshot.Mode getSnapshotMode() {
+        return snapshotMode;
+    }
+
+    /**
+     * Indica como será feita a cópia dos bancos de dados enquanto o app continua escrevendo neles.
+     * AUTO (padrão) usa VACUUM_INTO a partir do Android 11 e LOCKED_COPY nas versões anteriores.
+     * LOCKED_COPY bloqueia apenas as escritas, só enquanto o banco é copiado para o cacheDir.
+     * VACUUM_INTO (Android 11+) não bloqueia as escritas em bancos com WAL. Os dois modos usam
+     * uma cópia temporária do banco no cacheDir. No backup incremental, AUTO usa LOCKED_COPY.
+     *
+     * @param snapshotMode Forma de fazer a cópia
+     */
+    public BackupTask setSnapshotMode(DatabaseSnapshot.Mode snapshotMode) {
+        this.snapshotMode = snapshotMode;
+        return this;
+    }
+
+    protected int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Quantidade de bancos de dados que serão copiados e compactados ao mesmo tempo. O padrão é 1
+     * (um banco por vez). Um valor comum é a quantidade de núcleos do dispositivo:
+     * Runtime.getRuntime().availableProcessors()
+     *
+     * @param parallelism Quantidade de bancos processados ao mesmo tempo
+     */
+    public BackupTask setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism precisa ser maior que zero!");
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    protected int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    protected int getCompressionBlockSize() {
+        return compressionBlockSize;
+    }
+
+    /**
+     * Compacta cada banco de dados grande dividindo-o em blocos, que são compactados em paralelo.
+     * O resultado continua sendo um zip comum. Disponível a partir do Android 4.4; nas versões
+     * anteriores a compactação é feita em uma única thread.
+     *
+     * @param threads   Quantidade de threads da compactação (1 desabilita)
+     * @param blockSize Tamanho de cada bloco, em bytes (mínimo de 32 KiB). Ex.: 1 MiB
+     */
+    public BackupTask setParallelCompression(int threads, int blockSize) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads precisa ser maior que zero!");
+        }
+        if (blockSize < 32 * 1024) {
+            throw new IllegalArgumentException("O tamanho do bloco precisa ser de pelo menos 32 KiB!");
+        }
+        this.compressionThreads = threads;
+        this.compressionBlockSize = blockSize;
+        return this;
+    }
+
+    protected CodecPolicy getCodecPolicy() {
+        return codecPolicy;
+    }
+
+    /**
+     * Define como cada entrada do backup é compactada (store, deflate de 1 a 9, LZ4, ...).
+     * O codec fica gravado no backup e o restore usa o decodificador correspondente.
+     * Ex.: DefaultCodecPolicy.forUnmeteredNetwork() no Wi-Fi e DefaultCodecPolicy.forMeteredNetwork()
+     * nos dados móveis.
+     *
+     * @param codecPolicy Política de escolha do codec, ou null para usar sempre o deflate padrão
+     */
+    public BackupTask setCodecPolicy(CodecPolicy codecPolicy) {
+        this.codecPolicy = codecPolicy;
+        return this;
+    }
+
+    protected boolean isRepository() {
+        return repository;
+    }
+
+    /**
+     * Grava os backups em um repositório local endereçado pelo conteúdo (no diretório de backup),
+     * em vez de um zip completo a cada backup. Os arquivos são divididos em chunks e cada chunk é
+     * gravado uma única vez, então os backups seguintes ocupam apenas o que mudou. Cada backup é
+     * um manifesto (.snapshot), que é o arquivo retornado em onBackupSuccess(). Para liberar o espaço
+     * dos backups excluídos, use ChunkRepository.collectGarbage().
+     *
+     * @param repository Habilita o modo repositório
+     */
+    public BackupTask setRepository(boolean repository) {
+        this.repository = repository;
+        return this;
+    }
+
+    protected KeyProvider getKeyProvider() {
+        return keyProvider;
+    }
+
+    /**
+     * Criptografa o zip com AES-GCM enquanto ele é gravado, em frames autenticados de tamanho fixo.
+     * O backup continua sendo lido por partes no restore (índice e restore seletivo), mas só com a
+     * mesma chave: informe o KeyProvider também no RestoreBackupTask.setKeyProvider().
+     * Não é suportado no modo repositório.
+     *
+     * @param keyProvider Fornece a chave atual, ou null para desabilitar
+     */
+    public BackupTask setEncryption(KeyProvider keyProvider) {
+        this.keyProvider = keyProvider;
+        return this;
+    }
+
+    protected boolean isIncremental() {
+        return incremental;
+    }
+
+    protected int getMaxIncrementalBackups() {
+        return maxIncrementalBackups;
+    }
+
+    /**
+     * Indica que os bancos de dados serão gravados de forma incremental: apenas as páginas que mudaram
+     * desde o último backup são gravadas. Para restaurar, todos os backups da cadeia (desde o último
+     * backup completo) precisam estar no mesmo diretório. Use nomes de backup diferentes a cada
+     * execução (ex.: o nome padrão, com data e hora), pois um backup não pode ser base dele mesmo.
+     * <p>
+     * As páginas são comparadas pela posição no arquivo, e o VACUUM INTO reorganiza as páginas a
+     * cada cópia. Por isso, com o backup incremental, o modo AUTO de setSnapshotMode() usa sempre o
+     * LOCKED_COPY. Com VACUUM_INTO informado explicitamente, cada backup grava os bancos completos.
+     *
+     * @param incremental           Habilita o backup incremental
+     * @param maxIncrementalBackups Quantidade de backups incrementais seguidos antes de um novo backup completo
+     */
+    public BackupTask setIncremental(boolean incremental, int maxIncrementalBackups) {
+        this.incremental = incremental;
+        this.maxIncrementalBackups = maxIncrementalBackups;
+        return this;
+    }
+
+    protected MetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+    /**
+     * Recebe as métricas de cada etapa do backup (snapshot, preferências, compactação, gravação e upload),
+     * com os bytes de entrada e de saída, o tempo e as novas tentativas. Sem listener, as métricas são
+     * apenas somadas no relatório.
+     *
+     * @param metricsListener Listener, chamado pela thread que executou a etapa
+     */
+    public BackupTask setMetricsListener(MetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+        return this;
+    }
+
+    protected ProgressListener getProgressListener() {
+        return progressListener;
+    }
+
+    /**
+     * Progresso do backup, em bytes lidos dos bancos de dados, atualizado a cada 100 ms no máximo.
+     * No upload em partes, o progresso do upload é informado em seguida (de 0 ao tamanho do zip).
+     * O cancel() da task é atendido no buffer seguinte, e o backup incompleto é excluído.
+     *
+     * @param progressListener Listener, chamado na thread principal
+     */
+    public BackupTask setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    protected RetentionPolicy getRetentionPolicy() {
+        return retentionPolicy;
+    }
+
+    /**
+     * Backups mantidos no aparelho: depois de cada backup, os backups do catálogo que a política não
+     * mantém são excluídos do diretório (os que estão no Storage continuam no catálogo)
+     *
+     * @param retentionPolicy Política, ou null para manter todos
+     */
+    public BackupTask setRetentionPolicy(RetentionPolicy retentionPolicy) {
+        this.retentionPolicy = retentionPolicy;
+        return this;
+    }
+
+    protected RetentionPolicy getRemoteRetentionPolicy() {
+        return remoteRetentionPolicy;
+    }
+
+    /**
+     * Backups mantidos no Storage: depois de cada backup com upload, os backups enviados que a
+     * política não mantém são excluídos do Storage. Apenas os backups enviados que estão no
+     * catálogo são considerados.
+     *
+     * @param remoteRetentionPolicy Política, ou null para manter todos
+     */
+    public BackupTask setRemoteRetentionPolicy(RetentionPolicy remoteRetentionPolicy) {
+        this.remoteRetentionPolicy = remoteRetentionPolicy;
+        return this;
+    }
+
+    /**
+     * Totais de cada etapa do último backup, ou null se ainda não foi executado
+     */
+    public MetricsReport getMetricsReport() {
+        return lastEngine != null ? lastEngine.getMetricsReport() : null;
+    }
+
+    /**
+     * Retorna o tempo (em milissegundos) que as escritas de cada banco de dados ficaram bloqueadas
+     * durante o último backup
+     */
+    public Map<String, Long> getWritersBlockedMillis() {
+        return lastEngine != null ? lastEngine.getWritersBlockedMillis() : Collections.<String, Long>emptyMap();
+    }
+
     protected boolean isShortenUrlWithDynamicLink() {
         return shortenUrlWithDynamicLink;
     }
@@ -423,18 +1042,44 @@ public class BackupTask extends BaseTask<Void, Exception, File> {
     }
 
     /**
-     * Excluí todos os arquivos de backup dentro do diretório de backup informado
+     * Exclui do aparelho o backup que acabou de ser enviado (ele continua no catálogo, como
+     * enviado). O arquivo é mantido se um upload interrompido ou um backup incremental que está
+     * no aparelho ainda dependerem dele.
      */
-    private void deleteBackupsLocal() {
-        for (File backup : getBackupDirectory().listFiles()) {
-            if (backup.delete()) {
-                Log.d(getContext().getString(R.string.app_name), " Arquivo de backup \"" + backup.getName() + "\" excluído!");
+    private void deleteUploadedBackup(File backup) {
+        if (backup == null || !backup.isFile()) {
+            return;
+        }
+        if (ChunkedUploader.hasPendingUpload(getUploadCheckpointDir(), backup)
+                || FirebaseResumableUploader.hasPendingUpload(getUploadCheckpointDir(), backup)) {
+            Log.d(getContext().getString(R.string.app_name), "Arquivo de backup \"" + backup.getName() + "\" mantido: upload pendente");
+            return;
+        }
+        try {
+            final BackupCatalog catalog = getCatalog();
+            final String name = catalog.getName(backup);
+            for (CatalogEntry entry : catalog.list()) {
+                if (entry.getBaseBackups().contains(name) && catalog.getFile(entry).exists()) {
+                    Log.d(getContext().getString(R.string.app_name), "Arquivo de backup \"" + backup.getName() + "\" mantido: base de \"" + entry.getName() + "\"");
+                    return;
+                }
             }
+        } catch (IOException e) {
+            // Sem o catálogo, não há como saber se outro backup depende deste
+            Log.e(getContext().getString(R.string.app_name), "Erro ao ler o catálogo de backups", e);
+            return;
+        }
+        if (backup.delete()) {
+            Log.d(getContext().getString(R.string.app_name), " Arquivo de backup \"" + backup.getName() + "\" excluído!");
         }
     }
 
     protected void onBackupSuccess(File backupFile) {
-        mCallback.onBackupSuccess(backupFile);
+        if (mCallback instanceof ReportCallback) {
+            ((ReportCallback) mCallback).onBackupSuccess(backupFile, getMetricsReport());
+        } else {
+            mCallback.onBackupSuccess(backupFile);
+        }
     }
 
     protected void onUploadSucess(Uri backupUrl) {
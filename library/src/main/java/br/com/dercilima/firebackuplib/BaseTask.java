@@ -2,23 +2,27 @@ package br.com.dercilima.firebackuplib;
 
 import android.content.Context;
 import android.os.AsyncTask;
-import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
+import br.com.dercilima.firebackuplib.engine.CancellationSignal;
+import br.com.dercilima.firebackuplib.engine.ProgressListener;
+
 public abstract class BaseTask<Params, Progress, Result> extends AsyncTask<Params, Progress, Result> {
 
     private WeakReference<Context> context;
 
-    // Preferências para backup
-    private final Set<String> preferencesList = new HashSet<>();
+    // Preferências para backup, na ordem em que foram adicionadas
+    private final Set<String> preferencesList = new LinkedHashSet<>();
 
-    // Bancos de dados para backup
-    private final Set<String> dbList = new HashSet<>();
+    // Bancos de dados para backup, na ordem em que foram adicionados
+    private final Set<String> dbList = new LinkedHashSet<>();
 
 
     public BaseTask(Context context) {
@@ -29,24 +33,58 @@ public abstract class BaseTask<Params, Progress, Result> extends AsyncTask<Param
         return context.get();
     }
 
-    protected File getAppDataDir() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            return getContext().getDataDir();
-        } else {
-            return new File(getContext().getFilesDir(), "../");
+    /**
+     * Dados do app acessados pelo motor do backup e do restore
+     */
+    protected AndroidDataSource getDataSource() {
+        return new AndroidDataSource(getContext());
+    }
+
+    /**
+     * Cancelamento da task, conferido pelo motor a cada buffer
+     */
+    protected CancellationSignal getCancellationSignal() {
+        return new CancellationSignal() {
+            @Override
+            public boolean isCancelled() {
+                return BaseTask.this.isCancelled();
+            }
+        };
+    }
+
+    /**
+     * Repassa o progresso informado pelas threads do motor para a thread principal
+     *
+     * @param listener Listener chamado na thread principal, ou null
+     */
+    protected ProgressListener onMainThread(final ProgressListener listener) {
+        if (listener == null) {
+            return null;
         }
+        final Handler handler = new Handler(Looper.getMainLooper());
+        return new ProgressListener() {
+            @Override
+            public void onProgress(final long completed, final long total) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onProgress(completed, total);
+                    }
+                });
+            }
+        };
+    }
+
+    protected File getAppDataDir() {
+        return getDataSource().getAppDataDir();
     }
 
     protected File getDatabasesDir() {
-        final File dbDir = new File(getAppDataDir(), "databases");
-        checkIfExists(dbDir);
-        return dbDir;
+        return getDataSource().getDatabasesDir();
     }
 
     protected File getPreferencesDir() {
-        final File dbDir = new File(getAppDataDir(), "shared_prefs");
-        checkIfExists(dbDir);
-        return dbDir;
+        return getDataSource().getPreferencesDir();
     }
 
     protected void checkIfExists(File path) {
@@ -65,41 +103,4 @@ public abstract class BaseTask<Params, Progress, Result> extends AsyncTask<Param
         return this.preferencesList;
     }
 
-    protected void createTempDir() {
-
-        final File tempDir = getTempDir();
-
-        // Se existir, apaga
-        deleteTempDir();
-
-        // Criar diretório vazio
-        if (tempDir.mkdirs()) {
-            Log.i(getContext().getString(R.string.app_name), "Diretório \"" + tempDir + "\" criado!");
-        }
-
-    }
-
-    protected void deleteTempDir() {
-
-        final File tempDir = getTempDir();
-
-        if (tempDir.exists()) {
-
-            // Deletar todos os arquivos que estão dentro da pasta temp
-            for (File f : tempDir.listFiles()) {
-                if (f.delete()) {
-                    Log.i(getContext().getString(R.string.app_name), "Arquivo \"" + f + "\" excluído!");
-                }
-            }
-
-            // Deletar o diretório
-            if (tempDir.delete()) {
-                Log.i(getContext().getString(R.string.app_name), "Diretório \"" + tempDir + "\" excluído!");
-            }
-        }
-
-    }
-
-    protected abstract File getTempDir();
-
 }
@@ -3,27 +3,27 @@ package br.com.dercilima.firebackuplib;
 import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.content.SharedPreferences;
 import android.support.v7.app.AlertDialog;
 import android.util.Log;
 import android.widget.ArrayAdapter;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
-import br.com.dercilima.firebackuplib.utils.FileUtil;
-import br.com.dercilima.zipfileslib.ZipFiles;
+import br.com.dercilima.firebackuplib.catalog.BackupCatalog;
+import br.com.dercilima.firebackuplib.crypto.KeyProvider;
+import br.com.dercilima.firebackuplib.engine.ProgressListener;
+import br.com.dercilima.firebackuplib.engine.RestoreEngine;
+import br.com.dercilima.firebackuplib.metrics.MetricsListener;
+import br.com.dercilima.firebackuplib.metrics.MetricsReport;
+import br.com.dercilima.firebackuplib.repository.ChunkRepository;
 
 public class RestoreBackupTask extends BaseTask<File, Exception, List<File>> {
 
@@ -33,12 +33,45 @@ public class RestoreBackupTask extends BaseTask<File, Exception, List<File>> {
         void onRestoreError(Exception e);
     }
 
+    /**
+     * Listener que também recebe as métricas do restore. Com ele, o onRestoreSucess() sem parâmetros não é chamado.
+     */
+    public interface OnRestoreReportListener extends OnRestoreCompleteListener {
+        void onRestoreSucess(MetricsReport report);
+    }
+
     private ProgressDialog dialog;
     private OnRestoreCompleteListener mCallback;
 
     // Diretório onde buscará os backups para fazer o restore
     private File restoreDir;
 
+    // Apenas conferir a integridade do backup, sem restaurar
+    private boolean verifyOnly = false;
+
+    // Chaves dos backups criptografados
+    private KeyProvider keyProvider;
+
+    // Tempo de restore de cada arquivo de preferências, em milissegundos
+    private Map<String, Long> preferencesRestoreTimes = Collections.emptyMap();
+
+    // Recebe as métricas de cada etapa
+    private MetricsListener metricsListener;
+
+    // Métricas do último restore ou verificação
+    private MetricsReport metricsReport;
+
+    // Percentual no dialog, depois que o total é conhecido (sem o índice, o dialog continua indeterminado)
+    private final ProgressListener progressListener = new ProgressListener() {
+        @Override
+        public void onProgress(long completed, long total) {
+            if (dialog != null && total > 0) {
+                dialog.setIndeterminate(false);
+                dialog.setProgress((int) (completed * 100 / total));
+            }
+        }
+    };
+
 
     public RestoreBackupTask(Context context) {
         super(context);
@@ -47,9 +80,25 @@ public class RestoreBackupTask extends BaseTask<File, Exception, List<File>> {
     @Override
     protected void onPreExecute() {
         super.onPreExecute();
-        dialog = ProgressDialog.show(getContext(), getContext().getString(R.string.aguarde), getContext().getString(R.string.restaurando_backup), true, false);
+        dialog = new ProgressDialog(getContext());
+        dialog.setTitle(getContext().getString(R.string.aguarde));
+        dialog.setMessage(getContext().getString(R.string.restaurando_backup));
+        dialog.setCancelable(false);
+        dialog.setIndeterminate(true);
+        dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        dialog.setProgressNumberFormat(null);
+        dialog.setMax(100);
+        // Até a troca dos arquivos, o restore pode ser cancelado sem alterar nenhum dado do app
+        dialog.setButton(DialogInterface.BUTTON_NEGATIVE, getContext().getString(R.string.cancelar), new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int which) {
+                cancel(false);
+            }
+        });
+        dialog.show();
     }
 
+
     @Override
     protected List<File> doInBackground(File... files) {
 
@@ -58,29 +107,15 @@ public class RestoreBackupTask extends BaseTask<File, Exception, List<File>> {
             if (files == null || files.length == 0) {
 
                 /*
-                 * Localizar os backups
+                 * Localizar os backups. O catálogo lista os backups (zips e snapshots do repositório),
+                 * do mais antigo para o mais recente, sem abrir nenhum deles.
                  */
-                final List<File> backups = new ArrayList<>();
-
-                // Verificar na pasta backups os arquivos .zip
-                for (File f : getRestoreDir().listFiles()) {
-                    if (f.isFile() && (f.getName().contains(".zip") || f.getName().contains(".rar"))) {
-                        backups.add(f);
-                    }
-                }
+                final List<File> backups = BackupCatalog.forDirectory(getRestoreDir()).getLocalBackups();
 
                 if (backups.isEmpty()) {
                     throw new FileNotFoundException(getContext().getString(R.string.msg_nenhum_backup_encontrado));
                 }
 
-                // Ordenar a lista de backups
-                Collections.sort(backups, new Comparator<File>() {
-                    @Override
-                    public int compare(File o1, File o2) {
-                        return o1.compareTo(o2);
-                    }
-                });
-
                 // Retorna a lista de backups
                 return backups;
 
@@ -91,18 +126,20 @@ public class RestoreBackupTask extends BaseTask<File, Exception, List<File>> {
                  */
                 final File backupFile = files[0];
 
-                // Criar uma pasta temp para salvar os arquivos descompactados
-                createTempDir();
-
-                // Extrair os arquivo para dentro da pasta temp
-                extractFiles(backupFile);
+                // Ler o backup uma única vez, enviando cada arquivo direto para o seu destino
+                if (isVerifyOnly()) {
+                    // Apenas conferir o backup, sem restaurar e sem excluir o arquivo
+                    verifyBackup(backupFile);
+                    return null;
+                }
 
-                // Copiar os arquivos descompactados para as devidas pastas
-                copyFiles();
+                restoreBackup(backupFile);
 
-                // Deletar o arquivo de backup
-                if (backupFile.delete()) {
+                // Deletar o arquivo de backup (os snapshots continuam no repositório, junto com o histórico)
+                if (!ChunkRepository.isSnapshotFile(backupFile) && backupFile.delete()) {
                     Log.d(getContext().getString(R.string.app_name), "Arquivo " + backupFile.getAbsolutePath() + " excluído!");
+                    final BackupCatalog catalog = BackupCatalog.forDirectory(getRestoreDir());
+                    catalog.remove(catalog.getName(backupFile));
                 }
 
             }
@@ -112,186 +149,58 @@ public class RestoreBackupTask extends BaseTask<File, Exception, List<File>> {
             publishProgress(e);
             // Se deu erro, cancela a task
             cancel(true);
-        } finally {
-            // Deletar o diretório temp
-            deleteTempDir();
         }
 
         return null;
     }
 
-    private void extractFiles(File fileZip) throws Exception {
-        new ZipFiles(fileZip, getTempDir()).unzip();
-    }
-
-    @Override
-    protected File getTempDir() {
-        return new File(getRestoreDir(), "temp");
-    }
-
-    private void copyFiles() throws IOException {
-
-        // Copiar arquivo de preferencias
-        copyPreferences();
-
-        // Copiar arquivo do banco de dados
-        copyDatabase();
-
-    }
-
-    private void copyPreferences() throws IOException {
-
-        if (getPreferencesList().isEmpty()) {
-            return;
-        }
-
-        for (String preferenceName : getPreferencesList()) {
-
-            // Se for uma expressão
-            if (preferenceName.contains("*")) {
-
-                // Procurar os arquivos com a expressão
-                for (File prefsFound : findFiles(preferenceName)) {
-                    loadSharedPreferencesFromFile(prefsFound);
-                }
-
-            } else {
-
-                // Se for o nome do arquivo
-                final File filePrefs = new File(getTempDir(), preferenceName + (!preferenceName.endsWith(".xml") ? ".xml" : ""));
-
-                if (!filePrefs.exists()) {
-                    throw new FileNotFoundException(getContext().getString(R.string.msg_arquivo_prefs_not_found));
-                } else {
-                    loadSharedPreferencesFromFile(filePrefs);
-                }
-
-            }
-
-        }
-
+    private void verifyBackup(File backupFile) throws IOException {
+        final long start = System.nanoTime();
+        final RestoreEngine engine = newEngine();
+        engine.verify(backupFile);
+        metricsReport = engine.getMetricsReport();
+        Log.d(getClass().getSimpleName(), "verifyBackup: file=[" + backupFile.getName() + "] time=["
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms]");
     }
 
-    // O restore do arquivo de configuração não é feito por meio de copia de arquivo.
-
-    // O arquivo é exportado em forma de key/value e importado da mesma forma.
-    private void loadSharedPreferencesFromFile(File filePrefs) {
-
-        ObjectInputStream input = null;
-
+    private void restoreBackup(File backupFile) throws IOException {
+        final RestoreEngine engine = newEngine();
         try {
-
-            input = new ObjectInputStream(new FileInputStream(filePrefs));
-
-            String prefsName = filePrefs.getName();
-            prefsName = prefsName.substring(0, prefsName.indexOf(".xml"));
-            final SharedPreferences preferences = getContext().getSharedPreferences(prefsName, Context.MODE_PRIVATE);
-
-            // Limpar o arquivo de preferências, caso tenha alguma preferência salva, será apagada
-            preferences.edit().clear().apply();
-
-            // Ler as chaves e valores do arquivo de preferência que foi feito o backup
-            Map<String, ?> entries = (Map<String, ?>) input.readObject();
-
-            for (Entry<String, ?> entry : entries.entrySet()) {
-                // Salvar a preferência
-                if (entry.getValue() instanceof Boolean)
-                    preferences.edit().putBoolean(entry.getKey(), (Boolean) entry.getValue()).apply();
-                else if (entry.getValue() instanceof Float)
-                    preferences.edit().putFloat(entry.getKey(), (Float) entry.getValue()).apply();
-                else if (entry.getValue() instanceof Integer)
-                    preferences.edit().putInt(entry.getKey(), (Integer) entry.getValue()).apply();
-                else if (entry.getValue() instanceof Long)
-                    preferences.edit().putLong(entry.getKey(), (Long) entry.getValue()).apply();
-                else if (entry.getValue() instanceof String)
-                    preferences.edit().putString(entry.getKey(), ((String) entry.getValue())).apply();
-            }
-
-        } catch (IOException | ClassNotFoundException e) {
-            throw new IllegalArgumentException("Erro ao carregar as preferências!", e);
+            engine.restore(backupFile);
         } finally {
-            try {
-                if (input != null) {
-                    input.close();
-                }
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
+            preferencesRestoreTimes = engine.getPreferencesRestoreTimes();
+            metricsReport = engine.getMetricsReport();
         }
-    }
-    private void copyDatabase() throws IOException {
-
-        if (!getDbList().isEmpty()) {
-
-            for (String databaseName : getDbList()) {
-
-                // Verificar se o nome é uma expressão
-                if (databaseName.contains("*")) {
-                    // Encontra os arquivos que combinem com a expressão
-                    for (File found : findFiles(databaseName)) {
-                        copyDatabase(found);
-                    }
-                } else {
-                    final File fileDatabase = new File(getTempDir(), databaseName);
-                    if (!fileDatabase.exists()) {
-                        throw new FileNotFoundException(getContext().getString(R.string.msg_arquivo_db_not_found));
-                    }
-                    copyDatabase(fileDatabase);
-                }
-
-            }
-
-        } else {
-
-            // Procurar os arquivos de banco de dados e copiar para a pasta
-            for (File f : getTempDir().listFiles()) {
-                if (f.isFile() && (f.getName().endsWith(".sqlite") || f.getName().endsWith(".db"))) {
-                    copyDatabase(f);
-                }
-            }
-
+        for (Entry<String, Long> entry : preferencesRestoreTimes.entrySet()) {
+            Log.d(getClass().getSimpleName(), "restorePreferences: name=[" + entry.getKey() + "] time=[" + entry.getValue() + " ms]");
         }
-
     }
 
-    private void copyDatabase(File fileDatabase) throws IOException {
-
-        // Criar o path de databases caso não exista
-        final File dest = getDatabasesDir();
-
-        Log.d(getClass().getSimpleName(), "copyDatabase: from=[" + fileDatabase + "] to=[" + dest + "]");
-
-        // Copiar
-        FileUtil.copyFile(getContext(), fileDatabase, new File(dest, fileDatabase.getName()), true);
-    }
-
-    private Set<File> findFiles(String expression) {
-        final Set<File> filesFound = new HashSet<>();
-
-        if (!expression.contains("*")) {
-            throw new IllegalArgumentException("Expressão mal formada!");
+    // Motor do restore com a configuração desta task
+    private RestoreEngine newEngine() {
+        final RestoreEngine engine = new RestoreEngine(getDataSource())
+                .setKeyProvider(getKeyProvider())
+                .setMetricsListener(getMetricsListener())
+                .setProgressListener(onMainThread(progressListener))
+                .setCancellationSignal(getCancellationSignal());
+        for (String databaseName : getDbList()) {
+            engine.addDatabase(databaseName);
         }
-
-        // Procurar por aquivos que combinem com a expressão
-        for (File f : getTempDir().listFiles()) {
-            if (f.isFile()) {
-                if (expression.startsWith("*") && expression.endsWith("*")) {
-                    if (f.getName().contains(expression.replace("*", ""))) {
-                        filesFound.add(f);
-                    }
-                } else if (expression.startsWith("*")) {
-                    if (f.getName().endsWith(expression.replace("*", ""))) {
-                        filesFound.add(f);
-                    }
-                } else if (expression.endsWith("*")) {
-                    if (f.getName().startsWith(expression.replace("*", ""))) {
-                        filesFound.add(f);
-                    }
-                }
-            }
+        for (String preferenceName : getPreferencesList()) {
+            engine.addPreferences(preferenceName);
         }
+        return engine;
+    }
 
-        return filesFound;
+    /**
+     * Conclui ou desfaz um restore que foi interrompido (o app foi encerrado durante a troca dos arquivos).
+     * É chamado no início de cada backup e restore, mas o ideal é chamá-lo também na inicialização do
+     * app (Application.onCreate), antes de abrir os bancos de dados.
+     *
+     * @return false se não havia nenhum restore interrompido
+     */
+    public static boolean recoverInterruptedRestore(Context context) throws IOException {
+        return RestoreEngine.recoverInterruptedRestore(new AndroidDataSource(context));
     }
 
     @Override
@@ -309,7 +218,11 @@ public class RestoreBackupTask extends BaseTask<File, Exception, List<File>> {
         dismissDialog();
 
         if (result == null) {
-            mCallback.onRestoreSucess();
+            if (mCallback instanceof OnRestoreReportListener) {
+                ((OnRestoreReportListener) mCallback).onRestoreSucess(getMetricsReport());
+            } else {
+                mCallback.onRestoreSucess();
+            }
         } else {
 
             if (result.size() == 1) {
@@ -351,6 +264,9 @@ public class RestoreBackupTask extends BaseTask<File, Exception, List<File>> {
         final RestoreBackupTask task = new RestoreBackupTask(getContext());
         task.setCallback(mCallback);
         task.setRestoreDir(getRestoreDir());
+        task.setVerifyOnly(isVerifyOnly());
+        task.setKeyProvider(getKeyProvider());
+        task.setMetricsListener(getMetricsListener());
         for (String preferencesName : getPreferencesList()) {
             task.addPreferenceName(preferencesName);
         }
@@ -412,6 +328,67 @@ public class RestoreBackupTask extends BaseTask<File, Exception, List<File>> {
         return this;
     }
 
+    public boolean isVerifyOnly() {
+        return verifyOnly;
+    }
+
+    /**
+     * Apenas confere a integridade do backup escolhido (descompactando cada arquivo e conferindo o seu
+     * checksum), sem restaurar nada e sem excluir o backup. O resultado é informado no callback:
+     * onRestoreSucess() se o backup estiver íntegro, ou onRestoreError() com o problema encontrado.
+     *
+     * @param verifyOnly
+     */
+    public RestoreBackupTask setVerifyOnly(boolean verifyOnly) {
+        this.verifyOnly = verifyOnly;
+        return this;
+    }
+
+    public KeyProvider getKeyProvider() {
+        return keyProvider;
+    }
+
+    /**
+     * Chaves para os backups criptografados (BackupTask.setEncryption()). Os backups sem
+     * criptografia continuam sendo restaurados normalmente.
+     *
+     * @param keyProvider Fornece a chave identificada no cabeçalho de cada backup
+     */
+    public RestoreBackupTask setKeyProvider(KeyProvider keyProvider) {
+        this.keyProvider = keyProvider;
+        return this;
+    }
+
+    public MetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+    /**
+     * Recebe as métricas de cada etapa do restore (leitura das entradas e troca dos arquivos), com os
+     * bytes de entrada e de saída e o tempo. Sem listener, as métricas são apenas somadas no relatório.
+     *
+     * @param metricsListener Listener, chamado pela thread do restore
+     */
+    public RestoreBackupTask setMetricsListener(MetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+        return this;
+    }
+
+    /**
+     * Totais de cada etapa do último restore ou verificação, ou null se ainda não foi executado
+     */
+    public MetricsReport getMetricsReport() {
+        return metricsReport;
+    }
+
+    /**
+     * Tempo gasto no restore de cada arquivo de preferências (leitura do backup e gravação),
+     * em milissegundos, na ordem em que foram restaurados
+     */
+    public Map<String, Long> getPreferencesRestoreTimes() {
+        return Collections.unmodifiableMap(preferencesRestoreTimes);
+    }
+
     /**
      * Nome do banco de dados dentro do backup
      *
@@ -422,5 +399,4 @@ public class RestoreBackupTask extends BaseTask<File, Exception, List<File>> {
         return this;
     }
 
-
 }
@@ -0,0 +1,205 @@
+package br.com.dercilima.firebackuplib.archive;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Índice do backup, gravado como a última entrada do zip: para cada entrada, o tipo, o caminho
+ * original do arquivo, os tamanhos, a posição no zip, o codec e o CRC.
+ * <p>
+ * O índice também guarda o CRC32 de todos os bytes do zip gravados antes dele, calculado durante
+ * a gravação. Com ele, o backup pode ser conferido com uma única leitura, sem descompactar nada.
+ * <p>
+ * Com o índice, o restore decide quais entradas precisa sem abrir nenhuma delas e vai direto
+ * à posição de cada uma, em vez de percorrer o backup inteiro.
+ */
+public class ArchiveManifest {
+
+    /**
+     * Nome da entrada do índice dentro do zip. Não aparece na lista de entradas do {@link ArchiveReader}.
+     */
+    public static final String ENTRY_NAME = ".fbindex";
+
+    private static final int MAGIC = 0x46424958; // "FBIX"
+    private static final int VERSION = 2;
+
+    public enum Kind {
+        DATABASE,
+        PREFERENCES,
+        FILE
+    }
+
+    private final List<Item> items;
+
+    // Quantidade de bytes do início do zip cobertos pelo checksum, e o CRC32 desses bytes
+    private final long checkedLength;
+
+    private final long checksum;
+
+
+    ArchiveManifest(List<Item> items, long checkedLength, long checksum) {
+        this.items = items;
+        this.checkedLength = checkedLength;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Quantidade de bytes, a partir do início do zip, cobertos pelo {@link #getChecksum()}
+     */
+    public long getCheckedLength() {
+        return checkedLength;
+    }
+
+    /**
+     * CRC32 dos primeiros {@link #getCheckedLength()} bytes do zip (todas as entradas antes do índice)
+     */
+    public long getChecksum() {
+        return checksum;
+    }
+
+    public List<Item> getItems() {
+        return Collections.unmodifiableList(items);
+    }
+
+    /**
+     * @param entryName Nome da entrada dentro do zip
+     * @return Dados da entrada, ou null se o backup não tem a entrada
+     */
+    public Item getItem(String entryName) {
+        for (Item item : items) {
+            if (item.name.equals(entryName)) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    void write(OutputStream output) throws IOException {
+        final DataOutputStream data = new DataOutputStream(output);
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        data.writeLong(checkedLength);
+        data.writeInt((int) checksum);
+        data.writeInt(items.size());
+        for (Item item : items) {
+            data.writeUTF(item.name);
+            data.writeByte(item.kind.ordinal());
+            data.writeUTF(item.path != null ? item.path : "");
+            data.writeLong(item.size);
+            data.writeLong(item.compressedSize);
+            data.writeLong(item.offset);
+            data.writeShort(item.method);
+            data.writeInt((int) item.crc);
+        }
+        data.flush();
+    }
+
+    static ArchiveManifest read(InputStream input) throws IOException {
+        final DataInputStream data = new DataInputStream(input);
+        if (data.readInt() != MAGIC || data.readByte() != VERSION) {
+            throw new IOException("Índice do backup inválido!");
+        }
+        final long checkedLength = data.readLong();
+        final long checksum = data.readInt() & 0xFFFFFFFFL;
+        final int count = data.readInt();
+        final Kind[] kinds = Kind.values();
+        final List<Item> items = new ArrayList<>(Math.min(count, 0xFFFF));
+        for (int i = 0; i < count; i++) {
+            final String name = data.readUTF();
+            final int kind = data.readUnsignedByte();
+            if (kind >= kinds.length) {
+                throw new IOException("Índice do backup inválido!");
+            }
+            final String path = data.readUTF();
+            final Item item = new Item(name, kinds[kind], path.isEmpty() ? null : path);
+            item.size = data.readLong();
+            item.compressedSize = data.readLong();
+            item.offset = data.readLong();
+            item.method = data.readUnsignedShort();
+            item.crc = data.readInt() & 0xFFFFFFFFL;
+            items.add(item);
+        }
+        return new ArchiveManifest(items, checkedLength, checksum);
+    }
+
+    /**
+     * Dados de uma entrada do backup
+     */
+    public static class Item {
+
+        private final String name;
+        private final Kind kind;
+        private final String path;
+        long size;
+        long compressedSize;
+        long offset;
+        int method;
+        long crc;
+
+        Item(String name, Kind kind, String path) {
+            this.name = name;
+            this.kind = kind;
+            this.path = path;
+        }
+
+        /**
+         * Nome da entrada dentro do zip
+         */
+        public String getName() {
+            return name;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * Caminho do arquivo de origem no aparelho, ou null se não foi informado
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Tamanho original, em bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Tamanho compactado no zip, em bytes
+         */
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        /**
+         * Posição do cabeçalho da entrada no zip
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Método de compressão (codec) da entrada
+         */
+        public int getMethod() {
+            return method;
+        }
+
+        /**
+         * CRC32 do conteúdo original
+         */
+        public long getCrc() {
+            return crc;
+        }
+    }
+
+}
@@ -0,0 +1,465 @@
+package br.com.dercilima.firebackuplib.archive;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+
+import br.com.dercilima.firebackuplib.compress.Codecs;
+import br.com.dercilima.firebackuplib.crypto.EncryptedFile;
+import br.com.dercilima.firebackuplib.crypto.KeyProvider;
+
+/**
+ * Lê o arquivo de backup (.zip) entrada por entrada, sem extrair o conteúdo para uma pasta temporária.
+ * <p>
+ * As entradas são lidas a partir do diretório central do zip, que informa o método de compressão
+ * de cada uma. Assim, cada entrada é descompactada pelo codec correspondente ({@link Codecs})
+ * e qualquer entrada pode ser acessada diretamente pelo nome, sem ler as anteriores.
+ * <p>
+ * O índice gravado pelo {@link ArchiveWriter} ({@link ArchiveManifest}) fica disponível em
+ * {@link #getManifest()} e não é listado como uma entrada.
+ * <p>
+ * Backups criptografados ({@link EncryptedFile}) são lidos da mesma forma, informando a chave.
+ */
+public class ArchiveReader implements EntryReader {
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+
+    // Tamanho fixo dos registros (sem o nome, o campo extra e o comentário)
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+    private static final int FLAG_ENCRYPTED = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final SeekableInput file;
+
+    private final List<Entry> entries;
+
+    private final byte[] buffer = new byte[ArchiveWriter.BUFFER_SIZE];
+
+    private int index = -1;
+
+    private InputStream currentStream;
+
+    private ArchiveManifest manifest;
+
+
+    public ArchiveReader(File archive) throws IOException {
+        this(archive, null);
+    }
+
+    /**
+     * @param archive     Arquivo de backup, criptografado ou não
+     * @param keyProvider Chaves para os backups criptografados. Pode ser null se o backup não for criptografado.
+     */
+    public ArchiveReader(File archive, KeyProvider keyProvider) throws IOException {
+        this(EncryptedFile.isEncrypted(archive) ? new EncryptedFile(archive, keyProvider) : new FileInput(archive));
+    }
+
+    /**
+     * @param input Conteúdo do zip. É fechado no close().
+     */
+    public ArchiveReader(SeekableInput input) throws IOException {
+        this.file = input;
+        try {
+            this.entries = readCentralDirectory();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Avança para a próxima entrada do zip, ignorando os diretórios.
+     *
+     * @return Nome do arquivo da entrada (sem o caminho) ou null quando não houver mais entradas
+     */
+    @Override
+    public String nextEntry() {
+        currentStream = null;
+        while (++index < entries.size()) {
+            final String name = entries.get(index).name;
+            if (isFileEntry(name)) {
+                return getFileName(name);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Posiciona na entrada com o nome informado, sem ler as demais entradas
+     *
+     * @param fileName Nome do arquivo da entrada (sem o caminho)
+     * @return false se o backup não tem a entrada
+     */
+    public boolean findEntry(String fileName) {
+        currentStream = null;
+        for (int i = 0; i < entries.size(); i++) {
+            final String name = entries.get(i).name;
+            if (isFileEntry(name) && getFileName(name).equals(fileName)) {
+                index = i;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Índice do backup, com o tipo, o caminho original, os tamanhos, a posição e o codec de cada entrada
+     *
+     * @return O índice, ou null para os backups gravados antes do índice existir
+     */
+    public ArchiveManifest getManifest() throws IOException {
+        if (manifest == null) {
+            for (Entry entry : entries) {
+                if (entry.name.equals(ArchiveManifest.ENTRY_NAME)) {
+                    final InputStream input = openEntry(entry);
+                    manifest = ArchiveManifest.read(input);
+                    // Lê até o final para conferir o CRC
+                    while (input.read(buffer) != -1) {
+                        // Nada a fazer
+                    }
+                    break;
+                }
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Retorna o conteúdo da entrada atual. Fechar o stream retornado não fecha o zip.
+     * O CRC da entrada é conferido ao chegar no final do conteúdo.
+     */
+    @Override
+    public InputStream getEntryStream() throws IOException {
+        if (index < 0 || index >= entries.size()) {
+            throw new IllegalStateException("Nenhuma entrada aberta no backup!");
+        }
+        if (currentStream == null) {
+            currentStream = openEntry(entries.get(index));
+        }
+        return new FilterInputStream(currentStream) {
+            @Override
+            public void close() {
+                // A entrada é fechada ao avançar para a próxima
+            }
+        };
+    }
+
+    /**
+     * Grava o conteúdo da entrada atual no arquivo de destino
+     *
+     * @param dest Arquivo de destino
+     */
+    @Override
+    public void copyEntryTo(File dest) throws IOException {
+        final InputStream input = getEntryStream();
+        final OutputStream output = new FileOutputStream(dest);
+        try {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    @Override
+    public void verifyEntry() throws IOException {
+        final InputStream input = getEntryStream();
+        while (input.read(buffer) != -1) {
+            // Apenas passa pelo CRC
+        }
+    }
+
+    /**
+     * Confere a integridade do backup, sem extrair nenhum arquivo.
+     * <p>
+     * A conferência rápida lê o zip uma única vez e compara com o checksum gravado no índice, sem
+     * descompactar as entradas. A completa também descompacta cada entrada e confere o seu CRC32.
+     * Backups sem o checksum no índice (gravados antes dele existir) sempre recebem a conferência completa.
+     *
+     * @param full true para descompactar e conferir cada entrada
+     * @throws ZipException se o backup estiver corrompido
+     */
+    @Override
+    public void verify(boolean full) throws IOException {
+
+        final ArchiveManifest manifest = getManifest();
+        if (manifest != null) {
+            final CRC32 crc = new CRC32();
+            final InputStream input = new RangeInputStream(0, manifest.getCheckedLength());
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+            if (crc.getValue() != manifest.getChecksum()) {
+                throw new ZipException("Backup corrompido!");
+            }
+        }
+
+        if (full || manifest == null) {
+            for (Entry entry : entries) {
+                if (!entry.name.endsWith("/")) {
+                    final InputStream input = openEntry(entry);
+                    while (input.read(buffer) != -1) {
+                        // Apenas passa pelo CRC
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private InputStream openEntry(Entry entry) throws IOException {
+
+        if ((entry.flags & FLAG_ENCRYPTED) != 0) {
+            throw new ZipException("Entrada \"" + entry.name + "\" criptografada não suportada!");
+        }
+
+        // O tamanho do nome e do campo extra no cabeçalho local podem ser diferentes do diretório central
+        final byte[] header = new byte[LOCAL_HEADER_SIZE];
+        readFully(entry.offset, header);
+        if (getInt(header, 0) != LOCAL_HEADER) {
+            throw new ZipException("Cabeçalho da entrada \"" + entry.name + "\" inválido!");
+        }
+        final long start = entry.offset + LOCAL_HEADER_SIZE + getShort(header, 26) + getShort(header, 28);
+
+        final InputStream raw = new BufferedInputStream(new RangeInputStream(start, entry.compressedSize), ArchiveWriter.BUFFER_SIZE);
+        return new CheckedEntryInputStream(Codecs.forMethod(entry.method).decompress(raw), entry);
+    }
+
+    private List<Entry> readCentralDirectory() throws IOException {
+
+        // O registro final fica nos últimos bytes do zip, seguido apenas de um comentário opcional
+        final long length = file.length();
+        final int tailSize = (int) Math.min(length, END_OF_CENTRAL_DIRECTORY_SIZE + 0xFFFF);
+        final byte[] tail = new byte[tailSize];
+        readFully(length - tailSize, tail);
+
+        int end = -1;
+        for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+            if (getInt(tail, i) == END_OF_CENTRAL_DIRECTORY) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new ZipException("Arquivo de backup inválido!");
+        }
+
+        final int count = getShort(tail, end + 10);
+        final long size = getInt(tail, end + 12) & 0xFFFFFFFFL;
+        final long offset = getInt(tail, end + 16) & 0xFFFFFFFFL;
+        if (offset + size > length) {
+            throw new ZipException("Arquivo de backup inválido!");
+        }
+
+        final byte[] directory = new byte[(int) size];
+        readFully(offset, directory);
+
+        final List<Entry> entries = new ArrayList<>(count);
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            if (position + CENTRAL_HEADER_SIZE > directory.length || getInt(directory, position) != CENTRAL_HEADER) {
+                throw new ZipException("Diretório central do backup inválido!");
+            }
+            final Entry entry = new Entry();
+            entry.flags = getShort(directory, position + 8);
+            entry.method = getShort(directory, position + 10);
+            entry.crc = getInt(directory, position + 16) & 0xFFFFFFFFL;
+            entry.compressedSize = getInt(directory, position + 20) & 0xFFFFFFFFL;
+            entry.size = getInt(directory, position + 24) & 0xFFFFFFFFL;
+            final int nameLength = getShort(directory, position + 28);
+            final int extraLength = getShort(directory, position + 30);
+            final int commentLength = getShort(directory, position + 32);
+            entry.offset = getInt(directory, position + 42) & 0xFFFFFFFFL;
+            entry.name = new String(directory, position + CENTRAL_HEADER_SIZE, nameLength, UTF8);
+            entries.add(entry);
+            position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    private void readFully(long position, byte[] b) throws IOException {
+        int offset = 0;
+        while (offset < b.length) {
+            final int read = file.read(position + offset, b, offset, b.length - offset);
+            if (read == -1) {
+                throw new EOFException("Arquivo de backup incompleto!");
+            }
+            offset += read;
+        }
+    }
+
+    private static int getShort(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8;
+    }
+
+    private static int getInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+
+    // Diretórios e o índice não são entradas do backup
+    private static boolean isFileEntry(String name) {
+        return !name.endsWith("/") && !name.equals(ArchiveManifest.ENTRY_NAME);
+    }
+
+    // Usa apenas o nome do arquivo, para que nenhuma entrada seja gravada fora do diretório de destino
+    private static String getFileName(String entryName) {
+        final int index = Math.max(entryName.lastIndexOf('/'), entryName.lastIndexOf('\\'));
+        return index >= 0 ? entryName.substring(index + 1) : entryName;
+    }
+
+    // Dados de uma entrada, lidos do diretório central
+    private static class Entry {
+        String name;
+        int flags;
+        int method;
+        long crc;
+        long compressedSize;
+        long size;
+        long offset;
+    }
+
+    // Zip gravado sem criptografia
+    private static class FileInput implements SeekableInput {
+
+        private final RandomAccessFile file;
+
+        FileInput(File archive) throws IOException {
+            this.file = new RandomAccessFile(archive, "r");
+        }
+
+        @Override
+        public long length() throws IOException {
+            return file.length();
+        }
+
+        @Override
+        public int read(long position, byte[] b, int off, int len) throws IOException {
+            file.seek(position);
+            return file.read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    // Lê apenas o trecho do zip com os dados compactados de uma entrada
+    private class RangeInputStream extends InputStream {
+
+        private long position;
+
+        private long remaining;
+
+        RangeInputStream(long start, long length) {
+            this.position = start;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int read = file.read(position, b, off, (int) Math.min(len, remaining));
+            if (read == -1) {
+                throw new EOFException("Arquivo de backup incompleto!");
+            }
+            position += read;
+            remaining -= read;
+            return read;
+        }
+    }
+
+    // Confere o tamanho e o CRC do conteúdo descompactado ao chegar no final da entrada
+    private static class CheckedEntryInputStream extends FilterInputStream {
+
+        private final Entry entry;
+
+        private final CRC32 crc = new CRC32();
+
+        private long size = 0;
+
+        private boolean checked = false;
+
+        CheckedEntryInputStream(InputStream in, Entry entry) {
+            super(in);
+            this.entry = entry;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = in.read(b, off, len);
+            if (read == -1) {
+                check();
+                return -1;
+            }
+            crc.update(b, off, read);
+            size += read;
+            if (size > entry.size) {
+                throw new ZipException("Tamanho da entrada \"" + entry.name + "\" inválido!");
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Os bytes precisam passar pelo CRC
+            final byte[] b = new byte[(int) Math.min(n, 8192)];
+            final int read = read(b, 0, b.length);
+            return read == -1 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void check() throws IOException {
+            if (checked) {
+                return;
+            }
+            checked = true;
+            if (size != entry.size || crc.getValue() != entry.crc) {
+                throw new ZipException("Entrada \"" + entry.name + "\" corrompida no backup!");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,652 @@
+package br.com.dercilima.firebackuplib.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import br.com.dercilima.firebackuplib.compress.BlockCompression;
+import br.com.dercilima.firebackuplib.compress.Codec;
+import br.com.dercilima.firebackuplib.compress.CodecPolicy;
+import br.com.dercilima.firebackuplib.compress.DeflateCodec;
+import br.com.dercilima.firebackuplib.compress.FixedCodecPolicy;
+import br.com.dercilima.firebackuplib.compress.StoreCodec;
+import br.com.dercilima.firebackuplib.utils.MonitoredInputStream;
+import br.com.dercilima.firebackuplib.utils.TransferMonitor;
+
+/**
+ * Escreve o arquivo de backup (.zip) em uma única passada.
+ * Cada arquivo de origem é lido uma única vez e gravado diretamente na entrada do zip,
+ * sem a necessidade de copiar os arquivos para uma pasta temporária antes de compactar.
+ * <p>
+ * O formato zip é gravado aqui mesmo (e não com o ZipOutputStream) para que entradas já
+ * compactadas em outra thread ({@link CompressedSegment}) possam ser copiadas para o zip.
+ * <p>
+ * O codec de cada entrada é escolhido pela {@link CodecPolicy} e o seu método fica gravado
+ * no cabeçalho da entrada, para que o {@link ArchiveReader} use o decodificador correspondente.
+ * As entradas sem compressão são gravadas com o CRC e os tamanhos no cabeçalho, sem o descritor
+ * após os dados, que o ZipInputStream não aceita nelas. No zip gravado em um arquivo, o CRC de um
+ * arquivo sem compressão é gravado no cabeçalho depois dos dados, e o arquivo é lido uma vez só.
+ * <p>
+ * No close(), um índice com todas as entradas ({@link ArchiveManifest}) é gravado como a última entrada.
+ */
+public class ArchiveWriter implements EntryWriter, Closeable {
+
+    // Tamanho do buffer usado na leitura dos arquivos de origem
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+
+    private static final int VERSION = 20;
+
+    // Posição do CRC no cabeçalho local
+    private static final int LOCAL_HEADER_CRC = 14;
+
+    // Bit 3: tamanhos e CRC no descritor após os dados. Bit 11: nome em UTF-8
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    // Limite do formato zip sem as extensões Zip64
+    private static final long MAX_SIZE = 0xFFFFFFFFL;
+
+    // Quantidade máxima de bytes de uma entrada sem compressão de openEntry() mantidos em memória
+    private static final int STORED_MEMORY_LIMIT = 4 * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final CountingOutputStream output;
+
+    // Diretório dos arquivos temporários das entradas sem compressão de openEntry()
+    private final File spillDir;
+
+    // Arquivo do zip, para corrigir o cabeçalho de uma entrada já gravada (null: o zip vai para um stream)
+    private final FileChannel channel;
+
+    // Posição do início do zip no arquivo
+    private final long channelOffset;
+
+    // CRC32 de todo o zip, para o catálogo de backups
+    private final PatchableCrc32 archiveCrc = new PatchableCrc32();
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    // Tipo e caminho original das entradas, para o índice (pode ser informado por outras threads)
+    private final Map<String, ArchiveManifest.Item> descriptions = Collections.synchronizedMap(new HashMap<String, ArchiveManifest.Item>());
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private BlockCompression blockCompression;
+
+    private CodecPolicy codecPolicy = FixedCodecPolicy.DEFAULT;
+
+    private EntryListener entryListener;
+
+    private TransferMonitor transferMonitor;
+
+    private final int dosTime;
+
+    // Indica que existe uma entrada aberta por meio de openEntry()
+    private boolean entryOpen = false;
+
+
+    public ArchiveWriter(File archive) throws IOException {
+        this(new FileOutputStream(archive), archive.getAbsoluteFile().getParentFile());
+    }
+
+    private ArchiveWriter(FileOutputStream output, File spillDir) {
+        this(output, output.getChannel(), spillDir);
+    }
+
+    public ArchiveWriter(OutputStream output) {
+        this(output, null, new File(System.getProperty("java.io.tmpdir")));
+    }
+
+    /**
+     * @param output  Destino do zip
+     * @param channel Arquivo em que o stream grava sem buffer, a partir da posição atual (ex.: o
+     *                canal do FileOutputStream), ou null. Com o arquivo, os arquivos sem compressão
+     *                são lidos uma vez só.
+     */
+    public ArchiveWriter(OutputStream output, FileChannel channel) {
+        this(output, channel, new File(System.getProperty("java.io.tmpdir")));
+    }
+
+    private ArchiveWriter(OutputStream output, FileChannel channel, File spillDir) {
+        this.output = new CountingOutputStream(new BufferedOutputStream(new CheckedOutputStream(output, archiveCrc), BUFFER_SIZE));
+        this.spillDir = spillDir;
+        this.dosTime = toDosTime(Calendar.getInstance());
+        this.channel = channel;
+        this.channelOffset = getPosition(channel);
+    }
+
+    private static long getPosition(FileChannel channel) {
+        try {
+            return channel != null ? channel.position() : 0;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Não foi possível consultar a posição do arquivo!", e);
+        }
+    }
+
+    /**
+     * Grava o conteúdo do arquivo de origem em uma nova entrada do zip
+     *
+     * @param entryName Nome da entrada dentro do zip
+     * @param source    Arquivo de origem
+     */
+    @Override
+    public void putFile(String entryName, File source) throws IOException {
+        final Codec codec = codecPolicy.select(entryName, source);
+        if (codec.getMethod() == StoreCodec.METHOD) {
+            putStoredFile(entryName, source);
+            return;
+        }
+        final boolean parallel = isParallel(codec, blockCompression, source.length());
+        final InputStream input = MonitoredInputStream.wrap(new FileInputStream(source), transferMonitor);
+        try {
+            copy(input, openEntry(entryName, codec, parallel));
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Grava todo o conteúdo do stream em uma nova entrada do zip. O stream não é fechado.
+     *
+     * @param entryName Nome da entrada dentro do zip
+     * @param input     Dados da entrada
+     */
+    public void putStream(String entryName, InputStream input) throws IOException {
+        copy(input, openEntry(entryName));
+    }
+
+    private void copy(InputStream input, OutputStream output) throws IOException {
+        try {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Abre uma nova entrada no zip. Os dados escritos no stream retornado são compactados direto
+     * para o zip e, ao fechar o stream, apenas a entrada é fechada (o zip continua aberto).
+     *
+     * @param entryName Nome da entrada dentro do zip
+     */
+    @Override
+    public OutputStream openEntry(String entryName) throws IOException {
+        return openEntry(entryName, codecPolicy.select(entryName, null), false);
+    }
+
+    private OutputStream openEntry(String entryName, Codec codec, boolean parallel) throws IOException {
+        checkNoEntryOpen();
+        if (codec.getMethod() == StoreCodec.METHOD) {
+            // O CRC e os tamanhos só são conhecidos no final: a entrada é gravada no close()
+            entryOpen = true;
+            return new StoredEntryOutputStream(entryName, codec);
+        }
+        final Entry entry = new Entry(entryName, codec.getMethod(), FLAG_DATA_DESCRIPTOR | FLAG_UTF8, output.getCount());
+        writeLocalHeader(entry);
+        entryOpen = true;
+        return new EntryOutputStream(entry, codec, parallel);
+    }
+
+    // Entrada sem compressão de um arquivo. No arquivo do zip, o CRC é calculado junto com a cópia e
+    // gravado no cabeçalho em seguida; em um stream, o CRC é calculado antes, em uma leitura a mais.
+    private void putStoredFile(String entryName, File source) throws IOException {
+        checkNoEntryOpen();
+        final long openedAt = System.nanoTime();
+        final Entry entry = new Entry(entryName, StoreCodec.METHOD, FLAG_UTF8, output.getCount());
+        entry.size = source.length();
+        entry.compressedSize = entry.size;
+        if (channel == null) {
+            entry.crc = checksum(source);
+        }
+        checkLimits(entry);
+        writeLocalHeader(entry);
+
+        final CRC32 crc = new CRC32();
+        long written = 0;
+        final InputStream input = MonitoredInputStream.wrap(new FileInputStream(source), transferMonitor);
+        try {
+            int read;
+            while ((read = input.read(buffer)) != -1 && written + read <= entry.size) {
+                crc.update(buffer, 0, read);
+                output.write(buffer, 0, read);
+                written += read;
+            }
+        } finally {
+            input.close();
+        }
+        // O cabeçalho já foi gravado: o tamanho (e, em um stream, o conteúdo) precisa ser o da primeira leitura
+        if (written != entry.size || (channel == null && crc.getValue() != entry.crc)) {
+            throw new IOException("O arquivo \"" + source.getName() + "\" foi alterado durante o backup!");
+        }
+        if (channel != null) {
+            entry.crc = crc.getValue();
+            patchCrc(entry);
+        }
+        entries.add(entry);
+
+        if (entryListener != null) {
+            entryListener.onEntryCompressed(entryName, entry.size, entry.compressedSize, System.nanoTime() - openedAt);
+        }
+    }
+
+    private long checksum(File source) throws IOException {
+        final CRC32 crc = new CRC32();
+        final InputStream input = new FileInputStream(source);
+        try {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+        }
+        return crc.getValue();
+    }
+
+    // Grava o CRC no cabeçalho local da entrada, gravado antes com o CRC zerado
+    private void patchCrc(Entry entry) throws IOException {
+        // O cabeçalho pode ainda estar no buffer
+        output.flush();
+
+        final ByteBuffer crc = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        crc.putInt((int) entry.crc);
+        crc.flip();
+        final long position = entry.offset + LOCAL_HEADER_CRC;
+        while (crc.hasRemaining()) {
+            channel.write(crc, channelOffset + position + crc.position());
+        }
+        archiveCrc.patch(position, new byte[4], crc.array());
+    }
+
+    @Override
+    public void describeEntry(String entryName, ArchiveManifest.Kind kind, String path) {
+        descriptions.put(entryName, new ArchiveManifest.Item(entryName, kind, path));
+    }
+
+    /**
+     * Habilita a compactação paralela em blocos para os arquivos grandes gravados com putFile()
+     *
+     * @param blockCompression Configuração da compactação em blocos, ou null para desabilitar
+     */
+    public void setBlockCompression(BlockCompression blockCompression) {
+        this.blockCompression = blockCompression;
+    }
+
+    /**
+     * Define a política que escolhe o codec de cada entrada
+     *
+     * @param codecPolicy Política de escolha do codec, ou null para usar sempre o deflate padrão
+     */
+    public void setCodecPolicy(CodecPolicy codecPolicy) {
+        this.codecPolicy = codecPolicy != null ? codecPolicy : FixedCodecPolicy.DEFAULT;
+    }
+
+    /**
+     * Informa os tamanhos e o tempo de cada entrada compactada (as entradas de putSegment() já
+     * foram compactadas antes e não são informadas)
+     *
+     * @param entryListener Listener, ou null
+     */
+    public void setEntryListener(EntryListener entryListener) {
+        this.entryListener = entryListener;
+    }
+
+    /**
+     * Informa os bytes lidos dos arquivos de putFile(), a cada buffer, e interrompe a cópia quando o
+     * monitor indicar o cancelamento
+     *
+     * @param transferMonitor Monitor, ou null
+     */
+    public void setTransferMonitor(TransferMonitor transferMonitor) {
+        this.transferMonitor = transferMonitor;
+    }
+
+    // A compactação em blocos paralelos gera um stream deflate, então só vale para o codec deflate
+    static boolean isParallel(Codec codec, BlockCompression blockCompression, long size) {
+        return codec instanceof DeflateCodec && blockCompression != null && blockCompression.accepts(size);
+    }
+
+    // Cria o stream que compacta a entrada com o codec ou, se parallel, em blocos paralelos
+    static OutputStream compressor(OutputStream sink, Codec codec, BlockCompression blockCompression, boolean parallel) throws IOException {
+        return parallel ? blockCompression.wrap(sink, ((DeflateCodec) codec).getLevel()) : codec.compress(sink);
+    }
+
+    /**
+     * Copia para o zip uma entrada que já foi compactada (em outra thread, por exemplo)
+     *
+     * @param entryName Nome da entrada dentro do zip
+     * @param segment   Conteúdo compactado da entrada
+     */
+    public void putSegment(String entryName, CompressedSegment segment) throws IOException {
+        checkNoEntryOpen();
+        writeSegment(entryName, segment);
+    }
+
+    private void writeSegment(String entryName, CompressedSegment segment) throws IOException {
+        final Entry entry = new Entry(entryName, segment.getMethod(), FLAG_UTF8, output.getCount());
+        entry.crc = segment.getCrc();
+        entry.size = segment.getSize();
+        entry.compressedSize = segment.getCompressedSize();
+        checkLimits(entry);
+        writeLocalHeader(entry);
+        segment.writeTo(output);
+        entries.add(entry);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            checkNoEntryOpen();
+            writeManifest();
+            writeCentralDirectory();
+        } finally {
+            output.close();
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        final List<ArchiveManifest.Item> items = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            final ArchiveManifest.Item description = descriptions.get(entry.fileName);
+            final ArchiveManifest.Item item = description != null
+                    ? new ArchiveManifest.Item(entry.fileName, description.getKind(), description.getPath())
+                    : new ArchiveManifest.Item(entry.fileName, ArchiveManifest.Kind.FILE, null);
+            item.size = entry.size;
+            item.compressedSize = entry.compressedSize;
+            item.offset = entry.offset;
+            item.method = entry.method;
+            item.crc = entry.crc;
+            items.add(item);
+        }
+
+        // O checksum cobre tudo o que foi gravado até aqui (o buffer precisa passar pelo CRC)
+        this.output.flush();
+        final ArchiveManifest manifest = new ArchiveManifest(items, this.output.getCount(), archiveCrc.getValue());
+
+        final OutputStream output = openEntry(ArchiveManifest.ENTRY_NAME);
+        try {
+            manifest.write(output);
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Tamanho do zip gravado até o momento, em bytes
+     */
+    public long getSize() {
+        return output.getCount();
+    }
+
+    /**
+     * CRC32 de todo o zip. Só é válido depois do close().
+     */
+    public long getChecksum() {
+        return archiveCrc.getValue();
+    }
+
+    private void checkNoEntryOpen() {
+        if (entryOpen) {
+            throw new IllegalStateException("Já existe uma entrada aberta no backup!");
+        }
+    }
+
+    private void checkLimits(Entry entry) throws IOException {
+        if (entry.size > MAX_SIZE || entry.compressedSize > MAX_SIZE || entry.offset > MAX_SIZE) {
+            throw new IOException("O backup excede o limite de 4 GB do formato zip!");
+        }
+    }
+
+    private void writeLocalHeader(Entry entry) throws IOException {
+        final boolean descriptor = (entry.flags & FLAG_DATA_DESCRIPTOR) != 0;
+        writeInt(LOCAL_HEADER);
+        writeShort(VERSION);
+        writeShort(entry.flags);
+        writeShort(entry.method);
+        writeInt(dosTime);
+        writeInt(descriptor ? 0 : entry.crc);
+        writeInt(descriptor ? 0 : entry.compressedSize);
+        writeInt(descriptor ? 0 : entry.size);
+        writeShort(entry.name.length);
+        writeShort(0);
+        output.write(entry.name);
+    }
+
+    private void writeCentralDirectory() throws IOException {
+
+        if (entries.size() > 0xFFFF) {
+            throw new IOException("O backup excede o limite de entradas do formato zip!");
+        }
+
+        final long start = output.getCount();
+
+        for (Entry entry : entries) {
+            writeInt(CENTRAL_HEADER);
+            writeShort(VERSION);
+            writeShort(VERSION);
+            writeShort(entry.flags);
+            writeShort(entry.method);
+            writeInt(dosTime);
+            writeInt(entry.crc);
+            writeInt(entry.compressedSize);
+            writeInt(entry.size);
+            writeShort(entry.name.length);
+            writeShort(0); // Extra
+            writeShort(0); // Comentário
+            writeShort(0); // Disco
+            writeShort(0); // Atributos internos
+            writeInt(0); // Atributos externos
+            writeInt(entry.offset);
+            output.write(entry.name);
+        }
+
+        final long size = output.getCount() - start;
+        if (start > MAX_SIZE) {
+            throw new IOException("O backup excede o limite de 4 GB do formato zip!");
+        }
+
+        writeInt(END_OF_CENTRAL_DIRECTORY);
+        writeShort(0);
+        writeShort(0);
+        writeShort(entries.size());
+        writeShort(entries.size());
+        writeInt(size);
+        writeInt(start);
+        writeShort(0);
+    }
+
+    private void writeShort(int value) throws IOException {
+        output.write(value & 0xFF);
+        output.write((value >>> 8) & 0xFF);
+    }
+
+    private void writeInt(long value) throws IOException {
+        output.write((int) (value & 0xFF));
+        output.write((int) ((value >>> 8) & 0xFF));
+        output.write((int) ((value >>> 16) & 0xFF));
+        output.write((int) ((value >>> 24) & 0xFF));
+    }
+
+    private static int toDosTime(Calendar c) {
+        return (c.get(Calendar.YEAR) - 1980) << 25
+                | (c.get(Calendar.MONTH) + 1) << 21
+                | c.get(Calendar.DAY_OF_MONTH) << 16
+                | c.get(Calendar.HOUR_OF_DAY) << 11
+                | c.get(Calendar.MINUTE) << 5
+                | c.get(Calendar.SECOND) >> 1;
+    }
+
+    // Dados de uma entrada para o diretório central
+    private static class Entry {
+
+        final String fileName;
+        final byte[] name;
+        final int method;
+        final int flags;
+        final long offset;
+        long crc;
+        long size;
+        long compressedSize;
+
+        Entry(String name, int method, int flags, long offset) {
+            this.fileName = name;
+            this.name = name.getBytes(UTF8);
+            this.method = method;
+            this.flags = flags;
+            this.offset = offset;
+        }
+    }
+
+    // Stream de uma entrada do zip, que compacta os dados com o codec e fecha apenas a entrada no close()
+    private class EntryOutputStream extends OutputStream {
+
+        private final Entry entry;
+
+        private final CRC32 crc = new CRC32();
+
+        private final OutputStream compressor;
+
+        private final long openedAt = System.nanoTime();
+
+        private boolean closed = false;
+
+        EntryOutputStream(final Entry entry, Codec codec, boolean parallel) throws IOException {
+            this.entry = entry;
+
+            // Recebe os dados compactados e grava no zip
+            final OutputStream sink = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    output.write(b);
+                    entry.compressedSize++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    output.write(b, off, len);
+                    entry.compressedSize += len;
+                }
+            };
+
+            this.compressor = compressor(sink, codec, blockCompression, parallel);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            crc.update(b, off, len);
+            entry.size += len;
+            compressor.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            entryOpen = false;
+
+            compressor.close();
+
+            entry.crc = crc.getValue();
+            checkLimits(entry);
+
+            writeInt(DATA_DESCRIPTOR);
+            writeInt(entry.crc);
+            writeInt(entry.compressedSize);
+            writeInt(entry.size);
+
+            entries.add(entry);
+
+            if (entryListener != null) {
+                entryListener.onEntryCompressed(entry.fileName, entry.size, entry.compressedSize, System.nanoTime() - openedAt);
+            }
+        }
+    }
+
+    // Entrada sem compressão de openEntry(): guardada em memória (ou no arquivo temporário, acima
+    // do limite) até o close(), quando é gravada com o CRC e os tamanhos no cabeçalho
+    private class StoredEntryOutputStream extends OutputStream {
+
+        private final String entryName;
+
+        private final File spillFile;
+
+        private final CompressedSegment segment;
+
+        private final OutputStream segmentOutput;
+
+        private final long openedAt = System.nanoTime();
+
+        private boolean closed = false;
+
+        StoredEntryOutputStream(String entryName, Codec codec) throws IOException {
+            this.entryName = entryName;
+            this.spillFile = File.createTempFile("entry", ".segment", spillDir);
+            this.segment = new CompressedSegment(spillFile, STORED_MEMORY_LIMIT);
+            this.segmentOutput = segment.open(codec);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            segmentOutput.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            entryOpen = false;
+            try {
+                segmentOutput.close();
+                writeSegment(entryName, segment);
+            } finally {
+                segment.delete();
+                spillFile.delete();
+            }
+
+            if (entryListener != null) {
+                entryListener.onEntryCompressed(entryName, segment.getSize(), segment.getCompressedSize(), System.nanoTime() - openedAt);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+package br.com.dercilima.firebackuplib.archive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+import br.com.dercilima.firebackuplib.compress.BlockCompression;
+import br.com.dercilima.firebackuplib.compress.Codec;
+
+/**
+ * Conteúdo de uma entrada do backup já compactado, junto com o método, o CRC e os tamanhos,
+ * pronto para ser copiado para o zip sem compactar de novo.
+ * Os dados ficam em memória até o limite informado e, depois disso, são gravados no arquivo de segmento.
+ */
+public class CompressedSegment {
+
+    private final File spillFile;
+
+    private final int memoryLimit;
+
+    private final CRC32 crc = new CRC32();
+
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+
+    private boolean spilled = false;
+
+    private int method;
+
+    private long size = 0;
+
+    private long compressedSize = 0;
+
+
+    /**
+     * @param spillFile   Arquivo usado quando o conteúdo compactado passa do limite de memória
+     * @param memoryLimit Quantidade máxima de bytes compactados mantidos em memória
+     */
+    public CompressedSegment(File spillFile, int memoryLimit) {
+        this.spillFile = spillFile;
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Abre o stream para gravar o conteúdo (não compactado) do segmento.
+     * O segmento só pode ser usado depois que o stream for fechado.
+     *
+     * @param codec Codec usado para compactar o conteúdo
+     */
+    public OutputStream open(Codec codec) throws IOException {
+        return open(codec, null);
+    }
+
+    /**
+     * Igual ao {@link #open(Codec)}, mas compactando em blocos paralelos (apenas para o deflate)
+     *
+     * @param codec            Codec deflate usado para compactar o conteúdo
+     * @param blockCompression Configuração da compactação em blocos
+     */
+    public OutputStream open(Codec codec, BlockCompression blockCompression) throws IOException {
+        this.method = codec.getMethod();
+        return new SegmentOutputStream(codec, blockCompression);
+    }
+
+    public int getMethod() {
+        return method;
+    }
+
+    public long getCrc() {
+        return crc.getValue();
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+
+    /**
+     * Copia o conteúdo compactado para o stream
+     */
+    public void writeTo(OutputStream output) throws IOException {
+        if (!spilled) {
+            memory.writeTo(output);
+            return;
+        }
+        final InputStream input = new FileInputStream(spillFile);
+        try {
+            final byte[] buffer = new byte[ArchiveWriter.BUFFER_SIZE];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Libera a memória e exclui o arquivo de segmento, se houver
+     */
+    public void delete() {
+        memory = null;
+        if (spilled && spillFile.exists()) {
+            spillFile.delete();
+        }
+    }
+
+    // Compacta o que é escrito e grava em memória ou no arquivo de segmento
+    private class SegmentOutputStream extends OutputStream {
+
+        private final OutputStream compressor;
+
+        private final SpillOutputStream sink = new SpillOutputStream();
+
+        private boolean closed = false;
+
+        SegmentOutputStream(Codec codec, BlockCompression blockCompression) throws IOException {
+            this.compressor = ArchiveWriter.compressor(sink, codec, blockCompression, blockCompression != null);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            crc.update(b, off, len);
+            size += len;
+            compressor.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                compressor.close();
+            } finally {
+                sink.close();
+            }
+        }
+    }
+
+    // Recebe os dados compactados: em memória até o limite e, depois, no arquivo de segmento
+    private class SpillOutputStream extends OutputStream {
+
+        private OutputStream target = memory;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!spilled && memory.size() + len > memoryLimit) {
+                // Passou do limite: o que está em memória vai para o arquivo
+                target = new FileOutputStream(spillFile);
+                memory.writeTo(target);
+                memory = new ByteArrayOutputStream(0);
+                spilled = true;
+            }
+            target.write(b, off, len);
+            compressedSize += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (spilled) {
+                target.close();
+            }
+        }
+    }
+
+}
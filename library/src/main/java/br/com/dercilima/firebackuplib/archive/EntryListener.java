@@ -0,0 +1,16 @@
+package br.com.dercilima.firebackuplib.archive;
+
+/**
+ * Recebe os tamanhos e o tempo de cada entrada compactada, para as métricas do backup
+ */
+public interface EntryListener {
+
+    /**
+     * @param entryName      Nome da entrada
+     * @param size           Bytes da entrada, sem compactação
+     * @param compressedSize Bytes da entrada compactada
+     * @param elapsedNanos   Tempo desde a abertura até o fechamento da entrada
+     */
+    void onEntryCompressed(String entryName, long size, long compressedSize, long elapsedNanos);
+
+}
@@ -0,0 +1,46 @@
+package br.com.dercilima.firebackuplib.archive;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Origem das entradas de um backup no restore: o arquivo zip ({@link ArchiveReader}) ou
+ * um snapshot do repositório de chunks.
+ */
+public interface EntryReader extends Closeable {
+
+    /**
+     * Avança para a próxima entrada
+     *
+     * @return Nome do arquivo da entrada (sem o caminho) ou null quando não houver mais entradas
+     */
+    String nextEntry() throws IOException;
+
+    /**
+     * Retorna o conteúdo da entrada atual. Fechar o stream retornado não fecha o backup.
+     */
+    InputStream getEntryStream() throws IOException;
+
+    /**
+     * Grava o conteúdo da entrada atual no arquivo de destino
+     *
+     * @param dest Arquivo de destino
+     */
+    void copyEntryTo(File dest) throws IOException;
+
+    /**
+     * Lê o que falta da entrada atual, para que o seu checksum seja conferido mesmo quando
+     * o conteúdo não foi lido até o final
+     */
+    void verifyEntry() throws IOException;
+
+    /**
+     * Confere a integridade de todo o backup, sem extrair nenhum arquivo
+     *
+     * @param full false para a conferência rápida (sem descompactar), quando o formato permitir
+     */
+    void verify(boolean full) throws IOException;
+
+}
@@ -0,0 +1,38 @@
+package br.com.dercilima.firebackuplib.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Destino das entradas de um backup: o próprio arquivo zip ({@link ArchiveWriter}) ou um buffer
+ * de segmentos já compactados ({@link SegmentBuffer}), que será copiado para o zip depois.
+ */
+public interface EntryWriter {
+
+    /**
+     * Abre uma nova entrada. Ao fechar o stream retornado, a entrada é finalizada.
+     *
+     * @param entryName Nome da entrada dentro do backup
+     */
+    OutputStream openEntry(String entryName) throws IOException;
+
+    /**
+     * Grava o conteúdo do arquivo de origem em uma nova entrada
+     *
+     * @param entryName Nome da entrada dentro do backup
+     * @param source    Arquivo de origem
+     */
+    void putFile(String entryName, File source) throws IOException;
+
+    /**
+     * Informa o tipo e o caminho original de uma entrada, para o índice do backup ({@link ArchiveManifest}).
+     * Pode ser chamado antes ou depois de gravar a entrada; descrições de entradas não gravadas são ignoradas.
+     *
+     * @param entryName Nome da entrada dentro do backup
+     * @param kind      Tipo do arquivo
+     * @param path      Caminho do arquivo de origem no aparelho
+     */
+    void describeEntry(String entryName, ArchiveManifest.Kind kind, String path);
+
+}
@@ -0,0 +1,132 @@
+package br.com.dercilima.firebackuplib.archive;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32 de um stream em que alguns trechos são alterados depois de gravados (ex.: o CRC no
+ * cabeçalho de uma entrada, corrigido depois dos dados). Como o CRC é linear, cada alteração é
+ * aplicada ao valor final sem ler os dados de novo, deslocando o CRC da diferença pelos bytes
+ * gravados depois do trecho (o mesmo cálculo do crc32_combine() do zlib).
+ */
+class PatchableCrc32 implements Checksum {
+
+    // Polinômio do CRC32, na ordem invertida dos bits
+    private static final long POLYNOMIAL = 0xEDB88320L;
+
+    private final CRC32 crc = new CRC32();
+
+    private long length = 0;
+
+    // CRC da diferença de cada trecho alterado e a posição do fim do trecho
+    private final List<long[]> patches = new ArrayList<>();
+
+    @Override
+    public void update(int b) {
+        crc.update(b);
+        length++;
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        crc.update(b, off, len);
+        length += len;
+    }
+
+    @Override
+    public long getValue() {
+        long value = crc.getValue();
+        for (long[] patch : patches) {
+            value ^= shift(patch[0], length - patch[1]);
+        }
+        return value;
+    }
+
+    @Override
+    public void reset() {
+        crc.reset();
+        length = 0;
+        patches.clear();
+    }
+
+    /**
+     * Registra a alteração de um trecho que já passou pelo CRC
+     *
+     * @param position Posição do trecho no stream
+     * @param before   Bytes gravados no stream
+     * @param after    Bytes que ficaram no lugar (do mesmo tamanho)
+     */
+    void patch(long position, byte[] before, byte[] after) {
+        if (before.length != after.length || position < 0 || position + after.length > length) {
+            throw new IllegalArgumentException("Trecho inválido!");
+        }
+        // Para mensagens do mesmo tamanho, crc(a ^ b) = crc(a) ^ crc(b) ^ crc(zeros)
+        final CRC32 difference = new CRC32();
+        final CRC32 zeros = new CRC32();
+        for (int i = 0; i < after.length; i++) {
+            difference.update(before[i] ^ after[i]);
+            zeros.update(0);
+        }
+        patches.add(new long[]{difference.getValue() ^ zeros.getValue(), position + after.length});
+    }
+
+    // Aplica ao CRC (sem o complemento inicial e final) a passagem de "count" bytes zerados
+    static long shift(long crc, long count) {
+        if (count <= 0) {
+            return crc;
+        }
+
+        final long[] even = new long[32];
+        final long[] odd = new long[32];
+
+        // Operador de um bit zerado
+        odd[0] = POLYNOMIAL;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        // Operadores de dois e de quatro bits zerados
+        square(even, odd);
+        square(odd, even);
+
+        // A cada volta, o operador é elevado ao quadrado (um byte, dois, quatro, ...)
+        do {
+            square(even, odd);
+            if ((count & 1) != 0) {
+                crc = times(even, crc);
+            }
+            count >>>= 1;
+            if (count == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((count & 1) != 0) {
+                crc = times(odd, crc);
+            }
+            count >>>= 1;
+        } while (count != 0);
+
+        return crc;
+    }
+
+    private static long times(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+
+}
@@ -0,0 +1,24 @@
+package br.com.dercilima.firebackuplib.archive;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Conteúdo do zip com acesso direto a qualquer posição, lido pelo {@link ArchiveReader}.
+ * Permite ler o zip de um arquivo comum ou de um arquivo criptografado.
+ */
+public interface SeekableInput extends Closeable {
+
+    /**
+     * @return Tamanho do conteúdo em bytes
+     */
+    long length() throws IOException;
+
+    /**
+     * Lê a partir da posição informada
+     *
+     * @return Quantidade de bytes lidos, ou -1 no final do conteúdo
+     */
+    int read(long position, byte[] b, int off, int len) throws IOException;
+
+}
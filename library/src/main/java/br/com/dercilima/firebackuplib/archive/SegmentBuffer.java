@@ -0,0 +1,193 @@
+package br.com.dercilima.firebackuplib.archive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import br.com.dercilima.firebackuplib.compress.BlockCompression;
+import br.com.dercilima.firebackuplib.compress.Codec;
+import br.com.dercilima.firebackuplib.compress.CodecPolicy;
+import br.com.dercilima.firebackuplib.compress.FixedCodecPolicy;
+import br.com.dercilima.firebackuplib.utils.MonitoredInputStream;
+import br.com.dercilima.firebackuplib.utils.TransferMonitor;
+
+/**
+ * Entradas de um backup compactadas fora da thread que grava o zip. Usado para compactar
+ * vários bancos de dados ao mesmo tempo: cada worker grava no seu próprio buffer e, depois,
+ * os buffers são copiados para o zip na ordem em que os bancos foram informados.
+ */
+public class SegmentBuffer implements EntryWriter {
+
+    private final File spillDir;
+
+    private final String spillPrefix;
+
+    private final int memoryLimit;
+
+    private final List<String> names = new ArrayList<>();
+
+    private BlockCompression blockCompression;
+
+    private CodecPolicy codecPolicy = FixedCodecPolicy.DEFAULT;
+
+    private EntryListener entryListener;
+
+    private TransferMonitor transferMonitor;
+
+    private final List<CompressedSegment> segments = new ArrayList<>();
+
+    // Repassadas ao zip junto com as entradas
+    private final List<ArchiveManifest.Item> descriptions = Collections.synchronizedList(new ArrayList<ArchiveManifest.Item>());
+
+
+    /**
+     * @param spillDir    Diretório dos arquivos de segmento (quando o limite de memória é atingido)
+     * @param spillPrefix Prefixo único para os arquivos de segmento deste buffer
+     * @param memoryLimit Quantidade máxima de bytes compactados mantidos em memória por entrada
+     */
+    public SegmentBuffer(File spillDir, String spillPrefix, int memoryLimit) {
+        this.spillDir = spillDir;
+        this.spillPrefix = spillPrefix;
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Habilita a compactação paralela em blocos para os arquivos grandes gravados com putFile()
+     *
+     * @param blockCompression Configuração da compactação em blocos, ou null para desabilitar
+     */
+    public void setBlockCompression(BlockCompression blockCompression) {
+        this.blockCompression = blockCompression;
+    }
+
+    /**
+     * Define a política que escolhe o codec de cada entrada
+     *
+     * @param codecPolicy Política de escolha do codec, ou null para usar sempre o deflate padrão
+     */
+    public void setCodecPolicy(CodecPolicy codecPolicy) {
+        this.codecPolicy = codecPolicy != null ? codecPolicy : FixedCodecPolicy.DEFAULT;
+    }
+
+    /**
+     * Informa os tamanhos e o tempo de cada entrada compactada
+     *
+     * @param entryListener Listener, ou null
+     */
+    public void setEntryListener(EntryListener entryListener) {
+        this.entryListener = entryListener;
+    }
+
+    /**
+     * Informa os bytes lidos dos arquivos de putFile(), a cada buffer, e interrompe a cópia quando o
+     * monitor indicar o cancelamento
+     *
+     * @param transferMonitor Monitor, ou null
+     */
+    public void setTransferMonitor(TransferMonitor transferMonitor) {
+        this.transferMonitor = transferMonitor;
+    }
+
+    @Override
+    public OutputStream openEntry(String entryName) throws IOException {
+        return openEntry(entryName, codecPolicy.select(entryName, null), false);
+    }
+
+    private OutputStream openEntry(String entryName, Codec codec, boolean parallel) throws IOException {
+        final CompressedSegment segment = new CompressedSegment(new File(spillDir, spillPrefix + "." + segments.size()), memoryLimit);
+        names.add(entryName);
+        segments.add(segment);
+        final OutputStream output = segment.open(codec, parallel ? blockCompression : null);
+        return entryListener != null ? new ListenerOutputStream(output, entryName, segment) : output;
+    }
+
+    @Override
+    public void putFile(String entryName, File source) throws IOException {
+        final Codec codec = codecPolicy.select(entryName, source);
+        final boolean parallel = ArchiveWriter.isParallel(codec, blockCompression, source.length());
+        final InputStream input = MonitoredInputStream.wrap(new FileInputStream(source), transferMonitor);
+        try {
+            final OutputStream output = openEntry(entryName, codec, parallel);
+            try {
+                final byte[] buffer = new byte[ArchiveWriter.BUFFER_SIZE];
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    output.write(buffer, 0, read);
+                }
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    @Override
+    public void describeEntry(String entryName, ArchiveManifest.Kind kind, String path) {
+        descriptions.add(new ArchiveManifest.Item(entryName, kind, path));
+    }
+
+    /**
+     * Copia todas as entradas para o zip, na ordem em que foram gravadas
+     */
+    public void writeTo(ArchiveWriter writer) throws IOException {
+        synchronized (descriptions) {
+            for (ArchiveManifest.Item item : descriptions) {
+                writer.describeEntry(item.getName(), item.getKind(), item.getPath());
+            }
+        }
+        for (int i = 0; i < segments.size(); i++) {
+            writer.putSegment(names.get(i), segments.get(i));
+        }
+    }
+
+    /**
+     * Libera a memória e exclui os arquivos de segmento
+     */
+    public void delete() {
+        for (CompressedSegment segment : segments) {
+            segment.delete();
+        }
+    }
+
+
+    // Informa o listener quando a entrada é fechada
+    private class ListenerOutputStream extends FilterOutputStream {
+
+        private final String entryName;
+
+        private final CompressedSegment segment;
+
+        private final long openedAt = System.nanoTime();
+
+        private boolean closed = false;
+
+        ListenerOutputStream(OutputStream out, String entryName, CompressedSegment segment) {
+            super(out);
+            this.entryName = entryName;
+            this.segment = segment;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            out.close();
+            entryListener.onEntryCompressed(entryName, segment.getSize(), segment.getCompressedSize(), System.nanoTime() - openedAt);
+        }
+    }
+
+}
@@ -0,0 +1,535 @@
+package br.com.dercilima.firebackuplib.catalog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import br.com.dercilima.firebackuplib.archive.ArchiveManifest;
+import br.com.dercilima.firebackuplib.archive.ArchiveReader;
+import br.com.dercilima.firebackuplib.incremental.PageDelta;
+import br.com.dercilima.firebackuplib.repository.ChunkRepository;
+import br.com.dercilima.firebackuplib.repository.Snapshot;
+import br.com.dercilima.firebackuplib.snapshot.DatabaseCopy;
+
+/**
+ * Catálogo dos backups de um diretório, para listar e consultar os backups sem abrir nenhum deles
+ * e sem percorrer o diretório.
+ * <p>
+ * O catálogo é um arquivo em que os registros são apenas acrescentados (diretorio/.catalog/backups.idx):
+ * cada alteração grava a versão completa do backup (ou a sua exclusão) e, na leitura, o último
+ * registro de cada backup prevalece. Cada registro tem o seu CRC, então um registro incompleto
+ * (o app foi encerrado durante a gravação) é descartado. Quando há registros antigos demais,
+ * o arquivo é regravado apenas com a versão atual de cada backup.
+ * <p>
+ * Se o catálogo não existir (backups gravados antes do catálogo, por exemplo), ele é montado a partir
+ * dos backups do diretório, abrindo cada um uma única vez.
+ * <p>
+ * Há uma única instância por diretório ({@link #forDirectory(File)}): as gravações são sincronizadas
+ * na instância, então o BackupTask, o agendador e o restore não perdem os registros uns dos outros.
+ */
+public class BackupCatalog {
+
+    private static final String CATALOG_DIR = ".catalog";
+
+    private static final String CATALOG_FILE = "backups.idx";
+
+    private static final int MAGIC = 0x46424354; // "FBCT"
+    private static final int VERSION = 1;
+
+    private static final int RECORD_PUT = 1;
+    private static final int RECORD_REMOVE = 2;
+
+    // Tamanho máximo de um registro, para não alocar memória demais com um arquivo corrompido
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    // Catálogo de cada diretório (caminho canônico -> catálogo)
+    private static final Map<String, BackupCatalog> INSTANCES = new HashMap<>();
+
+    private final File directory;
+
+    private final File file;
+
+    // Versão atual de cada backup (nome -> dados), carregada na primeira consulta
+    private Map<String, CatalogEntry> entries;
+
+    // Registros no arquivo, incluindo as versões antigas
+    private int records;
+
+
+    private BackupCatalog(File directory) {
+        this.directory = directory;
+        this.file = new File(new File(directory, CATALOG_DIR), CATALOG_FILE);
+    }
+
+    /**
+     * Catálogo do diretório de backups. Caminhos diferentes para o mesmo diretório retornam o mesmo catálogo.
+     *
+     * @param directory Diretório dos backups
+     */
+    public static BackupCatalog forDirectory(File directory) {
+        final String key = canonicalPath(directory);
+        synchronized (INSTANCES) {
+            BackupCatalog catalog = INSTANCES.get(key);
+            if (catalog == null) {
+                catalog = new BackupCatalog(directory);
+                INSTANCES.put(key, catalog);
+            }
+            return catalog;
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Adiciona o backup ao catálogo, ou substitui os dados de um backup com o mesmo nome
+     */
+    public synchronized void put(CatalogEntry entry) throws IOException {
+        load();
+        append(RECORD_PUT, entry.getName(), entry);
+        entries.put(entry.getName(), entry.copy());
+    }
+
+    /**
+     * Atualiza a situação do upload do backup
+     *
+     * @param name     Nome do backup no catálogo
+     * @param state    Situação do upload
+     * @param location Local do backup no destino, ou null
+     * @return false se o backup não está no catálogo
+     */
+    public synchronized boolean setUploadState(String name, CatalogEntry.UploadState state, String location) throws IOException {
+        load();
+        final CatalogEntry current = entries.get(name);
+        if (current == null) {
+            return false;
+        }
+        final CatalogEntry entry = current.copy().setUpload(state, location);
+        append(RECORD_PUT, name, entry);
+        entries.put(name, entry);
+        return true;
+    }
+
+    /**
+     * Remove o backup do catálogo (o arquivo de backup não é excluído)
+     *
+     * @return false se o backup não estava no catálogo
+     */
+    public synchronized boolean remove(String name) throws IOException {
+        load();
+        if (!entries.containsKey(name)) {
+            return false;
+        }
+        append(RECORD_REMOVE, name, null);
+        entries.remove(name);
+        return true;
+    }
+
+    /**
+     * @return Dados do backup, ou null se ele não está no catálogo
+     */
+    public synchronized CatalogEntry get(String name) throws IOException {
+        load();
+        final CatalogEntry entry = entries.get(name);
+        return entry != null ? entry.copy() : null;
+    }
+
+    /**
+     * Todos os backups do catálogo, do mais antigo para o mais recente, inclusive os que não
+     * existem mais no aparelho (excluídos após o upload, por exemplo)
+     */
+    public synchronized List<CatalogEntry> list() throws IOException {
+        load();
+        final List<CatalogEntry> list = new ArrayList<>(entries.size());
+        for (CatalogEntry entry : entries.values()) {
+            list.add(entry.copy());
+        }
+        Collections.sort(list, new Comparator<CatalogEntry>() {
+            @Override
+            public int compare(CatalogEntry o1, CatalogEntry o2) {
+                if (o1.getCreatedAt() != o2.getCreatedAt()) {
+                    return o1.getCreatedAt() < o2.getCreatedAt() ? -1 : 1;
+                }
+                return o1.getName().compareTo(o2.getName());
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Arquivos dos backups que existem no aparelho, do mais antigo para o mais recente
+     */
+    public List<File> getLocalBackups() throws IOException {
+        final List<File> files = new ArrayList<>();
+        for (CatalogEntry entry : list()) {
+            final File backup = getFile(entry);
+            if (backup.exists()) {
+                files.add(backup);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Backup mais recente que existe no aparelho, ou null se não houver nenhum
+     */
+    public CatalogEntry getLatest() throws IOException {
+        final List<CatalogEntry> list = list();
+        for (int i = list.size() - 1; i >= 0; i--) {
+            if (getFile(list.get(i)).exists()) {
+                return list.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Backup mais recente, que existe no aparelho, com o banco de dados informado
+     *
+     * @param databaseName Nome do banco de dados (por exemplo, "app.db")
+     * @return O backup, ou null se nenhum backup tem o banco
+     */
+    public CatalogEntry findLatestWithDatabase(String databaseName) throws IOException {
+        final List<CatalogEntry> list = list();
+        for (int i = list.size() - 1; i >= 0; i--) {
+            if (list.get(i).getDatabases().contains(databaseName) && getFile(list.get(i)).exists()) {
+                return list.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Backup mais recente, que existe no aparelho, com o arquivo de preferências informado
+     *
+     * @param preferencesName Nome do arquivo de preferências (por exemplo, "config.xml")
+     * @return O backup, ou null se nenhum backup tem as preferências
+     */
+    public CatalogEntry findLatestWithPreferences(String preferencesName) throws IOException {
+        final List<CatalogEntry> list = list();
+        for (int i = list.size() - 1; i >= 0; i--) {
+            if (list.get(i).getPreferences().contains(preferencesName) && getFile(list.get(i)).exists()) {
+                return list.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Arquivo do backup no aparelho
+     */
+    public File getFile(CatalogEntry entry) {
+        return new File(directory, entry.getName());
+    }
+
+    /**
+     * Nome do arquivo de backup no catálogo (o caminho relativo ao diretório do catálogo)
+     */
+    public String getName(File backup) {
+        String base = directory.getAbsolutePath() + File.separator;
+        String path = backup.getAbsolutePath();
+        if (!path.startsWith(base)) {
+            // O catálogo é compartilhado: o backup pode ter vindo de outro caminho para o mesmo diretório
+            base = canonicalPath(directory) + File.separator;
+            path = canonicalPath(backup);
+        }
+        return path.startsWith(base) ? path.substring(base.length()).replace(File.separatorChar, '/') : backup.getAbsolutePath();
+    }
+
+    private static String canonicalPath(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Monta o catálogo novamente a partir dos backups do diretório (zips e snapshots do repositório),
+     * mantendo a situação do upload dos backups que já estavam no catálogo. Os backups enviados que
+     * não existem mais no aparelho continuam no catálogo, para a retenção do destino. Útil quando
+     * backups são copiados para o diretório sem passar pelo BackupTask.
+     */
+    public synchronized void rebuild() throws IOException {
+        if (entries == null && file.exists()) {
+            load();
+        }
+        final Map<String, CatalogEntry> previous = entries != null ? entries : new LinkedHashMap<String, CatalogEntry>();
+        entries = new LinkedHashMap<>();
+
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isFile() && (f.getName().contains(".zip") || f.getName().contains(".rar"))) {
+                    addScanned(describeArchive(f), previous);
+                }
+            }
+        }
+
+        final ChunkRepository repository = new ChunkRepository(directory);
+        for (String snapshotName : repository.listSnapshots()) {
+            addScanned(describeSnapshot(repository.getSnapshotFile(snapshotName)), previous);
+        }
+
+        // Enviados e excluídos do aparelho (ou enviados sem cópia local)
+        for (CatalogEntry old : previous.values()) {
+            if (!entries.containsKey(old.getName()) && old.getUploadState() == CatalogEntry.UploadState.UPLOADED
+                    && !getFile(old).exists()) {
+                entries.put(old.getName(), old);
+            }
+        }
+
+        compact();
+    }
+
+    private void addScanned(CatalogEntry entry, Map<String, CatalogEntry> previous) {
+        final CatalogEntry old = previous.get(entry.getName());
+        if (old != null) {
+            entry.setUpload(old.getUploadState(), old.getUploadLocation());
+            if (entry.getBaseBackups().isEmpty()) {
+                entry.setBaseBackups(old.getBaseBackups());
+            }
+            if (entry.getChecksum() == null && old.getSize() == entry.getSize()) {
+                entry.setChecksum(old.getChecksum());
+            }
+        }
+        entries.put(entry.getName(), entry);
+    }
+
+    // Dados de um zip, a partir do índice ou, nos backups mais antigos, dos nomes das entradas
+    private CatalogEntry describeArchive(File archive) {
+        final CatalogEntry entry = new CatalogEntry(getName(archive), archive.lastModified(), archive.length());
+        final List<String> databases = new ArrayList<>();
+        final List<String> preferences = new ArrayList<>();
+        final List<String> bases = new ArrayList<>();
+        try {
+            final ArchiveReader reader = new ArchiveReader(archive);
+            try {
+                final ArchiveManifest manifest = reader.getManifest();
+                if (manifest != null) {
+                    for (ArchiveManifest.Item item : manifest.getItems()) {
+                        if (item.getKind() == ArchiveManifest.Kind.PREFERENCES) {
+                            preferences.add(item.getName());
+                        } else if (item.getKind() == ArchiveManifest.Kind.DATABASE && item.getPath() != null) {
+                            addDatabase(databases, new File(item.getPath()).getName());
+                        }
+                    }
+                } else {
+                    String name;
+                    while ((name = reader.nextEntry()) != null) {
+                        if (name.endsWith(".xml")) {
+                            preferences.add(name);
+                        } else if (name.endsWith(PageDelta.DELTA_SUFFIX)) {
+                            addDatabase(databases, name.substring(0, name.length() - PageDelta.DELTA_SUFFIX.length()));
+                        } else if (!name.endsWith(PageDelta.MANIFEST_SUFFIX) && !name.endsWith(DatabaseCopy.WAL_SUFFIX)) {
+                            addDatabase(databases, name);
+                        }
+                    }
+                }
+                // O backup base de cada delta fica no início da entrada
+                for (String database : databases) {
+                    if (reader.findEntry(database + PageDelta.DELTA_SUFFIX)) {
+                        addDatabase(bases, PageDelta.readParent(new DataInputStream(reader.getEntryStream())));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // O backup continua no catálogo, apenas sem a lista de arquivos
+        }
+        return entry.setDatabases(databases).setPreferences(preferences).setBaseBackups(bases);
+    }
+
+    private CatalogEntry describeSnapshot(File snapshotFile) {
+        final List<String> databases = new ArrayList<>();
+        final List<String> preferences = new ArrayList<>();
+        long createdAt = snapshotFile.lastModified();
+        long size = 0;
+        try {
+            final Snapshot snapshot = Snapshot.load(snapshotFile);
+            createdAt = snapshot.getCreatedAt();
+            for (Snapshot.FileEntry file : snapshot.getFiles()) {
+                size += file.getSize();
+                if (file.getName().endsWith(".xml")) {
+                    preferences.add(file.getName());
+                } else if (!file.getName().endsWith(DatabaseCopy.WAL_SUFFIX)) {
+                    databases.add(file.getName());
+                }
+            }
+        } catch (IOException e) {
+            // O snapshot continua no catálogo, apenas sem a lista de arquivos
+        }
+        return new CatalogEntry(getName(snapshotFile), createdAt, size).setDatabases(databases).setPreferences(preferences);
+    }
+
+    private static void addDatabase(List<String> databases, String name) {
+        if (!databases.contains(name)) {
+            databases.add(name);
+        }
+    }
+
+    private void load() throws IOException {
+        if (entries != null) {
+            return;
+        }
+        if (!file.exists()) {
+            rebuild();
+            return;
+        }
+
+        entries = new LinkedHashMap<>();
+        records = 0;
+        boolean complete = false;
+
+        final DataInputStream data = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (data.readInt() != MAGIC || data.readUnsignedByte() != VERSION) {
+                throw new IOException("Catálogo de backups inválido!");
+            }
+            while (readRecord(data)) {
+                records++;
+            }
+            complete = true;
+        } catch (IOException e) {
+            // Registro incompleto ou corrompido: os registros seguintes são descartados
+        } finally {
+            data.close();
+        }
+
+        if (!complete) {
+            if (records == 0 && entries.isEmpty()) {
+                rebuild();
+            } else {
+                compact();
+            }
+        }
+    }
+
+    // Lê um registro. Retorna false no final do arquivo.
+    private boolean readRecord(DataInputStream data) throws IOException {
+        final int length;
+        try {
+            length = data.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        if (length <= 0 || length > MAX_RECORD_SIZE) {
+            throw new IOException("Registro do catálogo inválido!");
+        }
+        final byte[] payload = new byte[length];
+        data.readFully(payload);
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        if (data.readInt() != (int) crc.getValue()) {
+            throw new IOException("Registro do catálogo corrompido!");
+        }
+
+        final DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+        final int type = record.readUnsignedByte();
+        if (type == RECORD_PUT) {
+            final CatalogEntry entry = CatalogEntry.read(record);
+            entries.remove(entry.getName());
+            entries.put(entry.getName(), entry);
+        } else if (type == RECORD_REMOVE) {
+            entries.remove(record.readUTF());
+        } else {
+            throw new IOException("Registro do catálogo inválido!");
+        }
+        return true;
+    }
+
+    private void append(int type, String name, CatalogEntry entry) throws IOException {
+
+        // Muitas versões antigas: regravar o catálogo antes de continuar
+        if (records > 2 * entries.size() + 32) {
+            compact();
+        }
+
+        final boolean created = !file.exists();
+        if (created) {
+            checkDir();
+        }
+        final FileOutputStream output = new FileOutputStream(file, true);
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream data = new DataOutputStream(bytes);
+            if (created) {
+                data.writeInt(MAGIC);
+                data.writeByte(VERSION);
+            }
+            writeRecord(data, type, name, entry);
+            bytes.writeTo(output);
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        records++;
+    }
+
+    private static void writeRecord(DataOutputStream data, int type, String name, CatalogEntry entry) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream record = new DataOutputStream(bytes);
+        record.writeByte(type);
+        if (type == RECORD_PUT) {
+            entry.write(record);
+        } else {
+            record.writeUTF(name);
+        }
+        final byte[] payload = bytes.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        data.writeInt(payload.length);
+        data.write(payload);
+        data.writeInt((int) crc.getValue());
+    }
+
+    // Regrava o catálogo apenas com a versão atual de cada backup. O arquivo é trocado com um rename.
+    private void compact() throws IOException {
+        checkDir();
+        final File temp = new File(file.getPath() + ".tmp");
+        final FileOutputStream output = new FileOutputStream(temp);
+        try {
+            final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(output));
+            data.writeInt(MAGIC);
+            data.writeByte(VERSION);
+            for (CatalogEntry entry : entries.values()) {
+                writeRecord(data, RECORD_PUT, entry.getName(), entry);
+            }
+            data.flush();
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Não foi possível gravar o catálogo de backups!");
+        }
+        records = entries.size();
+    }
+
+    private void checkDir() throws IOException {
+        final File dir = file.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Não foi possível criar o diretório \"" + dir + "\"!");
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+package br.com.dercilima.firebackuplib.catalog;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Dados de um backup no catálogo ({@link BackupCatalog}): o que foi gravado, quando, o tamanho,
+ * o checksum e a situação do upload. Tudo sem precisar abrir o arquivo de backup.
+ */
+public class CatalogEntry {
+
+    public enum UploadState {
+        NONE,
+        PENDING,
+        UPLOADED,
+        FAILED
+    }
+
+    private final String name;
+
+    private final long createdAt;
+
+    private final long size;
+
+    private List<String> databases = Collections.emptyList();
+
+    private List<String> preferences = Collections.emptyList();
+
+    private String checksum;
+
+    private UploadState uploadState = UploadState.NONE;
+
+    private String uploadLocation;
+
+    private List<String> baseBackups = Collections.emptyList();
+
+
+    /**
+     * @param name      Caminho do backup, relativo ao diretório do catálogo
+     * @param createdAt Data do backup, em milissegundos
+     * @param size      Tamanho do arquivo de backup, em bytes
+     */
+    public CatalogEntry(String name, long createdAt, long size) {
+        this.name = name;
+        this.createdAt = createdAt;
+        this.size = size;
+    }
+
+    /**
+     * Caminho do backup, relativo ao diretório do catálogo
+     */
+    public String getName() {
+        return name;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Nomes dos bancos de dados (entradas) contidos no backup
+     */
+    public List<String> getDatabases() {
+        return databases;
+    }
+
+    public CatalogEntry setDatabases(List<String> databases) {
+        this.databases = Collections.unmodifiableList(new ArrayList<>(databases));
+        return this;
+    }
+
+    /**
+     * Nomes dos arquivos de preferências (entradas) contidos no backup
+     */
+    public List<String> getPreferences() {
+        return preferences;
+    }
+
+    public CatalogEntry setPreferences(List<String> preferences) {
+        this.preferences = Collections.unmodifiableList(new ArrayList<>(preferences));
+        return this;
+    }
+
+    /**
+     * Checksum do arquivo de backup, no formato "algoritmo:valor", ou null se não é conhecido
+     */
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public CatalogEntry setChecksum(String checksum) {
+        this.checksum = checksum;
+        return this;
+    }
+
+    /**
+     * Backups dos quais este backup incremental depende (os deltas foram gravados sobre eles).
+     * Vazio para um backup completo.
+     */
+    public List<String> getBaseBackups() {
+        return baseBackups;
+    }
+
+    public CatalogEntry setBaseBackups(List<String> baseBackups) {
+        this.baseBackups = Collections.unmodifiableList(new ArrayList<>(baseBackups));
+        return this;
+    }
+
+    public UploadState getUploadState() {
+        return uploadState;
+    }
+
+    /**
+     * Local do backup no destino do upload, quando enviado
+     */
+    public String getUploadLocation() {
+        return uploadLocation;
+    }
+
+    CatalogEntry setUpload(UploadState uploadState, String uploadLocation) {
+        this.uploadState = uploadState;
+        this.uploadLocation = uploadLocation;
+        return this;
+    }
+
+    CatalogEntry copy() {
+        final CatalogEntry copy = new CatalogEntry(name, createdAt, size);
+        copy.databases = databases;
+        copy.preferences = preferences;
+        copy.checksum = checksum;
+        copy.uploadState = uploadState;
+        copy.uploadLocation = uploadLocation;
+        copy.baseBackups = baseBackups;
+        return copy;
+    }
+
+    void write(DataOutputStream data) throws IOException {
+        data.writeUTF(name);
+        data.writeLong(createdAt);
+        data.writeLong(size);
+        writeList(data, databases);
+        writeList(data, preferences);
+        data.writeUTF(checksum != null ? checksum : "");
+        data.writeByte(uploadState.ordinal());
+        data.writeUTF(uploadLocation != null ? uploadLocation : "");
+        writeList(data, baseBackups);
+    }
+
+    static CatalogEntry read(DataInputStream data) throws IOException {
+        final CatalogEntry entry = new CatalogEntry(data.readUTF(), data.readLong(), data.readLong());
+        entry.databases = Collections.unmodifiableList(readList(data));
+        entry.preferences = Collections.unmodifiableList(readList(data));
+        final String checksum = data.readUTF();
+        entry.checksum = checksum.isEmpty() ? null : checksum;
+        final int state = data.readUnsignedByte();
+        if (state >= UploadState.values().length) {
+            throw new IOException("Catálogo de backups inválido!");
+        }
+        entry.uploadState = UploadState.values()[state];
+        final String location = data.readUTF();
+        entry.uploadLocation = location.isEmpty() ? null : location;
+        // Os registros gravados antes dos backups base terminam aqui
+        if (data.available() > 0) {
+            entry.baseBackups = Collections.unmodifiableList(readList(data));
+        }
+        return entry;
+    }
+
+    private static void writeList(DataOutputStream data, List<String> values) throws IOException {
+        data.writeShort(values.size());
+        for (String value : values) {
+            data.writeUTF(value);
+        }
+    }
+
+    private static List<String> readList(DataInputStream data) throws IOException {
+        final int size = data.readUnsignedShort();
+        final List<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(data.readUTF());
+        }
+        return values;
+    }
+
+}
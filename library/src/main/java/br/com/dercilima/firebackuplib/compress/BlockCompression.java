@@ -0,0 +1,47 @@
+package br.com.dercilima.firebackuplib.compress;
+
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Configuração da compactação paralela em blocos ({@link ParallelDeflaterOutputStream}),
+ * usada apenas nas entradas grandes o suficiente para serem divididas em vários blocos.
+ */
+public class BlockCompression {
+
+    private final ExecutorService executor;
+
+    private final int threads;
+
+    private final int blockSize;
+
+
+    /**
+     * @param executor  Executor onde os blocos são compactados
+     * @param threads   Quantidade de threads do executor
+     * @param blockSize Tamanho de cada bloco (não compactado)
+     */
+    public BlockCompression(ExecutorService executor, int threads, int blockSize) {
+        this.executor = executor;
+        this.threads = threads;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Indica se vale a pena dividir em blocos uma entrada com o tamanho informado
+     */
+    public boolean accepts(long size) {
+        return threads > 1 && size >= 2L * blockSize;
+    }
+
+    /**
+     * Cria o stream que compacta em paralelo e grava o resultado em out
+     *
+     * @param out   Destino dos dados compactados. Não é fechado.
+     * @param level Nível de compressão
+     */
+    public OutputStream wrap(OutputStream out, int level) {
+        return new ParallelDeflaterOutputStream(out, executor, threads, blockSize, level);
+    }
+
+}
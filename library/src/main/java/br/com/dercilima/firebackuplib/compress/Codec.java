@@ -0,0 +1,30 @@
+package br.com.dercilima.firebackuplib.compress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Algoritmo de compressão de uma entrada do backup.
+ * O código do método é gravado no campo "method" do zip, para que o restore saiba qual
+ * decodificador usar. Novos codecs podem ser registrados em {@link Codecs}.
+ */
+public interface Codec {
+
+    /**
+     * Código do método no formato zip (0 = store, 8 = deflate, 93 = zstd, ...)
+     */
+    int getMethod();
+
+    /**
+     * Cria o stream que compacta os dados e grava em out. Ao fechar o stream retornado, a
+     * compressão é finalizada, mas out não é fechado.
+     */
+    OutputStream compress(OutputStream out) throws IOException;
+
+    /**
+     * Cria o stream que descompacta os dados lidos de in
+     */
+    InputStream decompress(InputStream in) throws IOException;
+
+}
@@ -0,0 +1,18 @@
+package br.com.dercilima.firebackuplib.compress;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Escolhe o codec de cada entrada do backup
+ */
+public interface CodecPolicy {
+
+    /**
+     * @param entryName Nome da entrada dentro do backup
+     * @param source    Arquivo de origem, ou null quando a entrada é gravada por stream
+     * @return Codec usado para compactar a entrada
+     */
+    Codec select(String entryName, File source) throws IOException;
+
+}
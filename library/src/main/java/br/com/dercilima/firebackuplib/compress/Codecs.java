@@ -0,0 +1,54 @@
+package br.com.dercilima.firebackuplib.compress;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Registro dos codecs conhecidos, pelo código do método gravado no zip.
+ * Store, deflate, LZ4 e zstd já vêm registrados. Outros codecs podem ser registrados pelo app
+ * antes do backup e do restore.
+ */
+public final class Codecs {
+
+    private static final Map<Integer, Codec> CODECS = new HashMap<>();
+
+    static {
+        register(new StoreCodec());
+        register(new DeflateCodec(Deflater.DEFAULT_COMPRESSION));
+        register(new Lz4Codec());
+        register(new ZstdCodec());
+    }
+
+    private Codecs() {
+    }
+
+    /**
+     * Registra o codec usado para descompactar as entradas gravadas com o seu método.
+     * Substitui o codec registrado anteriormente para o mesmo método.
+     */
+    public static void register(Codec codec) {
+        synchronized (CODECS) {
+            CODECS.put(codec.getMethod(), codec);
+        }
+    }
+
+    /**
+     * Retorna o codec registrado para o método
+     *
+     * @param method Código do método no formato zip
+     * @throws IOException Se nenhum codec foi registrado para o método
+     */
+    public static Codec forMethod(int method) throws IOException {
+        final Codec codec;
+        synchronized (CODECS) {
+            codec = CODECS.get(method);
+        }
+        if (codec == null) {
+            throw new IOException("Método de compressão " + method + " não suportado!");
+        }
+        return codec;
+    }
+
+}
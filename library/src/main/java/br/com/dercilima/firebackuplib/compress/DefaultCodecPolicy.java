@@ -0,0 +1,133 @@
+package br.com.dercilima.firebackuplib.compress;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Política padrão de escolha do codec:
+ * <ul>
+ * <li>Arquivos que já são compactados (pela extensão) são gravados sem compressão;</li>
+ * <li>Nos demais arquivos, o início do arquivo é compactado com o deflate mais rápido e,
+ * se quase nada for reduzido, o arquivo também é gravado sem compressão;</li>
+ * <li>Caso contrário, é usado o codec configurado.</li>
+ * </ul>
+ */
+public class DefaultCodecPolicy implements CodecPolicy {
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4", "apk", "jar",
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "mp3", "mp4", "m4a", "aac", "ogg", "webm", "mkv"));
+
+    private static final Codec STORE = new StoreCodec();
+
+    private final Codec codec;
+
+    // Quantidade de bytes do início do arquivo usados no teste de compressão
+    private int probeSize = 1024 * 1024;
+
+    // Acima desta proporção (compactado / original), a compressão não compensa
+    private float storeRatio = 0.95f;
+
+
+    /**
+     * @param codec Codec usado nas entradas que compensam ser compactadas
+     */
+    public DefaultCodecPolicy(Codec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Política para redes sem limite de dados (Wi-Fi): LZ4, que usa bem menos CPU
+     */
+    public static DefaultCodecPolicy forUnmeteredNetwork() {
+        return new DefaultCodecPolicy(new Lz4Codec());
+    }
+
+    /**
+     * Política para redes com limite de dados (dados móveis): deflate no nível máximo,
+     * gastando mais CPU para enviar menos bytes
+     */
+    public static DefaultCodecPolicy forMeteredNetwork() {
+        return new DefaultCodecPolicy(new DeflateCodec(Deflater.BEST_COMPRESSION));
+    }
+
+    @Override
+    public Codec select(String entryName, File source) throws IOException {
+        if (COMPRESSED_EXTENSIONS.contains(getExtension(entryName))) {
+            return STORE;
+        }
+        if (source != null && probeSize > 0 && probeRatio(source) > storeRatio) {
+            return STORE;
+        }
+        return codec;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @param probeSize Quantidade de bytes do início do arquivo usados no teste de compressão (0 desabilita o teste)
+     */
+    public DefaultCodecPolicy setProbeSize(int probeSize) {
+        this.probeSize = probeSize;
+        return this;
+    }
+
+    /**
+     * @param storeRatio Proporção (compactado / original) acima da qual o arquivo é gravado sem compressão
+     */
+    public DefaultCodecPolicy setStoreRatio(float storeRatio) {
+        this.storeRatio = storeRatio;
+        return this;
+    }
+
+    // Compacta o início do arquivo (sem gravar o resultado) e retorna a proporção obtida
+    private float probeRatio(File source) throws IOException {
+
+        final byte[] input = new byte[Math.min(64 * 1024, probeSize)];
+        final byte[] output = new byte[input.length];
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        final InputStream stream = new FileInputStream(source);
+
+        try {
+
+            long total = 0;
+            int read;
+            while (total < probeSize && (read = stream.read(input, 0, (int) Math.min(input.length, probeSize - total))) != -1) {
+                deflater.setInput(input, 0, read);
+                while (!deflater.needsInput()) {
+                    deflater.deflate(output);
+                }
+                total += read;
+            }
+
+            if (total == 0) {
+                return 0;
+            }
+
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflater.deflate(output);
+            }
+            return (float) deflater.getBytesWritten() / total;
+
+        } finally {
+            stream.close();
+            deflater.end();
+        }
+    }
+
+    private static String getExtension(String entryName) {
+        final int index = entryName.lastIndexOf('.');
+        return index >= 0 ? entryName.substring(index + 1).toLowerCase(Locale.US) : "";
+    }
+
+}
@@ -0,0 +1,87 @@
+package br.com.dercilima.firebackuplib.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Deflate, o método padrão do zip, com nível de compressão de 1 (mais rápido) a 9 (menor arquivo)
+ */
+public class DeflateCodec implements Codec {
+
+    public static final int METHOD = 8;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int level;
+
+
+    /**
+     * @param level Nível de compressão: de 1 a 9, ou Deflater.DEFAULT_COMPRESSION
+     */
+    public DeflateCodec(int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < 1 || level > 9)) {
+            throw new IllegalArgumentException("O nível do deflate precisa ser de 1 a 9!");
+        }
+        this.level = level;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    @Override
+    public int getMethod() {
+        return METHOD;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) {
+        final Deflater deflater = new Deflater(level, true);
+        return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+            private boolean closed = false;
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    try {
+                        finish();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) {
+        // O Inflater sem cabeçalho (nowrap) precisa de um byte extra no final dos dados
+        final Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(new SequenceInputStream(in, new ByteArrayInputStream(new byte[1])), inflater, BUFFER_SIZE) {
+            private boolean closed = false;
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    inflater.end();
+                    super.close();
+                }
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "deflate-" + level;
+    }
+
+}
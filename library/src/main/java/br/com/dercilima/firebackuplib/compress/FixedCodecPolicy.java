@@ -0,0 +1,28 @@
+package br.com.dercilima.firebackuplib.compress;
+
+import java.io.File;
+import java.util.zip.Deflater;
+
+/**
+ * Usa o mesmo codec em todas as entradas
+ */
+public class FixedCodecPolicy implements CodecPolicy {
+
+    /**
+     * Deflate padrão em todas as entradas, o comportamento quando nenhuma política é informada
+     */
+    public static final CodecPolicy DEFAULT = new FixedCodecPolicy(new DeflateCodec(Deflater.DEFAULT_COMPRESSION));
+
+    private final Codec codec;
+
+
+    public FixedCodecPolicy(Codec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public Codec select(String entryName, File source) {
+        return codec;
+    }
+
+}
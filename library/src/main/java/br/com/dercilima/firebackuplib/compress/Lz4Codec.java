@@ -0,0 +1,411 @@
+package br.com.dercilima.firebackuplib.compress;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import br.com.dercilima.firebackuplib.hash.XxHash32;
+
+/**
+ * LZ4 em Java puro, no formato de frame oficial (o mesmo da ferramenta "lz4"), com blocos
+ * independentes de 64 KiB. Compacta menos que o deflate, mas é muitas vezes mais rápido,
+ * tanto para compactar quanto para descompactar.
+ * <p>
+ * O formato zip não tem um código oficial para o LZ4, então é usado um código privado ({@link #METHOD}).
+ */
+public class Lz4Codec implements Codec {
+
+    public static final int METHOD = 0x4C34; // "L4"
+
+    private static final int MAGIC = 0x184D2204;
+
+    // Versão 01, blocos independentes, sem checksums e sem o tamanho do conteúdo
+    private static final int FLG = 0x60;
+
+    // Tamanho máximo do bloco: 64 KiB
+    private static final int BD = 0x40;
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    // Bit que indica um bloco gravado sem compressão
+    private static final int UNCOMPRESSED = 0x80000000;
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = 65535;
+    private static final int HASH_LOG = 12;
+
+    @Override
+    public int getMethod() {
+        return METHOD;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) {
+        return new Lz4OutputStream(out);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) {
+        return new Lz4InputStream(in);
+    }
+
+    @Override
+    public String toString() {
+        return "lz4";
+    }
+
+    /**
+     * Compacta um bloco no formato de bloco do LZ4
+     *
+     * @return Quantidade de bytes gravados em dst, que precisa ter pelo menos {@link #maxCompressedLength(int)}
+     */
+    static int compressBlock(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int[] table) {
+
+        final int end = srcOff + srcLen;
+        final int mfLimit = end - MF_LIMIT;
+        final int matchLimit = end - LAST_LITERALS;
+
+        int anchor = srcOff;
+        int ip = srcOff;
+        int op = dstOff;
+
+        if (srcLen >= MF_LIMIT + 1) {
+
+            Arrays.fill(table, -1);
+            int searchCount = 0;
+
+            while (ip < mfLimit) {
+
+                final int sequence = readInt(src, ip);
+                final int h = (sequence * -1640531535) >>> (32 - HASH_LOG);
+                final int ref = table[h];
+                table[h] = ip;
+
+                if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                    // Acelera nos trechos sem repetição (dados pouco compressíveis)
+                    ip += (searchCount++ >>> 6) + 1;
+                    continue;
+                }
+                searchCount = 0;
+
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+                    matchLength++;
+                }
+
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+
+        // Últimos literais
+        final int literals = end - anchor;
+        op = writeLength(dst, op, literals, 0);
+        System.arraycopy(src, anchor, dst, op, literals);
+        return op + literals - dstOff;
+    }
+
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    private static int writeSequence(byte[] src, int literalsStart, int literals, int offset, int matchLength, byte[] dst, int op) {
+        op = writeLength(dst, op, literals, Math.min(matchLength - MIN_MATCH, 15));
+        System.arraycopy(src, literalsStart, dst, op, literals);
+        op += literals;
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        int remaining = matchLength - MIN_MATCH;
+        if (remaining >= 15) {
+            remaining -= 15;
+            while (remaining >= 255) {
+                dst[op++] = (byte) 255;
+                remaining -= 255;
+            }
+            dst[op++] = (byte) remaining;
+        }
+        return op;
+    }
+
+    // Grava o token (tamanho dos literais + tamanho do match) e a extensão do tamanho dos literais
+    private static int writeLength(byte[] dst, int op, int literals, int matchToken) {
+        dst[op++] = (byte) ((Math.min(literals, 15) << 4) | matchToken);
+        if (literals >= 15) {
+            int remaining = literals - 15;
+            while (remaining >= 255) {
+                dst[op++] = (byte) 255;
+                remaining -= 255;
+            }
+            dst[op++] = (byte) remaining;
+        }
+        return op;
+    }
+
+    /**
+     * Descompacta um bloco no formato de bloco do LZ4
+     *
+     * @return Quantidade de bytes gravados em dst
+     */
+    static int decompressBlock(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) throws IOException {
+
+        final int end = srcOff + srcLen;
+        final int dstEnd = dstOff + dstLen;
+        int ip = srcOff;
+        int op = dstOff;
+
+        try {
+            while (ip < end) {
+
+                final int token = src[ip++] & 0xFF;
+
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (op + literals > dstEnd || ip + literals > end) {
+                    throw new IOException("Bloco LZ4 inválido!");
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+
+                // A última sequência tem apenas literais
+                if (ip >= end) {
+                    break;
+                }
+
+                final int offset = (src[ip++] & 0xFF) | (src[ip++] & 0xFF) << 8;
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+
+                int ref = op - offset;
+                if (offset == 0 || ref < dstOff || op + matchLength > dstEnd) {
+                    throw new IOException("Bloco LZ4 inválido!");
+                }
+                // O match pode sobrepor o destino, então a cópia é byte a byte
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Bloco LZ4 inválido!", e);
+        }
+
+        return op - dstOff;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+
+    private static void writeIntLE(OutputStream out, int value) throws IOException {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    private static int readIntLE(InputStream in) throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            final int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Frame LZ4 incompleto!");
+            }
+            value |= b << (8 * i);
+        }
+        return value;
+    }
+
+    private static class Lz4OutputStream extends OutputStream {
+
+        private final OutputStream out;
+
+        private final byte[] block = new byte[BLOCK_SIZE];
+
+        private final byte[] compressed = new byte[maxCompressedLength(BLOCK_SIZE)];
+
+        private final int[] table = new int[1 << HASH_LOG];
+
+        private int blockLength = 0;
+
+        private boolean headerWritten = false;
+
+        private boolean closed = false;
+
+        Lz4OutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                final int count = Math.min(len, BLOCK_SIZE - blockLength);
+                System.arraycopy(b, off, block, blockLength, count);
+                blockLength += count;
+                off += count;
+                len -= count;
+                if (blockLength == BLOCK_SIZE) {
+                    flushBlock();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            flushBlock();
+            writeHeader();
+            // EndMark
+            writeIntLE(out, 0);
+        }
+
+        private void writeHeader() throws IOException {
+            if (!headerWritten) {
+                headerWritten = true;
+                writeIntLE(out, MAGIC);
+                final byte[] descriptor = {(byte) FLG, (byte) BD};
+                out.write(descriptor);
+                out.write((XxHash32.hash(descriptor, 0, 2, 0) >>> 8) & 0xFF);
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            writeHeader();
+            if (blockLength == 0) {
+                return;
+            }
+            final int length = compressBlock(block, 0, blockLength, compressed, 0, table);
+            if (length < blockLength) {
+                writeIntLE(out, length);
+                out.write(compressed, 0, length);
+            } else {
+                // Não compensou compactar
+                writeIntLE(out, blockLength | UNCOMPRESSED);
+                out.write(block, 0, blockLength);
+            }
+            blockLength = 0;
+        }
+    }
+
+    private static class Lz4InputStream extends InputStream {
+
+        private final InputStream in;
+
+        private final byte[] block = new byte[BLOCK_SIZE];
+
+        private final byte[] compressed = new byte[BLOCK_SIZE];
+
+        private int position = 0;
+
+        private int length = 0;
+
+        private boolean headerRead = false;
+
+        private boolean finished = false;
+
+        Lz4InputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == length) {
+                if (finished || !nextBlock()) {
+                    return -1;
+                }
+            }
+            final int count = Math.min(len, length - position);
+            System.arraycopy(block, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private boolean nextBlock() throws IOException {
+
+            if (!headerRead) {
+                headerRead = true;
+                if (readIntLE(in) != MAGIC) {
+                    throw new IOException("Frame LZ4 inválido!");
+                }
+                final int flg = in.read();
+                final int bd = in.read();
+                final int hc = in.read();
+                if ((flg & 0xC0) != 0x40 || (flg & 0x0F) != 0 || bd != BD || hc < 0) {
+                    throw new IOException("Frame LZ4 não suportado!");
+                }
+            }
+
+            final int header = readIntLE(in);
+            if (header == 0) {
+                finished = true;
+                return false;
+            }
+
+            final int size = header & ~UNCOMPRESSED;
+            if (size > BLOCK_SIZE) {
+                throw new IOException("Bloco LZ4 inválido!");
+            }
+
+            position = 0;
+            if ((header & UNCOMPRESSED) != 0) {
+                readFully(block, size);
+                length = size;
+            } else {
+                readFully(compressed, size);
+                length = decompressBlock(compressed, 0, size, block, 0, BLOCK_SIZE);
+            }
+            return true;
+        }
+
+        private void readFully(byte[] b, int len) throws IOException {
+            int total = 0;
+            while (total < len) {
+                final int read = in.read(b, total, len - total);
+                if (read == -1) {
+                    throw new EOFException("Frame LZ4 incompleto!");
+                }
+                total += read;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+package br.com.dercilima.firebackuplib.compress;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Compacta em paralelo (como o pigz) gerando um stream deflate comum, que qualquer unzip consegue ler.
+ * <p>
+ * Os dados são divididos em blocos de tamanho fixo e cada bloco é compactado em uma thread do executor.
+ * Cada bloco usa como dicionário os últimos 32 KiB do bloco anterior (a mesma janela que o deflate
+ * usaria) e termina com SYNC_FLUSH, para que os blocos possam ser simplesmente concatenados.
+ * Apenas o último bloco é finalizado. A quantidade de blocos em andamento é limitada, então a
+ * memória usada não depende do tamanho da entrada.
+ */
+@TargetApi(Build.VERSION_CODES.KITKAT)
+public class ParallelDeflaterOutputStream extends OutputStream {
+
+    // Tamanho da janela do deflate, usado como dicionário do bloco seguinte
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private final OutputStream out;
+
+    private final ExecutorService executor;
+
+    private final int level;
+
+    private final int maxPending;
+
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    private byte[] block;
+
+    private int blockLength = 0;
+
+    // Últimos bytes do bloco anterior
+    private byte[] dictionary = null;
+
+    private boolean closed = false;
+
+
+    /**
+     * @param out       Destino dos dados compactados. Não é fechado.
+     * @param executor  Executor onde os blocos são compactados
+     * @param threads   Quantidade de threads do executor, para limitar os blocos em andamento
+     * @param blockSize Tamanho de cada bloco (não compactado)
+     * @param level     Nível de compressão (Deflater.DEFAULT_COMPRESSION ou de 1 a 9)
+     */
+    public ParallelDeflaterOutputStream(OutputStream out, ExecutorService executor, int threads, int blockSize, int level) {
+        if (blockSize < DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("O tamanho do bloco precisa ser de pelo menos 32 KiB!");
+        }
+        this.out = out;
+        this.executor = executor;
+        this.level = level;
+        this.maxPending = Math.max(2, threads * 2);
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            final int count = Math.min(len, block.length - blockLength);
+            System.arraycopy(b, off, block, blockLength, count);
+            blockLength += count;
+            off += count;
+            len -= count;
+            if (blockLength == block.length) {
+                submit(false);
+            }
+        }
+    }
+
+    /**
+     * Compacta o último bloco e grava tudo o que está pendente. O stream de destino não é fechado.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            submit(true);
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+            pending.clear();
+        }
+    }
+
+    private void submit(final boolean last) throws IOException {
+
+        final byte[] data = block;
+        final int length = blockLength;
+        final byte[] dict = dictionary;
+
+        // O dicionário do próximo bloco é o final deste
+        if (length >= DICTIONARY_SIZE) {
+            dictionary = new byte[DICTIONARY_SIZE];
+            System.arraycopy(data, length - DICTIONARY_SIZE, dictionary, 0, DICTIONARY_SIZE);
+        }
+
+        // Limitar os blocos em andamento (e a memória) antes de começar um novo
+        while (pending.size() >= maxPending) {
+            writeNext();
+        }
+
+        pending.add(executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return compress(data, length, dict, last, level);
+            }
+        }));
+
+        if (!last) {
+            block = new byte[data.length];
+            blockLength = 0;
+        }
+    }
+
+    private void writeNext() throws IOException {
+        try {
+            out.write(pending.removeFirst().get());
+        } catch (ExecutionException e) {
+            throw new IOException("Erro ao compactar o bloco!", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Compactação interrompida!");
+        }
+    }
+
+    private static byte[] compress(byte[] data, int length, byte[] dictionary, boolean last, int level) {
+
+        final Deflater deflater = new Deflater(level, true);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(length / 2 + 64);
+        final byte[] buffer = new byte[64 * 1024];
+
+        try {
+
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data, 0, length);
+
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    output.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                // Enquanto o buffer de saída enche, ainda pode haver dados pendentes no deflater
+                int count;
+                do {
+                    count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    output.write(buffer, 0, count);
+                } while (count == buffer.length);
+            }
+
+        } finally {
+            deflater.end();
+        }
+
+        return output.toByteArray();
+    }
+
+}
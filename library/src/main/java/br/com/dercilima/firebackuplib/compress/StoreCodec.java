@@ -0,0 +1,45 @@
+package br.com.dercilima.firebackuplib.compress;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Grava os dados sem compressão. Ideal para arquivos que já estão compactados.
+ */
+public class StoreCodec implements Codec {
+
+    public static final int METHOD = 0;
+
+    @Override
+    public int getMethod() {
+        return METHOD;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                // O destino não é fechado
+            }
+        };
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) {
+        return in;
+    }
+
+    @Override
+    public String toString() {
+        return "store";
+    }
+
+}
@@ -0,0 +1,80 @@
+package br.com.dercilima.firebackuplib.compress;
+
+import java.io.IOException;
+
+/**
+ * Lê um stream de bits do zstd de trás para frente, a partir do marcador gravado no último byte
+ * ({@link ZstdBitWriter}). Quando os bits acabam, as leituras retornam zeros e o stream fica em
+ * overflow, o que indica o fim dos pesos do Huffman e um bloco corrompido nos demais streams.
+ */
+final class ZstdBitReader {
+
+    private final byte[] buffer;
+
+    private final int start;
+
+    // Quantidade de bits ainda não lidos (os bits de 0 a position - 1, a partir do início do stream)
+    private int position;
+
+
+    ZstdBitReader(byte[] buffer, int start, int end) throws IOException {
+        if (end <= start || buffer[end - 1] == 0) {
+            throw new IOException("Stream de bits zstd inválido!");
+        }
+        this.buffer = buffer;
+        this.start = start;
+        this.position = (end - start - 1) * 8 + 31 - Integer.numberOfLeadingZeros(buffer[end - 1] & 0xFF);
+    }
+
+    /**
+     * Próximos bits, sem consumir
+     *
+     * @param count Quantidade de bits (até 32)
+     */
+    int peek(int count) {
+        if (count == 0) {
+            return 0;
+        }
+        final int low = position - count;
+        if (low >= 0) {
+            return bits(low, count);
+        }
+        // Depois do início do stream, os bits valem zero
+        return position > 0 ? bits(0, position) << -low : 0;
+    }
+
+    int read(int count) {
+        final int value = peek(count);
+        position -= count;
+        return value;
+    }
+
+    void skip(int count) {
+        position -= count;
+    }
+
+    /**
+     * Indica que foram lidos mais bits do que o stream tem
+     */
+    boolean isOverflow() {
+        return position < 0;
+    }
+
+    /**
+     * Indica que todos os bits foram lidos, exatamente
+     */
+    boolean isFinished() {
+        return position == 0;
+    }
+
+    private int bits(int offset, int count) {
+        int index = start + (offset >>> 3);
+        final int last = start + ((offset + count - 1) >>> 3);
+        long value = 0;
+        for (int shift = 0; index <= last; index++, shift += 8) {
+            value |= (buffer[index] & 0xFFL) << shift;
+        }
+        return (int) ((value >>> (offset & 7)) & ((1L << count) - 1));
+    }
+
+}
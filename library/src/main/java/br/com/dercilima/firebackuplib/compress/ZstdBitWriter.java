@@ -0,0 +1,82 @@
+package br.com.dercilima.firebackuplib.compress;
+
+import java.util.Arrays;
+
+/**
+ * Grava um stream de bits do zstd que é lido de trás para frente ({@link ZstdBitReader}): os bits
+ * são acumulados em little-endian e o último valor gravado é o primeiro lido. No final, um bit 1
+ * marca onde o stream começa.
+ */
+final class ZstdBitWriter {
+
+    private byte[] buffer;
+
+    private int size;
+
+    private long container;
+
+    private int count;
+
+
+    ZstdBitWriter(int capacity) {
+        this.buffer = new byte[Math.max(capacity, 16)];
+    }
+
+    void reset() {
+        size = 0;
+        container = 0;
+        count = 0;
+    }
+
+    /**
+     * Acrescenta os bits menos significativos do valor
+     *
+     * @param bits Quantidade de bits (até 32)
+     */
+    void add(long value, int bits) {
+        container |= (value & ((1L << bits) - 1)) << count;
+        count += bits;
+        if (count >= 32) {
+            ensure(4);
+            buffer[size++] = (byte) container;
+            buffer[size++] = (byte) (container >>> 8);
+            buffer[size++] = (byte) (container >>> 16);
+            buffer[size++] = (byte) (container >>> 24);
+            container >>>= 32;
+            count -= 32;
+        }
+    }
+
+    /**
+     * Grava o marcador de início e os bits pendentes
+     *
+     * @return Tamanho do stream, em bytes
+     */
+    int finish() {
+        add(1, 1);
+        while (count > 0) {
+            ensure(1);
+            buffer[size++] = (byte) container;
+            container >>>= 8;
+            count -= 8;
+        }
+        container = 0;
+        count = 0;
+        return size;
+    }
+
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void ensure(int bytes) {
+        if (size + bytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + bytes));
+        }
+    }
+
+}
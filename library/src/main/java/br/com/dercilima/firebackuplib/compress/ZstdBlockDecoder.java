@@ -0,0 +1,399 @@
+package br.com.dercilima.firebackuplib.compress;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Decodifica os blocos de um frame zstd na janela de saída. A janela guarda os últimos bytes
+ * descompactados, que são a referência dos matches dos próximos blocos.
+ */
+final class ZstdBlockDecoder {
+
+    static final int MAX_BLOCK_SIZE = 128 * 1024;
+
+    private static final int[] INITIAL_REPEATED_OFFSETS = {1, 4, 8};
+
+    private static final ZstdFse.DecodingTable LITERALS_LENGTH_DEFAULT = ZstdFse.buildDecodingTable(
+            ZstdFse.LITERALS_LENGTH_DEFAULT, ZstdSequences.MAX_LITERALS_LENGTH_CODE, ZstdFse.LITERALS_LENGTH_DEFAULT_LOG);
+
+    private static final ZstdFse.DecodingTable MATCH_LENGTH_DEFAULT = ZstdFse.buildDecodingTable(
+            ZstdFse.MATCH_LENGTH_DEFAULT, ZstdSequences.MAX_MATCH_LENGTH_CODE, ZstdFse.MATCH_LENGTH_DEFAULT_LOG);
+
+    private static final ZstdFse.DecodingTable OFFSET_DEFAULT = ZstdFse.buildDecodingTable(
+            ZstdFse.OFFSET_DEFAULT, ZstdFse.OFFSET_DEFAULT.length - 1, ZstdFse.OFFSET_DEFAULT_LOG);
+
+    private final byte[] window;
+
+    private final int windowSize;
+
+    private final int blockMaximumSize;
+
+    // Próxima posição da janela a ser gravada
+    private int position;
+
+    // Total descompactado no frame
+    private long total;
+
+    private final int[] repeatedOffsets = INITIAL_REPEATED_OFFSETS.clone();
+
+    private final byte[] literals = new byte[MAX_BLOCK_SIZE];
+
+    private final int[] result = new int[2];
+
+    // Tabelas do bloco anterior, para os modos "treeless" e "repeat"
+    private ZstdHuffman.DecodingTable huffmanTable;
+
+    private ZstdFse.DecodingTable literalsLengthTable;
+
+    private ZstdFse.DecodingTable offsetTable;
+
+    private ZstdFse.DecodingTable matchLengthTable;
+
+
+    /**
+     * @param windowSize Tamanho da janela declarada no frame
+     * @param capacity   Tamanho do buffer da janela (pelo menos windowSize + o tamanho de um bloco,
+     *                   ou o tamanho do conteúdo, se for conhecido e menor)
+     */
+    ZstdBlockDecoder(int windowSize, int capacity) {
+        this.window = new byte[capacity];
+        this.windowSize = windowSize;
+        this.blockMaximumSize = Math.min(windowSize, MAX_BLOCK_SIZE);
+    }
+
+    byte[] getWindow() {
+        return window;
+    }
+
+    int getPosition() {
+        return position;
+    }
+
+    long getTotal() {
+        return total;
+    }
+
+    int getBlockMaximumSize() {
+        return blockMaximumSize;
+    }
+
+    /**
+     * Abre espaço para mais um bloco, descartando o início da janela. Os bytes a partir de
+     * {@link #getPosition()} são os do próximo bloco.
+     */
+    void prepare() {
+        // Com o tamanho do conteúdo conhecido, a janela já tem espaço para o frame inteiro
+        if (position + blockMaximumSize <= window.length || window.length < windowSize + blockMaximumSize) {
+            return;
+        }
+        final int shift = position - windowSize;
+        System.arraycopy(window, shift, window, 0, windowSize);
+        position = windowSize;
+    }
+
+    void rawBlock(byte[] src, int offset, int length) throws IOException {
+        checkBlockSize(length);
+        ensureOutput(position, length);
+        System.arraycopy(src, offset, window, position, length);
+        position += length;
+        total += length;
+    }
+
+    void rleBlock(byte value, int length) throws IOException {
+        checkBlockSize(length);
+        ensureOutput(position, length);
+        Arrays.fill(window, position, position + length, value);
+        position += length;
+        total += length;
+    }
+
+    /**
+     * Decodifica um bloco compactado (literais e sequências)
+     */
+    void compressedBlock(byte[] src, int offset, int length) throws IOException {
+        checkBlockSize(length);
+        try {
+            final int end = offset + length;
+            final int literalsSize = decodeLiterals(src, offset, end);
+            decodeSequences(src, offset + result[0], end, literalsSize);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Bloco zstd inválido!", e);
+        }
+    }
+
+    // Decodifica a seção dos literais. Retorna a quantidade de literais e, em result[0], o tamanho da seção.
+    private int decodeLiterals(byte[] src, int offset, int end) throws IOException {
+        final int b0 = src[offset] & 0xFF;
+        final int type = b0 & 3;
+        final int sizeFormat = (b0 >>> 2) & 3;
+
+        if (type == 0 || type == 1) {
+            // Literais sem compressão (raw) ou um único byte repetido (RLE)
+            int regenerated;
+            int headerSize;
+            if ((sizeFormat & 1) == 0) {
+                regenerated = b0 >>> 3;
+                headerSize = 1;
+            } else if (sizeFormat == 1) {
+                regenerated = (b0 >>> 4) | (src[offset + 1] & 0xFF) << 4;
+                headerSize = 2;
+            } else {
+                regenerated = (b0 >>> 4) | (src[offset + 1] & 0xFF) << 4 | (src[offset + 2] & 0xFF) << 12;
+                headerSize = 3;
+            }
+            if (regenerated > blockMaximumSize) {
+                throw new IOException("Literais do zstd inválidos!");
+            }
+            if (type == 0) {
+                if (offset + headerSize + regenerated > end) {
+                    throw new IOException("Literais do zstd inválidos!");
+                }
+                System.arraycopy(src, offset + headerSize, literals, 0, regenerated);
+                result[0] = headerSize + regenerated;
+            } else {
+                final byte value = src[offset + headerSize];
+                for (int i = 0; i < regenerated; i++) {
+                    literals[i] = value;
+                }
+                result[0] = headerSize + 1;
+            }
+            return regenerated;
+        }
+
+        // Literais compactados com Huffman (com uma tabela nova ou a do bloco anterior)
+        int regenerated;
+        int compressed;
+        int headerSize;
+        final boolean single = sizeFormat == 0;
+        if (sizeFormat <= 1) {
+            final int value = b0 | (src[offset + 1] & 0xFF) << 8 | (src[offset + 2] & 0xFF) << 16;
+            regenerated = (value >>> 4) & 0x3FF;
+            compressed = (value >>> 14) & 0x3FF;
+            headerSize = 3;
+        } else if (sizeFormat == 2) {
+            final int value = b0 | (src[offset + 1] & 0xFF) << 8 | (src[offset + 2] & 0xFF) << 16 | (src[offset + 3] & 0xFF) << 24;
+            regenerated = (value >>> 4) & 0x3FFF;
+            compressed = value >>> 18;
+            headerSize = 4;
+        } else {
+            final int value = b0 | (src[offset + 1] & 0xFF) << 8 | (src[offset + 2] & 0xFF) << 16 | (src[offset + 3] & 0xFF) << 24;
+            regenerated = (value >>> 4) & 0x3FFFF;
+            compressed = (value >>> 22) | (src[offset + 4] & 0xFF) << 10;
+            headerSize = 5;
+        }
+        if (regenerated > blockMaximumSize || offset + headerSize + compressed > end) {
+            throw new IOException("Literais do zstd inválidos!");
+        }
+
+        int start = offset + headerSize;
+        final int streamsEnd = start + compressed;
+        if (type == 2) {
+            huffmanTable = ZstdHuffman.readTable(src, start, streamsEnd, result);
+            start += result[0];
+        } else if (huffmanTable == null) {
+            throw new IOException("Literais do zstd sem tabela de Huffman!");
+        }
+
+        if (single) {
+            ZstdHuffman.decodeStream(huffmanTable, src, start, streamsEnd, literals, 0, regenerated);
+        } else {
+            // Quatro streams, com os tamanhos dos três primeiros na tabela de saltos
+            final int size1 = (src[start] & 0xFF) | (src[start + 1] & 0xFF) << 8;
+            final int size2 = (src[start + 2] & 0xFF) | (src[start + 3] & 0xFF) << 8;
+            final int size3 = (src[start + 4] & 0xFF) | (src[start + 5] & 0xFF) << 8;
+            final int stream1 = start + 6;
+            final int stream2 = stream1 + size1;
+            final int stream3 = stream2 + size2;
+            final int stream4 = stream3 + size3;
+            final int segment = (regenerated + 3) / 4;
+            if (stream4 >= streamsEnd || 3 * segment > regenerated) {
+                throw new IOException("Literais do zstd inválidos!");
+            }
+            ZstdHuffman.decodeStream(huffmanTable, src, stream1, stream2, literals, 0, segment);
+            ZstdHuffman.decodeStream(huffmanTable, src, stream2, stream3, literals, segment, segment);
+            ZstdHuffman.decodeStream(huffmanTable, src, stream3, stream4, literals, 2 * segment, segment);
+            ZstdHuffman.decodeStream(huffmanTable, src, stream4, streamsEnd, literals, 3 * segment, regenerated - 3 * segment);
+        }
+        result[0] = headerSize + compressed;
+        return regenerated;
+    }
+
+    private void decodeSequences(byte[] src, int offset, int end, int literalsSize) throws IOException {
+        if (offset >= end) {
+            throw new IOException("Sequências do zstd inválidas!");
+        }
+        int ip = offset;
+        final int b0 = src[ip++] & 0xFF;
+        final int count;
+        if (b0 < 128) {
+            count = b0;
+        } else if (b0 < 255) {
+            count = ((b0 - 128) << 8) | (src[ip++] & 0xFF);
+        } else {
+            count = (src[ip] & 0xFF | (src[ip + 1] & 0xFF) << 8) + 0x7F00;
+            ip += 2;
+        }
+
+        if (count == 0) {
+            // Apenas literais
+            if (ip != end) {
+                throw new IOException("Sequências do zstd inválidas!");
+            }
+            ensureOutput(position, literalsSize);
+            System.arraycopy(literals, 0, window, position, literalsSize);
+            position += literalsSize;
+            total += literalsSize;
+            return;
+        }
+
+        final int modes = src[ip++] & 0xFF;
+        if ((modes & 3) != 0) {
+            throw new IOException("Sequências do zstd inválidas!");
+        }
+        literalsLengthTable = readTable(modes >>> 6, src, ip, end, literalsLengthTable, LITERALS_LENGTH_DEFAULT,
+                ZstdSequences.MAX_LITERALS_LENGTH_CODE, ZstdSequences.LITERALS_LENGTH_MAX_LOG);
+        ip += result[0];
+        offsetTable = readTable((modes >>> 4) & 3, src, ip, end, offsetTable, OFFSET_DEFAULT,
+                ZstdSequences.MAX_OFFSET_CODE, ZstdSequences.OFFSET_MAX_LOG);
+        ip += result[0];
+        matchLengthTable = readTable((modes >>> 2) & 3, src, ip, end, matchLengthTable, MATCH_LENGTH_DEFAULT,
+                ZstdSequences.MAX_MATCH_LENGTH_CODE, ZstdSequences.MATCH_LENGTH_MAX_LOG);
+        ip += result[0];
+
+        executeSequences(new ZstdBitReader(src, ip, end), count, literalsSize);
+    }
+
+    // Tabela FSE de um tipo de código, conforme o modo. Em result[0], a quantidade de bytes lidos.
+    private ZstdFse.DecodingTable readTable(int mode, byte[] src, int offset, int end, ZstdFse.DecodingTable previous,
+                                            ZstdFse.DecodingTable predefined, int maxSymbol, int maxLog) throws IOException {
+        result[0] = 0;
+        switch (mode) {
+            case 0:
+                return predefined;
+            case 1:
+                if (offset >= end || (src[offset] & 0xFF) > maxSymbol) {
+                    throw new IOException("Sequências do zstd inválidas!");
+                }
+                result[0] = 1;
+                return ZstdFse.rleDecodingTable(src[offset] & 0xFF);
+            case 2:
+                final short[] norm = new short[maxSymbol + 1];
+                final int[] info = new int[2];
+                final int size = ZstdFse.readNormalizedCounts(src, offset, end, norm, maxSymbol, maxLog, info);
+                result[0] = size;
+                return ZstdFse.buildDecodingTable(norm, info[0], info[1]);
+            default:
+                if (previous == null) {
+                    throw new IOException("Sequências do zstd sem tabela anterior!");
+                }
+                return previous;
+        }
+    }
+
+    private void executeSequences(ZstdBitReader bits, int count, int literalsSize) throws IOException {
+        final ZstdFse.DecodingTable llTable = literalsLengthTable;
+        final ZstdFse.DecodingTable ofTable = offsetTable;
+        final ZstdFse.DecodingTable mlTable = matchLengthTable;
+        final int[] reps = repeatedOffsets;
+
+        int llState = bits.read(llTable.tableLog);
+        int ofState = bits.read(ofTable.tableLog);
+        int mlState = bits.read(mlTable.tableLog);
+
+        final int blockStart = position;
+        final int blockEnd = blockStart + blockMaximumSize;
+        int op = position;
+        int literal = 0;
+
+        for (int n = 0; n < count; n++) {
+            final int ofCode = ofTable.symbol[ofState];
+            final int mlCode = mlTable.symbol[mlState];
+            final int llCode = llTable.symbol[llState];
+            if (ofCode > ZstdSequences.MAX_OFFSET_CODE - 1) {
+                throw new IOException("Sequências do zstd inválidas!");
+            }
+
+            final int offsetValue = (1 << ofCode) + bits.read(ofCode);
+            final int matchLength = ZstdSequences.MATCH_LENGTH_BASE[mlCode] + bits.read(ZstdSequences.MATCH_LENGTH_BITS[mlCode]);
+            final int literalsLength = ZstdSequences.LITERALS_LENGTH_BASE[llCode] + bits.read(ZstdSequences.LITERALS_LENGTH_BITS[llCode]);
+
+            // Offsets repetidos
+            int offset;
+            if (offsetValue > 3) {
+                offset = offsetValue - 3;
+                reps[2] = reps[1];
+                reps[1] = reps[0];
+                reps[0] = offset;
+            } else {
+                final int index = offsetValue - 1 + (literalsLength == 0 ? 1 : 0);
+                if (index == 0) {
+                    offset = reps[0];
+                } else {
+                    offset = index == 3 ? reps[0] - 1 : reps[index];
+                    if (index != 1) {
+                        reps[2] = reps[1];
+                    }
+                    reps[1] = reps[0];
+                    reps[0] = offset;
+                }
+            }
+
+            if (n + 1 < count) {
+                llState = llTable.baseline[llState] + bits.read(llTable.nbBits[llState]);
+                mlState = mlTable.baseline[mlState] + bits.read(mlTable.nbBits[mlState]);
+                ofState = ofTable.baseline[ofState] + bits.read(ofTable.nbBits[ofState]);
+            }
+
+            // Literais e match
+            if (literal + literalsLength > literalsSize || op + literalsLength + matchLength > blockEnd) {
+                throw new IOException("Sequências do zstd inválidas!");
+            }
+            ensureOutput(op, literalsLength + matchLength);
+            System.arraycopy(literals, literal, window, op, literalsLength);
+            literal += literalsLength;
+            op += literalsLength;
+
+            final int ref = op - offset;
+            if (offset <= 0 || ref < 0 || offset > total + (op - blockStart) || offset > windowSize) {
+                throw new IOException("Offset do zstd inválido!");
+            }
+            if (offset >= matchLength) {
+                System.arraycopy(window, ref, window, op, matchLength);
+            } else {
+                // O match sobrepõe o destino, então a cópia é byte a byte
+                for (int i = 0; i < matchLength; i++) {
+                    window[op + i] = window[ref + i];
+                }
+            }
+            op += matchLength;
+        }
+        if (!bits.isFinished()) {
+            throw new IOException("Sequências do zstd corrompidas!");
+        }
+
+        // Literais depois da última sequência
+        final int rest = literalsSize - literal;
+        if (op + rest > blockEnd) {
+            throw new IOException("Sequências do zstd inválidas!");
+        }
+        ensureOutput(op, rest);
+        System.arraycopy(literals, literal, window, op, rest);
+        op += rest;
+
+        total += op - blockStart;
+        position = op;
+    }
+
+    private void checkBlockSize(int length) throws IOException {
+        if (length > blockMaximumSize) {
+            throw new IOException("Bloco zstd inválido!");
+        }
+    }
+
+    private void ensureOutput(int offset, int length) throws IOException {
+        if (offset + length > window.length) {
+            throw new IOException("Conteúdo do frame zstd maior que o declarado!");
+        }
+    }
+
+}
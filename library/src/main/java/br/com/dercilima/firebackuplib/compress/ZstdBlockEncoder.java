@@ -0,0 +1,512 @@
+package br.com.dercilima.firebackuplib.compress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Compacta os blocos de um frame zstd. Os matches são procurados com uma tabela hash (como o nível
+ * mais rápido da implementação de referência), em uma janela de {@link #WINDOW_SIZE} bytes; os
+ * literais são codificados com Huffman e as sequências com FSE, escolhendo a tabela mais barata.
+ */
+final class ZstdBlockEncoder {
+
+    static final int WINDOW_LOG = 19;
+
+    static final int WINDOW_SIZE = 1 << WINDOW_LOG;
+
+    private static final int MAX_BLOCK_SIZE = ZstdBlockDecoder.MAX_BLOCK_SIZE;
+
+    private static final int HASH_LOG = 15;
+
+    private static final int MIN_MATCH = 4;
+
+    // Bytes lidos depois do início de cada busca
+    private static final int MF_LIMIT = 8;
+
+    // Abaixo disso, não compensa gravar a tabela de Huffman dos literais
+    private static final int MIN_HUFFMAN_LITERALS = 64;
+
+    private static final int MAX_SEQUENCES = MAX_BLOCK_SIZE / MIN_MATCH + 1;
+
+    private static final int LITERALS_LENGTH = 0;
+    private static final int OFFSET = 1;
+    private static final int MATCH_LENGTH = 2;
+
+    private static final int MODE_PREDEFINED = 0;
+    private static final int MODE_RLE = 1;
+    private static final int MODE_FSE = 2;
+
+    private static final ZstdFse.EncodingTable[] DEFAULT_TABLES = {
+            ZstdFse.buildEncodingTable(ZstdFse.LITERALS_LENGTH_DEFAULT, ZstdSequences.MAX_LITERALS_LENGTH_CODE, ZstdFse.LITERALS_LENGTH_DEFAULT_LOG),
+            ZstdFse.buildEncodingTable(ZstdFse.OFFSET_DEFAULT, ZstdFse.OFFSET_DEFAULT.length - 1, ZstdFse.OFFSET_DEFAULT_LOG),
+            ZstdFse.buildEncodingTable(ZstdFse.MATCH_LENGTH_DEFAULT, ZstdSequences.MAX_MATCH_LENGTH_CODE, ZstdFse.MATCH_LENGTH_DEFAULT_LOG)};
+
+    private static final short[][] DEFAULT_NORMS = {
+            ZstdFse.LITERALS_LENGTH_DEFAULT, ZstdFse.OFFSET_DEFAULT, ZstdFse.MATCH_LENGTH_DEFAULT};
+
+    private static final int[] DEFAULT_LOGS = {
+            ZstdFse.LITERALS_LENGTH_DEFAULT_LOG, ZstdFse.OFFSET_DEFAULT_LOG, ZstdFse.MATCH_LENGTH_DEFAULT_LOG};
+
+    private static final int[] MAX_CODES = {
+            ZstdSequences.MAX_LITERALS_LENGTH_CODE, ZstdSequences.MAX_OFFSET_CODE, ZstdSequences.MAX_MATCH_LENGTH_CODE};
+
+    private static final int[] MAX_LOGS = {
+            ZstdSequences.LITERALS_LENGTH_MAX_LOG, ZstdSequences.OFFSET_MAX_LOG, ZstdSequences.MATCH_LENGTH_MAX_LOG};
+
+    // Janela anterior seguida do bloco atual
+    private final byte[] window = new byte[WINDOW_SIZE + 4 * MAX_BLOCK_SIZE];
+
+    private int blockStart;
+
+    private int blockEnd;
+
+    private final int[] hashTable = new int[1 << HASH_LOG];
+
+    private final int[] repeatedOffsets = {1, 4, 8};
+
+    // Sequências do bloco
+    private final int[] literalsLengths = new int[MAX_SEQUENCES];
+    private final int[] matchLengths = new int[MAX_SEQUENCES];
+    private final int[] offsetValues = new int[MAX_SEQUENCES];
+    private int sequenceCount;
+
+    private final byte[] literals = new byte[MAX_BLOCK_SIZE];
+    private int literalsCount;
+
+    private final int[][] codes = new int[3][MAX_SEQUENCES];
+
+    private final ZstdFse.EncodingTable[] tables = new ZstdFse.EncodingTable[3];
+
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream(MAX_BLOCK_SIZE);
+
+    private final ByteArrayOutputStream header = new ByteArrayOutputStream();
+
+    private final ZstdBitWriter bits = new ZstdBitWriter(MAX_BLOCK_SIZE);
+
+
+    ZstdBlockEncoder() {
+        Arrays.fill(hashTable, -1);
+    }
+
+    /**
+     * Acrescenta dados ao bloco atual
+     *
+     * @return Quantidade de bytes aceitos (0 se o bloco já está cheio)
+     */
+    int append(byte[] b, int off, int len) {
+        final int count = Math.min(len, MAX_BLOCK_SIZE - (blockEnd - blockStart));
+        System.arraycopy(b, off, window, blockEnd, count);
+        blockEnd += count;
+        return count;
+    }
+
+    boolean isBlockFull() {
+        return blockEnd - blockStart == MAX_BLOCK_SIZE;
+    }
+
+    /**
+     * Grava o bloco atual (cabeçalho e conteúdo) e começa o próximo
+     */
+    void writeBlock(OutputStream out, boolean last) throws IOException {
+        final int size = blockEnd - blockStart;
+        final int[] savedOffsets = repeatedOffsets.clone();
+
+        if (size > 0 && isRepeated(blockStart, blockEnd)) {
+            // Um único byte repetido
+            writeBlockHeader(out, last, 1, size);
+            out.write(window[blockStart]);
+        } else if (size > MF_LIMIT && compressBlock() < size) {
+            writeBlockHeader(out, last, 2, block.size());
+            block.writeTo(out);
+        } else {
+            // Não compensou compactar: o decodificador não vê as sequências, então os offsets
+            // repetidos voltam a ser os do bloco anterior
+            System.arraycopy(savedOffsets, 0, repeatedOffsets, 0, savedOffsets.length);
+            writeBlockHeader(out, last, 0, size);
+            out.write(window, blockStart, size);
+        }
+        nextBlock();
+    }
+
+    private boolean isRepeated(int start, int end) {
+        final byte value = window[start];
+        for (int i = start + 1; i < end; i++) {
+            if (window[i] != value) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeBlockHeader(OutputStream out, boolean last, int type, int size) throws IOException {
+        final int value = (last ? 1 : 0) | type << 1 | size << 3;
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+    }
+
+    // Descarta o início da janela quando não há espaço para mais um bloco
+    private void nextBlock() {
+        blockStart = blockEnd;
+        if (blockStart + MAX_BLOCK_SIZE <= window.length) {
+            return;
+        }
+        final int shift = blockStart - WINDOW_SIZE;
+        System.arraycopy(window, shift, window, 0, WINDOW_SIZE);
+        blockStart = WINDOW_SIZE;
+        blockEnd = WINDOW_SIZE;
+        for (int i = 0; i < hashTable.length; i++) {
+            hashTable[i] = hashTable[i] >= shift ? hashTable[i] - shift : -1;
+        }
+    }
+
+    // Compacta o bloco atual em "block" e retorna o tamanho
+    private int compressBlock() {
+        findSequences(blockStart, blockEnd);
+        block.reset();
+        writeLiterals();
+        writeSequences();
+        return block.size();
+    }
+
+    private void findSequences(int start, int end) {
+        final byte[] src = window;
+        final int limit = end - MF_LIMIT;
+        sequenceCount = 0;
+        literalsCount = 0;
+
+        int anchor = start;
+        int ip = start;
+        int searchCount = 0;
+
+        while (ip < limit) {
+            final int sequence = readInt(src, ip);
+            final int h = hash(sequence);
+            int ref = hashTable[h];
+            hashTable[h] = ip;
+
+            int matchStart;
+            final int repeated = ip + 1 - repeatedOffsets[0];
+            if (repeated >= 0 && readInt(src, repeated) == readInt(src, ip + 1)) {
+                // O último offset, logo depois do início da busca
+                matchStart = ip + 1;
+                ref = repeated;
+            } else if (ref >= 0 && ip - ref <= WINDOW_SIZE && readInt(src, ref) == sequence) {
+                matchStart = ip;
+                while (matchStart > anchor && ref > 0 && src[matchStart - 1] == src[ref - 1]) {
+                    matchStart--;
+                    ref--;
+                }
+            } else {
+                // Acelera nos trechos sem repetição (dados pouco compressíveis)
+                ip += (searchCount++ >>> 6) + 1;
+                continue;
+            }
+            searchCount = 0;
+
+            ip = addSequence(anchor, matchStart, ref, end);
+            anchor = ip;
+            if (ip < limit) {
+                hashTable[hash(readInt(src, ip - 2))] = ip - 2;
+            }
+
+            // O penúltimo offset, sem literais entre os matches
+            while (ip < limit) {
+                final int ref1 = ip - repeatedOffsets[1];
+                if (ref1 < 0 || readInt(src, ref1) != readInt(src, ip)) {
+                    break;
+                }
+                hashTable[hash(readInt(src, ip))] = ip;
+                ip = addSequence(ip, ip, ref1, end);
+                anchor = ip;
+            }
+        }
+
+        // Literais depois da última sequência
+        final int rest = end - anchor;
+        System.arraycopy(src, anchor, literals, literalsCount, rest);
+        literalsCount += rest;
+    }
+
+    // Estende o match até onde for possível, acrescenta a sequência e retorna o fim do match
+    private int addSequence(int anchor, int matchStart, int ref, int end) {
+        int length = MIN_MATCH;
+        while (matchStart + length < end && window[matchStart + length] == window[ref + length]) {
+            length++;
+        }
+
+        final int literalsLength = matchStart - anchor;
+        System.arraycopy(window, anchor, literals, literalsCount, literalsLength);
+        literalsCount += literalsLength;
+
+        literalsLengths[sequenceCount] = literalsLength;
+        matchLengths[sequenceCount] = length;
+        offsetValues[sequenceCount] = offsetValue(matchStart - ref, literalsLength);
+        sequenceCount++;
+        return matchStart + length;
+    }
+
+    // Valor gravado para o offset (um dos offsets repetidos, se possível), atualizando os
+    // offsets repetidos exatamente como o decodificador
+    private int offsetValue(int offset, int literalsLength) {
+        final int[] reps = repeatedOffsets;
+        int index = -1;
+        if (literalsLength > 0) {
+            index = offset == reps[0] ? 0 : offset == reps[1] ? 1 : offset == reps[2] ? 2 : -1;
+        } else if (offset == reps[1]) {
+            index = 1;
+        } else if (offset == reps[2]) {
+            index = 2;
+        } else if (offset == reps[0] - 1) {
+            index = 3;
+        }
+
+        if (index < 0) {
+            reps[2] = reps[1];
+            reps[1] = reps[0];
+            reps[0] = offset;
+            return offset + 3;
+        }
+        if (index > 0) {
+            if (index != 1) {
+                reps[2] = reps[1];
+            }
+            reps[1] = reps[0];
+            reps[0] = offset;
+        }
+        return index + 1 - (literalsLength == 0 ? 1 : 0);
+    }
+
+    private void writeLiterals() {
+        final int count = literalsCount;
+        if (count == 0) {
+            block.write(0);
+            return;
+        }
+
+        final int[] counts = new int[ZstdHuffman.MAX_SYMBOL + 1];
+        int maxSymbol = 0;
+        for (int i = 0; i < count; i++) {
+            final int s = literals[i] & 0xFF;
+            counts[s]++;
+            maxSymbol = Math.max(maxSymbol, s);
+        }
+        if (counts[maxSymbol] == count) {
+            // Um único byte repetido
+            writeLiteralsHeader(1, count);
+            block.write(maxSymbol);
+            return;
+        }
+
+        final int rawSize = literalsHeaderSize(count) + count;
+        if (count >= MIN_HUFFMAN_LITERALS && writeCompressedLiterals(counts, maxSymbol, rawSize)) {
+            return;
+        }
+        writeLiteralsHeader(0, count);
+        block.write(literals, 0, count);
+    }
+
+    // Literais compactados com Huffman, se ficarem menores que rawSize
+    private boolean writeCompressedLiterals(int[] counts, int maxSymbol, int rawSize) {
+        final int count = literalsCount;
+        final ZstdHuffman.EncodingTable table = ZstdHuffman.buildEncodingTable(counts, maxSymbol);
+        if (table == null || table.cost(counts) / 8 >= count) {
+            return false;
+        }
+        header.reset();
+        if (!ZstdHuffman.writeTable(header, table)) {
+            return false;
+        }
+
+        // Um stream para poucos literais e quatro (decodificáveis em paralelo) para os demais
+        final boolean single = count < 256;
+        final int[] sizes = new int[4];
+        if (single) {
+            sizes[0] = ZstdHuffman.encodeStream(bits, table, literals, 0, count);
+            header.write(bits.getBuffer(), 0, sizes[0]);
+        } else {
+            final int segment = (count + 3) / 4;
+            final int tableSize = header.size();
+            header.write(new byte[6], 0, 6);
+            for (int i = 0; i < 4; i++) {
+                final int length = i < 3 ? segment : count - 3 * segment;
+                sizes[i] = ZstdHuffman.encodeStream(bits, table, literals, i * segment, length);
+                header.write(bits.getBuffer(), 0, sizes[i]);
+            }
+            // Tabela de saltos, com o tamanho dos três primeiros streams
+            final byte[] jumpTable = {
+                    (byte) sizes[0], (byte) (sizes[0] >>> 8),
+                    (byte) sizes[1], (byte) (sizes[1] >>> 8),
+                    (byte) sizes[2], (byte) (sizes[2] >>> 8)};
+            final byte[] content = header.toByteArray();
+            System.arraycopy(jumpTable, 0, content, tableSize, jumpTable.length);
+            header.reset();
+            header.write(content, 0, content.length);
+        }
+
+        final int compressed = header.size();
+        final int sizeFormat;
+        final int headerSize;
+        final int bitsPerSize;
+        if (single) {
+            sizeFormat = 0;
+            headerSize = 3;
+            bitsPerSize = 10;
+        } else if (count < 1024 && compressed < 1024) {
+            sizeFormat = 1;
+            headerSize = 3;
+            bitsPerSize = 10;
+        } else if (count < 16384 && compressed < 16384) {
+            sizeFormat = 2;
+            headerSize = 4;
+            bitsPerSize = 14;
+        } else {
+            sizeFormat = 3;
+            headerSize = 5;
+            bitsPerSize = 18;
+        }
+        if (compressed >= 1 << bitsPerSize || headerSize + compressed >= rawSize) {
+            return false;
+        }
+
+        final long value = 2 | sizeFormat << 2 | (long) count << 4 | (long) compressed << (4 + bitsPerSize);
+        for (int i = 0; i < headerSize; i++) {
+            block.write((int) (value >>> (8 * i)));
+        }
+        block.write(header.toByteArray(), 0, header.size());
+        return true;
+    }
+
+    private static int literalsHeaderSize(int count) {
+        return count < 32 ? 1 : count < 4096 ? 2 : 3;
+    }
+
+    // Cabeçalho dos literais sem compressão (0) ou repetidos (1)
+    private void writeLiteralsHeader(int type, int count) {
+        if (count < 32) {
+            block.write(type | count << 3);
+        } else if (count < 4096) {
+            block.write(type | 1 << 2 | count << 4);
+            block.write(count >>> 4);
+        } else {
+            block.write(type | 3 << 2 | count << 4);
+            block.write(count >>> 4);
+            block.write(count >>> 12);
+        }
+    }
+
+    private void writeSequences() {
+        final int count = sequenceCount;
+        if (count < 128) {
+            block.write(count);
+        } else if (count < 0x7F00) {
+            block.write((count >>> 8) + 128);
+            block.write(count);
+        } else {
+            block.write(255);
+            block.write(count - 0x7F00);
+            block.write((count - 0x7F00) >>> 8);
+        }
+        if (count == 0) {
+            return;
+        }
+
+        final int[] llCodes = codes[LITERALS_LENGTH];
+        final int[] ofCodes = codes[OFFSET];
+        final int[] mlCodes = codes[MATCH_LENGTH];
+        for (int i = 0; i < count; i++) {
+            llCodes[i] = ZstdSequences.literalsLengthCode(literalsLengths[i]);
+            ofCodes[i] = ZstdSequences.offsetCode(offsetValues[i]);
+            mlCodes[i] = ZstdSequences.matchLengthCode(matchLengths[i]);
+        }
+
+        // Os modos vêm antes das tabelas, então as tabelas são montadas à parte
+        header.reset();
+        final int modes = selectTable(LITERALS_LENGTH) << 6 | selectTable(OFFSET) << 4 | selectTable(MATCH_LENGTH) << 2;
+        block.write(modes);
+        block.write(header.toByteArray(), 0, header.size());
+
+        // As sequências são gravadas da última para a primeira
+        final ZstdFse.EncodingTable llTable = tables[LITERALS_LENGTH];
+        final ZstdFse.EncodingTable ofTable = tables[OFFSET];
+        final ZstdFse.EncodingTable mlTable = tables[MATCH_LENGTH];
+        final ZstdBitWriter writer = bits;
+        writer.reset();
+
+        int last = count - 1;
+        int mlState = ZstdFse.initState(mlTable, mlCodes[last]);
+        int ofState = ZstdFse.initState(ofTable, ofCodes[last]);
+        int llState = ZstdFse.initState(llTable, llCodes[last]);
+        addExtraBits(writer, last);
+        for (int n = count - 2; n >= 0; n--) {
+            ofState = ZstdFse.encode(writer, ofTable, ofState, ofCodes[n]);
+            mlState = ZstdFse.encode(writer, mlTable, mlState, mlCodes[n]);
+            llState = ZstdFse.encode(writer, llTable, llState, llCodes[n]);
+            addExtraBits(writer, n);
+        }
+        ZstdFse.flush(writer, mlTable, mlState);
+        ZstdFse.flush(writer, ofTable, ofState);
+        ZstdFse.flush(writer, llTable, llState);
+        final int size = writer.finish();
+        block.write(writer.getBuffer(), 0, size);
+    }
+
+    private void addExtraBits(ZstdBitWriter writer, int n) {
+        final int llCode = codes[LITERALS_LENGTH][n];
+        final int mlCode = codes[MATCH_LENGTH][n];
+        final int ofCode = codes[OFFSET][n];
+        writer.add(literalsLengths[n] - ZstdSequences.LITERALS_LENGTH_BASE[llCode], ZstdSequences.LITERALS_LENGTH_BITS[llCode]);
+        writer.add(matchLengths[n] - ZstdSequences.MATCH_LENGTH_BASE[mlCode], ZstdSequences.MATCH_LENGTH_BITS[mlCode]);
+        writer.add(offsetValues[n] - (1 << ofCode), ofCode);
+    }
+
+    // Escolhe a tabela mais barata para um tipo de código (pré-definida, RLE ou FSE), grava a
+    // descrição dela em "header" e retorna o modo
+    private int selectTable(int kind) {
+        final int count = sequenceCount;
+        final int[] symbols = codes[kind];
+        final int[] counts = new int[MAX_CODES[kind] + 1];
+        int maxSymbol = 0;
+        for (int i = 0; i < count; i++) {
+            counts[symbols[i]]++;
+            maxSymbol = Math.max(maxSymbol, symbols[i]);
+        }
+
+        if (counts[maxSymbol] == count) {
+            final short[] norm = new short[maxSymbol + 1];
+            norm[maxSymbol] = 1;
+            tables[kind] = ZstdFse.buildEncodingTable(norm, maxSymbol, 0);
+            header.write(maxSymbol);
+            return MODE_RLE;
+        }
+
+        final short[] defaultNorm = DEFAULT_NORMS[kind];
+        final double predefinedCost = ZstdFse.cost(counts, maxSymbol, defaultNorm, defaultNorm.length - 1, DEFAULT_LOGS[kind]);
+
+        final int tableLog = ZstdFse.optimalTableLog(MAX_LOGS[kind], count, maxSymbol);
+        final short[] norm = ZstdFse.normalize(counts, maxSymbol, count, tableLog, 1 << tableLog);
+        if (norm != null) {
+            final ByteArrayOutputStream description = new ByteArrayOutputStream();
+            ZstdFse.writeNormalizedCounts(description, norm, maxSymbol, tableLog);
+            final double cost = description.size() * 8 + ZstdFse.cost(counts, maxSymbol, norm, maxSymbol, tableLog);
+            if (cost < predefinedCost) {
+                tables[kind] = ZstdFse.buildEncodingTable(norm, maxSymbol, tableLog);
+                header.write(description.toByteArray(), 0, description.size());
+                return MODE_FSE;
+            }
+        }
+        tables[kind] = DEFAULT_TABLES[kind];
+        return MODE_PREDEFINED;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+
+}
@@ -0,0 +1,344 @@
+package br.com.dercilima.firebackuplib.compress;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import br.com.dercilima.firebackuplib.hash.XxHash64Checksum;
+
+/**
+ * Zstandard em Java puro, no formato de frame oficial (RFC 8878, o mesmo da ferramenta "zstd"),
+ * com o checksum do conteúdo. Compacta tanto quanto o deflate de nível 1 e grava mais rápido que o
+ * deflate padrão, mas, por ser Java puro, descompacta mais devagar que o deflate (que usa a zlib nativa).
+ * <p>
+ * A compressão usa uma janela de 512 KiB e o match finder mais simples da implementação de
+ * referência. A descompressão aceita os frames gravados por qualquer nível da ferramenta "zstd"
+ * com janela de até 32 MiB, mas não aceita frames que dependem de um dicionário.
+ */
+public class ZstdCodec implements Codec {
+
+    // Código do zstd no formato zip (APPNOTE 6.3.7)
+    public static final int METHOD = 93;
+
+    private static final int MAGIC = 0xFD2FB528;
+
+    // Frames "skippable" (metadados que o decodificador ignora): 0x184D2A50 a 0x184D2A5F
+    private static final int SKIPPABLE_MAGIC = 0x184D2A50;
+
+    // Sem o tamanho do conteúdo, sem dicionário e com o checksum do conteúdo
+    private static final int FRAME_HEADER_DESCRIPTOR = 0x04;
+
+    private static final int MAX_WINDOW_SIZE = 32 * 1024 * 1024;
+
+    @Override
+    public int getMethod() {
+        return METHOD;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) {
+        return new ZstdOutputStream(out);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) {
+        return new ZstdInputStream(in);
+    }
+
+    @Override
+    public String toString() {
+        return "zstd";
+    }
+
+    private static void writeIntLE(OutputStream out, int value) throws IOException {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    private static class ZstdOutputStream extends OutputStream {
+
+        private final OutputStream out;
+
+        private final ZstdBlockEncoder encoder = new ZstdBlockEncoder();
+
+        private final XxHash64Checksum checksum = new XxHash64Checksum();
+
+        private boolean headerWritten = false;
+
+        private boolean closed = false;
+
+        ZstdOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checksum.update(b, off, len);
+            while (len > 0) {
+                // O bloco cheio só é gravado quando chegam mais dados, pois o último bloco é marcado
+                if (encoder.isBlockFull()) {
+                    writeHeader();
+                    encoder.writeBlock(out, false);
+                }
+                final int count = encoder.append(b, off, len);
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            writeHeader();
+            encoder.writeBlock(out, true);
+            writeIntLE(out, (int) checksum.getValue());
+        }
+
+        private void writeHeader() throws IOException {
+            if (!headerWritten) {
+                headerWritten = true;
+                writeIntLE(out, MAGIC);
+                out.write(FRAME_HEADER_DESCRIPTOR);
+                out.write((ZstdBlockEncoder.WINDOW_LOG - 10) << 3);
+            }
+        }
+    }
+
+    private static class ZstdInputStream extends InputStream {
+
+        private final InputStream in;
+
+        private final byte[] compressed = new byte[ZstdBlockDecoder.MAX_BLOCK_SIZE];
+
+        private final XxHash64Checksum checksum = new XxHash64Checksum();
+
+        private ZstdBlockDecoder decoder;
+
+        private boolean hasChecksum;
+
+        // Tamanho do conteúdo declarado no frame (-1 = não informado)
+        private long contentSize;
+
+        private boolean lastBlock;
+
+        // Trecho da janela ainda não entregue
+        private int position = 0;
+
+        private int length = 0;
+
+        private boolean finished = false;
+
+        ZstdInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == length) {
+                if (finished || !nextBlock()) {
+                    return -1;
+                }
+            }
+            final int count = Math.min(len, length - position);
+            System.arraycopy(decoder.getWindow(), position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private boolean nextBlock() throws IOException {
+            if (decoder == null || lastBlock) {
+                if (decoder != null) {
+                    endFrame();
+                }
+                if (!readFrameHeader()) {
+                    finished = true;
+                    return false;
+                }
+            }
+
+            final int header = readByte() | readByte() << 8 | readByte() << 16;
+            lastBlock = (header & 1) != 0;
+            final int type = (header >>> 1) & 3;
+            final int size = header >>> 3;
+
+            decoder.prepare();
+            final int start = decoder.getPosition();
+            switch (type) {
+                case 0:
+                    if (size > compressed.length) {
+                        throw new IOException("Bloco zstd inválido!");
+                    }
+                    readFully(compressed, size);
+                    decoder.rawBlock(compressed, 0, size);
+                    break;
+                case 1:
+                    decoder.rleBlock((byte) readByte(), size);
+                    break;
+                case 2:
+                    if (size > compressed.length) {
+                        throw new IOException("Bloco zstd inválido!");
+                    }
+                    readFully(compressed, size);
+                    decoder.compressedBlock(compressed, 0, size);
+                    break;
+                default:
+                    throw new IOException("Bloco zstd inválido!");
+            }
+            position = start;
+            length = decoder.getPosition();
+            if (hasChecksum) {
+                checksum.update(decoder.getWindow(), start, length - start);
+            }
+            return true;
+        }
+
+        // Lê o cabeçalho do próximo frame, pulando os frames "skippable". Retorna false no fim dos dados.
+        private boolean readFrameHeader() throws IOException {
+            while (true) {
+                final int first = in.read();
+                if (first < 0) {
+                    return false;
+                }
+                final int magic = first | readByte() << 8 | readByte() << 16 | readByte() << 24;
+                if ((magic & 0xFFFFFFF0) == SKIPPABLE_MAGIC) {
+                    skipFully(readIntLE() & 0xFFFFFFFFL);
+                    continue;
+                }
+                if (magic != MAGIC) {
+                    throw new IOException("Frame zstd inválido!");
+                }
+                break;
+            }
+
+            final int descriptor = readByte();
+            final int contentSizeFlag = descriptor >>> 6;
+            final boolean singleSegment = (descriptor & 0x20) != 0;
+            hasChecksum = (descriptor & 0x04) != 0;
+            final int dictionaryIdFlag = descriptor & 3;
+            if ((descriptor & 0x08) != 0) {
+                throw new IOException("Frame zstd inválido!");
+            }
+
+            long windowSize = 0;
+            if (!singleSegment) {
+                final int windowDescriptor = readByte();
+                final long windowBase = 1L << (10 + (windowDescriptor >>> 3));
+                windowSize = windowBase + (windowBase / 8) * (windowDescriptor & 7);
+            }
+
+            long dictionaryId = 0;
+            final int dictionaryIdSize = dictionaryIdFlag == 3 ? 4 : dictionaryIdFlag;
+            for (int i = 0; i < dictionaryIdSize; i++) {
+                dictionaryId |= (long) readByte() << (8 * i);
+            }
+            if (dictionaryId != 0) {
+                throw new IOException("Frames zstd com dicionário não são suportados!");
+            }
+
+            final int contentSizeBytes = contentSizeFlag == 0 ? (singleSegment ? 1 : 0) : 1 << contentSizeFlag;
+            contentSize = -1;
+            if (contentSizeBytes > 0) {
+                contentSize = 0;
+                for (int i = 0; i < contentSizeBytes; i++) {
+                    contentSize |= (long) readByte() << (8 * i);
+                }
+                if (contentSizeBytes == 2) {
+                    contentSize += 256;
+                }
+                if (contentSize < 0) {
+                    throw new IOException("Frame zstd grande demais!");
+                }
+            }
+            if (singleSegment) {
+                windowSize = contentSize;
+            }
+            if (windowSize > MAX_WINDOW_SIZE) {
+                throw new IOException("Janela do frame zstd grande demais!");
+            }
+
+            // Com o tamanho do conteúdo menor que a janela, o frame inteiro cabe no buffer
+            final int window = (int) windowSize;
+            final int blockSize = Math.min(window, ZstdBlockDecoder.MAX_BLOCK_SIZE);
+            final int capacity;
+            if (contentSize >= 0 && contentSize <= window + blockSize) {
+                capacity = (int) contentSize;
+            } else {
+                capacity = window + Math.max(window, 4 * blockSize);
+            }
+            decoder = new ZstdBlockDecoder(window, capacity);
+            checksum.reset();
+            lastBlock = false;
+            return true;
+        }
+
+        private void endFrame() throws IOException {
+            if (contentSize >= 0 && decoder.getTotal() != contentSize) {
+                throw new IOException("Tamanho do frame zstd não confere!");
+            }
+            if (hasChecksum && readIntLE() != (int) checksum.getValue()) {
+                throw new IOException("Checksum do frame zstd não confere!");
+            }
+        }
+
+        private int readByte() throws IOException {
+            final int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Frame zstd incompleto!");
+            }
+            return b;
+        }
+
+        private int readIntLE() throws IOException {
+            return readByte() | readByte() << 8 | readByte() << 16 | readByte() << 24;
+        }
+
+        private void readFully(byte[] b, int len) throws IOException {
+            int total = 0;
+            while (total < len) {
+                final int read = in.read(b, total, len - total);
+                if (read == -1) {
+                    throw new EOFException("Frame zstd incompleto!");
+                }
+                total += read;
+            }
+        }
+
+        private void skipFully(long count) throws IOException {
+            while (count > 0) {
+                final long skipped = in.skip(count);
+                if (skipped <= 0) {
+                    readByte();
+                    count--;
+                } else {
+                    count -= skipped;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,471 @@
+package br.com.dercilima.firebackuplib.compress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Tabelas FSE (tANS) do zstd: a montagem das tabelas a partir das probabilidades normalizadas,
+ * a gravação e a leitura dessas probabilidades no cabeçalho e as distribuições pré-definidas
+ * dos tamanhos e dos offsets das sequências (RFC 8878, seção 4.1).
+ */
+final class ZstdFse {
+
+    static final int MIN_TABLE_LOG = 5;
+
+    // Distribuições pré-definidas (-1 = probabilidade menor que 1)
+    static final short[] LITERALS_LENGTH_DEFAULT = {
+            4, 3, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 1, 1, 1,
+            2, 2, 2, 2, 2, 2, 2, 2, 2, 3, 2, 1, 1, 1, 1, 1,
+            -1, -1, -1, -1};
+    static final int LITERALS_LENGTH_DEFAULT_LOG = 6;
+
+    static final short[] MATCH_LENGTH_DEFAULT = {
+            1, 4, 3, 2, 2, 2, 2, 2, 2, 1, 1, 1, 1, 1, 1, 1,
+            1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+            1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, -1, -1,
+            -1, -1, -1, -1, -1};
+    static final int MATCH_LENGTH_DEFAULT_LOG = 6;
+
+    static final short[] OFFSET_DEFAULT = {
+            1, 1, 1, 1, 1, 1, 2, 2, 2, 1, 1, 1, 1, 1, 1, 1,
+            1, 1, 1, 1, 1, 1, 1, 1, -1, -1, -1, -1, -1};
+    static final int OFFSET_DEFAULT_LOG = 5;
+
+    private ZstdFse() {
+    }
+
+    /**
+     * Tabela de decodificação: para cada estado, o símbolo, os bits lidos e a base do próximo estado
+     */
+    static final class DecodingTable {
+
+        final int tableLog;
+
+        final int[] symbol;
+
+        final int[] nbBits;
+
+        final int[] baseline;
+
+        DecodingTable(int tableLog) {
+            final int size = 1 << tableLog;
+            this.tableLog = tableLog;
+            this.symbol = new int[size];
+            this.nbBits = new int[size];
+            this.baseline = new int[size];
+        }
+    }
+
+    /**
+     * Tabela de codificação, no formato da implementação de referência (estados de tableSize a 2 * tableSize - 1)
+     */
+    static final class EncodingTable {
+
+        final int tableLog;
+
+        final int[] stateTable;
+
+        final int[] deltaNbBits;
+
+        final int[] deltaFindState;
+
+        EncodingTable(int tableLog, int maxSymbol) {
+            this.tableLog = tableLog;
+            this.stateTable = new int[1 << tableLog];
+            this.deltaNbBits = new int[maxSymbol + 1];
+            this.deltaFindState = new int[maxSymbol + 1];
+        }
+    }
+
+    // Distribui os símbolos pela tabela, como na implementação de referência (os de probabilidade
+    // menor que 1 ficam no final da tabela)
+    private static int[] spread(short[] norm, int maxSymbol, int tableLog) {
+        final int size = 1 << tableLog;
+        final int mask = size - 1;
+        final int step = (size >>> 1) + (size >>> 3) + 3;
+        final int[] symbols = new int[size];
+        int highThreshold = size - 1;
+        for (int s = 0; s <= maxSymbol; s++) {
+            if (norm[s] == -1) {
+                symbols[highThreshold--] = s;
+            }
+        }
+        int position = 0;
+        for (int s = 0; s <= maxSymbol; s++) {
+            for (int i = 0; i < norm[s]; i++) {
+                symbols[position] = s;
+                do {
+                    position = (position + step) & mask;
+                } while (position > highThreshold);
+            }
+        }
+        if (position != 0) {
+            throw new IllegalArgumentException("Distribuição FSE inválida!");
+        }
+        return symbols;
+    }
+
+    static DecodingTable buildDecodingTable(short[] norm, int maxSymbol, int tableLog) {
+        final DecodingTable table = new DecodingTable(tableLog);
+        final int size = 1 << tableLog;
+        final int[] next = new int[maxSymbol + 1];
+        for (int s = 0; s <= maxSymbol; s++) {
+            next[s] = norm[s] == -1 ? 1 : norm[s];
+        }
+        final int[] symbols = spread(norm, maxSymbol, tableLog);
+        for (int u = 0; u < size; u++) {
+            final int s = symbols[u];
+            final int nextState = next[s]++;
+            final int bits = tableLog - highBit(nextState);
+            table.symbol[u] = s;
+            table.nbBits[u] = bits;
+            table.baseline[u] = (nextState << bits) - size;
+        }
+        return table;
+    }
+
+    /**
+     * Tabela com um único símbolo, que não lê nenhum bit (modo RLE das sequências)
+     */
+    static DecodingTable rleDecodingTable(int symbol) {
+        final DecodingTable table = new DecodingTable(0);
+        table.symbol[0] = symbol;
+        return table;
+    }
+
+    static EncodingTable buildEncodingTable(short[] norm, int maxSymbol, int tableLog) {
+        final EncodingTable table = new EncodingTable(tableLog, maxSymbol);
+        final int size = 1 << tableLog;
+
+        final int[] cumul = new int[maxSymbol + 2];
+        for (int s = 0; s <= maxSymbol; s++) {
+            cumul[s + 1] = cumul[s] + (norm[s] == -1 ? 1 : norm[s]);
+        }
+        final int[] symbols = spread(norm, maxSymbol, tableLog);
+        for (int u = 0; u < size; u++) {
+            table.stateTable[cumul[symbols[u]]++] = size + u;
+        }
+
+        int total = 0;
+        for (int s = 0; s <= maxSymbol; s++) {
+            final int n = norm[s];
+            if (n == 0) {
+                table.deltaNbBits[s] = ((tableLog + 1) << 16) - size;
+            } else if (n == -1 || n == 1) {
+                table.deltaNbBits[s] = (tableLog << 16) - size;
+                table.deltaFindState[s] = total - 1;
+                total++;
+            } else {
+                final int maxBitsOut = tableLog - highBit(n - 1);
+                table.deltaNbBits[s] = (maxBitsOut << 16) - (n << maxBitsOut);
+                table.deltaFindState[s] = total - n;
+                total += n;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Estado inicial para o último símbolo codificado (o primeiro lido), sem gravar bits
+     */
+    static int initState(EncodingTable table, int symbol) {
+        final int bits = (table.deltaNbBits[symbol] + (1 << 15)) >>> 16;
+        final int value = (bits << 16) - table.deltaNbBits[symbol];
+        return table.stateTable[(value >> bits) + table.deltaFindState[symbol]];
+    }
+
+    /**
+     * Codifica o símbolo a partir do estado atual e retorna o novo estado
+     */
+    static int encode(ZstdBitWriter writer, EncodingTable table, int state, int symbol) {
+        final int bits = (state + table.deltaNbBits[symbol]) >>> 16;
+        writer.add(state, bits);
+        return table.stateTable[(state >>> bits) + table.deltaFindState[symbol]];
+    }
+
+    /**
+     * Grava o estado final, que é o estado inicial do decodificador
+     */
+    static void flush(ZstdBitWriter writer, EncodingTable table, int state) {
+        writer.add(state, table.tableLog);
+    }
+
+    /**
+     * Tamanho da tabela para a quantidade de símbolos, como na implementação de referência
+     */
+    static int optimalTableLog(int maxTableLog, int total, int maxSymbol) {
+        int tableLog = Math.min(maxTableLog, highBit(total - 1) - 2);
+        final int minBits = Math.min(highBit(total) + 1, highBit(Math.max(maxSymbol, 1)) + 2);
+        tableLog = Math.max(tableLog, minBits);
+        return Math.max(MIN_TABLE_LOG, Math.min(tableLog, maxTableLog));
+    }
+
+    /**
+     * Normaliza as contagens para que a soma seja o tamanho da tabela. Todo símbolo presente fica
+     * com pelo menos 1.
+     *
+     * @param maxNorm Probabilidade máxima de um símbolo
+     * @return As probabilidades, ou null se não for possível respeitar maxNorm
+     */
+    static short[] normalize(int[] counts, int maxSymbol, int total, int tableLog, int maxNorm) {
+        final int size = 1 << tableLog;
+        final short[] norm = new short[maxSymbol + 1];
+        int sum = 0;
+        for (int s = 0; s <= maxSymbol; s++) {
+            if (counts[s] > 0) {
+                final long n = ((long) counts[s] * size + total / 2) / total;
+                norm[s] = (short) Math.min(Math.max(n, 1), maxNorm);
+                sum += norm[s];
+            }
+        }
+
+        // Tira de quem perde menos (menor contagem por unidade de probabilidade) e dá a quem ganha mais
+        while (sum > size) {
+            int best = -1;
+            for (int s = 0; s <= maxSymbol; s++) {
+                if (norm[s] > 1 && (best < 0 || (long) counts[s] * norm[best] < (long) counts[best] * norm[s])) {
+                    best = s;
+                }
+            }
+            if (best < 0) {
+                return null;
+            }
+            norm[best]--;
+            sum--;
+        }
+        while (sum < size) {
+            int best = -1;
+            for (int s = 0; s <= maxSymbol; s++) {
+                if (norm[s] > 0 && norm[s] < maxNorm && (best < 0 || (long) counts[s] * norm[best] > (long) counts[best] * norm[s])) {
+                    best = s;
+                }
+            }
+            if (best < 0) {
+                return null;
+            }
+            norm[best]++;
+            sum++;
+        }
+        return norm;
+    }
+
+    /**
+     * Custo aproximado, em bits, de codificar as contagens com as probabilidades
+     */
+    static double cost(int[] counts, int maxSymbol, short[] norm, int normMaxSymbol, int tableLog) {
+        double bits = 0;
+        for (int s = 0; s <= maxSymbol; s++) {
+            if (counts[s] == 0) {
+                continue;
+            }
+            if (s > normMaxSymbol || norm[s] == 0) {
+                return Double.POSITIVE_INFINITY;
+            }
+            final int n = norm[s] == -1 ? 1 : norm[s];
+            bits += counts[s] * (tableLog - Math.log(n) / Math.log(2));
+        }
+        return bits;
+    }
+
+    /**
+     * Grava as probabilidades no formato do cabeçalho FSE
+     */
+    static void writeNormalizedCounts(ByteArrayOutputStream out, short[] norm, int maxSymbol, int tableLog) {
+        final ForwardBitWriter bits = new ForwardBitWriter(out);
+        final int size = 1 << tableLog;
+        bits.add(tableLog - MIN_TABLE_LOG, 4);
+        int remaining = size + 1;
+        int threshold = size;
+        int nbBits = tableLog + 1;
+        int symbol = 0;
+        boolean previous0 = false;
+
+        while (symbol <= maxSymbol && remaining > 1) {
+            if (previous0) {
+                // Símbolos seguidos com probabilidade 0: de 3 em 3, e o resto
+                int start = symbol;
+                while (symbol <= maxSymbol && norm[symbol] == 0) {
+                    symbol++;
+                }
+                while (symbol >= start + 3) {
+                    start += 3;
+                    bits.add(3, 2);
+                }
+                bits.add(symbol - start, 2);
+            }
+
+            int count = norm[symbol++];
+            final int max = (2 * threshold - 1) - remaining;
+            remaining -= count < 0 ? -count : count;
+            count++;
+            if (count >= threshold) {
+                count += max;
+            }
+            bits.add(count, count < max ? nbBits - 1 : nbBits);
+            previous0 = count == 1;
+            while (remaining < threshold) {
+                nbBits--;
+                threshold >>= 1;
+            }
+        }
+        bits.finish();
+    }
+
+    /**
+     * Lê as probabilidades de um cabeçalho FSE
+     *
+     * @param norm      Recebe as probabilidades (pelo menos maxSymbol + 1 posições)
+     * @param maxSymbol Maior símbolo aceito
+     * @param maxLog    Maior tamanho de tabela aceito
+     * @param result    Recebe o maior símbolo lido e o tamanho da tabela
+     * @return Quantidade de bytes lidos
+     */
+    static int readNormalizedCounts(byte[] src, int offset, int end, short[] norm, int maxSymbol, int maxLog, int[] result) throws IOException {
+        final ForwardBits bits = new ForwardBits(src, offset, end);
+        final int tableLog = bits.read(4) + MIN_TABLE_LOG;
+        if (tableLog > maxLog) {
+            throw new IOException("Tabela FSE do zstd grande demais!");
+        }
+        int remaining = (1 << tableLog) + 1;
+        int threshold = 1 << tableLog;
+        int nbBits = tableLog + 1;
+        int symbol = 0;
+        boolean previous0 = false;
+
+        while (remaining > 1) {
+            if (previous0) {
+                int zeros = symbol;
+                int repeat;
+                while ((repeat = bits.read(2)) == 3) {
+                    zeros += 3;
+                }
+                zeros += repeat;
+                if (zeros > maxSymbol) {
+                    throw new IOException("Tabela FSE do zstd inválida!");
+                }
+                while (symbol < zeros) {
+                    norm[symbol++] = 0;
+                }
+            }
+            if (symbol > maxSymbol) {
+                throw new IOException("Tabela FSE do zstd inválida!");
+            }
+
+            final int max = (2 * threshold - 1) - remaining;
+            final int value = bits.peek(nbBits);
+            int count;
+            if ((value & (threshold - 1)) < max) {
+                count = value & (threshold - 1);
+                bits.skip(nbBits - 1);
+            } else {
+                count = value & (2 * threshold - 1);
+                if (count >= threshold) {
+                    count -= max;
+                }
+                bits.skip(nbBits);
+            }
+            count--;
+            remaining -= count < 0 ? -count : count;
+            norm[symbol++] = (short) count;
+            previous0 = count == 0;
+            while (remaining < threshold) {
+                nbBits--;
+                threshold >>= 1;
+            }
+        }
+        if (remaining != 1 || bits.isOverflow()) {
+            throw new IOException("Tabela FSE do zstd inválida!");
+        }
+        for (int s = symbol; s < norm.length; s++) {
+            norm[s] = 0;
+        }
+        result[0] = symbol - 1;
+        result[1] = tableLog;
+        return bits.bytesRead();
+    }
+
+    static int highBit(int value) {
+        return 31 - Integer.numberOfLeadingZeros(value);
+    }
+
+    // Gravação de bits para frente (little-endian), usada apenas nos cabeçalhos
+    private static final class ForwardBitWriter {
+
+        private final ByteArrayOutputStream out;
+
+        private long container;
+
+        private int count;
+
+        ForwardBitWriter(ByteArrayOutputStream out) {
+            this.out = out;
+        }
+
+        void add(int value, int bits) {
+            container |= (value & ((1L << bits) - 1)) << count;
+            count += bits;
+            while (count >= 8) {
+                out.write((int) container);
+                container >>>= 8;
+                count -= 8;
+            }
+        }
+
+        void finish() {
+            if (count > 0) {
+                out.write((int) container);
+            }
+            container = 0;
+            count = 0;
+        }
+    }
+
+    // Leitura de bits para frente (little-endian), usada apenas nos cabeçalhos
+    private static final class ForwardBits {
+
+        private final byte[] src;
+
+        private final int offset;
+
+        private final int end;
+
+        private long position;
+
+        ForwardBits(byte[] src, int offset, int end) {
+            this.src = src;
+            this.offset = offset;
+            this.end = end;
+        }
+
+        int peek(int count) {
+            int value = 0;
+            for (int i = 0; i < count; i++) {
+                final long bit = position + i;
+                final int index = offset + (int) (bit >>> 3);
+                if (index < end && (src[index] & (1 << (bit & 7))) != 0) {
+                    value |= 1 << i;
+                }
+            }
+            return value;
+        }
+
+        int read(int count) {
+            final int value = peek(count);
+            position += count;
+            return value;
+        }
+
+        void skip(int count) {
+            position += count;
+        }
+
+        boolean isOverflow() {
+            return offset + ((position + 7) >>> 3) > end;
+        }
+
+        int bytesRead() {
+            return (int) ((position + 7) >>> 3);
+        }
+    }
+
+}
@@ -0,0 +1,421 @@
+package br.com.dercilima.firebackuplib.compress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Códigos de Huffman dos literais do zstd (RFC 8878, seção 4.2): a montagem do código canônico a
+ * partir dos pesos, a gravação e a leitura da descrição da árvore (pesos diretos ou compactados
+ * com FSE) e a codificação dos streams.
+ */
+final class ZstdHuffman {
+
+    static final int MAX_TABLE_LOG = 11;
+
+    static final int MAX_SYMBOL = 255;
+
+    // Os pesos compactados com FSE usam uma tabela de no máximo 64 estados
+    private static final int WEIGHTS_MAX_TABLE_LOG = 6;
+
+    private ZstdHuffman() {
+    }
+
+    /**
+     * Tabela de decodificação: indexada pelos próximos tableLog bits do stream
+     */
+    static final class DecodingTable {
+
+        final int tableLog;
+
+        final byte[] symbol;
+
+        final byte[] nbBits;
+
+        DecodingTable(int tableLog) {
+            this.tableLog = tableLog;
+            this.symbol = new byte[1 << tableLog];
+            this.nbBits = new byte[1 << tableLog];
+        }
+    }
+
+    /**
+     * Código de cada símbolo para a codificação
+     */
+    static final class EncodingTable {
+
+        final int maxSymbol;
+
+        final int tableLog;
+
+        final int[] code = new int[MAX_SYMBOL + 1];
+
+        final byte[] nbBits = new byte[MAX_SYMBOL + 1];
+
+        EncodingTable(int maxSymbol, int tableLog) {
+            this.maxSymbol = maxSymbol;
+            this.tableLog = tableLog;
+        }
+
+        /**
+         * Tamanho, em bits, dos literais codificados
+         */
+        long cost(int[] counts) {
+            long bits = 0;
+            for (int s = 0; s <= maxSymbol; s++) {
+                bits += (long) counts[s] * nbBits[s];
+            }
+            return bits;
+        }
+    }
+
+    /**
+     * Monta o código de Huffman das contagens, com no máximo {@link #MAX_TABLE_LOG} bits por símbolo
+     *
+     * @return O código, ou null se houver menos de dois símbolos
+     */
+    static EncodingTable buildEncodingTable(int[] counts, int maxSymbol) {
+        final int[] lengths = codeLengths(counts, maxSymbol);
+        if (lengths == null) {
+            return null;
+        }
+        int tableLog = 0;
+        for (int s = 0; s <= maxSymbol; s++) {
+            tableLog = Math.max(tableLog, lengths[s]);
+        }
+        final EncodingTable table = new EncodingTable(maxSymbol, tableLog);
+        final int[] weights = new int[maxSymbol + 1];
+        for (int s = 0; s <= maxSymbol; s++) {
+            table.nbBits[s] = (byte) lengths[s];
+            weights[s] = lengths[s] > 0 ? tableLog + 1 - lengths[s] : 0;
+        }
+
+        // Mesma ordem da tabela de decodificação: os pesos menores (códigos maiores) primeiro
+        final int[] rankStart = rankStart(weights, maxSymbol, tableLog);
+        for (int s = 0; s <= maxSymbol; s++) {
+            final int w = weights[s];
+            if (w > 0) {
+                table.code[s] = rankStart[w] >>> (w - 1);
+                rankStart[w] += 1 << (w - 1);
+            }
+        }
+        return table;
+    }
+
+    // Tamanho do código de cada símbolo: Huffman e, se passar do limite, o ajuste dos tamanhos
+    private static int[] codeLengths(int[] counts, int maxSymbol) {
+        int n = 0;
+        for (int s = 0; s <= maxSymbol; s++) {
+            if (counts[s] > 0) {
+                n++;
+            }
+        }
+        if (n < 2) {
+            return null;
+        }
+
+        // Folhas em ordem crescente de contagem (contagem << 8 | símbolo)
+        final long[] leaves = new long[n];
+        int i = 0;
+        for (int s = 0; s <= maxSymbol; s++) {
+            if (counts[s] > 0) {
+                leaves[i++] = (long) counts[s] << 8 | s;
+            }
+        }
+        Arrays.sort(leaves);
+
+        // Duas filas: folhas e nós internos (os nós internos são criados em ordem crescente de peso)
+        final long[] weight = new long[2 * n - 1];
+        final int[] parent = new int[2 * n - 1];
+        for (i = 0; i < n; i++) {
+            weight[i] = leaves[i] >>> 8;
+        }
+        int nextLeaf = 0;
+        int nextNode = n;
+        for (int node = n; node < 2 * n - 1; node++) {
+            final int a = nextLeaf < n && (nextNode >= node || weight[nextLeaf] <= weight[nextNode]) ? nextLeaf++ : nextNode++;
+            final int b = nextLeaf < n && (nextNode >= node || weight[nextLeaf] <= weight[nextNode]) ? nextLeaf++ : nextNode++;
+            weight[node] = weight[a] + weight[b];
+            parent[a] = node;
+            parent[b] = node;
+        }
+        final int[] depth = new int[2 * n - 1];
+        for (int node = 2 * n - 3; node >= 0; node--) {
+            depth[node] = depth[parent[node]] + 1;
+        }
+
+        final int[] lengths = new int[maxSymbol + 1];
+        int maxLength = 0;
+        for (i = 0; i < n; i++) {
+            lengths[(int) (leaves[i] & 0xFF)] = depth[i];
+            maxLength = Math.max(maxLength, depth[i]);
+        }
+        if (maxLength > MAX_TABLE_LOG) {
+            limitLengths(lengths, counts, maxSymbol);
+        }
+        return lengths;
+    }
+
+    // Limita os códigos a MAX_TABLE_LOG bits mantendo o código completo (soma de Kraft = 1)
+    private static void limitLengths(int[] lengths, int[] counts, int maxSymbol) {
+        final int total = 1 << MAX_TABLE_LOG;
+        int kraft = 0;
+        for (int s = 0; s <= maxSymbol; s++) {
+            if (lengths[s] > MAX_TABLE_LOG) {
+                lengths[s] = MAX_TABLE_LOG;
+            }
+            if (lengths[s] > 0) {
+                kraft += total >>> lengths[s];
+            }
+        }
+        // Passou de 1: aumenta o código mais longo abaixo do limite, com a menor contagem
+        while (kraft > total) {
+            int best = -1;
+            for (int s = 0; s <= maxSymbol; s++) {
+                if (lengths[s] > 0 && lengths[s] < MAX_TABLE_LOG
+                        && (best < 0 || lengths[s] > lengths[best] || (lengths[s] == lengths[best] && counts[s] < counts[best]))) {
+                    best = s;
+                }
+            }
+            lengths[best]++;
+            kraft -= total >>> lengths[best];
+        }
+        // Sobrou espaço: diminui o código mais longo, com a maior contagem
+        while (kraft < total) {
+            int best = -1;
+            for (int s = 0; s <= maxSymbol; s++) {
+                if (lengths[s] > 1 && (best < 0 || lengths[s] > lengths[best] || (lengths[s] == lengths[best] && counts[s] > counts[best]))) {
+                    best = s;
+                }
+            }
+            kraft += total >>> lengths[best];
+            lengths[best]--;
+        }
+    }
+
+    // Posição inicial, na tabela de decodificação, dos símbolos de cada peso
+    private static int[] rankStart(int[] weights, int maxSymbol, int tableLog) {
+        final int[] rankCount = new int[tableLog + 2];
+        for (int s = 0; s <= maxSymbol; s++) {
+            rankCount[weights[s]]++;
+        }
+        final int[] rankStart = new int[tableLog + 2];
+        int next = 0;
+        for (int w = 1; w <= tableLog; w++) {
+            rankStart[w] = next;
+            next += rankCount[w] << (w - 1);
+        }
+        return rankStart;
+    }
+
+    /**
+     * Grava a descrição da árvore (os pesos de todos os símbolos, menos o último)
+     *
+     * @return false se os pesos não puderem ser gravados
+     */
+    static boolean writeTable(ByteArrayOutputStream out, EncodingTable table) {
+        final int count = table.maxSymbol;
+        final int[] weights = new int[count];
+        for (int s = 0; s < count; s++) {
+            weights[s] = table.nbBits[s] > 0 ? table.tableLog + 1 - table.nbBits[s] : 0;
+        }
+
+        // Compactados com FSE, se ficar menor
+        final byte[] compressed = compressWeights(weights, count);
+        if (compressed != null && (count > 128 || compressed.length < (count + 1) / 2)) {
+            out.write(compressed.length);
+            out.write(compressed, 0, compressed.length);
+            return true;
+        }
+        if (count > 128) {
+            return false;
+        }
+
+        // Diretos, 4 bits cada
+        out.write(127 + count);
+        for (int s = 0; s < count; s += 2) {
+            out.write(weights[s] << 4 | (s + 1 < count ? weights[s + 1] : 0));
+        }
+        return true;
+    }
+
+    // Pesos compactados com FSE, com dois estados intercalados, ou null
+    private static byte[] compressWeights(int[] weights, int count) {
+        if (count < 2) {
+            return null;
+        }
+        final int[] counts = new int[MAX_TABLE_LOG + 1];
+        int maxWeight = 0;
+        for (int s = 0; s < count; s++) {
+            counts[weights[s]]++;
+            maxWeight = Math.max(maxWeight, weights[s]);
+        }
+        final int tableLog = ZstdFse.optimalTableLog(WEIGHTS_MAX_TABLE_LOG, count, maxWeight);
+
+        // Nenhum peso com mais da metade da tabela: todo estado lê pelo menos um bit, então o
+        // decodificador sabe exatamente onde os pesos terminam
+        final short[] norm = ZstdFse.normalize(counts, maxWeight, count, tableLog, 1 << (tableLog - 1));
+        if (norm == null) {
+            return null;
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ZstdFse.writeNormalizedCounts(out, norm, maxWeight, tableLog);
+
+        final ZstdFse.EncodingTable table = ZstdFse.buildEncodingTable(norm, maxWeight, tableLog);
+        final ZstdBitWriter writer = new ZstdBitWriter(count);
+        int index = count;
+        int state1;
+        int state2;
+        if ((count & 1) != 0) {
+            state1 = ZstdFse.initState(table, weights[--index]);
+            state2 = ZstdFse.initState(table, weights[--index]);
+            state1 = ZstdFse.encode(writer, table, state1, weights[--index]);
+        } else {
+            state2 = ZstdFse.initState(table, weights[--index]);
+            state1 = ZstdFse.initState(table, weights[--index]);
+        }
+        while (index > 0) {
+            state2 = ZstdFse.encode(writer, table, state2, weights[--index]);
+            state1 = ZstdFse.encode(writer, table, state1, weights[--index]);
+        }
+        ZstdFse.flush(writer, table, state2);
+        ZstdFse.flush(writer, table, state1);
+        final int size = writer.finish();
+        out.write(writer.getBuffer(), 0, size);
+
+        return out.size() < 128 ? out.toByteArray() : null;
+    }
+
+    /**
+     * Codifica os literais em um stream (do último para o primeiro, pois o stream é lido de trás para frente)
+     */
+    static int encodeStream(ZstdBitWriter writer, EncodingTable table, byte[] src, int offset, int length) {
+        writer.reset();
+        for (int i = offset + length - 1; i >= offset; i--) {
+            final int s = src[i] & 0xFF;
+            writer.add(table.code[s], table.nbBits[s]);
+        }
+        return writer.finish();
+    }
+
+    /**
+     * Lê a descrição da árvore e monta a tabela de decodificação
+     *
+     * @param result Recebe a quantidade de bytes lidos
+     */
+    static DecodingTable readTable(byte[] src, int offset, int end, int[] result) throws IOException {
+        if (offset >= end) {
+            throw new IOException("Tabela de Huffman do zstd inválida!");
+        }
+        final int header = src[offset] & 0xFF;
+        final int[] weights = new int[MAX_SYMBOL + 1];
+        int count;
+        if (header >= 128) {
+            // Pesos diretos
+            count = header - 127;
+            final int size = (count + 1) / 2;
+            if (offset + 1 + size > end) {
+                throw new IOException("Tabela de Huffman do zstd inválida!");
+            }
+            for (int i = 0; i < count; i += 2) {
+                final int b = src[offset + 1 + i / 2] & 0xFF;
+                weights[i] = b >>> 4;
+                weights[i + 1] = b & 0x0F;
+            }
+            result[0] = 1 + size;
+        } else {
+            // Pesos compactados com FSE
+            if (header == 0 || offset + 1 + header > end) {
+                throw new IOException("Tabela de Huffman do zstd inválida!");
+            }
+            count = decompressWeights(src, offset + 1, offset + 1 + header, weights);
+            result[0] = 1 + header;
+        }
+
+        // O peso do último símbolo completa a soma até a próxima potência de 2
+        int total = 0;
+        for (int s = 0; s < count; s++) {
+            if (weights[s] > MAX_TABLE_LOG) {
+                throw new IOException("Tabela de Huffman do zstd inválida!");
+            }
+            if (weights[s] > 0) {
+                total += 1 << (weights[s] - 1);
+            }
+        }
+        if (total == 0) {
+            throw new IOException("Tabela de Huffman do zstd inválida!");
+        }
+        final int tableLog = ZstdFse.highBit(total) + 1;
+        final int rest = (1 << tableLog) - total;
+        if (tableLog > MAX_TABLE_LOG || Integer.bitCount(rest) != 1 || count > MAX_SYMBOL) {
+            throw new IOException("Tabela de Huffman do zstd inválida!");
+        }
+        weights[count] = ZstdFse.highBit(rest) + 1;
+        final int maxSymbol = count;
+
+        final DecodingTable table = new DecodingTable(tableLog);
+        final int[] rankStart = rankStart(weights, maxSymbol, tableLog);
+        for (int s = 0; s <= maxSymbol; s++) {
+            final int w = weights[s];
+            if (w == 0) {
+                continue;
+            }
+            final int start = rankStart[w];
+            final int length = 1 << (w - 1);
+            Arrays.fill(table.symbol, start, start + length, (byte) s);
+            Arrays.fill(table.nbBits, start, start + length, (byte) (tableLog + 1 - w));
+            rankStart[w] += length;
+        }
+        return table;
+    }
+
+    // Lê os pesos compactados com FSE (dois estados intercalados, até o fim do stream)
+    private static int decompressWeights(byte[] src, int offset, int end, int[] weights) throws IOException {
+        final short[] norm = new short[MAX_TABLE_LOG + 1];
+        final int[] info = new int[2];
+        final int headerSize = ZstdFse.readNormalizedCounts(src, offset, end, norm, MAX_TABLE_LOG, WEIGHTS_MAX_TABLE_LOG, info);
+        final ZstdFse.DecodingTable table = ZstdFse.buildDecodingTable(norm, info[0], info[1]);
+
+        final ZstdBitReader bits = new ZstdBitReader(src, offset + headerSize, end);
+        int state1 = bits.read(table.tableLog);
+        int state2 = bits.read(table.tableLog);
+        int count = 0;
+        while (true) {
+            if (count > MAX_SYMBOL - 2) {
+                throw new IOException("Tabela de Huffman do zstd inválida!");
+            }
+            weights[count++] = table.symbol[state1];
+            state1 = table.baseline[state1] + bits.read(table.nbBits[state1]);
+            if (bits.isOverflow()) {
+                weights[count++] = table.symbol[state2];
+                break;
+            }
+            weights[count++] = table.symbol[state2];
+            state2 = table.baseline[state2] + bits.read(table.nbBits[state2]);
+            if (bits.isOverflow()) {
+                weights[count++] = table.symbol[state1];
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Decodifica um stream com a quantidade informada de literais
+     */
+    static void decodeStream(DecodingTable table, byte[] src, int offset, int end, byte[] dst, int dstOffset, int length) throws IOException {
+        final ZstdBitReader bits = new ZstdBitReader(src, offset, end);
+        final int tableLog = table.tableLog;
+        final int last = dstOffset + length;
+        for (int i = dstOffset; i < last; i++) {
+            final int index = bits.peek(tableLog);
+            dst[i] = table.symbol[index];
+            bits.skip(table.nbBits[index]);
+        }
+        if (!bits.isFinished()) {
+            throw new IOException("Stream de literais do zstd corrompido!");
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+package br.com.dercilima.firebackuplib.compress;
+
+/**
+ * Códigos dos tamanhos e dos offsets das sequências do zstd (RFC 8878, seção 3.1.1.3.2.1): cada
+ * valor é gravado como um código, codificado com FSE, e alguns bits extras.
+ */
+final class ZstdSequences {
+
+    static final int MAX_LITERALS_LENGTH_CODE = 35;
+
+    static final int MAX_MATCH_LENGTH_CODE = 52;
+
+    static final int MAX_OFFSET_CODE = 31;
+
+    static final int MIN_MATCH = 3;
+
+    // Maior tabela FSE aceita para cada tipo de código
+    static final int LITERALS_LENGTH_MAX_LOG = 9;
+
+    static final int MATCH_LENGTH_MAX_LOG = 9;
+
+    static final int OFFSET_MAX_LOG = 8;
+
+    static final int[] LITERALS_LENGTH_BASE = {
+            0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15,
+            16, 18, 20, 22, 24, 28, 32, 40, 48, 64, 128, 256, 512, 1024, 2048, 4096,
+            8192, 16384, 32768, 65536};
+
+    static final int[] LITERALS_LENGTH_BITS = {
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+            1, 1, 1, 1, 2, 2, 3, 3, 4, 6, 7, 8, 9, 10, 11, 12,
+            13, 14, 15, 16};
+
+    static final int[] MATCH_LENGTH_BASE = {
+            3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18,
+            19, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32, 33, 34,
+            35, 37, 39, 41, 43, 47, 51, 59, 67, 83, 99, 131, 259, 515, 1027, 2051,
+            4099, 8195, 16387, 32771, 65539};
+
+    static final int[] MATCH_LENGTH_BITS = {
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+            1, 1, 1, 1, 2, 2, 3, 3, 4, 4, 5, 7, 8, 9, 10, 11,
+            12, 13, 14, 15, 16};
+
+    // Código dos tamanhos pequenos, que não seguem uma potência de 2
+    private static final byte[] LITERALS_LENGTH_CODE = new byte[64];
+
+    private static final byte[] MATCH_LENGTH_CODE = new byte[128];
+
+    static {
+        int code = 0;
+        for (int length = 0; length < LITERALS_LENGTH_CODE.length; length++) {
+            while (code < MAX_LITERALS_LENGTH_CODE && LITERALS_LENGTH_BASE[code + 1] <= length) {
+                code++;
+            }
+            LITERALS_LENGTH_CODE[length] = (byte) code;
+        }
+        code = 0;
+        for (int length = 0; length < MATCH_LENGTH_CODE.length; length++) {
+            while (code < MAX_MATCH_LENGTH_CODE && MATCH_LENGTH_BASE[code + 1] <= length + MIN_MATCH) {
+                code++;
+            }
+            MATCH_LENGTH_CODE[length] = (byte) code;
+        }
+    }
+
+    private ZstdSequences() {
+    }
+
+    static int literalsLengthCode(int length) {
+        return length < LITERALS_LENGTH_CODE.length ? LITERALS_LENGTH_CODE[length] : ZstdFse.highBit(length) + 19;
+    }
+
+    static int matchLengthCode(int length) {
+        final int value = length - MIN_MATCH;
+        return value < MATCH_LENGTH_CODE.length ? MATCH_LENGTH_CODE[value] : ZstdFse.highBit(value) + 36;
+    }
+
+    /**
+     * Código do offset gravado (offset + 3, ou 1 a 3 para os offsets repetidos)
+     */
+    static int offsetCode(int offsetValue) {
+        return ZstdFse.highBit(offsetValue);
+    }
+
+}
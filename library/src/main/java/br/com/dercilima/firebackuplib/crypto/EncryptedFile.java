@@ -0,0 +1,137 @@
+package br.com.dercilima.firebackuplib.crypto;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import br.com.dercilima.firebackuplib.archive.SeekableInput;
+
+/**
+ * Lê um backup gravado pelo {@link EncryptedOutputStream}. Cada leitura decriptografa apenas o
+ * frame da posição pedida (o último frame lido fica em memória), então o índice do zip e o
+ * restore seletivo continuam acessando as entradas diretamente, e a leitura sequencial
+ * decriptografa cada frame uma única vez.
+ * <p>
+ * O último frame é autenticado na abertura, então um arquivo truncado é recusado antes de qualquer leitura.
+ */
+public class EncryptedFile implements SeekableInput {
+
+    private final RandomAccessFile file;
+
+    private final FrameCipher cipher;
+
+    private final int frameSize;
+
+    private final long headerSize;
+
+    private final long frameCount;
+
+    private final long length;
+
+    private final byte[] encrypted;
+
+    private final byte[] frame;
+
+    // Frame atualmente decriptografado em "frame"
+    private long currentFrame = -1;
+
+    private int currentLength;
+
+
+    /**
+     * @param archive     Arquivo criptografado
+     * @param keyProvider Fornece a chave identificada no cabeçalho
+     */
+    public EncryptedFile(File archive, KeyProvider keyProvider) throws IOException {
+        if (keyProvider == null) {
+            throw new IOException("Backup criptografado: nenhuma chave informada!");
+        }
+        this.file = new RandomAccessFile(archive, "r");
+        try {
+            final FrameCipher.Header header = FrameCipher.readHeader(file);
+            this.frameSize = header.frameSize;
+            this.headerSize = file.getFilePointer();
+            this.cipher = new FrameCipher(keyProvider.getKey(header.keyId), header.nonce);
+
+            // Todos os frames, menos o último, têm o tamanho do frame mais a tag
+            final long stride = (long) frameSize + FrameCipher.TAG_SIZE;
+            final long dataSize = file.length() - headerSize;
+            this.frameCount = (dataSize + stride - 1) / stride;
+            if (frameCount == 0 || dataSize - (frameCount - 1) * stride < FrameCipher.TAG_SIZE) {
+                throw new IOException("Backup criptografado incompleto!");
+            }
+            this.length = dataSize - frameCount * FrameCipher.TAG_SIZE;
+
+            this.encrypted = new byte[(int) stride];
+            this.frame = new byte[frameSize];
+            loadFrame(frameCount - 1);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Verifica, pelo cabeçalho, se o arquivo foi gravado pelo {@link EncryptedOutputStream}
+     */
+    public static boolean isEncrypted(File file) throws IOException {
+        final InputStream input = new FileInputStream(file);
+        try {
+            final byte[] magic = new byte[4];
+            int read = 0;
+            while (read < magic.length) {
+                final int count = input.read(magic, read, magic.length - read);
+                if (count == -1) {
+                    return false;
+                }
+                read += count;
+            }
+            return ((magic[0] & 0xFF) << 24 | (magic[1] & 0xFF) << 16 | (magic[2] & 0xFF) << 8 | (magic[3] & 0xFF)) == FrameCipher.MAGIC;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Tamanho do conteúdo decriptografado
+     */
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public int read(long position, byte[] b, int off, int len) throws IOException {
+        if (position >= length) {
+            return -1;
+        }
+        loadFrame(position / frameSize);
+        final int start = (int) (position % frameSize);
+        final int count = Math.min(len, currentLength - start);
+        System.arraycopy(frame, start, b, off, count);
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private void loadFrame(long index) throws IOException {
+        if (index == currentFrame) {
+            return;
+        }
+        final long stride = (long) frameSize + FrameCipher.TAG_SIZE;
+        final long start = headerSize + index * stride;
+        final int size = (int) Math.min(stride, file.length() - start);
+        file.seek(start);
+        file.readFully(encrypted, 0, size);
+        // Em caso de erro, nenhum frame fica em memória
+        currentFrame = -1;
+        currentLength = cipher.decrypt(index, index == frameCount - 1, encrypted, size, frame);
+        currentFrame = index;
+    }
+
+}
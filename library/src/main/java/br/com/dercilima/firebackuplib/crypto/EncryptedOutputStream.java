@@ -0,0 +1,119 @@
+package br.com.dercilima.firebackuplib.crypto;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+
+/**
+ * Criptografa o backup enquanto ele é gravado, em frames AES-GCM de tamanho fixo. Apenas um frame
+ * fica em memória, então o zip não precisa ser gravado em claro e criptografado depois.
+ * <p>
+ * O arquivo gravado é lido com o {@link EncryptedFile}, que acessa qualquer frame diretamente.
+ */
+public class EncryptedOutputStream extends OutputStream {
+
+    public static final int DEFAULT_FRAME_SIZE = 64 * 1024;
+
+    private final OutputStream output;
+
+    private final FrameCipher cipher;
+
+    private final byte[] frame;
+
+    private final byte[] encrypted;
+
+    private int length = 0;
+
+    private long frameIndex = 0;
+
+    private long size;
+
+    private boolean closed = false;
+
+
+    public EncryptedOutputStream(OutputStream output, KeyProvider keyProvider) throws IOException {
+        this(output, keyProvider, DEFAULT_FRAME_SIZE);
+    }
+
+    /**
+     * @param output      Destino. É fechado no close().
+     * @param keyProvider Fornece a chave atual
+     * @param frameSize   Tamanho do frame (em bytes de conteúdo)
+     */
+    public EncryptedOutputStream(OutputStream output, KeyProvider keyProvider, int frameSize) throws IOException {
+        if (frameSize <= 0) {
+            throw new IllegalArgumentException("Tamanho do frame inválido!");
+        }
+        final String keyId = keyProvider.getCurrentKeyId();
+        final byte[] nonce = new byte[FrameCipher.NONCE_SIZE];
+        new SecureRandom().nextBytes(nonce);
+
+        this.output = output;
+        this.cipher = new FrameCipher(keyProvider.getKey(keyId), nonce);
+        this.frame = new byte[frameSize];
+        this.encrypted = new byte[frameSize + FrameCipher.TAG_SIZE];
+        this.size = FrameCipher.writeHeader(output, frameSize, nonce, keyId);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream fechado!");
+        }
+        while (len > 0) {
+            // Um frame cheio só é gravado quando chegam mais bytes: o último frame é marcado no close()
+            if (length == frame.length) {
+                writeFrame(false);
+            }
+            final int count = Math.min(len, frame.length - length);
+            System.arraycopy(b, off, frame, length, count);
+            length += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Repassa o flush ao destino. O frame incompleto continua em memória até ser preenchido.
+     */
+    @Override
+    public void flush() throws IOException {
+        output.flush();
+    }
+
+    /**
+     * Grava o último frame e fecha o destino
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writeFrame(true);
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Quantidade de bytes gravados no destino (cabeçalho e frames com as tags)
+     */
+    public long getSize() {
+        return size;
+    }
+
+    private void writeFrame(boolean last) throws IOException {
+        final int count = cipher.encrypt(frameIndex++, last, frame, length, encrypted);
+        output.write(encrypted, 0, count);
+        size += count;
+        length = 0;
+    }
+
+}
@@ -0,0 +1,154 @@
+package br.com.dercilima.firebackuplib.crypto;
+
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Formato dos backups criptografados, compartilhado pela escrita e pela leitura.
+ * <p>
+ * Cabeçalho: "FBEN", versão, tamanho do frame, nonce (8 bytes) e identificação da chave.
+ * Depois, os frames: cada um com o tamanho do frame (o último pode ser menor) criptografado com
+ * AES-GCM, seguido da tag de 16 bytes. Todos os frames, menos o último, têm o mesmo tamanho, então
+ * a posição de qualquer frame é calculada sem ler os anteriores.
+ * <p>
+ * O IV de cada frame é o nonce do arquivo seguido do número do frame, com o bit mais alto indicando
+ * o último frame. Assim, frames trocados de lugar, copiados de outro backup ou um arquivo truncado
+ * não passam na autenticação.
+ */
+class FrameCipher {
+
+    static final int MAGIC = 0x4642454E; // "FBEN"
+    static final int VERSION = 1;
+
+    static final int NONCE_SIZE = 8;
+    static final int TAG_SIZE = 16;
+
+    // Limite do número do frame (o bit mais alto indica o último frame)
+    static final long MAX_FRAMES = 0x7FFFFFFFL;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    // GCMParameterSpec só existe a partir do Android 4.4. Antes, o provider aceita o IvParameterSpec.
+    private static final boolean GCM_SPEC = hasGcmParameterSpec();
+
+    private final Cipher cipher;
+
+    private final SecretKey key;
+
+    private final byte[] nonce;
+
+    private final byte[] iv = new byte[NONCE_SIZE + 4];
+
+
+    FrameCipher(SecretKey key, byte[] nonce) throws IOException {
+        this.key = key;
+        this.nonce = nonce;
+        try {
+            this.cipher = Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES-GCM não disponível!", e);
+        }
+    }
+
+    /**
+     * @return Quantidade de bytes gravados em output (length + TAG_SIZE)
+     */
+    int encrypt(long frame, boolean last, byte[] input, int length, byte[] output) throws IOException {
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, parameters(frame, last));
+            return cipher.doFinal(input, 0, length, output, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Erro ao criptografar o backup!", e);
+        }
+    }
+
+    /**
+     * @return Quantidade de bytes decriptografados em output (length - TAG_SIZE)
+     */
+    int decrypt(long frame, boolean last, byte[] input, int length, byte[] output) throws IOException {
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, parameters(frame, last));
+            return cipher.doFinal(input, 0, length, output, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Backup corrompido ou chave incorreta!", e);
+        }
+    }
+
+    private AlgorithmParameterSpec parameters(long frame, boolean last) {
+        if (frame > MAX_FRAMES) {
+            throw new IllegalStateException("Backup grande demais para o tamanho de frame!");
+        }
+        final int counter = (int) frame | (last ? 0x80000000 : 0);
+        System.arraycopy(nonce, 0, iv, 0, NONCE_SIZE);
+        iv[NONCE_SIZE] = (byte) (counter >>> 24);
+        iv[NONCE_SIZE + 1] = (byte) (counter >>> 16);
+        iv[NONCE_SIZE + 2] = (byte) (counter >>> 8);
+        iv[NONCE_SIZE + 3] = (byte) counter;
+        return GCM_SPEC ? gcmParameters(iv) : new IvParameterSpec(iv);
+    }
+
+    // Em um método separado para que a classe só seja carregada quando existir
+    private static AlgorithmParameterSpec gcmParameters(byte[] iv) {
+        return new GCMParameterSpec(TAG_SIZE * 8, iv);
+    }
+
+    private static boolean hasGcmParameterSpec() {
+        try {
+            Class.forName("javax.crypto.spec.GCMParameterSpec");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return Tamanho do cabeçalho gravado
+     */
+    static int writeHeader(OutputStream output, int frameSize, byte[] nonce, String keyId) throws IOException {
+        final DataOutputStream data = new DataOutputStream(output);
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        data.writeInt(frameSize);
+        data.write(nonce);
+        data.writeUTF(keyId);
+        data.flush();
+        return data.size();
+    }
+
+    /**
+     * Lê o cabeçalho (a partir do magic) e retorna os campos em frameSize, nonce e keyId
+     */
+    static Header readHeader(DataInput input) throws IOException {
+        if (input.readInt() != MAGIC) {
+            throw new IOException("O backup não está criptografado!");
+        }
+        if (input.readUnsignedByte() != VERSION) {
+            throw new IOException("Versão da criptografia do backup não suportada!");
+        }
+        final Header header = new Header();
+        header.frameSize = input.readInt();
+        if (header.frameSize <= 0) {
+            throw new IOException("Cabeçalho do backup criptografado inválido!");
+        }
+        header.nonce = new byte[NONCE_SIZE];
+        input.readFully(header.nonce);
+        header.keyId = input.readUTF();
+        return header;
+    }
+
+    static class Header {
+        int frameSize;
+        byte[] nonce;
+        String keyId;
+    }
+
+}
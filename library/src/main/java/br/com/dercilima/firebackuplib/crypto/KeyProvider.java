@@ -0,0 +1,28 @@
+package br.com.dercilima.firebackuplib.crypto;
+
+import java.io.IOException;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Fornece as chaves AES usadas na criptografia dos backups. A chave nunca é gravada no backup:
+ * apenas a sua identificação fica no cabeçalho, para que backups antigos continuem sendo lidos
+ * depois de uma troca de chave.
+ * <p>
+ * Exemplo: uma chave do Android Keystore ou derivada de uma senha do usuário.
+ */
+public interface KeyProvider {
+
+    /**
+     * @return Identificação da chave usada nos novos backups
+     */
+    String getCurrentKeyId();
+
+    /**
+     * @param keyId Identificação gravada no cabeçalho do backup
+     * @return Chave AES (128, 192 ou 256 bits)
+     * @throws IOException se a chave não estiver disponível
+     */
+    SecretKey getKey(String keyId) throws IOException;
+
+}
@@ -0,0 +1,645 @@
+package br.com.dercilima.firebackuplib.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import br.com.dercilima.firebackuplib.archive.ArchiveManifest;
+import br.com.dercilima.firebackuplib.archive.ArchiveWriter;
+import br.com.dercilima.firebackuplib.archive.EntryListener;
+import br.com.dercilima.firebackuplib.archive.EntryWriter;
+import br.com.dercilima.firebackuplib.archive.SegmentBuffer;
+import br.com.dercilima.firebackuplib.catalog.BackupCatalog;
+import br.com.dercilima.firebackuplib.catalog.CatalogEntry;
+import br.com.dercilima.firebackuplib.compress.BlockCompression;
+import br.com.dercilima.firebackuplib.compress.CodecPolicy;
+import br.com.dercilima.firebackuplib.crypto.EncryptedOutputStream;
+import br.com.dercilima.firebackuplib.crypto.KeyProvider;
+import br.com.dercilima.firebackuplib.incremental.PageDelta;
+import br.com.dercilima.firebackuplib.metrics.MetricsListener;
+import br.com.dercilima.firebackuplib.metrics.MetricsReport;
+import br.com.dercilima.firebackuplib.metrics.Stage;
+import br.com.dercilima.firebackuplib.incremental.PageManifest;
+import br.com.dercilima.firebackuplib.preferences.PreferencesWriter;
+import br.com.dercilima.firebackuplib.repository.ChunkRepository;
+import br.com.dercilima.firebackuplib.repository.SnapshotWriter;
+import br.com.dercilima.firebackuplib.snapshot.DatabaseCopy;
+import br.com.dercilima.firebackuplib.utils.MonitoredInputStream;
+
+/**
+ * Grava o backup dos bancos de dados e das preferências de um {@link DataSource}, sem depender
+ * do Android: o BackupTask é apenas um adaptador (thread, callbacks e upload) em volta deste motor.
+ * Cada instância grava um backup por vez. O backup não é registrado no catálogo: isso fica a cargo
+ * de quem chama, com o {@link CatalogEntry} retornado.
+ */
+public class BackupEngine {
+
+    // Quantidade máxima de bytes compactados que cada banco mantém em memória, no backup paralelo,
+    // enquanto aguarda a sua vez de ser gravado no zip. Acima disso, vai para um arquivo de segmento
+    private static final int SEGMENT_MEMORY_LIMIT = 4 * 1024 * 1024;
+
+    private final DataSource dataSource;
+
+    private final File backupDirectory;
+
+    private final Set<String> databases = new LinkedHashSet<>();
+
+    private final Set<String> preferences = new LinkedHashSet<>();
+
+    private boolean incremental = false;
+
+    private int maxIncrementalBackups = 7;
+
+    private int parallelism = 1;
+
+    private int compressionThreads = 1;
+
+    private int compressionBlockSize = 1024 * 1024;
+
+    private CodecPolicy codecPolicy;
+
+    private KeyProvider keyProvider;
+
+    private ProgressListener progressListener;
+
+    private CancellationSignal cancellationSignal;
+
+    private long progressIntervalMillis = ProgressTracker.DEFAULT_INTERVAL_MILLIS;
+
+    private MetricsListener metricsListener;
+
+    // Métricas do backup atual
+    private MetricsReport report = new MetricsReport(null);
+
+    // Tempo que as escritas ficaram bloqueadas em cada banco de dados durante o backup
+    private final Map<String, Long> writersBlockedMillis = new ConcurrentHashMap<>();
+
+    // Bytes dos bancos de dados já lidos no backup atual, informados a cada buffer
+    private ProgressTracker progress = new ProgressTracker(null, null, null, 0);
+
+    // Backups sobre os quais os deltas do backup atual foram gravados
+    private final Set<String> baseBackups = Collections.synchronizedSet(new LinkedHashSet<String>());
+
+    // Bytes gravados no repositório pelo último snapshot
+    private long newBytes;
+
+    // Cada entrada compactada vai para as métricas
+    private final EntryListener entryListener = new EntryListener() {
+        @Override
+        public void onEntryCompressed(String entryName, long size, long compressedSize, long elapsedNanos) {
+            report.record(Stage.COMPRESS, entryName, size, compressedSize, elapsedNanos, 0);
+        }
+    };
+
+
+    /**
+     * @param dataSource      Origem dos bancos de dados e das preferências
+     * @param backupDirectory Diretório dos backups (também guarda os manifestos do backup incremental)
+     */
+    public BackupEngine(DataSource dataSource, File backupDirectory) {
+        this.dataSource = dataSource;
+        this.backupDirectory = backupDirectory;
+    }
+
+    public BackupEngine addDatabase(String databaseName) {
+        databases.add(databaseName);
+        return this;
+    }
+
+    public BackupEngine addPreferences(String preferencesName) {
+        preferences.add(preferencesName);
+        return this;
+    }
+
+    /**
+     * Grava apenas as páginas dos bancos de dados que mudaram desde o último backup. As páginas são
+     * comparadas pela posição no arquivo, então uma cópia que reorganiza as páginas (VACUUM INTO) é
+     * gravada completa (ver {@link DatabaseCopy#isPageLayoutPreserved()}).
+     *
+     * @param maxIncrementalBackups Quantidade de backups incrementais seguidos antes de um novo backup completo
+     */
+    public BackupEngine setIncremental(boolean incremental, int maxIncrementalBackups) {
+        this.incremental = incremental;
+        this.maxIncrementalBackups = maxIncrementalBackups;
+        return this;
+    }
+
+    /**
+     * Quantidade de bancos de dados copiados e compactados ao mesmo tempo
+     */
+    public BackupEngine setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism precisa ser maior que zero!");
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Compacta cada banco de dados grande em blocos paralelos (exige o SYNC_FLUSH do Deflater)
+     *
+     * @param threads   Quantidade de threads da compactação (1 desabilita)
+     * @param blockSize Tamanho de cada bloco, em bytes
+     */
+    public BackupEngine setParallelCompression(int threads, int blockSize) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads precisa ser maior que zero!");
+        }
+        this.compressionThreads = threads;
+        this.compressionBlockSize = blockSize;
+        return this;
+    }
+
+    public BackupEngine setCodecPolicy(CodecPolicy codecPolicy) {
+        this.codecPolicy = codecPolicy;
+        return this;
+    }
+
+    /**
+     * Criptografa o zip enquanto ele é gravado (não suportado no snapshot do repositório)
+     */
+    public BackupEngine setEncryption(KeyProvider keyProvider) {
+        this.keyProvider = keyProvider;
+        return this;
+    }
+
+    public BackupEngine setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    /**
+     * O cancelamento é conferido a cada buffer lido dos bancos de dados, e o backup termina com um
+     * InterruptedIOException. O arquivo incompleto e os segmentos temporários são excluídos.
+     */
+    public BackupEngine setCancellationSignal(CancellationSignal cancellationSignal) {
+        this.cancellationSignal = cancellationSignal;
+        return this;
+    }
+
+    /**
+     * Intervalo mínimo entre as chamadas do ProgressListener
+     *
+     * @param millis Intervalo em milissegundos (0 informa cada buffer)
+     */
+    public BackupEngine setProgressInterval(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Intervalo não pode ser negativo!");
+        }
+        this.progressIntervalMillis = millis;
+        return this;
+    }
+
+    /**
+     * Recebe as métricas de cada etapa (snapshot, preferências, compactação e gravação)
+     */
+    public BackupEngine setMetricsListener(MetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+        return this;
+    }
+
+    /**
+     * Totais de cada etapa do último backup
+     */
+    public MetricsReport getMetricsReport() {
+        return report;
+    }
+
+    /**
+     * Grava o backup no arquivo informado. Em caso de erro, o arquivo incompleto é excluído.
+     */
+    public CatalogEntry backup(File archive) throws IOException {
+        boolean success = false;
+        try {
+            final FileOutputStream output = new FileOutputStream(archive);
+            try {
+                final CatalogEntry entry = writeArchive(output, output.getChannel(), archive.getName());
+                success = true;
+                return entry;
+            } finally {
+                output.close();
+            }
+        } finally {
+            if (!success) {
+                archive.delete();
+            }
+        }
+    }
+
+    /**
+     * Grava o zip no stream. O stream só é fechado se o backup for gravado por completo.
+     *
+     * @param output      Destino do zip (arquivo, upload simultâneo, ...)
+     * @param archiveName Nome do backup, usado como base da cadeia incremental
+     * @return Dados do backup para o catálogo
+     */
+    public CatalogEntry writeArchive(OutputStream output, String archiveName) throws IOException {
+        return writeArchive(output, null, archiveName);
+    }
+
+    // Com o arquivo do zip (channel), os bancos sem compressão são lidos uma vez só
+    private CatalogEntry writeArchive(OutputStream output, FileChannel channel, String archiveName) throws IOException {
+
+        start();
+
+        // Manifestos de páginas gerados neste backup (somente no modo incremental)
+        final Map<String, PageManifest> manifests = new ConcurrentHashMap<>();
+
+        // Compactação em blocos paralelos dos arquivos grandes
+        final ExecutorService blockExecutor = compressionThreads > 1 ? Executors.newFixedThreadPool(compressionThreads) : null;
+        final BlockCompression blockCompression = blockExecutor != null
+                ? new BlockCompression(blockExecutor, compressionThreads, compressionBlockSize) : null;
+
+        // Com a criptografia, o zip é criptografado em frames enquanto é gravado
+        final EncryptedOutputStream encrypted = keyProvider != null ? new EncryptedOutputStream(output, keyProvider) : null;
+
+        // Tempo gasto gravando no destino (criptografia, arquivo ou upload simultâneo)
+        final TimedOutputStream timed = new TimedOutputStream(encrypted != null ? encrypted : output);
+
+        // Os frames criptografados já gravados não podem ser corrigidos
+        final ArchiveWriter writer = new ArchiveWriter(timed, encrypted == null ? channel : null);
+        try {
+            writer.setBlockCompression(blockCompression);
+            writer.setCodecPolicy(codecPolicy);
+            writer.setEntryListener(entryListener);
+            writer.setTransferMonitor(progress);
+            copyPreferences(writer);
+            copyDatabases(writer, archiveName, manifests, blockCompression);
+            checkCancelled();
+            writer.close();
+        } finally {
+            if (blockExecutor != null) {
+                blockExecutor.shutdownNow();
+            }
+        }
+
+        report.record(Stage.WRITE, archiveName, writer.getSize(), encrypted != null ? encrypted.getSize() : writer.getSize(), timed.nanos, 0);
+
+        // Os manifestos só são atualizados depois que o backup foi gravado por completo
+        for (Map.Entry<String, PageManifest> entry : manifests.entrySet()) {
+            entry.getValue().save(getManifestFile(entry.getKey()));
+        }
+
+        // O checksum é do zip (o mesmo conferido pelo índice) e o tamanho é o do arquivo gravado
+        final long size = encrypted != null ? encrypted.getSize() : writer.getSize();
+        report.finish();
+        progress.finish();
+        return newCatalogEntry(archiveName, size).setChecksum("crc32:" + Long.toHexString(writer.getChecksum()));
+    }
+
+    /**
+     * Grava um snapshot no repositório de chunks do diretório de backup. Apenas os chunks que
+     * ainda não estão no repositório são gravados.
+     *
+     * @param snapshotName Nome do snapshot (sem extensão)
+     * @return Dados do snapshot para o catálogo. O arquivo é o {@link BackupCatalog#getFile(CatalogEntry)}.
+     */
+    public CatalogEntry snapshot(String snapshotName) throws IOException {
+
+        if (keyProvider != null) {
+            throw new IllegalArgumentException("A criptografia não é suportada no modo repositório!");
+        }
+
+        start();
+
+        final long start = System.nanoTime();
+        final SnapshotWriter writer = new ChunkRepository(backupDirectory).newSnapshot(snapshotName, codecPolicy);
+        writer.setTransferMonitor(progress);
+        copyPreferences(writer);
+        copyDatabases(writer, snapshotName, new ConcurrentHashMap<String, PageManifest>(), null);
+        checkCancelled();
+        final File snapshotFile = writer.commit();
+        newBytes = writer.getNewBytes();
+
+        // No repositório, a gravação inclui a divisão em chunks e a compactação, e só os chunks novos são gravados
+        report.record(Stage.WRITE, snapshotName, writer.getTotalBytes(), writer.getNewBytes(), System.nanoTime() - start, 0);
+        report.finish();
+        progress.finish();
+
+        // Os chunks são conferidos pelo hash, então o snapshot não tem um checksum próprio
+        return newCatalogEntry(getCatalog().getName(snapshotFile), writer.getTotalBytes());
+    }
+
+    public BackupCatalog getCatalog() {
+        return BackupCatalog.forDirectory(backupDirectory);
+    }
+
+    /**
+     * Bytes gravados no repositório pelo último snapshot (os demais já estavam lá)
+     */
+    public long getNewBytes() {
+        return newBytes;
+    }
+
+    /**
+     * Tempo (em milissegundos) que as escritas de cada banco de dados ficaram bloqueadas durante o último backup
+     */
+    public Map<String, Long> getWritersBlockedMillis() {
+        return Collections.unmodifiableMap(writersBlockedMillis);
+    }
+
+    private void start() {
+        if (preferences.isEmpty() && databases.isEmpty()) {
+            throw new IllegalArgumentException("Nenhum arquivo para fazer backup!");
+        }
+        report = new MetricsReport(metricsListener);
+        writersBlockedMillis.clear();
+        baseBackups.clear();
+        // O total é uma estimativa: o WAL pode ser incorporado ao snapshot e o banco pode crescer durante o backup
+        long total = 0;
+        for (String databaseName : databases) {
+            final File fileDatabase = dataSource.getDatabaseFile(databaseName);
+            total += fileDatabase.length() + new File(fileDatabase.getPath() + DatabaseCopy.WAL_SUFFIX).length();
+        }
+        progress = new ProgressTracker(progressListener, cancellationSignal, "Backup cancelado!", progressIntervalMillis);
+        progress.start(total);
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+        progress.checkCancelled();
+    }
+
+    // Dados do backup para o catálogo: os bancos e as preferências gravados
+    private CatalogEntry newCatalogEntry(String name, long size) {
+        final List<String> databaseNames = new ArrayList<>();
+        for (String databaseName : databases) {
+            databaseNames.add(dataSource.getDatabaseFile(databaseName).getName());
+        }
+        final List<String> preferencesNames = new ArrayList<>();
+        for (String preferencesName : preferences) {
+            preferencesNames.add(dataSource.getPreferencesFile(preferencesName).getName());
+        }
+        return new CatalogEntry(name, System.currentTimeMillis(), size).setDatabases(databaseNames).setPreferences(preferencesNames)
+                .setBaseBackups(new ArrayList<>(baseBackups));
+    }
+
+    private void copyPreferences(EntryWriter writer) throws IOException {
+
+        // A forma de copiar as preferencias é diferente, não se pode copiar o
+        // arquivo de preferência diretamente, pois o android não lê o arquivo
+        // quando restaura o backup
+
+        for (String preferencesName : preferences) {
+
+            checkCancelled();
+
+            final File filePreferences = dataSource.getPreferencesFile(preferencesName);
+            writer.describeEntry(filePreferences.getName(), ArchiveManifest.Kind.PREFERENCES, filePreferences.getPath());
+
+            // As preferências são pequenas: serializadas em memória, a leitura e a compactação são medidas em separado
+            final long start = System.nanoTime();
+            final ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+            final PreferencesWriter output = new PreferencesWriter(serialized);
+            output.putAll(dataSource.readPreferences(preferencesName));
+            output.close();
+            report.record(Stage.SERIALIZE_PREFERENCES, filePreferences.getName(), serialized.size(), serialized.size(), System.nanoTime() - start, 0);
+
+            final OutputStream entry = writer.openEntry(filePreferences.getName());
+            try {
+                serialized.writeTo(entry);
+            } finally {
+                // Fecha apenas a entrada do zip
+                entry.close();
+            }
+
+        }
+
+    }
+
+    private void copyDatabases(EntryWriter writer, String archiveName, Map<String, PageManifest> manifests, BlockCompression blockCompression) throws IOException {
+
+        final List<String> databaseNames = new ArrayList<>(databases);
+        final int threads = Math.min(parallelism, databaseNames.size());
+
+        if (threads <= 1) {
+            for (String databaseName : databaseNames) {
+                copyDatabase(writer, databaseName, archiveName, manifests);
+            }
+        } else {
+            copyDatabasesParallel(writer, databaseNames, threads, archiveName, manifests, blockCompression);
+        }
+    }
+
+    // Cada worker faz o snapshot e compacta um banco no seu próprio buffer, enquanto esta thread
+    // grava no zip os buffers já finalizados, sempre na ordem em que os bancos foram informados.
+    // No modo repositório, os workers gravam direto no snapshot, que aceita várias threads.
+    private void copyDatabasesParallel(EntryWriter writer, List<String> databaseNames, int threads,
+                                       final String archiveName, final Map<String, PageManifest> manifests,
+                                       BlockCompression blockCompression) throws IOException {
+
+        final File segmentsDir = new File(backupDirectory, ".segments");
+        if (!segmentsDir.exists()) {
+            segmentsDir.mkdirs();
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<SegmentBuffer> buffers = new ArrayList<>();
+        final List<Future<Void>> futures = new ArrayList<>();
+
+        try {
+
+            for (final String databaseName : databaseNames) {
+                final EntryWriter target;
+                if (writer instanceof ArchiveWriter) {
+                    final SegmentBuffer buffer = new SegmentBuffer(segmentsDir, archiveName + "." + buffers.size(), SEGMENT_MEMORY_LIMIT);
+                    buffer.setBlockCompression(blockCompression);
+                    buffer.setCodecPolicy(codecPolicy);
+                    buffer.setEntryListener(entryListener);
+                    buffer.setTransferMonitor(progress);
+                    buffers.add(buffer);
+                    target = buffer;
+                } else {
+                    target = writer;
+                }
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        copyDatabase(target, databaseName, archiveName, manifests);
+                        return null;
+                    }
+                }));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                futures.get(i).get();
+                if (!buffers.isEmpty()) {
+                    buffers.get(i).writeTo((ArchiveWriter) writer);
+                    buffers.get(i).delete();
+                }
+            }
+
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Backup interrompido!");
+        } finally {
+
+            // Em caso de erro, aguardar os workers antes de excluir os segmentos
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (SegmentBuffer buffer : buffers) {
+                buffer.delete();
+            }
+
+        }
+    }
+
+    private void copyDatabase(EntryWriter writer, String databaseName, String archiveName, Map<String, PageManifest> manifests) throws IOException {
+
+        checkCancelled();
+
+        final File fileDatabase = dataSource.getDatabaseFile(databaseName);
+        describeDatabase(writer, fileDatabase);
+
+        // Cópia consistente, mesmo que o app esteja escrevendo no banco durante o backup
+        final long start = System.nanoTime();
+        final DatabaseCopy copy = dataSource.openDatabase(fileDatabase);
+        try {
+            report.record(Stage.SNAPSHOT, fileDatabase.getName(), fileDatabase.length(), copy.getFile().length(), System.nanoTime() - start, 0);
+
+            // No modo repositório, a deduplicação dos chunks já substitui o backup incremental.
+            // Uma cópia com as páginas reorganizadas teria um delta do tamanho do banco.
+            if (incremental && copy.isPageLayoutPreserved() && !(writer instanceof SnapshotWriter)) {
+                manifests.put(fileDatabase.getName(), copyDatabaseIncremental(writer, copy, fileDatabase.getName(), archiveName));
+            } else {
+                copy.writeTo(writer, fileDatabase.getName());
+            }
+        } finally {
+            copy.close();
+            writersBlockedMillis.put(databaseName, copy.getWritersBlockedMillis());
+        }
+    }
+
+    // Tipo e caminho original das entradas que um banco pode gerar, para o índice do backup
+    private void describeDatabase(EntryWriter writer, File fileDatabase) {
+        final String entryName = fileDatabase.getName();
+        writer.describeEntry(entryName, ArchiveManifest.Kind.DATABASE, fileDatabase.getPath());
+        writer.describeEntry(entryName + DatabaseCopy.WAL_SUFFIX, ArchiveManifest.Kind.DATABASE, fileDatabase.getPath() + DatabaseCopy.WAL_SUFFIX);
+        writer.describeEntry(entryName + PageDelta.DELTA_SUFFIX, ArchiveManifest.Kind.DATABASE, fileDatabase.getPath());
+        writer.describeEntry(entryName + PageDelta.MANIFEST_SUFFIX, ArchiveManifest.Kind.FILE, getManifestFile(entryName).getPath());
+    }
+
+    private PageManifest copyDatabaseIncremental(EntryWriter writer, DatabaseCopy copy, String entryName, String archiveName) throws IOException {
+
+        copy.writeWalTo(writer, entryName);
+
+        final PageManifest previous = getPreviousManifest(entryName, archiveName);
+        final int pageSize = PageManifest.readPageSize(copy.getFile());
+        final boolean delta = previous != null && previous.getPageSize() == pageSize && previous.getDepth() < maxIncrementalBackups;
+        if (delta) {
+            baseBackups.add(previous.getArchiveName());
+        }
+
+        final PageManifest manifest;
+        final InputStream input = new MonitoredInputStream(new FileInputStream(copy.getFile()), progress);
+        try {
+            final OutputStream output = writer.openEntry(delta ? entryName + PageDelta.DELTA_SUFFIX : entryName);
+            try {
+                // Apenas as páginas alteradas, ou o banco completo quando não há um backup anterior
+                manifest = delta ? PageDelta.writeDelta(input, previous, output, archiveName) : PageDelta.writeFull(input, pageSize, output, archiveName);
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+
+        // O manifesto também vai no backup, para que a cadeia possa continuar a partir dele
+        final OutputStream output = writer.openEntry(entryName + PageDelta.MANIFEST_SUFFIX);
+        try {
+            manifest.write(output);
+        } finally {
+            output.close();
+        }
+
+        return manifest;
+    }
+
+    // Manifesto do backup anterior, desde que o backup ainda exista para ser usado como base
+    private PageManifest getPreviousManifest(String entryName, String archiveName) {
+        final PageManifest manifest = PageManifest.load(getManifestFile(entryName));
+        if (manifest == null
+                || manifest.getArchiveName().equals(archiveName)
+                || !new File(backupDirectory, manifest.getArchiveName()).isFile()) {
+            return null;
+        }
+        return manifest;
+    }
+
+    private File getManifestFile(String entryName) {
+        final File manifestDir = new File(backupDirectory, ".manifests");
+        if (!manifestDir.exists()) {
+            manifestDir.mkdirs();
+        }
+        return new File(manifestDir, entryName + PageDelta.MANIFEST_SUFFIX);
+    }
+
+    // Conta o tempo gasto nas gravações no destino
+    private static class TimedOutputStream extends FilterOutputStream {
+
+        long nanos = 0;
+
+        TimedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            final long start = System.nanoTime();
+            out.write(b);
+            nanos += System.nanoTime() - start;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            final long start = System.nanoTime();
+            out.write(b, off, len);
+            nanos += System.nanoTime() - start;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            final long start = System.nanoTime();
+            out.flush();
+            nanos += System.nanoTime() - start;
+        }
+
+        @Override
+        public void close() throws IOException {
+            final long start = System.nanoTime();
+            out.close();
+            nanos += System.nanoTime() - start;
+        }
+    }
+
+}
@@ -0,0 +1,11 @@
+package br.com.dercilima.firebackuplib.engine;
+
+/**
+ * Indica que o backup ou o restore deve ser interrompido. É consultado a cada buffer (pode ser
+ * chamado por mais de uma thread), e a execução termina com um InterruptedIOException.
+ */
+public interface CancellationSignal {
+
+    boolean isCancelled();
+
+}
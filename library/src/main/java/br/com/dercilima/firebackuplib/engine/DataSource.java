@@ -0,0 +1,57 @@
+package br.com.dercilima.firebackuplib.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import br.com.dercilima.firebackuplib.snapshot.DatabaseCopy;
+
+/**
+ * Onde ficam os dados do app: os bancos de dados, as preferências e o journal do restore.
+ * O {@link BackupEngine} e o {@link RestoreEngine} acessam os dados apenas por aqui, então
+ * funcionam fora do Android ({@link FileDataSource}).
+ */
+public interface DataSource {
+
+    /**
+     * Arquivo do banco de dados com o nome informado
+     */
+    File getDatabaseFile(String databaseName);
+
+    /**
+     * Diretório onde os bancos de dados são restaurados
+     */
+    File getDatabasesDir();
+
+    /**
+     * Arquivo das preferências com o nome informado (gravado no índice do backup)
+     */
+    File getPreferencesFile(String preferencesName);
+
+    /**
+     * Diretório onde as preferências restauradas são preparadas antes de serem gravadas
+     */
+    File getPreferencesDir();
+
+    /**
+     * Valores atuais das preferências, para o backup
+     */
+    Map<String, ?> readPreferences(String preferencesName) throws IOException;
+
+    /**
+     * Novo conteúdo das preferências, para o restore. As preferências atuais só são
+     * substituídas no {@link PreferencesEditor#commit()}.
+     */
+    PreferencesEditor editPreferences(String preferencesName) throws IOException;
+
+    /**
+     * Cópia consistente do banco de dados para o backup. Deve ser fechada logo após a gravação.
+     */
+    DatabaseCopy openDatabase(File databaseFile) throws IOException;
+
+    /**
+     * Journal do restore ({@link br.com.dercilima.firebackuplib.restore.RestoreTransaction})
+     */
+    File getRestoreJournal();
+
+}
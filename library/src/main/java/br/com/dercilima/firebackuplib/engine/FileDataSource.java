@@ -0,0 +1,153 @@
+package br.com.dercilima.firebackuplib.engine;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import br.com.dercilima.firebackuplib.preferences.PreferencesReader;
+import br.com.dercilima.firebackuplib.preferences.PreferencesWriter;
+import br.com.dercilima.firebackuplib.snapshot.DatabaseCopy;
+import br.com.dercilima.firebackuplib.snapshot.PlainDatabaseCopy;
+
+/**
+ * Dados de um app em um diretório comum, sem o Android: "databases" com os bancos de dados e
+ * "shared_prefs" com as preferências (no formato binário do backup). Usado para rodar o backup
+ * e o restore na JVM, em testes, benchmarks e ferramentas.
+ */
+public class FileDataSource implements DataSource {
+
+    private final File root;
+
+
+    public FileDataSource(File root) {
+        this.root = root;
+    }
+
+    @Override
+    public File getDatabaseFile(String databaseName) {
+        return new File(getDatabasesDir(), databaseName);
+    }
+
+    @Override
+    public File getDatabasesDir() {
+        return mkdirs(new File(root, "databases"));
+    }
+
+    @Override
+    public File getPreferencesFile(String preferencesName) {
+        return new File(getPreferencesDir(), preferencesName.endsWith(".xml") ? preferencesName : preferencesName + ".xml");
+    }
+
+    @Override
+    public File getPreferencesDir() {
+        return mkdirs(new File(root, "shared_prefs"));
+    }
+
+    @Override
+    public Map<String, ?> readPreferences(String preferencesName) throws IOException {
+        final MapEditor values = new MapEditor(getPreferencesFile(preferencesName));
+        if (values.file.isFile()) {
+            final InputStream input = new FileInputStream(values.file);
+            try {
+                PreferencesReader.read(input, values);
+            } finally {
+                input.close();
+            }
+        }
+        return values.values;
+    }
+
+    @Override
+    public PreferencesEditor editPreferences(String preferencesName) {
+        return new MapEditor(getPreferencesFile(preferencesName));
+    }
+
+    @Override
+    public DatabaseCopy openDatabase(File databaseFile) throws IOException {
+        return new PlainDatabaseCopy(databaseFile);
+    }
+
+    @Override
+    public File getRestoreJournal() {
+        return new File(mkdirs(root), ".restore.journal");
+    }
+
+    private static File mkdirs(File dir) {
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        return dir;
+    }
+
+    // Junta os valores em um Map e, no commit, grava o arquivo inteiro com um rename
+    private static class MapEditor implements PreferencesEditor {
+
+        private final File file;
+
+        private final Map<String, Object> values = new LinkedHashMap<>();
+
+        MapEditor(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public void onBoolean(String key, boolean value) {
+            values.put(key, value);
+        }
+
+        @Override
+        public void onInt(String key, int value) {
+            values.put(key, value);
+        }
+
+        @Override
+        public void onLong(String key, long value) {
+            values.put(key, value);
+        }
+
+        @Override
+        public void onFloat(String key, float value) {
+            values.put(key, value);
+        }
+
+        @Override
+        public void onString(String key, String value) {
+            values.put(key, value);
+        }
+
+        @Override
+        public void onStringSet(String key, Set<String> set) {
+            values.put(key, set);
+        }
+
+        @Override
+        public void commit() throws IOException {
+            final File temp = new File(file.getPath() + ".tmp");
+            final FileOutputStream output = new FileOutputStream(temp);
+            try {
+                final PreferencesWriter writer = new PreferencesWriter(output);
+                writer.putAll(values);
+                // Fecha o stream de saída
+                writer.close();
+            } finally {
+                output.close();
+            }
+            final RandomAccessFile written = new RandomAccessFile(temp, "r");
+            try {
+                written.getFD().sync();
+            } finally {
+                written.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Erro ao gravar as preferências \"" + file.getName() + "\"!");
+            }
+        }
+    }
+
+}
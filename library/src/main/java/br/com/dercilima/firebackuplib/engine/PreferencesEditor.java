@@ -0,0 +1,14 @@
+package br.com.dercilima.firebackuplib.engine;
+
+import java.io.IOException;
+
+import br.com.dercilima.firebackuplib.preferences.PreferencesReader;
+
+/**
+ * Recebe os valores lidos do backup e, no {@link #commit()}, substitui de uma vez todas as preferências
+ */
+public interface PreferencesEditor extends PreferencesReader.Handler {
+
+    void commit() throws IOException;
+
+}
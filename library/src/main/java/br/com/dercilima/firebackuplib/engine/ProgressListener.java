@@ -0,0 +1,14 @@
+package br.com.dercilima.firebackuplib.engine;
+
+/**
+ * Progresso do backup ou do restore. Pode ser chamado por mais de uma thread.
+ */
+public interface ProgressListener {
+
+    /**
+     * @param completed Bytes já processados
+     * @param total     Total de bytes, ou -1 se ainda não for conhecido
+     */
+    void onProgress(long completed, long total);
+
+}
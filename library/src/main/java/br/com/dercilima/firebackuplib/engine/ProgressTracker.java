@@ -0,0 +1,111 @@
+package br.com.dercilima.firebackuplib.engine;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import br.com.dercilima.firebackuplib.utils.TransferMonitor;
+
+/**
+ * Soma os bytes informados pelos laços de cópia, compactação e upload. O listener é chamado no
+ * máximo uma vez a cada intervalo (os buffers são pequenos demais para uma chamada cada), e o
+ * cancelamento é conferido a cada buffer.
+ * <p>
+ * Pode ser usado por várias threads ao mesmo tempo.
+ */
+public class ProgressTracker implements TransferMonitor {
+
+    /**
+     * Intervalo padrão entre as chamadas do listener, em milissegundos
+     */
+    public static final long DEFAULT_INTERVAL_MILLIS = 100;
+
+    private final ProgressListener listener;
+
+    private final CancellationSignal signal;
+
+    private final String cancelMessage;
+
+    private final long intervalNanos;
+
+    private final AtomicLong completed = new AtomicLong();
+
+    private final AtomicLong lastReport;
+
+    private volatile long total;
+
+
+    /**
+     * @param listener       Listener do progresso, ou null
+     * @param signal         Sinal de cancelamento, ou null
+     * @param cancelMessage  Mensagem do InterruptedIOException lançado no cancelamento
+     * @param intervalMillis Intervalo mínimo entre as chamadas do listener (0 chama a cada buffer)
+     */
+    public ProgressTracker(ProgressListener listener, CancellationSignal signal, String cancelMessage, long intervalMillis) {
+        this.listener = listener;
+        this.signal = signal;
+        this.cancelMessage = cancelMessage;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.lastReport = new AtomicLong(System.nanoTime() - intervalNanos);
+    }
+
+    /**
+     * Zera os bytes processados e informa o início (0 de total) ao listener
+     *
+     * @param total Total de bytes, ou -1 se ainda não for conhecido
+     */
+    public void start(long total) {
+        this.total = total;
+        completed.set(0);
+        lastReport.set(System.nanoTime());
+        if (listener != null) {
+            listener.onProgress(0, total);
+        }
+    }
+
+    @Override
+    public void onBytes(long count) throws InterruptedIOException {
+        checkCancelled();
+        final long current = completed.addAndGet(count);
+        if (listener == null || count == 0) {
+            return;
+        }
+        final long now = System.nanoTime();
+        final long last = lastReport.get();
+        // Apenas uma das threads informa o progresso em cada intervalo
+        if (now - last >= intervalNanos && lastReport.compareAndSet(last, now)) {
+            listener.onProgress(current, getTotal(current));
+        }
+    }
+
+    /**
+     * Informa o progresso final (o total passa a ser o que foi de fato processado)
+     */
+    public void finish() {
+        final long current = completed.get();
+        total = current;
+        if (listener != null) {
+            listener.onProgress(current, current);
+        }
+    }
+
+    /**
+     * @throws InterruptedIOException se a operação foi cancelada
+     */
+    public void checkCancelled() throws InterruptedIOException {
+        if (signal != null && signal.isCancelled()) {
+            throw new InterruptedIOException(cancelMessage);
+        }
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    // Um arquivo pode crescer durante o backup: o total nunca é menor que o já processado
+    private long getTotal(long current) {
+        final long total = this.total;
+        return total >= 0 ? Math.max(total, current) : -1;
+    }
+
+}
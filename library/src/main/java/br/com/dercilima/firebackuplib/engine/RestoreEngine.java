@@ -0,0 +1,483 @@
+package br.com.dercilima.firebackuplib.engine;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import br.com.dercilima.firebackuplib.archive.ArchiveManifest;
+import br.com.dercilima.firebackuplib.archive.ArchiveReader;
+import br.com.dercilima.firebackuplib.archive.EntryReader;
+import br.com.dercilima.firebackuplib.crypto.KeyProvider;
+import br.com.dercilima.firebackuplib.incremental.DeltaChain;
+import br.com.dercilima.firebackuplib.incremental.PageDelta;
+import br.com.dercilima.firebackuplib.metrics.MetricsListener;
+import br.com.dercilima.firebackuplib.metrics.MetricsReport;
+import br.com.dercilima.firebackuplib.metrics.Stage;
+import br.com.dercilima.firebackuplib.preferences.PreferencesReader;
+import br.com.dercilima.firebackuplib.repository.ChunkRepository;
+import br.com.dercilima.firebackuplib.restore.RestoreTransaction;
+import br.com.dercilima.firebackuplib.snapshot.DatabaseCopy;
+import br.com.dercilima.firebackuplib.utils.MonitoredInputStream;
+
+/**
+ * Restaura um backup (zip ou snapshot do repositório) nos bancos de dados e nas preferências de
+ * um {@link DataSource}, sem depender do Android: o RestoreBackupTask é apenas um adaptador
+ * (thread, escolha do backup e callbacks) em volta deste motor.
+ * <p>
+ * Os nomes informados podem ser expressões com "*" no início e/ou no final. Sem nenhum banco de
+ * dados informado, todos os bancos do backup são restaurados.
+ */
+public class RestoreEngine {
+
+    private final DataSource dataSource;
+
+    private final Set<String> databases = new LinkedHashSet<>();
+
+    private final Set<String> preferences = new LinkedHashSet<>();
+
+    private KeyProvider keyProvider;
+
+    private ProgressListener progressListener;
+
+    private CancellationSignal cancellationSignal;
+
+    private long progressIntervalMillis = ProgressTracker.DEFAULT_INTERVAL_MILLIS;
+
+    private MetricsListener metricsListener;
+
+    // Bytes das entradas já lidos no restore atual, informados a cada buffer
+    private ProgressTracker progress = new ProgressTracker(null, null, null, 0);
+
+    // Métricas do restore atual
+    private MetricsReport report = new MetricsReport(null);
+
+    // Bancos de dados listados no índice do backup, restaurados mesmo sem a extensão .db ou .sqlite
+    private final Set<String> indexedDatabases = new HashSet<>();
+
+    // Tempo de restore de cada arquivo de preferências, em milissegundos
+    private final Map<String, Long> preferencesRestoreTimes = new LinkedHashMap<>();
+
+
+    public RestoreEngine(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public RestoreEngine addDatabase(String databaseName) {
+        databases.add(databaseName);
+        return this;
+    }
+
+    public RestoreEngine addPreferences(String preferencesName) {
+        preferences.add(preferencesName);
+        return this;
+    }
+
+    /**
+     * Chaves para os backups criptografados. Os backups sem criptografia continuam sendo restaurados normalmente.
+     */
+    public RestoreEngine setKeyProvider(KeyProvider keyProvider) {
+        this.keyProvider = keyProvider;
+        return this;
+    }
+
+    public RestoreEngine setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    /**
+     * O cancelamento é conferido a cada buffer lido do backup, e o restore termina com um
+     * InterruptedIOException. Até a troca dos arquivos, nada do app foi alterado e os arquivos
+     * preparados são excluídos. Depois dela, o cancelamento não é mais atendido.
+     */
+    public RestoreEngine setCancellationSignal(CancellationSignal cancellationSignal) {
+        this.cancellationSignal = cancellationSignal;
+        return this;
+    }
+
+    /**
+     * Intervalo mínimo entre as chamadas do ProgressListener
+     *
+     * @param millis Intervalo em milissegundos (0 informa cada buffer)
+     */
+    public RestoreEngine setProgressInterval(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Intervalo não pode ser negativo!");
+        }
+        this.progressIntervalMillis = millis;
+        return this;
+    }
+
+    /**
+     * Recebe as métricas de cada etapa (leitura das entradas e troca dos arquivos)
+     */
+    public RestoreEngine setMetricsListener(MetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+        return this;
+    }
+
+    /**
+     * Totais de cada etapa do último restore
+     */
+    public MetricsReport getMetricsReport() {
+        return report;
+    }
+
+    /**
+     * Tempo gasto no restore de cada arquivo de preferências (leitura do backup e gravação),
+     * em milissegundos, na ordem em que foram restaurados
+     */
+    public Map<String, Long> getPreferencesRestoreTimes() {
+        return Collections.unmodifiableMap(preferencesRestoreTimes);
+    }
+
+    /**
+     * Confere a integridade do backup (descompactando cada arquivo e conferindo o seu checksum), sem restaurar
+     */
+    public void verify(File backupFile) throws IOException {
+        report = new MetricsReport(metricsListener);
+        final EntryReader reader = openBackup(backupFile);
+        try {
+            reader.verify(true);
+        } finally {
+            reader.close();
+        }
+        report.finish();
+    }
+
+    /**
+     * Restaura o backup. Todas as entradas são lidas (e os seus checksums conferidos) para arquivos
+     * preparados ao lado dos destinos. Nenhum arquivo do app é alterado antes de o backup inteiro ter
+     * sido conferido, e a troca é feita por uma RestoreTransaction, que pode ser desfeita ou concluída
+     * após uma interrupção. O arquivo de backup não é excluído.
+     */
+    public void restore(File backupFile) throws IOException {
+
+        // Concluir ou desfazer um restore anterior que foi interrompido
+        recoverInterruptedRestore(dataSource);
+
+        preferencesRestoreTimes.clear();
+        report = new MetricsReport(metricsListener);
+
+        final RestoreTransaction transaction = new RestoreTransaction(dataSource.getRestoreJournal());
+
+        // Preferências lidas do backup, gravadas depois da troca dos bancos (nome -> alterações pendentes)
+        final Map<String, PendingPreferences> pendingPreferences = new LinkedHashMap<>();
+
+        // Bancos de dados extraídos ao lado do destino (destino -> arquivo preparado)
+        final Map<File, File> stagedDatabases = new LinkedHashMap<>();
+
+        final EntryReader reader = openBackup(backupFile);
+
+        try {
+
+            // Com o índice, o tipo de cada entrada é conhecido sem abri-la. Apenas as entradas
+            // restauradas são lidas, direto da sua posição no zip.
+            final ArchiveManifest manifest = reader instanceof ArchiveReader ? ((ArchiveReader) reader).getManifest() : null;
+            indexedDatabases.clear();
+            if (manifest != null) {
+                for (ArchiveManifest.Item item : manifest.getItems()) {
+                    if (item.getKind() == ArchiveManifest.Kind.DATABASE && item.getPath() != null
+                            && item.getName().equals(new File(item.getPath()).getName())) {
+                        indexedDatabases.add(item.getName());
+                    }
+                }
+            }
+
+            // Sem o índice, o total só é conhecido no final
+            long total = manifest != null ? 0 : -1;
+            if (manifest != null) {
+                for (ArchiveManifest.Item item : manifest.getItems()) {
+                    if (item.getKind() != ArchiveManifest.Kind.FILE && isRestoredEntry(item.getName())) {
+                        total += item.getSize();
+                    }
+                }
+            }
+            progress = new ProgressTracker(progressListener, cancellationSignal, "Restore cancelado!", progressIntervalMillis);
+            progress.start(total);
+
+            String entryName;
+            while ((entryName = reader.nextEntry()) != null) {
+
+                checkCancelled();
+
+                final long start = System.nanoTime();
+
+                final ArchiveManifest.Item item = manifest != null ? manifest.getItem(entryName) : null;
+
+                final File staged;
+
+                if (item != null && item.getKind() == ArchiveManifest.Kind.FILE) {
+
+                    // Arquivos auxiliares do backup (manifestos do backup incremental) não são restaurados
+                    continue;
+
+                } else if (isPreferenceEntry(entryName)) {
+
+                    // As preferências são copiadas para um arquivo preparado e lidas para um editor,
+                    // que só é gravado depois da troca dos bancos
+                    final String prefsName = entryName.substring(0, entryName.indexOf(".xml"));
+                    staged = transaction.stageApply(prefsName, new File(dataSource.getPreferencesDir(), entryName + RestoreTransaction.STAGED_SUFFIX));
+                    copyEntry(reader, staged);
+                    pendingPreferences.put(prefsName, readPreferences(dataSource, prefsName, staged));
+
+                } else if (isDatabaseDeltaEntry(entryName)) {
+
+                    // Backup incremental: reconstruir o banco até o backup anterior e aplicar as páginas alteradas
+                    final File dest = new File(dataSource.getDatabasesDir(), entryName.substring(0, entryName.length() - PageDelta.DELTA_SUFFIX.length()));
+                    staged = transaction.stage(dest);
+                    stagedDatabases.put(dest, staged);
+
+                    // O progresso conta os bytes do delta (o tamanho da entrada no índice), não o banco reconstruído
+                    final DataInputStream delta = new DataInputStream(new MonitoredInputStream(reader.getEntryStream(), progress));
+                    new DeltaChain(backupFile.getParentFile(), keyProvider).rebuild(PageDelta.readParent(delta), dest.getName(), staged);
+                    PageDelta.apply(delta, staged);
+                    reader.verifyEntry();
+
+                } else if (isDatabaseEntry(entryName) || isDatabaseWalEntry(entryName)) {
+
+                    // O banco de dados (ou o seu WAL) é extraído para um arquivo preparado no diretório de databases
+                    final File dest = new File(dataSource.getDatabasesDir(), entryName);
+                    staged = transaction.stage(dest);
+                    stagedDatabases.put(dest, staged);
+
+                    copyEntry(reader, staged);
+
+                } else {
+                    continue;
+                }
+
+                report.record(Stage.EXTRACT, entryName, item != null ? item.getCompressedSize() : staged.length(), staged.length(), System.nanoTime() - start, 0);
+
+            }
+
+            // Verificar se todos os arquivos informados estão no backup, antes de alterar qualquer dado
+            checkRequiredEntries(pendingPreferences.keySet(), stagedDatabases.keySet());
+
+            // O WAL, o SHM e o journal do banco atual não podem ser aplicados sobre o banco restaurado
+            for (File dest : new ArrayList<>(stagedDatabases.keySet())) {
+                if (!dest.getName().endsWith(DatabaseCopy.WAL_SUFFIX)) {
+                    for (String suffix : new String[]{DatabaseCopy.WAL_SUFFIX, "-shm", "-journal"}) {
+                        final File sidecar = new File(dest.getPath() + suffix);
+                        if (!stagedDatabases.containsKey(sidecar)) {
+                            transaction.delete(sidecar);
+                        }
+                    }
+                }
+            }
+
+            checkCancelled();
+            progress.finish();
+
+            // Trocar todos os bancos de uma vez e, depois, gravar as preferências (um commit por arquivo)
+            final long start = System.nanoTime();
+            final long[] preferencesNanos = {0};
+            transaction.commit(new RestoreTransaction.Applier() {
+                @Override
+                public void apply(String prefsName, File staged) throws IOException {
+                    final PendingPreferences pending = pendingPreferences.get(prefsName);
+                    preferencesNanos[0] += commitPreferences(prefsName, staged, pending != null ? pending : readPreferences(dataSource, prefsName, staged));
+                }
+            });
+
+            // A troca dos bancos é o tempo do commit sem a gravação das preferências
+            long databasesBytes = 0;
+            for (File dest : stagedDatabases.keySet()) {
+                databasesBytes += dest.length();
+            }
+            report.record(Stage.APPLY, null, databasesBytes, databasesBytes, System.nanoTime() - start - preferencesNanos[0], 0);
+            report.finish();
+
+        } finally {
+
+            reader.close();
+
+            // Excluir os arquivos preparados que não foram utilizados (em caso de erro)
+            transaction.rollback();
+
+        }
+
+    }
+
+    /**
+     * Conclui ou desfaz um restore que foi interrompido (o processo foi encerrado durante a troca dos arquivos)
+     *
+     * @return false se não havia nenhum restore interrompido
+     */
+    public static boolean recoverInterruptedRestore(final DataSource dataSource) throws IOException {
+        return RestoreTransaction.recover(dataSource.getRestoreJournal(), new RestoreTransaction.Applier() {
+            @Override
+            public void apply(String prefsName, File staged) throws IOException {
+                readPreferences(dataSource, prefsName, staged).editor.commit();
+            }
+        });
+    }
+
+    private EntryReader openBackup(File backupFile) throws IOException {
+        if (ChunkRepository.isSnapshotFile(backupFile)) {
+            final String name = backupFile.getName();
+            return ChunkRepository.forSnapshotFile(backupFile).openSnapshot(name.substring(0, name.lastIndexOf('.')));
+        }
+        return new ArchiveReader(backupFile, keyProvider);
+    }
+
+    // Extrai a entrada atual informando cada buffer ao progresso. Ler até o final confere o checksum da entrada.
+    private void copyEntry(EntryReader reader, File dest) throws IOException {
+        final InputStream input = new MonitoredInputStream(reader.getEntryStream(), progress);
+        final OutputStream output = new FileOutputStream(dest);
+        try {
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+        progress.checkCancelled();
+    }
+
+    private boolean isRestoredEntry(String entryName) {
+        return isPreferenceEntry(entryName) || isDatabaseDeltaEntry(entryName) || isDatabaseEntry(entryName) || isDatabaseWalEntry(entryName);
+    }
+
+    private boolean isPreferenceEntry(String entryName) {
+        for (String preferenceName : preferences) {
+            if (preferenceName.contains("*")) {
+                // Se for uma expressão
+                if (matches(preferenceName, entryName)) {
+                    return entryName.contains(".xml");
+                }
+            } else if (entryName.equals(getPreferencesFileName(preferenceName))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isDatabaseEntry(String entryName) {
+
+        // Entradas do backup incremental
+        if (entryName.endsWith(PageDelta.DELTA_SUFFIX) || entryName.endsWith(PageDelta.MANIFEST_SUFFIX)) {
+            return false;
+        }
+
+        if (databases.isEmpty()) {
+            // Restaurar todos os arquivos de banco de dados
+            return indexedDatabases.contains(entryName) || entryName.endsWith(".sqlite") || entryName.endsWith(".db");
+        }
+
+        for (String databaseName : databases) {
+            // Verificar se o nome é uma expressão
+            if (databaseName.contains("*") ? matches(databaseName, entryName) : entryName.equals(databaseName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isDatabaseDeltaEntry(String entryName) {
+        return entryName.endsWith(PageDelta.DELTA_SUFFIX)
+                && isDatabaseEntry(entryName.substring(0, entryName.length() - PageDelta.DELTA_SUFFIX.length()));
+    }
+
+    // O WAL só é restaurado junto com o seu banco de dados
+    private boolean isDatabaseWalEntry(String entryName) {
+        return entryName.endsWith(DatabaseCopy.WAL_SUFFIX)
+                && isDatabaseEntry(entryName.substring(0, entryName.length() - DatabaseCopy.WAL_SUFFIX.length()));
+    }
+
+    private void checkRequiredEntries(Set<String> preferencesFound, Set<File> databasesFound) throws FileNotFoundException {
+
+        for (String preferenceName : preferences) {
+            if (!preferenceName.contains("*")) {
+                final String fileName = getPreferencesFileName(preferenceName);
+                if (!preferencesFound.contains(fileName.substring(0, fileName.indexOf(".xml")))) {
+                    throw new FileNotFoundException("Arquivo de preferências não encontrado!");
+                }
+            }
+        }
+
+        for (String databaseName : databases) {
+            if (!databaseName.contains("*") && !databasesFound.contains(new File(dataSource.getDatabasesDir(), databaseName))) {
+                throw new FileNotFoundException("Arquivo de banco de dados não encontrado!");
+            }
+        }
+
+    }
+
+    private String getPreferencesFileName(String preferenceName) {
+        return preferenceName + (!preferenceName.endsWith(".xml") ? ".xml" : "");
+    }
+
+    // Verifica se o nome do arquivo combina com a expressão
+    private boolean matches(String expression, String fileName) {
+        if (expression.startsWith("*") && expression.endsWith("*")) {
+            return fileName.contains(expression.replace("*", ""));
+        } else if (expression.startsWith("*")) {
+            return fileName.endsWith(expression.replace("*", ""));
+        } else if (expression.endsWith("*")) {
+            return fileName.startsWith(expression.replace("*", ""));
+        }
+        throw new IllegalArgumentException("Expressão mal formada!");
+    }
+
+    // O backup das preferências é feito em forma de key/value e importado da mesma forma.
+    // Todas as chaves vão para um único editor, que substitui as preferências inteiras no commit.
+    private static PendingPreferences readPreferences(DataSource dataSource, String prefsName, File staged) throws IOException {
+
+        final long start = System.nanoTime();
+
+        final PendingPreferences pending = new PendingPreferences(dataSource.editPreferences(prefsName));
+        final InputStream input = new FileInputStream(staged);
+        try {
+            PreferencesReader.read(input, pending.editor);
+        } finally {
+            input.close();
+        }
+        pending.elapsed = System.nanoTime() - start;
+        return pending;
+    }
+
+    // Retorna o tempo do commit
+    private long commitPreferences(String prefsName, File staged, PendingPreferences pending) throws IOException {
+        final long start = System.nanoTime();
+        pending.editor.commit();
+        final long elapsed = System.nanoTime() - start;
+        pending.elapsed += elapsed;
+        preferencesRestoreTimes.put(prefsName, TimeUnit.NANOSECONDS.toMillis(pending.elapsed));
+        report.record(Stage.APPLY, prefsName, staged.length(), staged.length(), elapsed, 0);
+        return elapsed;
+    }
+
+
+    // Alterações de um arquivo de preferências lidas do backup, aguardando o commit
+    private static class PendingPreferences {
+
+        final PreferencesEditor editor;
+
+        long elapsed;
+
+        PendingPreferences(PreferencesEditor editor) {
+            this.editor = editor;
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+package br.com.dercilima.firebackuplib.hash;
+
+/**
+ * Implementação em Java puro do xxHash32 (https://cyan4973.github.io/xxHash/),
+ * usado no cabeçalho do formato de frame do LZ4.
+ */
+public final class XxHash32 {
+
+    private static final int PRIME1 = 0x9E3779B1;
+    private static final int PRIME2 = 0x85EBCA77;
+    private static final int PRIME3 = 0xC2B2AE3D;
+    private static final int PRIME4 = 0x27D4EB2F;
+    private static final int PRIME5 = 0x165667B1;
+
+    private XxHash32() {
+    }
+
+    public static int hash(byte[] buffer, int offset, int length, int seed) {
+
+        final int end = offset + length;
+        int h32;
+
+        if (length >= 16) {
+
+            final int limit = end - 16;
+            int v1 = seed + PRIME1 + PRIME2;
+            int v2 = seed + PRIME2;
+            int v3 = seed;
+            int v4 = seed - PRIME1;
+
+            do {
+                v1 = round(v1, getInt(buffer, offset));
+                v2 = round(v2, getInt(buffer, offset + 4));
+                v3 = round(v3, getInt(buffer, offset + 8));
+                v4 = round(v4, getInt(buffer, offset + 12));
+                offset += 16;
+            } while (offset <= limit);
+
+            h32 = Integer.rotateLeft(v1, 1) + Integer.rotateLeft(v2, 7) + Integer.rotateLeft(v3, 12) + Integer.rotateLeft(v4, 18);
+
+        } else {
+            h32 = seed + PRIME5;
+        }
+
+        h32 += length;
+
+        while (offset + 4 <= end) {
+            h32 += getInt(buffer, offset) * PRIME3;
+            h32 = Integer.rotateLeft(h32, 17) * PRIME4;
+            offset += 4;
+        }
+
+        while (offset < end) {
+            h32 += (buffer[offset] & 0xFF) * PRIME5;
+            h32 = Integer.rotateLeft(h32, 11) * PRIME1;
+            offset++;
+        }
+
+        h32 ^= h32 >>> 15;
+        h32 *= PRIME2;
+        h32 ^= h32 >>> 13;
+        h32 *= PRIME3;
+        h32 ^= h32 >>> 16;
+
+        return h32;
+    }
+
+    private static int round(int acc, int input) {
+        acc += input * PRIME2;
+        acc = Integer.rotateLeft(acc, 13);
+        return acc * PRIME1;
+    }
+
+    // Leitura em little-endian, conforme a especificação do xxHash
+    private static int getInt(byte[] b, int i) {
+        return (b[i] & 0xFF)
+                | (b[i + 1] & 0xFF) << 8
+                | (b[i + 2] & 0xFF) << 16
+                | (b[i + 3] & 0xFF) << 24;
+    }
+
+}
@@ -0,0 +1,113 @@
+package br.com.dercilima.firebackuplib.hash;
+
+/**
+ * Implementação em Java puro do xxHash64 (https://cyan4973.github.io/xxHash/).
+ * Hash não criptográfico de 64 bits, rápido o suficiente para ser calculado sobre cada página
+ * do banco de dados durante o backup.
+ */
+public final class XxHash64 {
+
+    static final long PRIME1 = 0x9E3779B185EBCA87L;
+    static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    static final long PRIME3 = 0x165667B19E3779F9L;
+    static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private XxHash64() {
+    }
+
+    public static long hash(byte[] buffer, int offset, int length, long seed) {
+
+        final int end = offset + length;
+        long h64;
+
+        if (length >= 32) {
+
+            final int limit = end - 32;
+            long v1 = seed + PRIME1 + PRIME2;
+            long v2 = seed + PRIME2;
+            long v3 = seed;
+            long v4 = seed - PRIME1;
+
+            do {
+                v1 = round(v1, getLong(buffer, offset));
+                v2 = round(v2, getLong(buffer, offset + 8));
+                v3 = round(v3, getLong(buffer, offset + 16));
+                v4 = round(v4, getLong(buffer, offset + 24));
+                offset += 32;
+            } while (offset <= limit);
+
+            h64 = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h64 = mergeRound(h64, v1);
+            h64 = mergeRound(h64, v2);
+            h64 = mergeRound(h64, v3);
+            h64 = mergeRound(h64, v4);
+
+        } else {
+            h64 = seed + PRIME5;
+        }
+
+        return finish(h64 + length, buffer, offset, end);
+    }
+
+    // Processa os bytes restantes (menos de 32) e faz a mistura final
+    static long finish(long h64, byte[] buffer, int offset, int end) {
+
+        while (offset + 8 <= end) {
+            h64 ^= round(0, getLong(buffer, offset));
+            h64 = Long.rotateLeft(h64, 27) * PRIME1 + PRIME4;
+            offset += 8;
+        }
+
+        if (offset + 4 <= end) {
+            h64 ^= (getInt(buffer, offset) & 0xFFFFFFFFL) * PRIME1;
+            h64 = Long.rotateLeft(h64, 23) * PRIME2 + PRIME3;
+            offset += 4;
+        }
+
+        while (offset < end) {
+            h64 ^= (buffer[offset] & 0xFF) * PRIME5;
+            h64 = Long.rotateLeft(h64, 11) * PRIME1;
+            offset++;
+        }
+
+        h64 ^= h64 >>> 33;
+        h64 *= PRIME2;
+        h64 ^= h64 >>> 29;
+        h64 *= PRIME3;
+        h64 ^= h64 >>> 32;
+
+        return h64;
+    }
+
+    static long round(long acc, long input) {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    static long mergeRound(long acc, long value) {
+        acc ^= round(0, value);
+        return acc * PRIME1 + PRIME4;
+    }
+
+    // Leitura em little-endian, conforme a especificação do xxHash
+    static long getLong(byte[] b, int i) {
+        return (b[i] & 0xFFL)
+                | (b[i + 1] & 0xFFL) << 8
+                | (b[i + 2] & 0xFFL) << 16
+                | (b[i + 3] & 0xFFL) << 24
+                | (b[i + 4] & 0xFFL) << 32
+                | (b[i + 5] & 0xFFL) << 40
+                | (b[i + 6] & 0xFFL) << 48
+                | (b[i + 7] & 0xFFL) << 56;
+    }
+
+    private static int getInt(byte[] b, int i) {
+        return (b[i] & 0xFF)
+                | (b[i + 1] & 0xFF) << 8
+                | (b[i + 2] & 0xFF) << 16
+                | (b[i + 3] & 0xFF) << 24;
+    }
+
+}
@@ -0,0 +1,98 @@
+package br.com.dercilima.firebackuplib.hash;
+
+import java.util.zip.Checksum;
+
+/**
+ * xxHash64 calculado aos poucos, à medida que os dados passam por um stream (o mesmo valor de
+ * {@link XxHash64#hash(byte[], int, int, long)} sobre todos os bytes informados).
+ */
+public final class XxHash64Checksum implements Checksum {
+
+    private final long seed;
+
+    // Bytes que ainda não completam uma faixa de 32
+    private final byte[] pending = new byte[32];
+
+    private int pendingLength;
+
+    private long totalLength;
+
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+
+
+    public XxHash64Checksum() {
+        this(0);
+    }
+
+    public XxHash64Checksum(long seed) {
+        this.seed = seed;
+        reset();
+    }
+
+    @Override
+    public void update(int b) {
+        update(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        totalLength += len;
+
+        if (pendingLength + len < 32) {
+            System.arraycopy(b, off, pending, pendingLength, len);
+            pendingLength += len;
+            return;
+        }
+
+        final int end = off + len;
+        if (pendingLength > 0) {
+            final int count = 32 - pendingLength;
+            System.arraycopy(b, off, pending, pendingLength, count);
+            off += count;
+            pendingLength = 0;
+            stripe(pending, 0);
+        }
+        while (off + 32 <= end) {
+            stripe(b, off);
+            off += 32;
+        }
+        pendingLength = end - off;
+        System.arraycopy(b, off, pending, 0, pendingLength);
+    }
+
+    @Override
+    public long getValue() {
+        long h64;
+        if (totalLength >= 32) {
+            h64 = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h64 = XxHash64.mergeRound(h64, v1);
+            h64 = XxHash64.mergeRound(h64, v2);
+            h64 = XxHash64.mergeRound(h64, v3);
+            h64 = XxHash64.mergeRound(h64, v4);
+        } else {
+            h64 = seed + XxHash64.PRIME5;
+        }
+        return XxHash64.finish(h64 + totalLength, pending, 0, pendingLength);
+    }
+
+    @Override
+    public void reset() {
+        v1 = seed + XxHash64.PRIME1 + XxHash64.PRIME2;
+        v2 = seed + XxHash64.PRIME2;
+        v3 = seed;
+        v4 = seed - XxHash64.PRIME1;
+        pendingLength = 0;
+        totalLength = 0;
+    }
+
+    private void stripe(byte[] b, int off) {
+        v1 = XxHash64.round(v1, XxHash64.getLong(b, off));
+        v2 = XxHash64.round(v2, XxHash64.getLong(b, off + 8));
+        v3 = XxHash64.round(v3, XxHash64.getLong(b, off + 16));
+        v4 = XxHash64.round(v4, XxHash64.getLong(b, off + 24));
+    }
+
+}
@@ -0,0 +1,93 @@
+package br.com.dercilima.firebackuplib.incremental;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import br.com.dercilima.firebackuplib.archive.ArchiveReader;
+import br.com.dercilima.firebackuplib.crypto.KeyProvider;
+
+/**
+ * Reconstrói um banco de dados a partir de um backup completo e da cadeia de backups incrementais.
+ * Os backups da cadeia precisam estar no mesmo diretório.
+ */
+public class DeltaChain {
+
+    private final File backupDirectory;
+
+    private final KeyProvider keyProvider;
+
+
+    public DeltaChain(File backupDirectory) {
+        this(backupDirectory, null);
+    }
+
+    /**
+     * @param keyProvider Chaves dos backups criptografados da cadeia
+     */
+    public DeltaChain(File backupDirectory, KeyProvider keyProvider) {
+        this.backupDirectory = backupDirectory;
+        this.keyProvider = keyProvider;
+    }
+
+    /**
+     * Grava no arquivo de destino o banco de dados no estado em que estava no backup informado
+     *
+     * @param archiveName Nome do backup
+     * @param entryName   Nome do banco de dados dentro do backup
+     * @param target      Arquivo de destino
+     */
+    public void rebuild(String archiveName, String entryName, File target) throws IOException {
+
+        // Voltar na cadeia até o backup que tem o banco de dados completo
+        final List<String> deltas = new ArrayList<>();
+        String current = archiveName;
+        while (true) {
+            final ArchiveReader reader = openArchive(current);
+            try {
+                if (reader.findEntry(entryName)) {
+                    reader.copyEntryTo(target);
+                    break;
+                }
+                if (!reader.findEntry(entryName + PageDelta.DELTA_SUFFIX)) {
+                    throw new FileNotFoundException("Banco de dados \"" + entryName + "\" não encontrado no backup \"" + current + "\"!");
+                }
+                deltas.add(current);
+                current = PageDelta.readParent(new DataInputStream(reader.getEntryStream()));
+                if (deltas.contains(current)) {
+                    throw new IOException("Cadeia de backups incrementais inválida!");
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        // Aplicar os deltas do mais antigo para o mais recente
+        for (int i = deltas.size() - 1; i >= 0; i--) {
+            final ArchiveReader reader = openArchive(deltas.get(i));
+            try {
+                reader.findEntry(entryName + PageDelta.DELTA_SUFFIX);
+                final DataInputStream delta = new DataInputStream(new BufferedInputStream(reader.getEntryStream()));
+                PageDelta.readParent(delta);
+                PageDelta.apply(delta, target);
+                // O delta não é lido até o final, então o CRC é conferido aqui
+                reader.verifyEntry();
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    private ArchiveReader openArchive(String archiveName) throws IOException {
+        final File archive = new File(backupDirectory, archiveName);
+        if (!archive.isFile()) {
+            throw new FileNotFoundException("Backup \"" + archiveName + "\" da cadeia incremental não encontrado!");
+        }
+        return new ArchiveReader(archive, keyProvider);
+    }
+
+}
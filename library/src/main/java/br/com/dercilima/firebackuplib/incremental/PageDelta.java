@@ -0,0 +1,164 @@
+package br.com.dercilima.firebackuplib.incremental;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import br.com.dercilima.firebackuplib.hash.XxHash64;
+
+/**
+ * Codifica e aplica os deltas de página de um banco de dados.
+ * <p>
+ * Formato de uma entrada ".delta": MAGIC, versão, nome do backup anterior (pai), tamanho da página,
+ * a sequência (índice da página, tamanho, conteúdo da página) terminada com -1 e, por fim, o tamanho
+ * final do arquivo. Apenas a última página do arquivo pode ser menor que o tamanho da página.
+ */
+public final class PageDelta {
+
+    // Sufixo da entrada que contém apenas as páginas alteradas do banco de dados
+    public static final String DELTA_SUFFIX = ".delta";
+
+    // Sufixo da entrada que contém o manifesto de páginas do banco de dados
+    public static final String MANIFEST_SUFFIX = ".manifest";
+
+    private static final int MAGIC = 0x46425044; // "FBPD"
+    private static final int VERSION = 1;
+
+    private PageDelta() {
+    }
+
+    /**
+     * Copia todo o banco de dados para o backup, calculando o manifesto de páginas
+     *
+     * @param source      Conteúdo do banco de dados
+     * @param pageSize    Tamanho da página do banco
+     * @param output      Entrada do banco de dados no backup
+     * @param archiveName Nome do backup em construção
+     */
+    public static PageManifest writeFull(InputStream source, int pageSize, OutputStream output, String archiveName) throws IOException {
+        return encode(source, pageSize, null, output, archiveName);
+    }
+
+    /**
+     * Grava no backup apenas as páginas que mudaram desde o backup descrito pelo manifesto anterior
+     *
+     * @param source      Conteúdo do banco de dados
+     * @param previous    Manifesto do backup anterior (com o mesmo tamanho de página)
+     * @param output      Entrada ".delta" no backup
+     * @param archiveName Nome do backup em construção
+     */
+    public static PageManifest writeDelta(InputStream source, PageManifest previous, OutputStream output, String archiveName) throws IOException {
+        return encode(source, previous.getPageSize(), previous, output, archiveName);
+    }
+
+    private static PageManifest encode(InputStream source, int pageSize, PageManifest previous, OutputStream output, String archiveName) throws IOException {
+
+        final DataOutputStream data = previous != null ? new DataOutputStream(output) : null;
+        if (data != null) {
+            data.writeInt(MAGIC);
+            data.writeByte(VERSION);
+            data.writeUTF(previous.getArchiveName());
+            data.writeInt(pageSize);
+        }
+
+        final byte[] page = new byte[pageSize];
+        long[] hashes = new long[64];
+        int pageCount = 0;
+        long fileLength = 0;
+        int read;
+
+        while ((read = readPage(source, page)) > 0) {
+
+            final long hash = XxHash64.hash(page, 0, read, 0);
+
+            if (pageCount == hashes.length) {
+                final long[] grown = new long[hashes.length * 2];
+                System.arraycopy(hashes, 0, grown, 0, hashes.length);
+                hashes = grown;
+            }
+
+            if (data == null) {
+                output.write(page, 0, read);
+            } else if (pageCount >= previous.getPageCount() || previous.getPageHash(pageCount) != hash) {
+                data.writeInt(pageCount);
+                data.writeInt(read);
+                data.write(page, 0, read);
+            }
+
+            hashes[pageCount++] = hash;
+            fileLength += read;
+        }
+
+        if (data != null) {
+            data.writeInt(-1);
+            data.writeLong(fileLength);
+            data.flush();
+        }
+
+        final long[] pageHashes = new long[pageCount];
+        System.arraycopy(hashes, 0, pageHashes, 0, pageCount);
+
+        return new PageManifest(archiveName, pageSize, fileLength, pageHashes, previous != null ? previous.getDepth() + 1 : 0);
+    }
+
+    /**
+     * Lê o cabeçalho de uma entrada ".delta"
+     *
+     * @return Nome do backup anterior, sobre o qual o delta deve ser aplicado
+     */
+    public static String readParent(DataInputStream delta) throws IOException {
+        if (delta.readInt() != MAGIC || delta.readByte() != VERSION) {
+            throw new IOException("Delta de páginas inválido!");
+        }
+        return delta.readUTF();
+    }
+
+    /**
+     * Aplica as páginas de uma entrada ".delta" sobre o banco de dados já reconstruído até o backup pai.
+     * O cabeçalho já deve ter sido lido com {@link #readParent(DataInputStream)}.
+     *
+     * @param delta  Conteúdo da entrada ".delta", após o cabeçalho
+     * @param target Banco de dados no estado do backup pai
+     */
+    public static void apply(DataInputStream delta, File target) throws IOException {
+
+        final int pageSize = delta.readInt();
+        final byte[] page = new byte[pageSize];
+
+        final RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+
+            int pageIndex;
+            while ((pageIndex = delta.readInt()) >= 0) {
+                final int length = delta.readInt();
+                delta.readFully(page, 0, length);
+                file.seek((long) pageIndex * pageSize);
+                file.write(page, 0, length);
+            }
+
+            // Ajustar o tamanho final (o banco pode ter diminuído após um VACUUM)
+            file.setLength(delta.readLong());
+
+        } finally {
+            file.close();
+        }
+    }
+
+    // Lê uma página inteira. Retorna menos que o tamanho da página apenas no final do arquivo
+    private static int readPage(InputStream input, byte[] page) throws IOException {
+        int total = 0;
+        while (total < page.length) {
+            final int read = input.read(page, total, page.length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+}
@@ -0,0 +1,163 @@
+package br.com.dercilima.firebackuplib.incremental;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Hash de cada página de um banco de dados SQLite, no estado em que ele foi gravado em um backup.
+ * É usado pelo próximo backup incremental para gravar apenas as páginas que mudaram.
+ */
+public class PageManifest {
+
+    private static final int MAGIC = 0x4642504D; // "FBPM"
+    private static final int VERSION = 1;
+
+    // Tamanho de página usado quando o arquivo não é um banco SQLite
+    static final int DEFAULT_PAGE_SIZE = 4096;
+
+    // Nome do backup (.zip) que contém o banco de dados neste estado
+    private final String archiveName;
+
+    private final int pageSize;
+
+    private final long fileLength;
+
+    private final long[] pageHashes;
+
+    // Quantidade de backups incrementais desde o último backup completo
+    private final int depth;
+
+
+    PageManifest(String archiveName, int pageSize, long fileLength, long[] pageHashes, int depth) {
+        this.archiveName = archiveName;
+        this.pageSize = pageSize;
+        this.fileLength = fileLength;
+        this.pageHashes = pageHashes;
+        this.depth = depth;
+    }
+
+    public String getArchiveName() {
+        return archiveName;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    public int getPageCount() {
+        return pageHashes.length;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    long getPageHash(int pageIndex) {
+        return pageHashes[pageIndex];
+    }
+
+    public void write(OutputStream output) throws IOException {
+        final DataOutputStream data = new DataOutputStream(output);
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        data.writeUTF(archiveName);
+        data.writeInt(pageSize);
+        data.writeLong(fileLength);
+        data.writeInt(depth);
+        data.writeInt(pageHashes.length);
+        for (long hash : pageHashes) {
+            data.writeLong(hash);
+        }
+        data.flush();
+    }
+
+    public static PageManifest read(InputStream input) throws IOException {
+        final DataInputStream data = new DataInputStream(input);
+        if (data.readInt() != MAGIC || data.readByte() != VERSION) {
+            throw new IOException("Manifesto de páginas inválido!");
+        }
+        final String archiveName = data.readUTF();
+        final int pageSize = data.readInt();
+        final long fileLength = data.readLong();
+        final int depth = data.readInt();
+        final long[] hashes = new long[data.readInt()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = data.readLong();
+        }
+        return new PageManifest(archiveName, pageSize, fileLength, hashes, depth);
+    }
+
+    /**
+     * Grava o manifesto em disco. O arquivo é substituído com um rename, para nunca ficar pela metade.
+     */
+    public void save(File file) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        final OutputStream output = new BufferedOutputStream(new FileOutputStream(temp));
+        try {
+            write(output);
+        } finally {
+            output.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Não foi possível gravar o manifesto \"" + file + "\"!");
+        }
+    }
+
+    /**
+     * Lê o manifesto salvo em disco
+     *
+     * @return O manifesto ou null caso o arquivo não exista ou esteja inválido
+     */
+    public static PageManifest load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            final InputStream input = new BufferedInputStream(new FileInputStream(file));
+            try {
+                return read(input);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Lê o tamanho da página do cabeçalho do banco SQLite (bytes 16 e 17).
+     * Se o arquivo não for um banco SQLite, retorna o tamanho padrão de 4 KiB.
+     */
+    public static int readPageSize(File databaseFile) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(databaseFile, "r");
+        try {
+            final byte[] header = new byte[18];
+            if (file.length() < 100) {
+                return DEFAULT_PAGE_SIZE;
+            }
+            file.readFully(header);
+            if (!new String(header, 0, 15, "US-ASCII").equals("SQLite format 3")) {
+                return DEFAULT_PAGE_SIZE;
+            }
+            final int pageSize = ((header[16] & 0xFF) << 8) | (header[17] & 0xFF);
+            // O valor 1 representa 65536
+            return pageSize == 1 ? 65536 : pageSize;
+        } finally {
+            file.close();
+        }
+    }
+
+}
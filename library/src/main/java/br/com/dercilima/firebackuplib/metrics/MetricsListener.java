@@ -0,0 +1,11 @@
+package br.com.dercilima.firebackuplib.metrics;
+
+/**
+ * Recebe as métricas de cada etapa do backup ou do restore, assim que a etapa termina.
+ * Pode ser chamado por mais de uma thread (backup de vários bancos em paralelo).
+ */
+public interface MetricsListener {
+
+    void onStage(StageEvent event);
+
+}
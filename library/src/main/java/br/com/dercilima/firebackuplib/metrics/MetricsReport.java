@@ -0,0 +1,127 @@
+package br.com.dercilima.firebackuplib.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Totais de cada etapa de um backup ou restore. Os motores registram cada etapa aqui, que soma os
+ * valores (sem guardar os eventos) e repassa o evento ao {@link MetricsListener}, se houver. Sem o
+ * listener, nenhum evento é criado: o custo é uma soma por arquivo.
+ */
+public class MetricsReport {
+
+    private final MetricsListener listener;
+
+    private final long startedAt = System.nanoTime();
+
+    private long elapsedNanos = -1;
+
+    private final long[] bytesIn = new long[Stage.values().length];
+
+    private final long[] bytesOut = new long[Stage.values().length];
+
+    private final long[] durationNanos = new long[Stage.values().length];
+
+    private final int[] retries = new int[Stage.values().length];
+
+    private final int[] count = new int[Stage.values().length];
+
+
+    /**
+     * @param listener Recebe cada etapa registrada, ou null
+     */
+    public MetricsReport(MetricsListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Registra uma etapa concluída
+     *
+     * @param name Arquivo ou entrada da etapa, ou null para todo o backup
+     */
+    public void record(Stage stage, String name, long in, long out, long nanos, int retries) {
+        synchronized (this) {
+            final int i = stage.ordinal();
+            bytesIn[i] += in;
+            bytesOut[i] += out;
+            durationNanos[i] += nanos;
+            this.retries[i] += retries;
+            count[i]++;
+        }
+        if (listener != null) {
+            listener.onStage(new StageEvent(stage, name, in, out, nanos, retries));
+        }
+    }
+
+    /**
+     * Marca o fim do backup ou do restore (as etapas registradas depois, como o upload feito
+     * após o backup, continuam sendo somadas, mas não alteram o tempo total)
+     */
+    public synchronized void finish() {
+        if (elapsedNanos < 0) {
+            elapsedNanos = System.nanoTime() - startedAt;
+        }
+    }
+
+    /**
+     * Tempo total do backup ou restore (até agora, se ainda não terminou)
+     */
+    public synchronized long getElapsedNanos() {
+        return elapsedNanos >= 0 ? elapsedNanos : System.nanoTime() - startedAt;
+    }
+
+    public synchronized long getBytesIn(Stage stage) {
+        return bytesIn[stage.ordinal()];
+    }
+
+    public synchronized long getBytesOut(Stage stage) {
+        return bytesOut[stage.ordinal()];
+    }
+
+    /**
+     * Soma dos tempos da etapa. Com várias threads, pode ser maior que o tempo total.
+     */
+    public synchronized long getDurationNanos(Stage stage) {
+        return durationNanos[stage.ordinal()];
+    }
+
+    public synchronized int getRetries(Stage stage) {
+        return retries[stage.ordinal()];
+    }
+
+    /**
+     * Quantidade de vezes que a etapa foi registrada (ex.: uma por entrada compactada)
+     */
+    public synchronized int getCount(Stage stage) {
+        return count[stage.ordinal()];
+    }
+
+    /**
+     * Bytes recebidos por byte gerado na etapa
+     */
+    public synchronized double getCompressionRatio(Stage stage) {
+        return StageEvent.ratio(bytesIn[stage.ordinal()], bytesOut[stage.ordinal()]);
+    }
+
+    /**
+     * Bytes recebidos por segundo na etapa
+     */
+    public synchronized long getBytesPerSecond(Stage stage) {
+        return StageEvent.rate(bytesIn[stage.ordinal()], durationNanos[stage.ordinal()]);
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder builder = new StringBuilder("time=[" + TimeUnit.NANOSECONDS.toMillis(getElapsedNanos()) + " ms]");
+        for (Stage stage : Stage.values()) {
+            final int i = stage.ordinal();
+            if (count[i] > 0) {
+                builder.append(String.format(Locale.US, " %s=[count=%d in=%d out=%d time=%d ms ratio=%.2f retries=%d]",
+                        stage, count[i], bytesIn[i], bytesOut[i], TimeUnit.NANOSECONDS.toMillis(durationNanos[i]),
+                        StageEvent.ratio(bytesIn[i], bytesOut[i]), retries[i]));
+            }
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,43 @@
+package br.com.dercilima.firebackuplib.metrics;
+
+/**
+ * Etapas medidas no backup e no restore
+ */
+public enum Stage {
+
+    /**
+     * Cópia consistente de cada banco de dados (bloqueio das escritas ou VACUUM INTO)
+     */
+    SNAPSHOT,
+
+    /**
+     * Leitura e serialização de cada arquivo de preferências
+     */
+    SERIALIZE_PREFERENCES,
+
+    /**
+     * Compactação de cada entrada do backup. Com um banco de dados por vez, inclui a gravação no destino.
+     */
+    COMPRESS,
+
+    /**
+     * Gravação do zip no destino (arquivo, criptografia ou upload simultâneo), ou dos chunks no repositório
+     */
+    WRITE,
+
+    /**
+     * Envio do backup para o destino remoto
+     */
+    UPLOAD,
+
+    /**
+     * Leitura de cada entrada do backup para o seu arquivo preparado, no restore
+     */
+    EXTRACT,
+
+    /**
+     * Troca dos bancos de dados e gravação de cada arquivo de preferências, no restore
+     */
+    APPLY
+
+}
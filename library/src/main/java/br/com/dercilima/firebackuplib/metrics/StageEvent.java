@@ -0,0 +1,96 @@
+package br.com.dercilima.firebackuplib.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Métricas de uma etapa, para um arquivo (ou para todo o backup, quando o nome é null)
+ */
+public class StageEvent {
+
+    private final Stage stage;
+
+    private final String name;
+
+    private final long bytesIn;
+
+    private final long bytesOut;
+
+    private final long durationNanos;
+
+    private final int retries;
+
+
+    public StageEvent(Stage stage, String name, long bytesIn, long bytesOut, long durationNanos, int retries) {
+        this.stage = stage;
+        this.name = name;
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+        this.durationNanos = durationNanos;
+        this.retries = retries;
+    }
+
+    public Stage getStage() {
+        return stage;
+    }
+
+    /**
+     * Entrada do backup, banco de dados ou arquivo de preferências, ou null para todo o backup
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Bytes recebidos pela etapa (ex.: o banco de dados, na compactação)
+     */
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * Bytes gerados pela etapa (ex.: a entrada compactada, na compactação)
+     */
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * Novas tentativas feitas pela etapa (partes reenviadas, no upload)
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * Bytes recebidos por byte gerado (ex.: 4.0 quando a compactação reduz a um quarto)
+     */
+    public double getCompressionRatio() {
+        return ratio(bytesIn, bytesOut);
+    }
+
+    /**
+     * Bytes recebidos por segundo
+     */
+    public long getBytesPerSecond() {
+        return rate(bytesIn, durationNanos);
+    }
+
+    static double ratio(long bytesIn, long bytesOut) {
+        return bytesOut > 0 ? (double) bytesIn / bytesOut : 1;
+    }
+
+    static long rate(long bytes, long nanos) {
+        return nanos > 0 ? (long) (bytes * (double) TimeUnit.SECONDS.toNanos(1) / nanos) : bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "stage=[" + stage + "] name=[" + name + "] in=[" + bytesIn + "] out=[" + bytesOut + "] time=["
+                + TimeUnit.NANOSECONDS.toMillis(durationNanos) + " ms] retries=[" + retries + "]";
+    }
+
+}
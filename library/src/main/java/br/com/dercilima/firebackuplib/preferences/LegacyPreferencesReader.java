@@ -0,0 +1,83 @@
+package br.com.dercilima.firebackuplib.preferences;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lê as preferências dos backups antigos, gravadas com ObjectOutputStream (o Map de SharedPreferences.getAll()).
+ * Apenas as classes que podem aparecer nesse Map são aceitas na desserialização.
+ */
+class LegacyPreferencesReader {
+
+    private static final Set<String> ALLOWED_CLASSES = new HashSet<>(Arrays.asList(
+            "java.util.HashMap",
+            "java.util.HashSet",
+            "java.util.LinkedHashMap",
+            "java.util.LinkedHashSet",
+            "java.lang.Boolean",
+            "java.lang.Integer",
+            "java.lang.Long",
+            "java.lang.Float",
+            "java.lang.Number",
+            "java.lang.String"
+    ));
+
+    private LegacyPreferencesReader() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static void read(InputStream input, PreferencesReader.Handler handler) throws IOException {
+
+        final Object object;
+        try {
+            object = new RestrictedObjectInputStream(input).readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Erro ao carregar as preferências!", e);
+        }
+        if (!(object instanceof Map)) {
+            throw new IOException("Arquivo de preferências inválido!");
+        }
+
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) object).entrySet()) {
+            final String key = String.valueOf(entry.getKey());
+            final Object value = entry.getValue();
+            if (value instanceof Boolean) {
+                handler.onBoolean(key, (Boolean) value);
+            } else if (value instanceof Integer) {
+                handler.onInt(key, (Integer) value);
+            } else if (value instanceof Long) {
+                handler.onLong(key, (Long) value);
+            } else if (value instanceof Float) {
+                handler.onFloat(key, (Float) value);
+            } else if (value instanceof String) {
+                handler.onString(key, (String) value);
+            } else if (value instanceof Set) {
+                handler.onStringSet(key, new LinkedHashSet<>((Set<String>) value));
+            }
+        }
+    }
+
+    private static class RestrictedObjectInputStream extends ObjectInputStream {
+
+        RestrictedObjectInputStream(InputStream input) throws IOException {
+            super(input);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            if (!ALLOWED_CLASSES.contains(desc.getName())) {
+                throw new InvalidClassException(desc.getName(), "Classe não permitida no arquivo de preferências!");
+            }
+            return super.resolveClass(desc);
+        }
+    }
+
+}
@@ -0,0 +1,160 @@
+package br.com.dercilima.firebackuplib.preferences;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Lê as preferências gravadas pelo {@link PreferencesWriter}, entregando cada chave ao
+ * {@link Handler} assim que é lida. Backups antigos, gravados com serialização Java
+ * (ObjectOutputStream), são reconhecidos e lidos pelo mesmo método.
+ */
+public class PreferencesReader {
+
+    // Início de um stream de serialização Java (STREAM_MAGIC)
+    private static final int LEGACY_MAGIC = 0xACED;
+
+    // Limite para o tamanho de um texto, para não alocar memória demais com um arquivo corrompido
+    private static final int MAX_STRING_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * Recebe as preferências lidas. O CRC só é conferido no final do arquivo: os valores
+     * só devem ser aplicados depois que {@link #read(InputStream, Handler)} retornar.
+     */
+    public interface Handler {
+
+        void onBoolean(String key, boolean value);
+
+        void onInt(String key, int value);
+
+        void onLong(String key, long value);
+
+        void onFloat(String key, float value);
+
+        void onString(String key, String value);
+
+        void onStringSet(String key, Set<String> values);
+
+    }
+
+    private PreferencesReader() {
+    }
+
+    /**
+     * Lê as preferências do stream (formato binário ou serialização Java dos backups antigos).
+     * O stream não é fechado.
+     */
+    public static void read(InputStream input, Handler handler) throws IOException {
+        final PushbackInputStream pushback = new PushbackInputStream(input, 2);
+        final int b1 = pushback.read();
+        final int b2 = pushback.read();
+        if (b2 == -1) {
+            throw new EOFException("Arquivo de preferências incompleto!");
+        }
+        pushback.unread(b2);
+        pushback.unread(b1);
+        if ((b1 << 8 | b2) == LEGACY_MAGIC) {
+            LegacyPreferencesReader.read(pushback, handler);
+        } else {
+            readBinary(pushback, handler);
+        }
+    }
+
+    private static void readBinary(InputStream input, Handler handler) throws IOException {
+
+        final DataInputStream raw = new DataInputStream(input);
+        if (raw.readInt() != PreferencesWriter.MAGIC) {
+            throw new IOException("Arquivo de preferências inválido!");
+        }
+
+        final CRC32 crc = new CRC32();
+        final DataInputStream data = new DataInputStream(new CheckedInputStream(input, crc));
+        if (data.readUnsignedByte() != PreferencesWriter.VERSION) {
+            throw new IOException("Versão do arquivo de preferências não suportada!");
+        }
+
+        byte[] buffer = new byte[256];
+        int type;
+        while ((type = data.readUnsignedByte()) != PreferencesWriter.TYPE_END) {
+
+            final int keyLength = readLength(data);
+            if (keyLength > buffer.length) {
+                buffer = new byte[Math.max(keyLength, buffer.length * 2)];
+            }
+            data.readFully(buffer, 0, keyLength);
+            final String key = new String(buffer, 0, keyLength, PreferencesWriter.UTF8);
+
+            switch (type) {
+                case PreferencesWriter.TYPE_FALSE:
+                    handler.onBoolean(key, false);
+                    break;
+                case PreferencesWriter.TYPE_TRUE:
+                    handler.onBoolean(key, true);
+                    break;
+                case PreferencesWriter.TYPE_INT:
+                    final int zigzag = (int) readVarLong(data);
+                    handler.onInt(key, (zigzag >>> 1) ^ -(zigzag & 1));
+                    break;
+                case PreferencesWriter.TYPE_LONG:
+                    final long value = readVarLong(data);
+                    handler.onLong(key, (value >>> 1) ^ -(value & 1));
+                    break;
+                case PreferencesWriter.TYPE_FLOAT:
+                    handler.onFloat(key, Float.intBitsToFloat(data.readInt()));
+                    break;
+                case PreferencesWriter.TYPE_STRING:
+                    handler.onString(key, readString(data));
+                    break;
+                case PreferencesWriter.TYPE_STRING_SET:
+                    final int size = readLength(data);
+                    final Set<String> values = new LinkedHashSet<>();
+                    for (int i = 0; i < size; i++) {
+                        values.add(readString(data));
+                    }
+                    handler.onStringSet(key, values);
+                    break;
+                default:
+                    throw new IOException("Tipo " + type + " da preferência \"" + key + "\" inválido!");
+            }
+        }
+
+        // O CRC gravado não faz parte do conteúdo conferido
+        final int expected = (int) crc.getValue();
+        if (raw.readInt() != expected) {
+            throw new IOException("Arquivo de preferências corrompido!");
+        }
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+        final byte[] bytes = new byte[readLength(data)];
+        data.readFully(bytes);
+        return new String(bytes, PreferencesWriter.UTF8);
+    }
+
+    private static int readLength(DataInputStream data) throws IOException {
+        final long length = readVarLong(data);
+        if (length > MAX_STRING_LENGTH) {
+            throw new IOException("Arquivo de preferências inválido!");
+        }
+        return (int) length;
+    }
+
+    private static long readVarLong(DataInputStream data) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = data.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Arquivo de preferências inválido!");
+    }
+
+}
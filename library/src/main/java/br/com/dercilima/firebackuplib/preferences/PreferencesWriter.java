@@ -0,0 +1,204 @@
+package br.com.dercilima.firebackuplib.preferences;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Grava as preferências no formato binário do backup, uma chave por vez, sem montar o arquivo em memória.
+ * <p>
+ * Formato: "FBPF", versão e, para cada chave, o tipo (1 byte), o nome (tamanho em varint + UTF-8)
+ * e o valor. Inteiros são gravados em varint (zigzag), textos com o tamanho em varint e os
+ * conjuntos de textos com a quantidade de itens seguida dos itens. Uma marca de fim e o CRC32
+ * de todo o conteúdo após o "FBPF" fecham o arquivo.
+ */
+public class PreferencesWriter {
+
+    static final int MAGIC = 0x46425046; // "FBPF"
+    static final int VERSION = 1;
+
+    static final int TYPE_END = 0;
+    static final int TYPE_FALSE = 1;
+    static final int TYPE_TRUE = 2;
+    static final int TYPE_INT = 3;
+    static final int TYPE_LONG = 4;
+    static final int TYPE_FLOAT = 5;
+    static final int TYPE_STRING = 6;
+    static final int TYPE_STRING_SET = 7;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final OutputStream output;
+
+    private final CRC32 crc = new CRC32();
+
+    private final byte[] buffer = new byte[8192];
+
+    private int count = 0;
+
+    private boolean closed = false;
+
+
+    public PreferencesWriter(OutputStream output) throws IOException {
+        this.output = output;
+        // O magic fica fora do CRC
+        writeFixedInt(MAGIC);
+        flushBuffer();
+        crc.reset();
+        writeByte(VERSION);
+    }
+
+    /**
+     * Grava todas as preferências (por exemplo, o resultado de SharedPreferences.getAll()).
+     * Valores nulos e de tipos não suportados são ignorados.
+     */
+    public PreferencesWriter putAll(Map<String, ?> values) throws IOException {
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+        return this;
+    }
+
+    /**
+     * Grava uma preferência de qualquer tipo suportado pelo SharedPreferences
+     *
+     * @return false se o valor é nulo ou de um tipo não suportado (nada é gravado)
+     */
+    @SuppressWarnings("unchecked")
+    public boolean put(String key, Object value) throws IOException {
+        if (value instanceof Boolean) {
+            putBoolean(key, (Boolean) value);
+        } else if (value instanceof Integer) {
+            putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            putLong(key, (Long) value);
+        } else if (value instanceof Float) {
+            putFloat(key, (Float) value);
+        } else if (value instanceof String) {
+            putString(key, (String) value);
+        } else if (value instanceof Set) {
+            putStringSet(key, (Set<String>) value);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    public PreferencesWriter putBoolean(String key, boolean value) throws IOException {
+        writeKey(value ? TYPE_TRUE : TYPE_FALSE, key);
+        return this;
+    }
+
+    public PreferencesWriter putInt(String key, int value) throws IOException {
+        writeKey(TYPE_INT, key);
+        writeVarLong(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+        return this;
+    }
+
+    public PreferencesWriter putLong(String key, long value) throws IOException {
+        writeKey(TYPE_LONG, key);
+        writeVarLong((value << 1) ^ (value >> 63));
+        return this;
+    }
+
+    public PreferencesWriter putFloat(String key, float value) throws IOException {
+        writeKey(TYPE_FLOAT, key);
+        writeFixedInt(Float.floatToIntBits(value));
+        return this;
+    }
+
+    public PreferencesWriter putString(String key, String value) throws IOException {
+        writeKey(TYPE_STRING, key);
+        writeString(value);
+        return this;
+    }
+
+    public PreferencesWriter putStringSet(String key, Set<String> values) throws IOException {
+        writeKey(TYPE_STRING_SET, key);
+        writeVarLong(values.size());
+        for (String value : values) {
+            writeString(value);
+        }
+        return this;
+    }
+
+    /**
+     * Grava a marca de fim e o CRC e fecha o stream de saída
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writeByte(TYPE_END);
+            flushBuffer();
+            writeFixedInt((int) crc.getValue());
+            output.write(buffer, 0, count);
+            count = 0;
+        } finally {
+            output.close();
+        }
+    }
+
+    private void writeKey(int type, String key) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Arquivo de preferências já finalizado!");
+        }
+        writeByte(type);
+        writeString(key);
+    }
+
+    private void writeString(String value) throws IOException {
+        final byte[] bytes = value.getBytes(UTF8);
+        writeVarLong(bytes.length);
+        if (bytes.length > buffer.length - count) {
+            flushBuffer();
+            crc.update(bytes, 0, bytes.length);
+            output.write(bytes);
+        } else {
+            System.arraycopy(bytes, 0, buffer, count, bytes.length);
+            count += bytes.length;
+        }
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[count++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[count++] = (byte) value;
+    }
+
+    private void writeFixedInt(int value) throws IOException {
+        ensure(4);
+        buffer[count++] = (byte) (value >>> 24);
+        buffer[count++] = (byte) (value >>> 16);
+        buffer[count++] = (byte) (value >>> 8);
+        buffer[count++] = (byte) value;
+    }
+
+    private void writeByte(int value) throws IOException {
+        ensure(1);
+        buffer[count++] = (byte) value;
+    }
+
+    private void ensure(int size) throws IOException {
+        if (buffer.length - count < size) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            crc.update(buffer, 0, count);
+            output.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+}
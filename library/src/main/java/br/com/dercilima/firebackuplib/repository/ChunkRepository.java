@@ -0,0 +1,166 @@
+package br.com.dercilima.firebackuplib.repository;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import br.com.dercilima.firebackuplib.compress.CodecPolicy;
+
+/**
+ * Repositório de backups endereçado pelo conteúdo. Os arquivos são divididos em chunks
+ * ({@link Chunker}), cada chunk é gravado uma única vez ({@link ChunkStore}) e cada backup é
+ * apenas um manifesto pequeno ({@link Snapshot}) com a lista de chunks de cada arquivo.
+ * <p>
+ * Estrutura do diretório:
+ * <pre>
+ * repositorio/
+ *     chunks/ab/abcdef...        (SHA-256 do conteúdo)
+ *     snapshots/Backup_....snapshot
+ * </pre>
+ */
+public class ChunkRepository {
+
+    private static final String CHUNKS_DIR = "chunks";
+
+    private static final String SNAPSHOTS_DIR = "snapshots";
+
+    // Tempo mínimo antes de um chunk sem referência ser excluído, para não excluir os chunks
+    // de um backup que ainda está em andamento
+    private static final long DEFAULT_GRACE_PERIOD = TimeUnit.DAYS.toMillis(1);
+
+    private final File directory;
+
+    private final ChunkStore store;
+
+
+    public ChunkRepository(File directory) {
+        this.directory = directory;
+        this.store = new ChunkStore(new File(directory, CHUNKS_DIR));
+    }
+
+    /**
+     * Retorna o repositório ao qual o arquivo do snapshot pertence
+     *
+     * @param snapshotFile Arquivo do manifesto (repositorio/snapshots/nome.snapshot)
+     */
+    public static ChunkRepository forSnapshotFile(File snapshotFile) {
+        return new ChunkRepository(snapshotFile.getAbsoluteFile().getParentFile().getParentFile());
+    }
+
+    /**
+     * Indica se o arquivo é o manifesto de um snapshot
+     */
+    public static boolean isSnapshotFile(File file) {
+        return file.getName().endsWith(Snapshot.SUFFIX) && SNAPSHOTS_DIR.equals(file.getAbsoluteFile().getParentFile().getName());
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public ChunkStore getChunkStore() {
+        return store;
+    }
+
+    /**
+     * Inicia um novo snapshot
+     *
+     * @param name        Nome do snapshot
+     * @param codecPolicy Política de escolha do codec dos chunks, ou null para usar o deflate padrão
+     */
+    public SnapshotWriter newSnapshot(String name, CodecPolicy codecPolicy) throws IOException {
+        final File file = getSnapshotFile(name);
+        if (file.exists()) {
+            throw new IOException("Já existe um snapshot com o nome \"" + name + "\"!");
+        }
+        final File dir = file.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Não foi possível criar o diretório \"" + dir + "\"!");
+        }
+        return new SnapshotWriter(store, file, name, codecPolicy);
+    }
+
+    /**
+     * Abre o snapshot para o restore
+     *
+     * @param name Nome do snapshot
+     */
+    public SnapshotReader openSnapshot(String name) throws IOException {
+        final File file = getSnapshotFile(name);
+        if (!file.isFile()) {
+            throw new FileNotFoundException("Snapshot \"" + name + "\" não encontrado no repositório!");
+        }
+        return new SnapshotReader(store, Snapshot.load(file));
+    }
+
+    /**
+     * Nomes dos snapshots do repositório, em ordem alfabética
+     */
+    public List<String> listSnapshots() {
+        final List<String> names = new ArrayList<>();
+        final File[] files = new File(directory, SNAPSHOTS_DIR).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && file.getName().endsWith(Snapshot.SUFFIX)) {
+                    names.add(file.getName().substring(0, file.getName().length() - Snapshot.SUFFIX.length()));
+                }
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Exclui o manifesto do snapshot. Os chunks só são excluídos na coleta de lixo.
+     *
+     * @return false se o snapshot não existe
+     */
+    public boolean deleteSnapshot(String name) {
+        return getSnapshotFile(name).delete();
+    }
+
+    public File getSnapshotFile(String name) {
+        return new File(new File(directory, SNAPSHOTS_DIR), name + Snapshot.SUFFIX);
+    }
+
+    /**
+     * Exclui os chunks que não são usados por nenhum snapshot.
+     * Os chunks gravados ou reutilizados no último dia não são excluídos.
+     *
+     * @return Quantidade de bytes liberados
+     */
+    public long collectGarbage() throws IOException {
+        return collectGarbage(DEFAULT_GRACE_PERIOD);
+    }
+
+    /**
+     * Exclui os chunks que não são usados por nenhum snapshot
+     *
+     * @param gracePeriodMillis Os chunks gravados ou reutilizados neste período não são excluídos
+     *                          (devem ser maior que a duração de um backup)
+     * @return Quantidade de bytes liberados
+     */
+    public long collectGarbage(long gracePeriodMillis) throws IOException {
+
+        final long olderThan = System.currentTimeMillis() - gracePeriodMillis;
+
+        // Um snapshot ilegível interrompe a coleta: sem ele, não há como saber quais chunks estão em uso
+        final Set<String> referenced = new HashSet<>();
+        for (String name : listSnapshots()) {
+            for (Snapshot.FileEntry file : Snapshot.load(getSnapshotFile(name)).getFiles()) {
+                for (ChunkStore.Chunk chunk : file.getChunks()) {
+                    referenced.add(chunk.getHash());
+                }
+            }
+        }
+
+        return store.deleteUnreferenced(referenced, olderThan);
+    }
+
+}
@@ -0,0 +1,242 @@
+package br.com.dercilima.firebackuplib.repository;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import br.com.dercilima.firebackuplib.compress.Codec;
+import br.com.dercilima.firebackuplib.compress.Codecs;
+import br.com.dercilima.firebackuplib.compress.StoreCodec;
+
+/**
+ * Armazena cada chunk uma única vez, em um arquivo cujo nome é o SHA-256 do conteúdo
+ * (chunks/ab/abcdef...). Gravar um chunk que já existe não grava nada.
+ * <p>
+ * Cada arquivo de chunk começa com o método do codec usado (2 bytes), seguido dos dados compactados.
+ * Quando a compressão não reduz o chunk, ele é gravado sem compressão.
+ */
+public class ChunkStore {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File directory;
+
+
+    /**
+     * @param directory Diretório dos chunks
+     */
+    public ChunkStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Grava o chunk, se ainda não existir
+     *
+     * @param codec Codec usado para compactar o chunk
+     * @return Hash do conteúdo (não compactado) do chunk
+     */
+    public Chunk put(byte[] data, int offset, int length, Codec codec) throws IOException {
+
+        final String hash = hash(data, offset, length);
+        final File file = getFile(hash);
+
+        if (file.isFile()) {
+            // Já existe: apenas marca como usado agora, para a coleta de lixo não excluir durante o backup
+            file.setLastModified(System.currentTimeMillis());
+            return new Chunk(hash, length, false);
+        }
+
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+        final OutputStream compressor = codec.compress(compressed);
+        try {
+            compressor.write(data, offset, length);
+        } finally {
+            compressor.close();
+        }
+
+        final boolean store = compressed.size() >= length;
+        final int method = store ? StoreCodec.METHOD : codec.getMethod();
+
+        // Grava em um arquivo temporário e renomeia, para que um chunk nunca fique pela metade
+        final File dir = file.getParentFile();
+        if (!dir.exists() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Não foi possível criar o diretório \"" + dir + "\"!");
+        }
+        final File temp = new File(dir, hash + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+        final OutputStream output = new FileOutputStream(temp);
+        try {
+            output.write(method & 0xFF);
+            output.write((method >>> 8) & 0xFF);
+            if (store) {
+                output.write(data, offset, length);
+            } else {
+                compressed.writeTo(output);
+            }
+        } finally {
+            output.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            // Outra thread gravou o mesmo chunk ao mesmo tempo
+            if (!file.isFile()) {
+                throw new IOException("Não foi possível gravar o chunk \"" + hash + "\"!");
+            }
+            return new Chunk(hash, length, false);
+        }
+
+        return new Chunk(hash, length, true);
+    }
+
+    /**
+     * Lê o conteúdo (não compactado) do chunk e confere o hash
+     */
+    public byte[] get(String hash) throws IOException {
+
+        final File file = getFile(hash);
+        if (!file.isFile()) {
+            throw new FileNotFoundException("Chunk \"" + hash + "\" não encontrado no repositório!");
+        }
+
+        final DataInputStream input = new DataInputStream(new FileInputStream(file));
+        try {
+            final int method = input.readUnsignedByte() | input.readUnsignedByte() << 8;
+            final InputStream decompressed = Codecs.forMethod(method).decompress(input);
+            final ByteArrayOutputStream output = new ByteArrayOutputStream(Chunker.MAX_SIZE);
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = decompressed.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            final byte[] data = output.toByteArray();
+            if (!hash.equals(hash(data, 0, data.length))) {
+                throw new IOException("Chunk \"" + hash + "\" corrompido no repositório!");
+            }
+            return data;
+        } finally {
+            input.close();
+        }
+    }
+
+    public boolean contains(String hash) {
+        return getFile(hash).isFile();
+    }
+
+    /**
+     * Exclui os chunks que não estão na lista de chunks em uso. Os chunks (e arquivos temporários)
+     * alterados depois de olderThan não são excluídos, pois podem pertencer a um backup em andamento.
+     *
+     * @param referenced Hashes dos chunks em uso
+     * @param olderThan  Data limite (em milissegundos)
+     * @return Quantidade de bytes liberados
+     */
+    public long deleteUnreferenced(Set<String> referenced, long olderThan) {
+        long freed = 0;
+        for (File dir : listFiles(directory)) {
+            if (!dir.isDirectory()) {
+                continue;
+            }
+            for (File file : listFiles(dir)) {
+                final String name = file.getName();
+                final boolean temp = name.endsWith(TEMP_SUFFIX);
+                if ((temp || !referenced.contains(name)) && file.lastModified() < olderThan) {
+                    final long length = file.length();
+                    if (file.delete()) {
+                        freed += length;
+                    }
+                }
+            }
+            // Remove o diretório, se tiver ficado vazio
+            dir.delete();
+        }
+        return freed;
+    }
+
+    /**
+     * Retorna os hashes de todos os chunks do repositório
+     */
+    public List<String> list() {
+        final List<String> hashes = new ArrayList<>();
+        for (File dir : listFiles(directory)) {
+            for (File file : listFiles(dir)) {
+                if (!file.getName().endsWith(TEMP_SUFFIX)) {
+                    hashes.add(file.getName());
+                }
+            }
+        }
+        return hashes;
+    }
+
+    private File getFile(String hash) {
+        return new File(new File(directory, hash.substring(0, 2)), hash);
+    }
+
+    private static File[] listFiles(File dir) {
+        final File[] files = dir.listFiles();
+        return files != null ? files : new File[0];
+    }
+
+    static String hash(byte[] data, int offset, int length) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(data, offset, length);
+        final byte[] bytes = digest.digest();
+        final char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >>> 4) & 0x0F];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0x0F];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Referência a um chunk gravado
+     */
+    public static class Chunk {
+
+        private final String hash;
+
+        private final int length;
+
+        private final boolean created;
+
+        Chunk(String hash, int length, boolean created) {
+            this.hash = hash;
+            this.length = length;
+            this.created = created;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Indica se o chunk foi gravado agora (false quando já existia no repositório)
+         */
+        public boolean isCreated() {
+            return created;
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package br.com.dercilima.firebackuplib.repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Divide um stream em pedaços (chunks) de tamanho variável, definidos pelo próprio conteúdo
+ * (content-defined chunking, com um rolling hash do tipo "gear", como no FastCDC).
+ * <p>
+ * Como o corte depende apenas dos bytes ao redor, uma alteração no meio do arquivo muda só
+ * os chunks próximos a ela: os demais continuam iguais e não precisam ser gravados de novo.
+ */
+public class Chunker {
+
+    public static final int MIN_SIZE = 16 * 1024;
+
+    public static final int MAX_SIZE = 256 * 1024;
+
+    // Um corte a cada 64 KiB, em média
+    private static final long MASK = (1L << 16) - 1;
+
+    // Tabela fixa do gear hash. Mudar a tabela não quebra os backups, mas acaba com a deduplicação
+    // entre os chunks já gravados e os novos.
+    private static final long[] GEAR = new long[256];
+
+    static {
+        long seed = 0x46697265426B7570L;
+        for (int i = 0; i < GEAR.length; i++) {
+            // SplitMix64
+            seed += 0x9E3779B97F4A7C15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final InputStream input;
+
+    private final byte[] buffer = new byte[MAX_SIZE * 2];
+
+    private int start = 0;
+
+    private int end = 0;
+
+    // Início do chunk atual no buffer
+    private int offset = 0;
+
+    private boolean eof = false;
+
+
+    public Chunker(InputStream input) {
+        this.input = input;
+    }
+
+    /**
+     * Avança para o próximo chunk. Os dados ficam em {@link #getBuffer()}, a partir de {@link #getOffset()},
+     * até a próxima chamada.
+     *
+     * @return Tamanho do chunk, ou 0 no final do stream
+     */
+    public int next() throws IOException {
+
+        fill();
+
+        final int available = end - start;
+        if (available == 0) {
+            return 0;
+        }
+
+        // Sem um corte, o stream terminou (o buffer sempre tem MAX_SIZE bytes, se o stream tiver)
+        final int cut = cut(buffer, start, available);
+        final int length = cut > 0 ? cut : available;
+
+        offset = start;
+        start += length;
+        return length;
+    }
+
+    /**
+     * Procura o final do chunk que começa em offset
+     *
+     * @return Tamanho do chunk, ou -1 se os dados terminarem antes de um corte
+     * (e antes do tamanho máximo do chunk)
+     */
+    public static int cut(byte[] data, int offset, int length) {
+        final int limit = Math.min(length, MAX_SIZE);
+        long hash = 0;
+        for (int i = MIN_SIZE; i < limit; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+            if ((hash & MASK) == 0) {
+                return i + 1;
+            }
+        }
+        return length >= MAX_SIZE ? MAX_SIZE : -1;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    // Mantém pelo menos MAX_SIZE bytes no buffer (quando o stream tiver)
+    private void fill() throws IOException {
+        if (eof || end - start >= MAX_SIZE) {
+            return;
+        }
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        while (end < buffer.length) {
+            final int read = input.read(buffer, end, buffer.length - end);
+            if (read == -1) {
+                eof = true;
+                break;
+            }
+            end += read;
+        }
+    }
+
+}
@@ -0,0 +1,152 @@
+package br.com.dercilima.firebackuplib.repository;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Manifesto de um backup no repositório: a lista de arquivos e, para cada arquivo,
+ * os chunks (na ordem) que formam o seu conteúdo.
+ */
+public class Snapshot {
+
+    public static final String SUFFIX = ".snapshot";
+
+    private static final int MAGIC = 0x4642534E; // "FBSN"
+    private static final int VERSION = 1;
+
+    private final String name;
+
+    private final long createdAt;
+
+    private final List<FileEntry> files;
+
+
+    Snapshot(String name, long createdAt, List<FileEntry> files) {
+        this.name = name;
+        this.createdAt = createdAt;
+        this.files = files;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public List<FileEntry> getFiles() {
+        return Collections.unmodifiableList(files);
+    }
+
+    public void write(OutputStream output) throws IOException {
+        final DataOutputStream data = new DataOutputStream(output);
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        data.writeUTF(name);
+        data.writeLong(createdAt);
+        data.writeInt(files.size());
+        for (FileEntry file : files) {
+            data.writeUTF(file.name);
+            data.writeLong(file.size);
+            data.writeInt(file.chunks.size());
+            for (ChunkStore.Chunk chunk : file.chunks) {
+                data.writeUTF(chunk.getHash());
+                data.writeInt(chunk.getLength());
+            }
+        }
+        data.flush();
+    }
+
+    public static Snapshot read(InputStream input) throws IOException {
+        final DataInputStream data = new DataInputStream(input);
+        if (data.readInt() != MAGIC || data.readByte() != VERSION) {
+            throw new IOException("Manifesto do snapshot inválido!");
+        }
+        final String name = data.readUTF();
+        final long createdAt = data.readLong();
+        final int fileCount = data.readInt();
+        final List<FileEntry> files = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            final FileEntry file = new FileEntry(data.readUTF());
+            file.size = data.readLong();
+            final int chunkCount = data.readInt();
+            for (int c = 0; c < chunkCount; c++) {
+                file.chunks.add(new ChunkStore.Chunk(data.readUTF(), data.readInt(), false));
+            }
+            files.add(file);
+        }
+        return new Snapshot(name, createdAt, files);
+    }
+
+    /**
+     * Grava o manifesto em disco. O arquivo é criado com um rename, para nunca ficar pela metade.
+     */
+    public void save(File file) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        final OutputStream output = new BufferedOutputStream(new FileOutputStream(temp));
+        try {
+            write(output);
+        } finally {
+            output.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Não foi possível gravar o snapshot \"" + file + "\"!");
+        }
+    }
+
+    public static Snapshot load(File file) throws IOException {
+        final InputStream input = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return read(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Um arquivo do snapshot
+     */
+    public static class FileEntry {
+
+        private final String name;
+
+        private long size = 0;
+
+        private final List<ChunkStore.Chunk> chunks = new ArrayList<>();
+
+        FileEntry(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public List<ChunkStore.Chunk> getChunks() {
+            return Collections.unmodifiableList(chunks);
+        }
+
+        void add(ChunkStore.Chunk chunk) {
+            chunks.add(chunk);
+            size += chunk.getLength();
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+package br.com.dercilima.firebackuplib.repository;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import br.com.dercilima.firebackuplib.archive.EntryReader;
+
+/**
+ * Lê as entradas de um snapshot do repositório, remontando cada arquivo a partir dos seus chunks
+ */
+public class SnapshotReader implements EntryReader {
+
+    private final ChunkStore store;
+
+    private final Snapshot snapshot;
+
+    private int index = -1;
+
+
+    SnapshotReader(ChunkStore store, Snapshot snapshot) {
+        this.store = store;
+        this.snapshot = snapshot;
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public String nextEntry() {
+        final List<Snapshot.FileEntry> files = snapshot.getFiles();
+        return ++index < files.size() ? files.get(index).getName() : null;
+    }
+
+    @Override
+    public InputStream getEntryStream() {
+        if (index < 0 || index >= snapshot.getFiles().size()) {
+            throw new IllegalStateException("Nenhuma entrada aberta no backup!");
+        }
+        return new ChunkInputStream(snapshot.getFiles().get(index).getChunks().iterator());
+    }
+
+    @Override
+    public void copyEntryTo(File dest) throws IOException {
+        final InputStream input = getEntryStream();
+        final OutputStream output = new FileOutputStream(dest);
+        try {
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    @Override
+    public void verifyEntry() {
+        // Cada chunk é conferido pelo hash ao ser lido, e os chunks não lidos não são usados
+    }
+
+    /**
+     * Confere a integridade do snapshot, sem extrair nenhum arquivo
+     *
+     * @param full true para ler cada chunk e conferir o seu hash, false para apenas conferir se todos existem
+     */
+    @Override
+    public void verify(boolean full) throws IOException {
+        // Os chunks repetidos (deduplicados) são conferidos uma única vez
+        final Set<String> checked = new HashSet<>();
+        for (Snapshot.FileEntry file : snapshot.getFiles()) {
+            for (ChunkStore.Chunk chunk : file.getChunks()) {
+                if (!checked.add(chunk.getHash())) {
+                    continue;
+                }
+                if (full ? store.get(chunk.getHash()).length != chunk.getLength() : !store.contains(chunk.getHash())) {
+                    throw new IOException("Chunk \"" + chunk.getHash() + "\" do arquivo \"" + file.getName() + "\" inválido!");
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        // Os chunks são abertos e fechados um a um
+    }
+
+    // Lê os chunks em sequência, conferindo o hash de cada um
+    private class ChunkInputStream extends InputStream {
+
+        private final Iterator<ChunkStore.Chunk> chunks;
+
+        private byte[] current = new byte[0];
+
+        private int position = 0;
+
+        ChunkInputStream(Iterator<ChunkStore.Chunk> chunks) {
+            this.chunks = chunks;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == current.length) {
+                if (!chunks.hasNext()) {
+                    return -1;
+                }
+                final ChunkStore.Chunk chunk = chunks.next();
+                current = store.get(chunk.getHash());
+                position = 0;
+                if (current.length != chunk.getLength()) {
+                    throw new IOException("Tamanho do chunk \"" + chunk.getHash() + "\" inválido!");
+                }
+            }
+            final int count = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, count);
+            position += count;
+            return count;
+        }
+    }
+
+}
@@ -0,0 +1,204 @@
+package br.com.dercilima.firebackuplib.repository;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import br.com.dercilima.firebackuplib.archive.ArchiveManifest;
+import br.com.dercilima.firebackuplib.archive.EntryWriter;
+import br.com.dercilima.firebackuplib.compress.Codec;
+import br.com.dercilima.firebackuplib.compress.CodecPolicy;
+import br.com.dercilima.firebackuplib.compress.FixedCodecPolicy;
+import br.com.dercilima.firebackuplib.utils.MonitoredInputStream;
+import br.com.dercilima.firebackuplib.utils.TransferMonitor;
+
+/**
+ * Grava as entradas de um backup no repositório: cada entrada é dividida em chunks, apenas os
+ * chunks que ainda não existem são gravados e, no {@link #commit()}, é gravado o manifesto do snapshot.
+ * <p>
+ * Pode ser usado por várias threads ao mesmo tempo (uma entrada por thread).
+ */
+public class SnapshotWriter implements EntryWriter {
+
+    private final ChunkStore store;
+
+    private final File snapshotFile;
+
+    private final String name;
+
+    private final CodecPolicy codecPolicy;
+
+    private final List<Snapshot.FileEntry> files = new ArrayList<>();
+
+    // Bytes lidos das entradas e bytes que precisaram ser gravados (chunks novos)
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    private final AtomicLong newBytes = new AtomicLong();
+
+    private TransferMonitor transferMonitor;
+
+    private boolean committed = false;
+
+
+    SnapshotWriter(ChunkStore store, File snapshotFile, String name, CodecPolicy codecPolicy) {
+        this.store = store;
+        this.snapshotFile = snapshotFile;
+        this.name = name;
+        this.codecPolicy = codecPolicy != null ? codecPolicy : FixedCodecPolicy.DEFAULT;
+    }
+
+    @Override
+    public OutputStream openEntry(String entryName) throws IOException {
+        return new ChunkingOutputStream(new Snapshot.FileEntry(entryName), codecPolicy.select(entryName, null));
+    }
+
+    @Override
+    public void putFile(String entryName, File source) throws IOException {
+        final Snapshot.FileEntry file = new Snapshot.FileEntry(entryName);
+        final Codec codec = codecPolicy.select(entryName, source);
+        final InputStream input = MonitoredInputStream.wrap(new FileInputStream(source), transferMonitor);
+        try {
+            final Chunker chunker = new Chunker(input);
+            int length;
+            while ((length = chunker.next()) > 0) {
+                add(file, chunker.getBuffer(), chunker.getOffset(), length, codec);
+            }
+        } finally {
+            input.close();
+        }
+        addFile(file);
+    }
+
+    /**
+     * Informa os bytes lidos dos arquivos de putFile(), a cada leitura do chunker, e interrompe a
+     * divisão em chunks quando o monitor indicar o cancelamento (o snapshot não é finalizado)
+     *
+     * @param transferMonitor Monitor, ou null
+     */
+    public void setTransferMonitor(TransferMonitor transferMonitor) {
+        this.transferMonitor = transferMonitor;
+    }
+
+    @Override
+    public void describeEntry(String entryName, ArchiveManifest.Kind kind, String path) {
+        // O manifesto do snapshot já lista as entradas e os seus chunks
+    }
+
+    /**
+     * Grava o manifesto do snapshot. Sem o commit, os chunks gravados não pertencem a nenhum
+     * snapshot e são excluídos na próxima coleta de lixo.
+     *
+     * @return Arquivo do manifesto
+     */
+    public File commit() throws IOException {
+        synchronized (files) {
+            if (committed) {
+                throw new IllegalStateException("Snapshot já finalizado!");
+            }
+            committed = true;
+            new Snapshot(name, System.currentTimeMillis(), new ArrayList<>(files)).save(snapshotFile);
+        }
+        return snapshotFile;
+    }
+
+    /**
+     * Quantidade de bytes (não compactados) das entradas gravadas
+     */
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * Quantidade de bytes (não compactados) que não existiam no repositório. O restante foi deduplicado.
+     */
+    public long getNewBytes() {
+        return newBytes.get();
+    }
+
+    private void add(Snapshot.FileEntry file, byte[] data, int offset, int length, Codec codec) throws IOException {
+        final ChunkStore.Chunk chunk = store.put(data, offset, length, codec);
+        file.add(chunk);
+        totalBytes.addAndGet(length);
+        if (chunk.isCreated()) {
+            newBytes.addAndGet(length);
+        }
+    }
+
+    private void addFile(Snapshot.FileEntry file) {
+        synchronized (files) {
+            if (committed) {
+                throw new IllegalStateException("Snapshot já finalizado!");
+            }
+            files.add(file);
+        }
+    }
+
+    // Divide em chunks o que é escrito. Ao fechar, a entrada é adicionada ao snapshot.
+    private class ChunkingOutputStream extends OutputStream {
+
+        private final Snapshot.FileEntry file;
+
+        private final Codec codec;
+
+        private final byte[] buffer = new byte[Chunker.MAX_SIZE];
+
+        private int length = 0;
+
+        private boolean closed = false;
+
+        ChunkingOutputStream(Snapshot.FileEntry file, Codec codec) {
+            this.file = file;
+            this.codec = codec;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                final int count = Math.min(len, buffer.length - length);
+                System.arraycopy(b, off, buffer, length, count);
+                length += count;
+                off += count;
+                len -= count;
+                if (length == buffer.length) {
+                    flushChunks();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            flushChunks();
+            if (length > 0) {
+                add(file, buffer, 0, length, codec);
+            }
+            addFile(file);
+        }
+
+        // Grava os chunks já definidos. O que sobra (sem um corte) aguarda os próximos bytes.
+        private void flushChunks() throws IOException {
+            int offset = 0;
+            int cut;
+            while ((cut = Chunker.cut(buffer, offset, length - offset)) > 0) {
+                add(file, buffer, offset, cut, codec);
+                offset += cut;
+            }
+            System.arraycopy(buffer, offset, buffer, 0, length - offset);
+            length -= offset;
+        }
+    }
+
+}
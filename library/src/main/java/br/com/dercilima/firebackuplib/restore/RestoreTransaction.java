@@ -0,0 +1,339 @@
+package br.com.dercilima.firebackuplib.restore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Troca os arquivos do app pelos arquivos restaurados de forma atômica, com um journal para
+ * que um restore interrompido (o app foi encerrado no meio) seja desfeito ou concluído depois.
+ * <p>
+ * Os arquivos restaurados são gravados ao lado dos arquivos de destino ({@link #stage(File)}).
+ * No {@link #commit(Applier)}:
+ * <ol>
+ * <li>os arquivos preparados são gravados em disco (fsync) e o journal é gravado como PREPARADO;</li>
+ * <li>cada arquivo atual é renomeado para "nome.rollback" e o arquivo preparado é renomeado para o
+ * nome definitivo (no mesmo diretório, o rename é atômico);</li>
+ * <li>o journal é gravado como CONFIRMADO e as alterações que não são arquivos (as preferências,
+ * aplicadas pelo {@link Applier}) são feitas;</li>
+ * <li>os arquivos ".rollback" e o journal são excluídos.</li>
+ * </ol>
+ * Se o processo for interrompido antes da confirmação, o {@link #recover(File, Applier)} desfaz a troca
+ * (os arquivos ".rollback" voltam para o lugar). Depois da confirmação, ele conclui o que faltou.
+ */
+public class RestoreTransaction {
+
+    /**
+     * Aplica uma alteração preparada que não é um arquivo (as preferências, por exemplo)
+     */
+    public interface Applier {
+
+        /**
+         * @param key    Identificação da alteração, informada no {@link #stageApply(String, File)}
+         * @param staged Arquivo com os dados da alteração
+         */
+        void apply(String key, File staged) throws IOException;
+
+    }
+
+    public static final String STAGED_SUFFIX = ".restore";
+
+    public static final String ROLLBACK_SUFFIX = ".rollback";
+
+    private static final int MAGIC = 0x4642524A; // "FBRJ"
+    private static final int VERSION = 1;
+
+    private static final int STATE_PREPARED = 1;
+    private static final int STATE_COMMITTED = 2;
+
+    private static final int OP_REPLACE = 1;
+    private static final int OP_DELETE = 2;
+    private static final int OP_APPLY = 3;
+
+    private final File journal;
+
+    private final List<Operation> operations = new ArrayList<>();
+
+    private boolean finished = false;
+
+
+    /**
+     * @param journal Arquivo do journal. Deve ser o mesmo informado no {@link #recover(File, Applier)}.
+     */
+    public RestoreTransaction(File journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Prepara a substituição do arquivo de destino
+     *
+     * @param target Arquivo do app que será substituído
+     * @return Arquivo onde o conteúdo restaurado deve ser gravado (ao lado do destino)
+     */
+    public File stage(File target) {
+        final File staged = new File(target.getPath() + STAGED_SUFFIX);
+        operations.add(new Operation(OP_REPLACE, target.getPath(), staged.getPath()));
+        return staged;
+    }
+
+    /**
+     * Prepara a exclusão do arquivo, caso exista (o arquivo é mantido até a confirmação)
+     */
+    public void delete(File target) {
+        operations.add(new Operation(OP_DELETE, target.getPath(), null));
+    }
+
+    /**
+     * Prepara uma alteração que será feita pelo {@link Applier}, depois da troca dos arquivos
+     *
+     * @param key    Identificação da alteração, repassada ao Applier
+     * @param staged Arquivo onde os dados da alteração devem ser gravados
+     * @return O próprio arquivo informado
+     */
+    public File stageApply(String key, File staged) {
+        operations.add(new Operation(OP_APPLY, key, staged.getPath()));
+        return staged;
+    }
+
+    /**
+     * Troca os arquivos e aplica as alterações. Em caso de erro antes da troca estar completa,
+     * tudo é desfeito e a exceção é lançada.
+     */
+    public void commit(Applier applier) throws IOException {
+
+        if (finished) {
+            throw new IllegalStateException("Restore já finalizado!");
+        }
+        finished = true;
+
+        try {
+            for (Operation operation : operations) {
+                if (operation.staged != null) {
+                    sync(new File(operation.staged));
+                }
+                operation.existed = operation.type != OP_APPLY && new File(operation.target).exists();
+            }
+            writeJournal(journal, STATE_PREPARED, operations);
+            for (Operation operation : operations) {
+                operation.forward();
+            }
+        } catch (IOException | RuntimeException e) {
+            rollBack(operations);
+            deleteJournal(journal);
+            throw e;
+        }
+
+        writeJournal(journal, STATE_COMMITTED, operations);
+        finish(operations, applier);
+        deleteJournal(journal);
+    }
+
+    /**
+     * Desfaz o restore antes do commit: exclui os arquivos preparados
+     */
+    public void rollback() {
+        if (!finished) {
+            finished = true;
+            for (Operation operation : operations) {
+                if (operation.staged != null) {
+                    new File(operation.staged).delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Desfaz ou conclui um restore interrompido. Deve ser chamado antes de abrir os bancos de dados.
+     *
+     * @return false se não havia nenhum restore interrompido
+     */
+    public static boolean recover(File journal, Applier applier) throws IOException {
+
+        if (!journal.exists()) {
+            return false;
+        }
+
+        final List<Operation> operations = new ArrayList<>();
+        final int state;
+        try {
+            state = readJournal(journal, operations);
+        } catch (IOException e) {
+            // Journal incompleto: foi interrompido antes de qualquer arquivo ser trocado
+            deleteJournal(journal);
+            return true;
+        }
+
+        if (state == STATE_COMMITTED) {
+            finish(operations, applier);
+        } else {
+            rollBack(operations);
+        }
+        deleteJournal(journal);
+        return true;
+    }
+
+    // Aplica as alterações pendentes e exclui os arquivos antigos
+    private static void finish(List<Operation> operations, Applier applier) throws IOException {
+        for (Operation operation : operations) {
+            if (operation.type == OP_APPLY) {
+                final File staged = new File(operation.staged);
+                if (staged.exists()) {
+                    applier.apply(operation.target, staged);
+                    deleteFile(staged);
+                }
+            }
+        }
+        for (Operation operation : operations) {
+            if (operation.type != OP_APPLY) {
+                deleteFile(operation.rollbackFile());
+            }
+        }
+    }
+
+    private static void rollBack(List<Operation> operations) {
+        for (int i = operations.size() - 1; i >= 0; i--) {
+            operations.get(i).backward();
+        }
+    }
+
+    // Operação do restore, gravada no journal
+    private static class Operation {
+
+        final int type;
+        final String target;
+        final String staged;
+
+        // Se o destino existia antes da troca (definido ao preparar o commit)
+        boolean existed;
+
+        Operation(int type, String target, String staged) {
+            this.type = type;
+            this.target = target;
+            this.staged = staged;
+        }
+
+        File rollbackFile() {
+            return new File(target + ROLLBACK_SUFFIX);
+        }
+
+        void forward() throws IOException {
+            if (type == OP_APPLY) {
+                return;
+            }
+            final File target = new File(this.target);
+            if (existed) {
+                rename(target, rollbackFile());
+            }
+            if (type == OP_REPLACE) {
+                rename(new File(staged), target);
+            }
+        }
+
+        // Pode ser repetido: o estado de cada arquivo é conferido antes de alterá-lo
+        void backward() {
+            if (staged != null) {
+                new File(staged).delete();
+            }
+            if (type == OP_APPLY) {
+                return;
+            }
+            final File target = new File(this.target);
+            final File rollback = rollbackFile();
+            if (!existed) {
+                // O arquivo restaurado não substituiu nenhum arquivo
+                if (type == OP_REPLACE) {
+                    target.delete();
+                }
+            } else if (rollback.exists()) {
+                // O arquivo original volta para o lugar, substituindo o restaurado
+                target.delete();
+                rollback.renameTo(target);
+            }
+        }
+    }
+
+    private static void writeJournal(File journal, int state, List<Operation> operations) throws IOException {
+        final File dir = journal.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Não foi possível criar o diretório \"" + dir + "\"!");
+        }
+        final File temp = new File(journal.getPath() + ".tmp");
+        final FileOutputStream output = new FileOutputStream(temp);
+        try {
+            final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(output));
+            data.writeInt(MAGIC);
+            data.writeByte(VERSION);
+            data.writeByte(state);
+            data.writeInt(operations.size());
+            for (Operation operation : operations) {
+                data.writeByte(operation.type);
+                data.writeUTF(operation.target);
+                data.writeUTF(operation.staged != null ? operation.staged : "");
+                data.writeBoolean(operation.existed);
+            }
+            data.flush();
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        rename(temp, journal);
+    }
+
+    private static int readJournal(File journal, List<Operation> operations) throws IOException {
+        final DataInputStream data = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+        try {
+            if (data.readInt() != MAGIC || data.readUnsignedByte() != VERSION) {
+                throw new IOException("Journal do restore inválido!");
+            }
+            final int state = data.readUnsignedByte();
+            final int count = data.readInt();
+            for (int i = 0; i < count; i++) {
+                final int type = data.readUnsignedByte();
+                final String target = data.readUTF();
+                final String staged = data.readUTF();
+                final Operation operation = new Operation(type, target, staged.isEmpty() ? null : staged);
+                operation.existed = data.readBoolean();
+                operations.add(operation);
+            }
+            return state;
+        } finally {
+            data.close();
+        }
+    }
+
+    private static void deleteJournal(File journal) {
+        journal.delete();
+        new File(journal.getPath() + ".tmp").delete();
+    }
+
+    // Grava em disco o conteúdo do arquivo, para que o journal nunca aponte para um arquivo incompleto
+    private static void sync(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            throw new IOException("Não foi possível renomear \"" + from.getName() + "\" para \"" + to.getName() + "\"!");
+        }
+    }
+
+    private static void deleteFile(File file) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Não foi possível excluir o arquivo \"" + file.getName() + "\"!");
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+package br.com.dercilima.firebackuplib.retention;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import br.com.dercilima.firebackuplib.catalog.BackupCatalog;
+import br.com.dercilima.firebackuplib.catalog.CatalogEntry;
+import br.com.dercilima.firebackuplib.repository.ChunkRepository;
+import br.com.dercilima.firebackuplib.schedule.Clock;
+import br.com.dercilima.firebackuplib.upload.StorageBackend;
+
+/**
+ * Aplica a {@link RetentionPolicy} aos backups do catálogo: no aparelho, aos backups que existem no
+ * diretório, e no Storage, aos backups enviados. Os backups são escolhidos pelo catálogo, sem listar
+ * o diretório nem o Storage, então cada execução só avalia os dados já indexados.
+ * <p>
+ * Um backup excluído do aparelho, mas que está no Storage, continua no catálogo (e vice-versa).
+ */
+public class RetentionEngine {
+
+    private final BackupCatalog catalog;
+
+    private final Clock clock;
+
+
+    public RetentionEngine(BackupCatalog catalog) {
+        this(catalog, Clock.SYSTEM);
+    }
+
+    /**
+     * @param clock Relógio usado no limite de idade
+     */
+    public RetentionEngine(BackupCatalog catalog, Clock clock) {
+        this.catalog = catalog;
+        this.clock = clock;
+    }
+
+    /**
+     * Exclui do aparelho os backups que a política não mantém. Nos snapshots do repositório, os
+     * chunks que não são mais usados são liberados na coleta de lixo, ao final.
+     *
+     * @return Backups excluídos
+     */
+    public List<CatalogEntry> applyLocal(RetentionPolicy policy) throws IOException {
+
+        final List<CatalogEntry> candidates = new ArrayList<>();
+        for (CatalogEntry entry : catalog.list()) {
+            if (catalog.getFile(entry).exists()) {
+                candidates.add(entry);
+            }
+        }
+        final Set<String> keep = policy.select(candidates, clock.currentTimeMillis());
+
+        final List<CatalogEntry> deleted = new ArrayList<>();
+        final Set<File> repositories = new HashSet<>();
+        for (CatalogEntry entry : candidates) {
+            if (keep.contains(entry.getName())) {
+                continue;
+            }
+            final File file = catalog.getFile(entry);
+            if (ChunkRepository.isSnapshotFile(file)) {
+                final ChunkRepository repository = ChunkRepository.forSnapshotFile(file);
+                if (!repository.deleteSnapshot(getSnapshotName(file))) {
+                    continue;
+                }
+                repositories.add(repository.getDirectory());
+            } else if (!file.delete()) {
+                continue;
+            }
+            if (entry.getUploadState() != CatalogEntry.UploadState.UPLOADED) {
+                catalog.remove(entry.getName());
+            }
+            deleted.add(entry);
+        }
+
+        for (File directory : repositories) {
+            new ChunkRepository(directory).collectGarbage();
+        }
+        return deleted;
+    }
+
+    /**
+     * Exclui do Storage os backups enviados que a política não mantém
+     *
+     * @param backend         Destino dos uploads
+     * @param remoteDirectory Diretório dos backups no destino, ou null para a raiz
+     * @return Backups excluídos
+     */
+    public List<CatalogEntry> applyRemote(RetentionPolicy policy, StorageBackend backend, String remoteDirectory) throws IOException {
+
+        final List<CatalogEntry> candidates = new ArrayList<>();
+        for (CatalogEntry entry : catalog.list()) {
+            if (entry.getUploadState() == CatalogEntry.UploadState.UPLOADED) {
+                candidates.add(entry);
+            }
+        }
+        final Set<String> keep = policy.select(candidates, clock.currentTimeMillis());
+
+        final List<CatalogEntry> deleted = new ArrayList<>();
+        for (CatalogEntry entry : candidates) {
+            if (keep.contains(entry.getName())) {
+                continue;
+            }
+            backend.delete(getRemotePath(remoteDirectory, entry));
+            if (catalog.getFile(entry).exists()) {
+                catalog.setUploadState(entry.getName(), CatalogEntry.UploadState.NONE, null);
+            } else {
+                catalog.remove(entry.getName());
+            }
+            deleted.add(entry);
+        }
+        return deleted;
+    }
+
+    /**
+     * Caminho do backup no destino (o mesmo usado no upload)
+     */
+    protected String getRemotePath(String remoteDirectory, CatalogEntry entry) {
+        final String name = new File(entry.getName()).getName();
+        if (remoteDirectory != null && !remoteDirectory.trim().isEmpty()) {
+            return remoteDirectory + "/" + name;
+        }
+        return name;
+    }
+
+    private static String getSnapshotName(File snapshotFile) {
+        final String fileName = snapshotFile.getName();
+        return fileName.substring(0, fileName.lastIndexOf('.'));
+    }
+
+}
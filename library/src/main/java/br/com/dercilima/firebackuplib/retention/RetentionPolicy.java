@@ -0,0 +1,252 @@
+package br.com.dercilima.firebackuplib.retention;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import br.com.dercilima.firebackuplib.catalog.CatalogEntry;
+
+/**
+ * Regras de retenção dos backups, no esquema avô-pai-filho (GFS): os N backups mais recentes, o
+ * mais recente de cada uma das N últimas horas, dias, semanas e meses, com limites opcionais de
+ * idade e de tamanho total. Um backup é mantido se qualquer uma das regras o mantiver.
+ * <p>
+ * O backup mais recente nunca é excluído, e os backups base de um backup incremental mantido
+ * também são mantidos (sem eles, o incremental não pode ser restaurado).
+ */
+public class RetentionPolicy {
+
+    private enum Period {
+        HOUR, DAY, WEEK, MONTH
+    }
+
+    private int keepLast = 1;
+
+    private int hourly = 0;
+
+    private int daily = 0;
+
+    private int weekly = 0;
+
+    private int monthly = 0;
+
+    private long maxAgeMillis = 0;
+
+    private long maxTotalSize = 0;
+
+    private TimeZone timeZone = TimeZone.getDefault();
+
+
+    /**
+     * Mantém os N backups mais recentes. O padrão é 1.
+     */
+    public RetentionPolicy setKeepLast(int keepLast) {
+        this.keepLast = checkCount(keepLast);
+        return this;
+    }
+
+    /**
+     * Mantém o backup mais recente de cada uma das N últimas horas que têm backup
+     */
+    public RetentionPolicy setHourly(int hourly) {
+        this.hourly = checkCount(hourly);
+        return this;
+    }
+
+    /**
+     * Mantém o backup mais recente de cada um dos N últimos dias que têm backup
+     */
+    public RetentionPolicy setDaily(int daily) {
+        this.daily = checkCount(daily);
+        return this;
+    }
+
+    /**
+     * Mantém o backup mais recente de cada uma das N últimas semanas (de segunda a domingo) que têm backup
+     */
+    public RetentionPolicy setWeekly(int weekly) {
+        this.weekly = checkCount(weekly);
+        return this;
+    }
+
+    /**
+     * Mantém o backup mais recente de cada um dos N últimos meses que têm backup
+     */
+    public RetentionPolicy setMonthly(int monthly) {
+        this.monthly = checkCount(monthly);
+        return this;
+    }
+
+    /**
+     * Exclui os backups mais antigos que a idade informada, mesmo que alguma regra os mantenha
+     *
+     * @param maxAgeMillis Idade máxima, em milissegundos (0 = sem limite)
+     */
+    public RetentionPolicy setMaxAge(long maxAgeMillis) {
+        if (maxAgeMillis < 0) {
+            throw new IllegalArgumentException("Idade máxima não pode ser negativa!");
+        }
+        this.maxAgeMillis = maxAgeMillis;
+        return this;
+    }
+
+    /**
+     * Exclui os backups mais antigos quando o tamanho dos backups mantidos passar do limite
+     *
+     * @param maxTotalSize Tamanho máximo, em bytes (0 = sem limite)
+     */
+    public RetentionPolicy setMaxTotalSize(long maxTotalSize) {
+        if (maxTotalSize < 0) {
+            throw new IllegalArgumentException("Tamanho máximo não pode ser negativo!");
+        }
+        this.maxTotalSize = maxTotalSize;
+        return this;
+    }
+
+    /**
+     * Fuso horário usado para separar as horas, os dias, as semanas e os meses. O padrão é o do aparelho.
+     */
+    public RetentionPolicy setTimeZone(TimeZone timeZone) {
+        this.timeZone = timeZone;
+        return this;
+    }
+
+    /**
+     * Escolhe os backups mantidos
+     *
+     * @param entries Backups considerados (os demais não são afetados)
+     * @param now     Data atual, em milissegundos
+     * @return Nomes dos backups mantidos
+     */
+    public Set<String> select(List<CatalogEntry> entries, long now) {
+
+        // Do mais recente para o mais antigo
+        final List<CatalogEntry> sorted = new ArrayList<>(entries);
+        Collections.sort(sorted, new Comparator<CatalogEntry>() {
+            @Override
+            public int compare(CatalogEntry o1, CatalogEntry o2) {
+                if (o1.getCreatedAt() != o2.getCreatedAt()) {
+                    return o1.getCreatedAt() > o2.getCreatedAt() ? -1 : 1;
+                }
+                return o2.getName().compareTo(o1.getName());
+            }
+        });
+
+        final Set<String> keep = new LinkedHashSet<>();
+        if (sorted.isEmpty()) {
+            return keep;
+        }
+
+        for (int i = 0; i < Math.min(keepLast, sorted.size()); i++) {
+            keep.add(sorted.get(i).getName());
+        }
+        keepPerPeriod(sorted, Period.HOUR, hourly, keep);
+        keepPerPeriod(sorted, Period.DAY, daily, keep);
+        keepPerPeriod(sorted, Period.WEEK, weekly, keep);
+        keepPerPeriod(sorted, Period.MONTH, monthly, keep);
+
+        final CatalogEntry newest = sorted.get(0);
+        keep.add(newest.getName());
+
+        final Map<String, CatalogEntry> byName = new HashMap<>();
+        for (CatalogEntry entry : sorted) {
+            byName.put(entry.getName(), entry);
+        }
+
+        // Do mais recente para o mais antigo, cada backup leva junto a sua cadeia incremental: o limite
+        // de tamanho conta a cadeia inteira, e o limite de idade vale para o backup, não para a sua base
+        final Set<String> selected = new LinkedHashSet<>();
+        long totalSize = 0;
+        for (CatalogEntry entry : sorted) {
+            if (!keep.contains(entry.getName()) || selected.contains(entry.getName())) {
+                continue;
+            }
+            final boolean required = entry == newest;
+            if (!required && maxAgeMillis > 0 && now - entry.getCreatedAt() > maxAgeMillis) {
+                continue;
+            }
+            final Set<String> chain = new LinkedHashSet<>();
+            addChain(entry, byName, selected, chain);
+            long chainSize = 0;
+            for (String name : chain) {
+                chainSize += byName.get(name).getSize();
+            }
+            if (!required && maxTotalSize > 0 && totalSize + chainSize > maxTotalSize) {
+                continue;
+            }
+            totalSize += chainSize;
+            selected.addAll(chain);
+        }
+        return selected;
+    }
+
+    // Mantém o mais recente de cada período, até a quantidade de períodos
+    private void keepPerPeriod(List<CatalogEntry> sorted, Period period, int count, Set<String> keep) {
+        long lastPeriod = Long.MIN_VALUE;
+        int kept = 0;
+        for (CatalogEntry entry : sorted) {
+            if (kept >= count) {
+                return;
+            }
+            final long current = getPeriod(period, entry.getCreatedAt());
+            if (current != lastPeriod) {
+                lastPeriod = current;
+                keep.add(entry.getName());
+                kept++;
+            }
+        }
+    }
+
+    // O backup e as suas bases (que estão entre os backups considerados e ainda não foram selecionadas)
+    private static void addChain(CatalogEntry entry, Map<String, CatalogEntry> byName, Set<String> selected, Set<String> chain) {
+        if (selected.contains(entry.getName()) || !chain.add(entry.getName())) {
+            return;
+        }
+        for (String base : entry.getBaseBackups()) {
+            final CatalogEntry baseEntry = byName.get(base);
+            if (baseEntry != null) {
+                addChain(baseEntry, byName, selected, chain);
+            }
+        }
+    }
+
+    // Número do período no fuso horário da política (as semanas começam na segunda-feira)
+    private long getPeriod(Period period, long time) {
+        final long local = time + timeZone.getOffset(time);
+        switch (period) {
+            case HOUR:
+                return local / TimeUnit.HOURS.toMillis(1);
+            case DAY:
+                return local / TimeUnit.DAYS.toMillis(1);
+            case WEEK:
+                // 01/01/1970 foi uma quinta-feira
+                return (local / TimeUnit.DAYS.toMillis(1) + 3) / 7;
+            default:
+                final Calendar calendar = Calendar.getInstance(timeZone);
+                calendar.setTimeInMillis(time);
+                return calendar.get(Calendar.YEAR) * 12L + calendar.get(Calendar.MONTH);
+        }
+    }
+
+    private static int checkCount(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Quantidade não pode ser negativa!");
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "last=[" + keepLast + "] hourly=[" + hourly + "] daily=[" + daily + "] weekly=[" + weekly
+                + "] monthly=[" + monthly + "] maxAge=[" + maxAgeMillis + " ms] maxSize=[" + maxTotalSize + "]";
+    }
+
+}
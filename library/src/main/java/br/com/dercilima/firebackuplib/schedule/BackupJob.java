@@ -0,0 +1,140 @@
+package br.com.dercilima.firebackuplib.schedule;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Conjunto de bancos de dados e preferências com backup periódico. O nome identifica o job no
+ * agendador e no estado salvo em disco, então precisa ser o mesmo a cada inicialização do app.
+ * <p>
+ * Cada execução é agendada para o intervalo depois da anterior, mais um atraso aleatório de até
+ * {@link #setJitter(long)}, para que os aparelhos não façam o backup (e o upload) no mesmo instante.
+ * Um job que ainda não está na hora, mas está dentro do {@link #setFlex(long)}, é executado junto
+ * com os jobs que já estão na hora, no mesmo backup.
+ */
+public class BackupJob {
+
+    private final String name;
+
+    private final long intervalMillis;
+
+    private final Set<String> databases = new LinkedHashSet<>();
+
+    private final Set<String> preferences = new LinkedHashSet<>();
+
+    private long jitterMillis;
+
+    private long flexMillis;
+
+    private long maxDelayMillis = 0;
+
+    private Constraints constraints = new Constraints();
+
+
+    /**
+     * @param name           Nome do job
+     * @param intervalMillis Intervalo entre os backups, em milissegundos
+     */
+    public BackupJob(String name, long intervalMillis) {
+        if (name == null || name.trim().isEmpty()) {
+            throw new IllegalArgumentException("O nome do job precisa ser informado!");
+        }
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Intervalo precisa ser maior que zero!");
+        }
+        this.name = name;
+        this.intervalMillis = intervalMillis;
+        // Padrão: até 10% de atraso aleatório e 25% de antecipação para juntar com outros jobs
+        this.jitterMillis = intervalMillis / 10;
+        this.flexMillis = intervalMillis / 4;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public BackupJob addDatabase(String databaseName) {
+        databases.add(databaseName);
+        return this;
+    }
+
+    public BackupJob addPreferences(String preferencesName) {
+        preferences.add(preferencesName);
+        return this;
+    }
+
+    public Set<String> getDatabases() {
+        return Collections.unmodifiableSet(databases);
+    }
+
+    public Set<String> getPreferences() {
+        return Collections.unmodifiableSet(preferences);
+    }
+
+    public long getJitterMillis() {
+        return jitterMillis;
+    }
+
+    /**
+     * Atraso aleatório máximo de cada execução. O padrão é 10% do intervalo.
+     */
+    public BackupJob setJitter(long jitterMillis) {
+        if (jitterMillis < 0) {
+            throw new IllegalArgumentException("Jitter não pode ser negativo!");
+        }
+        this.jitterMillis = jitterMillis;
+        return this;
+    }
+
+    public long getFlexMillis() {
+        return flexMillis;
+    }
+
+    /**
+     * Antecedência com que o job pode ser executado junto com outro job que já está na hora.
+     * O padrão é 25% do intervalo (0 nunca antecipa).
+     */
+    public BackupJob setFlex(long flexMillis) {
+        if (flexMillis < 0 || flexMillis > intervalMillis) {
+            throw new IllegalArgumentException("Flex precisa estar entre zero e o intervalo!");
+        }
+        this.flexMillis = flexMillis;
+        return this;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    /**
+     * Atraso máximo por causa das condições: passado esse tempo da hora agendada, o job é executado
+     * mesmo sem as condições atendidas. O padrão (0) sempre aguarda as condições.
+     */
+    public BackupJob setMaxDelay(long maxDelayMillis) {
+        if (maxDelayMillis < 0) {
+            throw new IllegalArgumentException("Atraso máximo não pode ser negativo!");
+        }
+        this.maxDelayMillis = maxDelayMillis;
+        return this;
+    }
+
+    public Constraints getConstraints() {
+        return constraints;
+    }
+
+    public BackupJob setConstraints(Constraints constraints) {
+        this.constraints = constraints != null ? constraints : new Constraints();
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "name=[" + name + "] interval=[" + intervalMillis + " ms] " + constraints;
+    }
+
+}
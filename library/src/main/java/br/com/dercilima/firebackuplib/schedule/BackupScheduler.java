@@ -0,0 +1,378 @@
+package br.com.dercilima.firebackuplib.schedule;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Agenda os backups periódicos dos {@link BackupJob}s registrados, sem depender do Android: quem
+ * acorda o app (JobScheduler, AlarmManager, WorkManager, ...) apenas chama {@link #runPending(JobRunner)}
+ * e agenda o próximo despertar para {@link #getNextRunTime()}.
+ * <p>
+ * A cada chamada, os jobs que estão na hora e com as condições atendidas são executados em uma
+ * única passada, junto com os jobs que estariam na hora em breve (dentro do flex de cada um), para
+ * que vários conjuntos de dados sejam gravados no mesmo backup. A hora de cada execução recebe um
+ * atraso aleatório (jitter), e uma passada com erro é tentada de novo com espera crescente.
+ * <p>
+ * A hora da próxima execução de cada job é salva em disco, então o agendamento continua depois
+ * que o app é encerrado. O relógio e o estado do aparelho são informados no construtor, o que
+ * permite testar o agendamento com um relógio falso, sem aparelho.
+ */
+public class BackupScheduler {
+
+    private static final int MAGIC = 0x46425343; // "FBSC"
+    private static final int VERSION = 1;
+
+    private final File stateFile;
+
+    private final DeviceState deviceState;
+
+    private final Clock clock;
+
+    private Random random = new Random();
+
+    private long retryDelayMillis = TimeUnit.MINUTES.toMillis(15);
+
+    private long maxRetryDelayMillis = TimeUnit.HOURS.toMillis(6);
+
+    // Jobs registrados, na ordem de registro
+    private final Map<String, BackupJob> jobs = new LinkedHashMap<>();
+
+    // Estado salvo de cada job (inclusive dos que ainda não foram registrados nesta execução do app)
+    private Map<String, JobState> states;
+
+    // Uma passada por vez
+    private boolean running = false;
+
+
+    /**
+     * @param stateFile   Arquivo com o estado dos jobs (próxima execução, última execução e falhas)
+     * @param deviceState Estado do aparelho, consultado para conferir as condições
+     */
+    public BackupScheduler(File stateFile, DeviceState deviceState) {
+        this(stateFile, deviceState, Clock.SYSTEM);
+    }
+
+    /**
+     * @param clock Relógio (um relógio falso nos testes)
+     */
+    public BackupScheduler(File stateFile, DeviceState deviceState, Clock clock) {
+        this.stateFile = stateFile;
+        this.deviceState = deviceState;
+        this.clock = clock;
+    }
+
+    /**
+     * Gerador do jitter (com uma semente fixa, os testes ficam reproduzíveis)
+     */
+    public synchronized BackupScheduler setRandom(Random random) {
+        this.random = random;
+        return this;
+    }
+
+    /**
+     * Espera depois de uma passada com erro, dobrada a cada erro seguido do mesmo job.
+     * O padrão é 15 minutos, até no máximo 6 horas.
+     */
+    public synchronized BackupScheduler setRetryDelay(long retryDelayMillis, long maxRetryDelayMillis) {
+        this.retryDelayMillis = retryDelayMillis;
+        this.maxRetryDelayMillis = maxRetryDelayMillis;
+        return this;
+    }
+
+    /**
+     * Registra o job. Na primeira vez (sem estado salvo), a primeira execução é agendada para agora
+     * mais o jitter; nas seguintes, o agendamento salvo é mantido.
+     */
+    public synchronized BackupScheduler register(BackupJob job) throws IOException {
+        jobs.put(job.getName(), job);
+        final long now = clock.currentTimeMillis();
+        final JobState state = getStates().get(job.getName());
+        if (state == null) {
+            getStates().put(job.getName(), new JobState(now + randomDelay(job.getJitterMillis()), 0, 0));
+            save();
+        } else if (state.nextRun > now + job.getIntervalMillis() + job.getJitterMillis()) {
+            // O relógio do aparelho voltou (ou o intervalo diminuiu): sem isso, o job ficaria parado
+            state.nextRun = now + randomDelay(job.getJitterMillis());
+            save();
+        }
+        return this;
+    }
+
+    /**
+     * Remove o job e o seu estado salvo
+     *
+     * @return false se o job não estava registrado nem tinha estado salvo
+     */
+    public synchronized boolean unregister(String jobName) throws IOException {
+        final boolean registered = jobs.remove(jobName) != null;
+        if (getStates().remove(jobName) != null) {
+            save();
+            return true;
+        }
+        return registered;
+    }
+
+    public synchronized List<BackupJob> getJobs() {
+        return Collections.unmodifiableList(new ArrayList<>(jobs.values()));
+    }
+
+    /**
+     * Hora da próxima execução do job, ou -1 se ele não estiver registrado
+     */
+    public synchronized long getNextRunTime(String jobName) {
+        final JobState state = jobs.containsKey(jobName) ? getStates().get(jobName) : null;
+        return state != null ? state.nextRun : -1;
+    }
+
+    /**
+     * Hora da última execução com sucesso do job, ou 0 se ainda não foi executado
+     */
+    public synchronized long getLastRunTime(String jobName) {
+        final JobState state = getStates().get(jobName);
+        return state != null ? state.lastRun : 0;
+    }
+
+    /**
+     * Hora em que o primeiro job registrado estará na hora (as condições não são consideradas),
+     * para agendar o próximo despertar do app, ou -1 se não houver jobs
+     */
+    public synchronized long getNextRunTime() {
+        long next = -1;
+        for (String jobName : jobs.keySet()) {
+            final long nextRun = getStates().get(jobName).nextRun;
+            if (next < 0 || nextRun < next) {
+                next = nextRun;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Jobs que seriam executados agora: os que estão na hora com as condições atendidas (ou que
+     * passaram do atraso máximo) e, se houver algum, os que estão dentro do flex com as condições atendidas
+     */
+    public synchronized List<BackupJob> getRunnableJobs() {
+
+        final long now = clock.currentTimeMillis();
+        final DeviceState device = new DeviceSnapshot(deviceState);
+
+        boolean anyDue = false;
+        final List<BackupJob> runnable = new ArrayList<>();
+        for (BackupJob job : jobs.values()) {
+            final JobState state = getStates().get(job.getName());
+            final boolean satisfied = job.getConstraints().isSatisfied(device);
+            if (now >= state.nextRun && (satisfied || isOverdue(job, state, now))) {
+                anyDue = true;
+                runnable.add(job);
+            } else if (satisfied && state.failures == 0 && now >= state.nextRun - job.getFlexMillis()) {
+                // Adiantado para o mesmo backup (um job em espera por erro não é adiantado)
+                runnable.add(job);
+            }
+        }
+
+        if (!anyDue) {
+            runnable.clear();
+        }
+        return runnable;
+    }
+
+    /**
+     * Executa, em uma única passada, os jobs de {@link #getRunnableJobs()} e agenda a próxima
+     * execução de cada um. Se a passada falhar, os jobs são tentados de novo depois da espera
+     * e o erro é lançado. Não faz nada se outra passada já estiver em andamento.
+     *
+     * @return Quantidade de jobs executados
+     */
+    public int runPending(JobRunner runner) throws IOException {
+
+        final List<BackupJob> runnable;
+        synchronized (this) {
+            if (running) {
+                return 0;
+            }
+            runnable = getRunnableJobs();
+            if (runnable.isEmpty()) {
+                return 0;
+            }
+            running = true;
+        }
+
+        boolean success = false;
+        try {
+            runner.run(runnable);
+            success = true;
+        } finally {
+            synchronized (this) {
+                running = false;
+                final long now = clock.currentTimeMillis();
+                for (BackupJob job : runnable) {
+                    final JobState state = getStates().get(job.getName());
+                    if (state == null) {
+                        // Removido durante a passada
+                        continue;
+                    }
+                    if (success) {
+                        state.lastRun = now;
+                        state.failures = 0;
+                        state.nextRun = now + job.getIntervalMillis() + randomDelay(job.getJitterMillis());
+                    } else {
+                        state.failures++;
+                        final long delay = getRetryDelay(state.failures);
+                        state.nextRun = now + delay + randomDelay(Math.min(job.getJitterMillis(), delay));
+                    }
+                }
+                // Se a passada falhou, o erro dela é o que importa
+                if (success) {
+                    save();
+                } else {
+                    try {
+                        save();
+                    } catch (IOException e) {
+                        // O estado anterior continua salvo: os jobs são tentados de novo na próxima chamada
+                    }
+                }
+            }
+        }
+
+        return runnable.size();
+    }
+
+    private boolean isOverdue(BackupJob job, JobState state, long now) {
+        return job.getMaxDelayMillis() > 0 && now >= state.nextRun + job.getMaxDelayMillis();
+    }
+
+    private long getRetryDelay(int failures) {
+        long delay = retryDelayMillis;
+        for (int i = 1; i < failures && delay < maxRetryDelayMillis; i++) {
+            delay *= 2;
+        }
+        return Math.min(delay, maxRetryDelayMillis);
+    }
+
+    private long randomDelay(long jitterMillis) {
+        return jitterMillis > 0 ? (long) (random.nextDouble() * jitterMillis) : 0;
+    }
+
+    private Map<String, JobState> getStates() {
+        if (states == null) {
+            states = load(stateFile);
+        }
+        return states;
+    }
+
+    // O arquivo é substituído com um rename, para nunca ficar pela metade
+    private void save() throws IOException {
+        final File dir = stateFile.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Não foi possível criar o diretório \"" + dir + "\"!");
+        }
+        final File temp = new File(stateFile.getPath() + ".tmp");
+        final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            data.writeInt(MAGIC);
+            data.writeByte(VERSION);
+            data.writeInt(states.size());
+            for (Map.Entry<String, JobState> entry : states.entrySet()) {
+                data.writeUTF(entry.getKey());
+                data.writeLong(entry.getValue().nextRun);
+                data.writeLong(entry.getValue().lastRun);
+                data.writeInt(entry.getValue().failures);
+            }
+        } finally {
+            data.close();
+        }
+        if (!temp.renameTo(stateFile)) {
+            throw new IOException("Não foi possível gravar o estado do agendador \"" + stateFile + "\"!");
+        }
+    }
+
+    // Um arquivo inexistente ou inválido é um agendamento vazio (os jobs voltam a ser agendados)
+    private static Map<String, JobState> load(File file) {
+        final Map<String, JobState> states = new LinkedHashMap<>();
+        if (!file.isFile()) {
+            return states;
+        }
+        try {
+            final InputStream input = new BufferedInputStream(new FileInputStream(file));
+            try {
+                final DataInputStream data = new DataInputStream(input);
+                if (data.readInt() != MAGIC || data.readByte() != VERSION) {
+                    return states;
+                }
+                final int count = data.readInt();
+                for (int i = 0; i < count; i++) {
+                    final String name = data.readUTF();
+                    states.put(name, new JobState(data.readLong(), data.readLong(), data.readInt()));
+                }
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            states.clear();
+        }
+        return states;
+    }
+
+
+    // Agendamento de um job
+    private static class JobState {
+
+        long nextRun;
+
+        long lastRun;
+
+        int failures;
+
+        JobState(long nextRun, long lastRun, int failures) {
+            this.nextRun = nextRun;
+            this.lastRun = lastRun;
+            this.failures = failures;
+        }
+    }
+
+    // Estado do aparelho lido uma única vez por consulta, o mesmo para todos os jobs
+    private static class DeviceSnapshot implements DeviceState {
+
+        private final boolean charging;
+
+        private final boolean unmeteredNetwork;
+
+        private final boolean idle;
+
+        DeviceSnapshot(DeviceState state) {
+            this.charging = state.isCharging();
+            this.unmeteredNetwork = state.isUnmeteredNetwork();
+            this.idle = state.isIdle();
+        }
+
+        @Override
+        public boolean isCharging() {
+            return charging;
+        }
+
+        @Override
+        public boolean isUnmeteredNetwork() {
+            return unmeteredNetwork;
+        }
+
+        @Override
+        public boolean isIdle() {
+            return idle;
+        }
+    }
+
+}
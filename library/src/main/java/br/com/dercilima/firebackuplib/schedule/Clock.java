@@ -0,0 +1,20 @@
+package br.com.dercilima.firebackuplib.schedule;
+
+/**
+ * Relógio do agendador. Nos testes, um relógio falso avança o tempo sem esperar.
+ */
+public interface Clock {
+
+    /**
+     * Relógio do sistema
+     */
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    long currentTimeMillis();
+
+}
@@ -0,0 +1,63 @@
+package br.com.dercilima.firebackuplib.schedule;
+
+/**
+ * Condições do aparelho exigidas para executar um job. Sem nenhuma condição, o job executa
+ * assim que estiver na hora.
+ */
+public class Constraints {
+
+    private boolean requiresCharging = false;
+
+    private boolean requiresUnmeteredNetwork = false;
+
+    private boolean requiresIdle = false;
+
+
+    public boolean isRequiresCharging() {
+        return requiresCharging;
+    }
+
+    public Constraints setRequiresCharging(boolean requiresCharging) {
+        this.requiresCharging = requiresCharging;
+        return this;
+    }
+
+    public boolean isRequiresUnmeteredNetwork() {
+        return requiresUnmeteredNetwork;
+    }
+
+    /**
+     * Exige uma rede sem cobrança por uso, para os jobs que fazem upload
+     */
+    public Constraints setRequiresUnmeteredNetwork(boolean requiresUnmeteredNetwork) {
+        this.requiresUnmeteredNetwork = requiresUnmeteredNetwork;
+        return this;
+    }
+
+    public boolean isRequiresIdle() {
+        return requiresIdle;
+    }
+
+    /**
+     * Exige o aparelho sem uso, para que o backup não dispute o disco com o app
+     */
+    public Constraints setRequiresIdle(boolean requiresIdle) {
+        this.requiresIdle = requiresIdle;
+        return this;
+    }
+
+    /**
+     * Indica se o estado atual do aparelho atende a todas as condições
+     */
+    public boolean isSatisfied(DeviceState state) {
+        return (!requiresCharging || state.isCharging())
+                && (!requiresUnmeteredNetwork || state.isUnmeteredNetwork())
+                && (!requiresIdle || state.isIdle());
+    }
+
+    @Override
+    public String toString() {
+        return "charging=[" + requiresCharging + "] unmetered=[" + requiresUnmeteredNetwork + "] idle=[" + requiresIdle + "]";
+    }
+
+}
@@ -0,0 +1,24 @@
+package br.com.dercilima.firebackuplib.schedule;
+
+/**
+ * Estado do aparelho, consultado a cada execução do agendador para conferir as {@link Constraints}
+ * dos jobs. No app, é o AndroidDeviceState; nos testes, qualquer implementação com valores fixos.
+ */
+public interface DeviceState {
+
+    /**
+     * Conectado ao carregador
+     */
+    boolean isCharging();
+
+    /**
+     * Conectado a uma rede sem cobrança por uso (Wi-Fi, por exemplo)
+     */
+    boolean isUnmeteredNetwork();
+
+    /**
+     * Aparelho sem uso (tela desligada ou em modo Doze)
+     */
+    boolean isIdle();
+
+}
@@ -0,0 +1,102 @@
+package br.com.dercilima.firebackuplib.schedule;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import br.com.dercilima.firebackuplib.catalog.BackupCatalog;
+import br.com.dercilima.firebackuplib.catalog.CatalogEntry;
+import br.com.dercilima.firebackuplib.engine.BackupEngine;
+import br.com.dercilima.firebackuplib.engine.DataSource;
+
+/**
+ * Grava os bancos de dados e as preferências de todos os jobs da passada em um único backup, com o
+ * {@link BackupEngine}, e registra o backup no catálogo. Os bancos e as preferências que aparecem
+ * em mais de um job são gravados uma única vez.
+ * <p>
+ * Para configurar o motor (incremental, criptografia, paralelismo, ...), sobrescreva {@link #newEngine()}.
+ */
+public class EngineJobRunner implements JobRunner {
+
+    private final DataSource dataSource;
+
+    private final File backupDirectory;
+
+    private final Clock clock;
+
+    // Último backup gravado
+    private CatalogEntry lastEntry;
+
+
+    /**
+     * @param dataSource      Origem dos bancos de dados e das preferências de todos os jobs
+     * @param backupDirectory Diretório dos backups
+     */
+    public EngineJobRunner(DataSource dataSource, File backupDirectory) {
+        this(dataSource, backupDirectory, Clock.SYSTEM);
+    }
+
+    /**
+     * @param clock Relógio usado no nome dos backups
+     */
+    public EngineJobRunner(DataSource dataSource, File backupDirectory, Clock clock) {
+        this.dataSource = dataSource;
+        this.backupDirectory = backupDirectory;
+        this.clock = clock;
+    }
+
+    @Override
+    public void run(List<BackupJob> jobs) throws IOException {
+
+        final BackupEngine engine = newEngine();
+        for (BackupJob job : jobs) {
+            for (String databaseName : job.getDatabases()) {
+                engine.addDatabase(databaseName);
+            }
+            for (String preferencesName : job.getPreferences()) {
+                engine.addPreferences(preferencesName);
+            }
+        }
+
+        if (!backupDirectory.exists() && !backupDirectory.mkdirs() && !backupDirectory.isDirectory()) {
+            throw new IOException("Não foi possível criar o diretório \"" + backupDirectory + "\"!");
+        }
+
+        final CatalogEntry entry = engine.backup(new File(backupDirectory, getArchiveName(clock.currentTimeMillis())));
+        engine.getCatalog().put(entry);
+        lastEntry = entry;
+    }
+
+    /**
+     * Motor de cada passada. Os bancos e as preferências dos jobs são adicionados depois.
+     */
+    protected BackupEngine newEngine() {
+        return new BackupEngine(dataSource, backupDirectory);
+    }
+
+    /**
+     * Nome do backup gravado no horário informado
+     */
+    protected String getArchiveName(long time) {
+        return "Scheduled_" + new SimpleDateFormat("yyyy_MM_dd_HH_mm_ss", Locale.getDefault()).format(new Date(time)) + ".zip";
+    }
+
+    public File getBackupDirectory() {
+        return backupDirectory;
+    }
+
+    public BackupCatalog getCatalog() {
+        return BackupCatalog.forDirectory(backupDirectory);
+    }
+
+    /**
+     * Último backup gravado por este runner, ou null
+     */
+    public CatalogEntry getLastEntry() {
+        return lastEntry;
+    }
+
+}
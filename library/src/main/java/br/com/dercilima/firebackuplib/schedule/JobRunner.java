@@ -0,0 +1,17 @@
+package br.com.dercilima.firebackuplib.schedule;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Executa os jobs que o agendador juntou em uma única passada
+ */
+public interface JobRunner {
+
+    /**
+     * @param jobs Jobs a executar juntos, na ordem em que foram registrados
+     * @throws IOException se a passada falhou (todos os jobs são tentados de novo mais tarde)
+     */
+    void run(List<BackupJob> jobs) throws IOException;
+
+}
@@ -0,0 +1,52 @@
+package br.com.dercilima.firebackuplib.snapshot;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import br.com.dercilima.firebackuplib.archive.EntryWriter;
+
+/**
+ * Cópia de um banco de dados pronta para ser gravada no backup. No Android é o
+ * {@link DatabaseSnapshot}; fora dele, o {@link PlainDatabaseCopy}.
+ */
+public interface DatabaseCopy extends Closeable {
+
+    // Sufixo do arquivo de Write-Ahead Log do SQLite
+    String WAL_SUFFIX = "-wal";
+
+    /**
+     * Grava a cópia no backup (o WAL, se houver, e o banco)
+     *
+     * @param writer    Backup em construção
+     * @param entryName Nome da entrada do banco de dados no backup
+     */
+    void writeTo(EntryWriter writer, String entryName) throws IOException;
+
+    /**
+     * Grava no backup apenas o WAL, se houver. Deve ser chamado antes de ler o arquivo
+     * retornado por {@link #getFile()}.
+     */
+    void writeWalTo(EntryWriter writer, String entryName) throws IOException;
+
+    /**
+     * Arquivo do banco de dados a ser gravado no backup, válido até {@link #close()}
+     */
+    File getFile();
+
+    /**
+     * Indica se as páginas da cópia estão nas mesmas posições do banco de dados (cópia do arquivo).
+     * O VACUUM INTO reorganiza as páginas, e uma cópia dele mudaria quase todas as páginas de um
+     * backup para o outro: nesse caso, o backup incremental grava o banco completo.
+     */
+    boolean isPageLayoutPreserved();
+
+    /**
+     * Tempo, em milissegundos, que as escritas no banco de dados ficaram bloqueadas pela cópia
+     */
+    long getWritersBlockedMillis();
+
+    @Override
+    void close();
+
+}
@@ -0,0 +1,241 @@
+package br.com.dercilima.firebackuplib.snapshot;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import br.com.dercilima.firebackuplib.archive.EntryWriter;
+import br.com.dercilima.firebackuplib.utils.FileUtil;
+
+/**
+ * Cópia consistente de um banco de dados SQLite que pode estar em uso pelo app.
+ * <p>
+ * {@link Mode#LOCKED_COPY}: faz um checkpoint passivo do WAL (sem bloquear ninguém), abre uma
+ * transação IMMEDIATE, que impede apenas as escritas (as leituras continuam), copia o arquivo
+ * "-wal" e o banco para o cacheDir e libera as escritas. As escritas ficam bloqueadas só durante
+ * essa cópia local, e não durante a compactação e a gravação do backup (o busy timeout do
+ * SQLite no Android é de poucos segundos, e uma escrita bloqueada por mais tempo falharia).
+ * <p>
+ * {@link Mode#VACUUM_INTO}: a partir do Android 11 (SQLite 3.28) usa "VACUUM INTO" para gerar
+ * uma cópia compacta no cacheDir. Em modo WAL é uma transação de leitura, então as escritas
+ * nunca são bloqueadas.
+ * <p>
+ * {@link Mode#AUTO} (padrão): VACUUM_INTO a partir do Android 11 e LOCKED_COPY nas versões anteriores.
+ * Nos dois modos, o cacheDir precisa de espaço para uma cópia do banco. O VACUUM INTO reorganiza as
+ * páginas, então o backup incremental usa o LOCKED_COPY (ver {@link #isPageLayoutPreserved()}).
+ */
+public class DatabaseSnapshot implements DatabaseCopy {
+
+    public enum Mode {
+        AUTO,
+        LOCKED_COPY,
+        VACUUM_INTO
+    }
+
+    // Sufixo do arquivo de Write-Ahead Log do SQLite
+    public static final String WAL_SUFFIX = DatabaseCopy.WAL_SUFFIX;
+
+    private static final String TAG = "DatabaseSnapshot";
+
+    // Sufixo das cópias no cacheDir
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+    private final File databaseFile;
+
+    private final SQLiteDatabase db;
+
+    private final boolean wal;
+
+    // Cópia do banco no cacheDir (gerada pelo VACUUM INTO ou copiada com as escritas bloqueadas)
+    private File snapshotFile;
+
+    // Cópia do WAL no cacheDir (null se o banco não usa WAL ou o WAL estava vazio)
+    private File snapshotWalFile;
+
+    private long writersBlockedMillis = 0;
+
+    // A cópia foi gerada pelo VACUUM INTO (páginas reorganizadas)
+    private boolean vacuumed = false;
+
+
+    private DatabaseSnapshot(File databaseFile, SQLiteDatabase db) {
+        this.databaseFile = databaseFile;
+        this.db = db;
+        this.wal = "wal".equalsIgnoreCase(queryString("PRAGMA journal_mode"));
+    }
+
+    /**
+     * Prepara o snapshot do banco de dados. As escritas já estão liberadas no retorno; depois
+     * de gravar o snapshot no backup, chame {@link #close()} para excluir as cópias do cacheDir.
+     *
+     * @param databaseFile Arquivo do banco de dados
+     * @param mode         Forma de fazer a cópia. VACUUM_INTO só é usado a partir do Android 11
+     * @param cacheDir     Diretório das cópias do banco
+     */
+    public static DatabaseSnapshot open(File databaseFile, Mode mode, File cacheDir) throws IOException {
+
+        if (!databaseFile.isFile()) {
+            throw new FileNotFoundException(databaseFile.getAbsolutePath());
+        }
+
+        final SQLiteDatabase db = SQLiteDatabase.openDatabase(databaseFile.getAbsolutePath(), null,
+                SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+
+        final DatabaseSnapshot snapshot = new DatabaseSnapshot(databaseFile, db);
+
+        try {
+            if (mode != Mode.LOCKED_COPY && Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                snapshot.vacuumInto(cacheDir);
+            } else {
+                snapshot.copyLocked(cacheDir);
+            }
+        } catch (IOException | RuntimeException e) {
+            snapshot.close();
+            throw e;
+        } finally {
+            // A conexão só era necessária para a cópia
+            db.close();
+        }
+
+        return snapshot;
+    }
+
+    private void copyLocked(File cacheDir) throws IOException {
+
+        if (wal) {
+            // Leva para o banco o que já está no WAL, sem esperar e sem bloquear as escritas,
+            // para que o WAL copiado com as escritas bloqueadas seja pequeno
+            queryString("PRAGMA wal_checkpoint(PASSIVE)");
+        }
+
+        final File walFile = new File(databaseFile.getPath() + WAL_SUFFIX);
+        final File stagedWal = newSnapshotFile(cacheDir, databaseFile.getName() + WAL_SUFFIX);
+        final File staged = newSnapshotFile(cacheDir, databaseFile.getName());
+
+        // BEGIN IMMEDIATE: bloqueia apenas as escritas, até o fim da cópia local. O WAL é copiado
+        // antes do banco: um checkpoint de outra conexão durante a cópia não deixa a cópia inconsistente.
+        final long lockedAt = SystemClock.elapsedRealtime();
+        db.beginTransactionNonExclusive();
+        try {
+            if (wal && walFile.length() > 0) {
+                FileUtil.copy(walFile, stagedWal, FileUtil.Mode.AUTO, false);
+                snapshotWalFile = stagedWal;
+            }
+            FileUtil.copy(databaseFile, staged, FileUtil.Mode.AUTO, false);
+            snapshotFile = staged;
+        } finally {
+            // Nada foi alterado, então a transação é apenas desfeita
+            db.endTransaction();
+            writersBlockedMillis = SystemClock.elapsedRealtime() - lockedAt;
+        }
+    }
+
+    private void vacuumInto(File cacheDir) throws IOException {
+
+        snapshotFile = newSnapshotFile(cacheDir, databaseFile.getName());
+
+        final long start = SystemClock.elapsedRealtime();
+        db.execSQL("VACUUM INTO ?", new Object[]{snapshotFile.getAbsolutePath()});
+        vacuumed = true;
+
+        // Em modo WAL o VACUUM INTO é apenas uma leitura. Sem WAL, o lock de leitura impede os commits
+        if (!wal) {
+            writersBlockedMillis = SystemClock.elapsedRealtime() - start;
+        }
+    }
+
+    private static File newSnapshotFile(File cacheDir, String name) throws IOException {
+        if (!cacheDir.exists() && !cacheDir.mkdirs() && !cacheDir.isDirectory()) {
+            throw new IOException("Não foi possível criar o diretório \"" + cacheDir + "\"!");
+        }
+        final File file = new File(cacheDir, name + SNAPSHOT_SUFFIX);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Não foi possível excluir o arquivo \"" + file + "\"!");
+        }
+        return file;
+    }
+
+    /**
+     * Grava o snapshot no backup
+     *
+     * @param writer    Backup em construção
+     * @param entryName Nome da entrada do banco de dados no backup
+     */
+    @Override
+    public void writeTo(EntryWriter writer, String entryName) throws IOException {
+        writeWalTo(writer, entryName);
+        writer.putFile(entryName, getFile());
+    }
+
+    /**
+     * Grava no backup a cópia do WAL, se houver
+     *
+     * @param writer    Backup em construção
+     * @param entryName Nome da entrada do banco de dados no backup
+     */
+    @Override
+    public void writeWalTo(EntryWriter writer, String entryName) throws IOException {
+        if (snapshotWalFile != null) {
+            writer.putFile(entryName + WAL_SUFFIX, snapshotWalFile);
+        }
+    }
+
+    /**
+     * Arquivo do banco de dados a ser gravado no backup, válido até {@link #close()}
+     */
+    @Override
+    public File getFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * A cópia do LOCKED_COPY mantém as páginas do banco; a do VACUUM INTO, não
+     */
+    @Override
+    public boolean isPageLayoutPreserved() {
+        return !vacuumed;
+    }
+
+    /**
+     * Tempo, em milissegundos, que as escritas no banco de dados ficaram bloqueadas pelo snapshot
+     * (apenas a cópia local, não a gravação do backup)
+     */
+    @Override
+    public long getWritersBlockedMillis() {
+        return writersBlockedMillis;
+    }
+
+    /**
+     * Exclui as cópias do cacheDir
+     */
+    @Override
+    public void close() {
+
+        delete(snapshotWalFile);
+        delete(snapshotFile);
+
+        Log.i(TAG, "Snapshot de \"" + databaseFile.getName() + "\": escritas bloqueadas por " + writersBlockedMillis + " ms");
+    }
+
+    private static void delete(File file) {
+        if (file != null && file.exists() && !file.delete()) {
+            Log.w(TAG, "Não foi possível excluir o arquivo \"" + file + "\"!");
+        }
+    }
+
+    private String queryString(String sql) {
+        final Cursor cursor = db.rawQuery(sql, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+}
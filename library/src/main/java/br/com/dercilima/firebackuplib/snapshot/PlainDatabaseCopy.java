@@ -0,0 +1,60 @@
+package br.com.dercilima.firebackuplib.snapshot;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import br.com.dercilima.firebackuplib.archive.EntryWriter;
+
+/**
+ * Grava o banco de dados (e o seu WAL) como está no disco, sem abrir uma conexão.
+ * Só é consistente se nenhum processo estiver escrevendo no banco durante o backup:
+ * é usado fora do Android (testes, benchmarks e ferramentas).
+ */
+public class PlainDatabaseCopy implements DatabaseCopy {
+
+    private final File databaseFile;
+
+
+    public PlainDatabaseCopy(File databaseFile) throws FileNotFoundException {
+        if (!databaseFile.isFile()) {
+            throw new FileNotFoundException(databaseFile.getAbsolutePath());
+        }
+        this.databaseFile = databaseFile;
+    }
+
+    @Override
+    public void writeTo(EntryWriter writer, String entryName) throws IOException {
+        writeWalTo(writer, entryName);
+        writer.putFile(entryName, databaseFile);
+    }
+
+    @Override
+    public void writeWalTo(EntryWriter writer, String entryName) throws IOException {
+        final File walFile = new File(databaseFile.getPath() + WAL_SUFFIX);
+        if (walFile.length() > 0) {
+            writer.putFile(entryName + WAL_SUFFIX, walFile);
+        }
+    }
+
+    @Override
+    public File getFile() {
+        return databaseFile;
+    }
+
+    @Override
+    public boolean isPageLayoutPreserved() {
+        return true;
+    }
+
+    @Override
+    public long getWritersBlockedMillis() {
+        return 0;
+    }
+
+    @Override
+    public void close() {
+        // Nenhum recurso aberto
+    }
+
+}
@@ -0,0 +1,348 @@
+package br.com.dercilima.firebackuplib.upload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import br.com.dercilima.firebackuplib.hash.XxHash64;
+import br.com.dercilima.firebackuplib.utils.TransferMonitor;
+
+/**
+ * Envia um arquivo para o {@link StorageBackend} em partes, com algumas partes ao mesmo tempo.
+ * <p>
+ * Cada parte enviada é registrada em um checkpoint local. Se o upload falhar (ou o app for
+ * encerrado), o próximo upload do mesmo arquivo continua a partir do checkpoint, enviando apenas
+ * as partes que faltam. Cada parte é reenviada algumas vezes, com espera crescente, antes de o
+ * upload ser considerado com falha.
+ */
+public class ChunkedUploader {
+
+    /**
+     * Recebe cada upload interrompido que foi finalizado por {@link #resumePending(ResumeListener)}
+     */
+    public interface ResumeListener {
+
+        /**
+         * @param file     Arquivo local
+         * @param location Localização do arquivo no destino
+         */
+        void onResumed(File file, String location);
+    }
+
+    private static final String CHECKPOINT_SUFFIX = ".upload";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Espera máxima entre duas tentativas de enviar uma parte
+    private static final long MAX_RETRY_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+    private final StorageBackend backend;
+
+    private final File checkpointDir;
+
+    private int partSize = 4 * 1024 * 1024;
+
+    private int concurrency = 2;
+
+    private int maxRetries = 5;
+
+    private long retryDelayMillis = 1000;
+
+    private TransferMonitor transferMonitor;
+
+    // Partes reenviadas desde a criação deste uploader
+    private final AtomicInteger retries = new AtomicInteger();
+
+
+    /**
+     * @param backend       Destino do upload
+     * @param checkpointDir Diretório dos checkpoints dos uploads em andamento
+     */
+    public ChunkedUploader(StorageBackend backend, File checkpointDir) {
+        this.backend = backend;
+        this.checkpointDir = checkpointDir;
+    }
+
+    /**
+     * @param partSize Tamanho de cada parte, em bytes. O padrão é 4 MiB.
+     */
+    public ChunkedUploader setPartSize(int partSize) {
+        if (partSize < 64 * 1024) {
+            throw new IllegalArgumentException("O tamanho da parte precisa ser de pelo menos 64 KiB!");
+        }
+        this.partSize = partSize;
+        return this;
+    }
+
+    /**
+     * @param concurrency Quantidade de partes enviadas ao mesmo tempo. O padrão é 2.
+     */
+    public ChunkedUploader setConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency precisa ser maior que zero!");
+        }
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * @param maxRetries       Quantidade de novas tentativas de cada parte. O padrão é 5.
+     * @param retryDelayMillis Espera antes da primeira nova tentativa, dobrada a cada tentativa. O padrão é 1 segundo.
+     */
+    public ChunkedUploader setRetries(int maxRetries, long retryDelayMillis) {
+        this.maxRetries = maxRetries;
+        this.retryDelayMillis = retryDelayMillis;
+        return this;
+    }
+
+    /**
+     * Informa os bytes de cada parte enviada (e, ao continuar um upload, os das partes que já estavam
+     * no destino). O cancelamento é conferido antes de cada parte: as partes em andamento terminam, e
+     * o checkpoint é mantido para que o próximo upload continue de onde parou.
+     *
+     * @param transferMonitor Monitor, ou null
+     */
+    public ChunkedUploader setTransferMonitor(TransferMonitor transferMonitor) {
+        this.transferMonitor = transferMonitor;
+        return this;
+    }
+
+    /**
+     * Envia o arquivo, continuando de onde parou se existir um checkpoint do mesmo arquivo
+     *
+     * @param file       Arquivo local
+     * @param remotePath Caminho do arquivo no destino
+     * @return Localização do arquivo no destino
+     */
+    public String upload(File file, String remotePath) throws IOException {
+
+        final File checkpointFile = getCheckpointFile(checkpointDir, remotePath);
+
+        UploadCheckpoint checkpoint = UploadCheckpoint.load(checkpointFile);
+        if (checkpoint == null || !checkpoint.matches(file, remotePath, partSize)) {
+            // As partes de um upload anterior (de outro arquivo) não servem mais
+            if (checkpoint != null) {
+                backend.abort(remotePath, checkpoint.getPartCount());
+            }
+            checkpoint = new UploadCheckpoint(file, remotePath, partSize);
+            checkpoint.save(checkpointFile);
+        } else {
+            // As partes que chegaram ao destino depois do último checkpoint salvo
+            for (int partNumber : backend.listParts(remotePath)) {
+                if (partNumber < checkpoint.getPartCount()) {
+                    checkpoint.setDone(partNumber);
+                }
+            }
+        }
+
+        uploadParts(file, checkpoint, checkpointFile);
+
+        final String location = backend.complete(remotePath, checkpoint.getPartCount(), checkpoint.getFileLength());
+        checkpointFile.delete();
+        return location;
+    }
+
+    /**
+     * Continua os uploads interrompidos cujos arquivos locais ainda existem.
+     * Os checkpoints de arquivos excluídos ou alterados são descartados.
+     *
+     * @return Localização no destino de cada arquivo enviado
+     */
+    public List<String> resumePending() throws IOException {
+        return resumePending(null);
+    }
+
+    /**
+     * Continua os uploads interrompidos, informando cada upload finalizado assim que termina
+     * (mesmo que um upload seguinte falhe)
+     *
+     * @param listener Listener, ou null
+     * @return Localização no destino de cada arquivo enviado
+     */
+    public List<String> resumePending(ResumeListener listener) throws IOException {
+        final List<String> locations = new ArrayList<>();
+        final File[] files = checkpointDir.listFiles();
+        if (files == null) {
+            return locations;
+        }
+        for (File checkpointFile : files) {
+            if (!checkpointFile.getName().endsWith(CHECKPOINT_SUFFIX)) {
+                continue;
+            }
+            final UploadCheckpoint checkpoint = UploadCheckpoint.load(checkpointFile);
+            final File file = checkpoint != null ? new File(checkpoint.getLocalPath()) : null;
+            if (file == null || !checkpoint.matches(file, checkpoint.getRemotePath(), checkpoint.getPartSize())) {
+                if (checkpoint != null) {
+                    backend.abort(checkpoint.getRemotePath(), checkpoint.getPartCount());
+                }
+                checkpointFile.delete();
+                continue;
+            }
+            final int previousPartSize = partSize;
+            try {
+                partSize = checkpoint.getPartSize();
+                final String location = upload(file, checkpoint.getRemotePath());
+                locations.add(location);
+                if (listener != null) {
+                    listener.onResumed(file, location);
+                }
+            } finally {
+                partSize = previousPartSize;
+            }
+        }
+        return locations;
+    }
+
+    private void uploadParts(final File file, final UploadCheckpoint checkpoint, final File checkpointFile) throws IOException {
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, checkpoint.getPartCount()));
+        final List<Future<Void>> futures = new ArrayList<>();
+
+        try {
+
+            for (int i = 0; i < checkpoint.getPartCount(); i++) {
+                if (checkpoint.isDone(i)) {
+                    onBytes(getPartLength(checkpoint, i));
+                    continue;
+                }
+                final int partNumber = i;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        onBytes(0);
+                        uploadPart(file, checkpoint, partNumber);
+                        checkpoint.setDone(partNumber);
+                        checkpoint.save(checkpointFile);
+                        onBytes(getPartLength(checkpoint, partNumber));
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload interrompido!");
+        } finally {
+            // Em caso de erro, as demais partes são canceladas (o checkpoint guarda as que terminaram).
+            // As partes em andamento são aguardadas, para que nenhuma grave o checkpoint depois do retorno.
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void uploadPart(File file, UploadCheckpoint checkpoint, int partNumber) throws IOException, InterruptedException {
+
+        final long offset = (long) partNumber * checkpoint.getPartSize();
+        final int length = getPartLength(checkpoint, partNumber);
+        final byte[] data = new byte[length];
+
+        final RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            input.seek(offset);
+            input.readFully(data);
+        } finally {
+            input.close();
+        }
+
+        retries.addAndGet(putPart(backend, checkpoint.getRemotePath(), partNumber, data, length, maxRetries, retryDelayMillis));
+    }
+
+    private static int getPartLength(UploadCheckpoint checkpoint, int partNumber) {
+        final long offset = (long) partNumber * checkpoint.getPartSize();
+        return (int) Math.min(checkpoint.getPartSize(), checkpoint.getFileLength() - offset);
+    }
+
+    private void onBytes(long count) throws InterruptedIOException {
+        if (transferMonitor != null) {
+            transferMonitor.onBytes(count);
+        }
+    }
+
+    /**
+     * Indica se o arquivo local tem um upload interrompido, que ainda precisa dele para continuar
+     *
+     * @param checkpointDir Diretório dos checkpoints
+     * @param file          Arquivo local
+     */
+    public static boolean hasPendingUpload(File checkpointDir, File file) {
+        final File[] files = checkpointDir.listFiles();
+        if (files == null) {
+            return false;
+        }
+        for (File checkpointFile : files) {
+            if (checkpointFile.getName().endsWith(CHECKPOINT_SUFFIX)) {
+                final UploadCheckpoint checkpoint = UploadCheckpoint.load(checkpointFile);
+                if (checkpoint != null && checkpoint.getLocalPath().equals(file.getAbsolutePath())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Quantidade de partes reenviadas (após um erro) desde a criação deste uploader
+     */
+    public int getRetries() {
+        return retries.get();
+    }
+
+    // Envia a parte, tentando de novo com espera crescente em caso de erro. Retorna a quantidade de novas tentativas.
+    static int putPart(StorageBackend backend, String remotePath, int partNumber, byte[] data, int length,
+                       int maxRetries, long retryDelayMillis) throws IOException, InterruptedException {
+        long delay = retryDelayMillis;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                backend.putPart(remotePath, partNumber, data, 0, length);
+                return attempt;
+            } catch (IOException e) {
+                if (attempt >= maxRetries || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+            }
+            Thread.sleep(delay);
+            delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+        }
+    }
+
+    static File getCheckpointFile(File checkpointDir, String remotePath) throws IOException {
+        return getCheckpointFile(checkpointDir, remotePath, CHECKPOINT_SUFFIX);
+    }
+
+    // Um arquivo por caminho no destino, no mesmo diretório para os dois tipos de upload
+    static File getCheckpointFile(File checkpointDir, String remotePath, String suffix) throws IOException {
+        if (!checkpointDir.exists() && !checkpointDir.mkdirs() && !checkpointDir.isDirectory()) {
+            throw new IOException("Não foi possível criar o diretório \"" + checkpointDir + "\"!");
+        }
+        final byte[] path = remotePath.getBytes(UTF8);
+        return new File(checkpointDir, String.format(Locale.US, "%016x", XxHash64.hash(path, 0, path.length, 0)) + suffix);
+    }
+
+}
@@ -0,0 +1,248 @@
+package br.com.dercilima.firebackuplib.upload;
+
+import android.net.Uri;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.storage.OnProgressListener;
+import com.google.firebase.storage.StorageException;
+import com.google.firebase.storage.StorageMetadata;
+import com.google.firebase.storage.StorageReference;
+import com.google.firebase.storage.UploadTask;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import br.com.dercilima.firebackuplib.utils.TransferMonitor;
+
+/**
+ * Envia um arquivo para o Storage do Firebase em uma sessão resumível do próprio Firebase. O backup
+ * continua sendo um objeto só, no próprio caminho, e a localização retornada é a URL de download dele.
+ * <p>
+ * A URI da sessão é salva em disco assim que o Firebase a informa. Se o upload falhar (ou o app for
+ * encerrado), o próximo upload do mesmo arquivo continua na mesma sessão, enviando apenas o que falta.
+ * Uma sessão que o Storage não aceita mais (expirada) é descartada e o upload começa de novo.
+ * <p>
+ * Os métodos esperam as tasks do Firebase, então não podem ser chamados na main thread.
+ */
+public class FirebaseResumableUploader {
+
+    private static final String SESSION_SUFFIX = ".session";
+
+    // Intervalo em que o progresso é informado e o cancelamento é conferido
+    private static final long POLL_INTERVAL_MILLIS = 200;
+
+    private final StorageReference root;
+
+    private final File checkpointDir;
+
+    private TransferMonitor transferMonitor;
+
+
+    /**
+     * @param root          Referência a partir da qual os caminhos são resolvidos
+     * @param checkpointDir Diretório das sessões dos uploads em andamento (o mesmo do {@link ChunkedUploader})
+     */
+    public FirebaseResumableUploader(StorageReference root, File checkpointDir) {
+        this.root = root;
+        this.checkpointDir = checkpointDir;
+    }
+
+    /**
+     * Informa os bytes enviados (ao continuar um upload, também os que já estavam no Storage). Se o
+     * monitor indicar o cancelamento, o upload é cancelado e a sessão é descartada.
+     *
+     * @param transferMonitor Monitor, ou null
+     */
+    public FirebaseResumableUploader setTransferMonitor(TransferMonitor transferMonitor) {
+        this.transferMonitor = transferMonitor;
+        return this;
+    }
+
+    /**
+     * Envia o arquivo, continuando a sessão salva se existir uma do mesmo arquivo
+     *
+     * @param file       Arquivo local
+     * @param remotePath Caminho do arquivo no Storage
+     * @return URL de download do arquivo
+     */
+    public String upload(File file, String remotePath) throws IOException {
+
+        final File sessionFile = ChunkedUploader.getCheckpointFile(checkpointDir, remotePath, SESSION_SUFFIX);
+        final StorageReference reference = root.child(remotePath);
+
+        final UploadSession session = UploadSession.load(sessionFile);
+        if (session != null && session.matches(file, remotePath)) {
+            try {
+                return upload(file, remotePath, reference, Uri.parse(session.getSessionUri()), sessionFile);
+            } catch (IOException e) {
+                if (!isSessionRejected(e)) {
+                    throw e;
+                }
+                // A sessão expirou: o upload começa de novo, em uma sessão nova
+            }
+        }
+
+        sessionFile.delete();
+        return upload(file, remotePath, reference, null, sessionFile);
+    }
+
+    /**
+     * Continua os uploads interrompidos cujos arquivos locais ainda existem, informando cada upload
+     * finalizado assim que termina. As sessões de arquivos excluídos ou alterados são descartadas.
+     *
+     * @param listener Listener, ou null
+     * @return URL de download de cada arquivo enviado
+     */
+    public List<String> resumePending(ChunkedUploader.ResumeListener listener) throws IOException {
+        final List<String> locations = new ArrayList<>();
+        final File[] files = checkpointDir.listFiles();
+        if (files == null) {
+            return locations;
+        }
+        for (File sessionFile : files) {
+            if (!sessionFile.getName().endsWith(SESSION_SUFFIX)) {
+                continue;
+            }
+            final UploadSession session = UploadSession.load(sessionFile);
+            final File file = session != null ? new File(session.getLocalPath()) : null;
+            if (file == null || !session.matches(file, session.getRemotePath())) {
+                // Nada é gravado no Storage antes do fim da sessão, então não há o que excluir
+                sessionFile.delete();
+                continue;
+            }
+            final String location = upload(file, session.getRemotePath());
+            locations.add(location);
+            if (listener != null) {
+                listener.onResumed(file, location);
+            }
+        }
+        return locations;
+    }
+
+    private String upload(File file, String remotePath, StorageReference reference, Uri sessionUri, File sessionFile) throws IOException {
+
+        final UploadTask task = sessionUri != null
+                ? reference.putFile(Uri.fromFile(file), new StorageMetadata.Builder().build(), sessionUri)
+                : reference.putFile(Uri.fromFile(file));
+        final Progress progress = new Progress();
+        task.addOnProgressListener(progress);
+
+        // O listener do Firebase é chamado na main thread: o progresso, o cancelamento e a gravação da
+        // sessão ficam nesta thread
+        String savedSession = sessionUri != null ? sessionUri.toString() : null;
+        long reported = 0;
+        UploadTask.TaskSnapshot snapshot = null;
+        try {
+            while (true) {
+                try {
+                    snapshot = Tasks.await(task, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    // Ainda enviando
+                }
+                final Uri current = progress.sessionUri;
+                if (current != null && !current.toString().equals(savedSession)) {
+                    savedSession = current.toString();
+                    new UploadSession(file, remotePath, savedSession).save(sessionFile);
+                }
+                reported = report(progress.bytesTransferred, reported);
+            }
+        } catch (InterruptedIOException e) {
+            // Cancelado pelo monitor: o Firebase encerra a sessão
+            task.cancel();
+            sessionFile.delete();
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } catch (CancellationException e) {
+            sessionFile.delete();
+            throw new InterruptedIOException("Upload cancelado!");
+        } catch (InterruptedException e) {
+            task.cancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload interrompido!");
+        }
+
+        sessionFile.delete();
+        report(file.length(), reported);
+        final StorageMetadata metadata = snapshot.getMetadata();
+        if (metadata != null && metadata.getSizeBytes() != file.length()) {
+            throw new IOException("Tamanho de \"" + remotePath + "\" inválido!");
+        }
+        return String.valueOf(await(reference.getDownloadUrl()));
+    }
+
+    private long report(long transferred, long reported) throws InterruptedIOException {
+        if (transferMonitor != null) {
+            transferMonitor.onBytes(Math.max(0, transferred - reported));
+        }
+        return Math.max(transferred, reported);
+    }
+
+    // O Storage recusa a sessão (expirada ou desconhecida) com um erro 4xx do protocolo de upload resumível
+    private static boolean isSessionRejected(IOException e) {
+        if (!(e.getCause() instanceof StorageException)) {
+            return false;
+        }
+        final int code = ((StorageException) e.getCause()).getHttpResultCode();
+        return code >= 400 && code < 500 && code != 401 && code != 403 && code != 408 && code != 429;
+    }
+
+    private static <T> T await(com.google.android.gms.tasks.Task<T> task) throws IOException {
+        try {
+            return Tasks.await(task);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload interrompido!");
+        }
+    }
+
+    /**
+     * Indica se o arquivo local tem um upload interrompido, que ainda precisa dele para continuar
+     *
+     * @param checkpointDir Diretório das sessões
+     * @param file          Arquivo local
+     */
+    public static boolean hasPendingUpload(File checkpointDir, File file) {
+        final File[] files = checkpointDir.listFiles();
+        if (files == null) {
+            return false;
+        }
+        for (File sessionFile : files) {
+            if (sessionFile.getName().endsWith(SESSION_SUFFIX)) {
+                final UploadSession session = UploadSession.load(sessionFile);
+                if (session != null && session.getLocalPath().equals(file.getAbsolutePath())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    // Último estado informado pelo Firebase (na main thread)
+    private static class Progress implements OnProgressListener<UploadTask.TaskSnapshot> {
+
+        volatile Uri sessionUri;
+
+        volatile long bytesTransferred;
+
+        @Override
+        public void onProgress(UploadTask.TaskSnapshot snapshot) {
+            if (snapshot.getUploadSessionUri() != null) {
+                sessionUri = snapshot.getUploadSessionUri();
+            }
+            bytesTransferred = snapshot.getBytesTransferred();
+        }
+    }
+
+}
@@ -0,0 +1,303 @@
+package br.com.dercilima.firebackuplib.upload;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.storage.StorageException;
+import com.google.firebase.storage.StorageMetadata;
+import com.google.firebase.storage.StorageReference;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import br.com.dercilima.firebackuplib.utils.BoundedInputStream;
+
+/**
+ * Destino no Storage do Firebase. Como o SDK não junta objetos, cada parte é gravada como um
+ * objeto separado ("caminho.parts/00000", "caminho.parts/00001", ...) e, ao finalizar, é gravado
+ * o índice "caminho.parts/index", com a quantidade de partes e o tamanho do arquivo.
+ * A localização retornada é a URL de download do índice, e o arquivo em partes só é lido por este
+ * destino. O arquivo enviado de uma vez ({@link #put}) é um objeto só, no próprio caminho. O upload
+ * resumível do BackupTask não usa as partes: ele usa a sessão resumível do Firebase
+ * ({@link FirebaseResumableUploader}).
+ * <p>
+ * A listagem dos objetos (StorageReference.listAll()) só existe a partir do firebase-storage 18.1, que
+ * exige o AndroidX. Com o firebase-storage usado pela biblioteca, {@link #list(String)} lança IOException.
+ * <p>
+ * Os métodos esperam as tasks do Firebase, então não podem ser chamados na main thread.
+ */
+public class FirebaseStorageBackend implements StorageBackend {
+
+    private static final String PARTS_SUFFIX = ".parts";
+
+    private static final String INDEX = "index";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final long MAX_INDEX_SIZE = 1024;
+
+    private final StorageReference root;
+
+
+    /**
+     * @param root Referência a partir da qual os caminhos são resolvidos
+     */
+    public FirebaseStorageBackend(StorageReference root) {
+        this.root = root;
+    }
+
+    @Override
+    public String put(String path, InputStream data, long size) throws IOException {
+        final StorageReference reference = root.child(path);
+        final StorageMetadata metadata = await(reference.putStream(data)).getMetadata();
+        if (metadata != null && metadata.getSizeBytes() != size) {
+            throw new IOException("Tamanho de \"" + path + "\" inválido!");
+        }
+        return String.valueOf(await(reference.getDownloadUrl()));
+    }
+
+    @Override
+    public void putPart(String path, int partNumber, byte[] data, int offset, int length) throws IOException {
+        final byte[] bytes = offset == 0 && length == data.length ? data : Arrays.copyOfRange(data, offset, offset + length);
+        await(getPartsReference(path).child(partName(partNumber)).putBytes(bytes));
+    }
+
+    /**
+     * O firebase-storage usado pela biblioteca não lista objetos, então vale o checkpoint local
+     */
+    @Override
+    public Set<Integer> listParts(String path) {
+        return new HashSet<>();
+    }
+
+    @Override
+    public String complete(String path, int partCount, long size) throws IOException {
+        final StorageReference index = getPartsReference(path).child(INDEX);
+        final String content = "parts=" + partCount + "\nsize=" + size + "\n";
+        await(index.putBytes(content.getBytes(UTF8)));
+        return String.valueOf(await(index.getDownloadUrl()));
+    }
+
+    /**
+     * Sem listar os objetos, exclui cada uma das partes: as partes enviadas fora de ordem (ou que
+     * falharam) deixam lacunas, então uma parte que não existe não encerra a exclusão
+     */
+    @Override
+    public void abort(String path, int partCount) throws IOException {
+        final StorageReference parts = getPartsReference(path);
+        for (int i = 0; i < partCount; i++) {
+            deleteIfExists(parts.child(partName(i)));
+        }
+    }
+
+    /**
+     * O arquivo pode ter sido enviado inteiro (putFile) ou em partes: os dois formatos são excluídos.
+     * A quantidade de partes vem do índice, que é excluído por último.
+     */
+    @Override
+    public void delete(String path) throws IOException {
+        deleteIfExists(root.child(path));
+        final Index index = readIndex(path);
+        if (index != null) {
+            abort(path, index.partCount);
+            deleteIfExists(getPartsReference(path).child(INDEX));
+        }
+    }
+
+    /**
+     * No arquivo em partes, só são baixadas as partes do trecho (o tamanho de cada parte anterior é
+     * consultado nos metadados)
+     */
+    @Override
+    public InputStream get(String path, long offset, long length) throws IOException {
+        final StorageReference reference = root.child(path);
+        if (getMetadataIfExists(reference) != null) {
+            return BoundedInputStream.range(openStream(reference), offset, length);
+        }
+        final Index index = readIndex(path);
+        if (index == null) {
+            throw new FileNotFoundException("Arquivo \"" + path + "\" não encontrado!");
+        }
+        final StorageReference parts = getPartsReference(path);
+        int first = 0;
+        long skip = offset;
+        while (first < index.partCount) {
+            final StorageMetadata part = await(parts.child(partName(first)).getMetadata());
+            if (skip < part.getSizeBytes()) {
+                break;
+            }
+            skip -= part.getSizeBytes();
+            first++;
+        }
+        return BoundedInputStream.range(new SequenceInputStream(new PartStreams(parts, first, index.partCount)), skip, length);
+    }
+
+    @Override
+    public StorageObject stat(String path) throws IOException {
+        final StorageMetadata metadata = getMetadataIfExists(root.child(path));
+        if (metadata != null) {
+            return new StorageObject(path, metadata.getSizeBytes(), metadata.getUpdatedTimeMillis());
+        }
+        final StorageMetadata indexMetadata = getMetadataIfExists(getPartsReference(path).child(INDEX));
+        final Index index = indexMetadata != null ? readIndex(path) : null;
+        return index != null ? new StorageObject(path, index.size, indexMetadata.getUpdatedTimeMillis()) : null;
+    }
+
+    /**
+     * Não suportado pelo firebase-storage usado pela biblioteca
+     *
+     * @throws IOException Sempre
+     */
+    @Override
+    public List<StorageObject> list(String prefix) throws IOException {
+        throw new IOException("O firebase-storage usado pela biblioteca não lista os objetos do Storage!");
+    }
+
+    // Índice gravado pelo complete(), ou null se o upload não foi finalizado
+    private Index readIndex(String path) throws IOException {
+        final byte[] content;
+        try {
+            content = await(getPartsReference(path).child(INDEX).getBytes(MAX_INDEX_SIZE));
+        } catch (IOException e) {
+            if (isNotFound(e)) {
+                return null;
+            }
+            throw e;
+        }
+        final Index index = new Index();
+        for (String line : new String(content, UTF8).split("\n")) {
+            final int separator = line.indexOf('=');
+            if (separator < 0) {
+                continue;
+            }
+            final String value = line.substring(separator + 1).trim();
+            if (line.startsWith("parts=")) {
+                index.partCount = Integer.parseInt(value);
+            } else if (line.startsWith("size=")) {
+                index.size = Long.parseLong(value);
+            }
+        }
+        return index;
+    }
+
+    private static StorageMetadata getMetadataIfExists(StorageReference reference) throws IOException {
+        try {
+            return await(reference.getMetadata());
+        } catch (IOException e) {
+            if (isNotFound(e)) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    private static InputStream openStream(StorageReference reference) throws IOException {
+        return await(reference.getStream()).getStream();
+    }
+
+    private static boolean isNotFound(IOException e) {
+        return e.getCause() instanceof StorageException
+                && ((StorageException) e.getCause()).getErrorCode() == StorageException.ERROR_OBJECT_NOT_FOUND;
+    }
+
+    // Retorna false se o objeto não existe. Os demais erros (rede, permissão) são lançados.
+    private static boolean deleteIfExists(StorageReference reference) throws IOException {
+        try {
+            await(reference.delete());
+            return true;
+        } catch (IOException e) {
+            if (isNotFound(e)) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    private StorageReference getPartsReference(String path) {
+        return root.child(path + PARTS_SUFFIX);
+    }
+
+    private static String partName(int partNumber) {
+        return String.format(Locale.US, "%05d", partNumber);
+    }
+
+    private static <T> T await(Task<T> task) throws IOException {
+        try {
+            return Tasks.await(task);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload interrompido!");
+        }
+    }
+
+
+    // Conteúdo do índice de um arquivo em partes
+    private static class Index {
+
+        int partCount;
+
+        long size;
+    }
+
+    // Abre o stream de cada parte só quando a anterior termina
+    private static class PartStreams implements Enumeration<InputStream> {
+
+        private final StorageReference parts;
+
+        private final int partCount;
+
+        private int next;
+
+        PartStreams(StorageReference parts, int first, int partCount) {
+            this.parts = parts;
+            this.next = first;
+            this.partCount = partCount;
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return next < partCount;
+        }
+
+        @Override
+        public InputStream nextElement() {
+            if (next >= partCount) {
+                throw new NoSuchElementException();
+            }
+            try {
+                return openStream(parts.child(partName(next++)));
+            } catch (IOException e) {
+                // O Enumeration não lança IOException: o erro aparece na leitura
+                return new FailedInputStream(e);
+            }
+        }
+    }
+
+    private static class FailedInputStream extends InputStream {
+
+        private final IOException error;
+
+        FailedInputStream(IOException error) {
+            this.error = error;
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw error;
+        }
+    }
+
+}
@@ -0,0 +1,249 @@
+package br.com.dercilima.firebackuplib.upload;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Destino em memória, para testes e benchmarks. Pode simular uma rede instável, falhando parte
+ * dos envios, e uma rede lenta: cada requisição espera a latência, e os bytes enviados e lidos
+ * passam por um único link com a banda informada, dividido entre as requisições simultâneas
+ * (como a conexão do aparelho).
+ */
+public class InMemoryStorageBackend implements StorageBackend {
+
+    private final Map<String, Map<Integer, byte[]>> parts = new HashMap<>();
+
+    // Em ordem alfabética, para o list()
+    private final Map<String, byte[]> files = new TreeMap<>();
+
+    private final Map<String, Long> updatedAt = new HashMap<>();
+
+    private final AtomicInteger putCount = new AtomicInteger();
+
+    private volatile int failEvery = 0;
+
+    private volatile long latencyNanos = 0;
+
+    private volatile long bytesPerSecond = 0;
+
+    // Instante (System.nanoTime()) em que o link simulado fica livre
+    private final Object link = new Object();
+
+    private long linkFreeAt = Long.MIN_VALUE;
+
+
+    /**
+     * Faz um a cada N envios de parte falhar com IOException (0 desabilita)
+     */
+    public InMemoryStorageBackend setFailEvery(int failEvery) {
+        this.failEvery = failEvery;
+        return this;
+    }
+
+    /**
+     * Espera de cada requisição, antes da transferência (0 desabilita)
+     *
+     * @param latencyMillis Latência, em milissegundos
+     */
+    public InMemoryStorageBackend setLatency(long latencyMillis) {
+        if (latencyMillis < 0) {
+            throw new IllegalArgumentException("Latência não pode ser negativa!");
+        }
+        this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+        return this;
+    }
+
+    /**
+     * Banda do link simulado, dividida entre as requisições simultâneas (0 = sem limite)
+     *
+     * @param bytesPerSecond Banda, em bytes por segundo
+     */
+    public InMemoryStorageBackend setBandwidth(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Banda não pode ser negativa!");
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Quantidade de envios de parte (incluindo os que falharam)
+     */
+    public int getPutCount() {
+        return putCount.get();
+    }
+
+    /**
+     * Conteúdo de um arquivo finalizado, ou null
+     */
+    public synchronized byte[] getFile(String path) {
+        return files.get(path);
+    }
+
+    @Override
+    public String put(String path, InputStream data, long size) throws IOException {
+        final ByteArrayOutputStream file = new ByteArrayOutputStream((int) Math.max(0, Math.min(size, Integer.MAX_VALUE)));
+        final byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = data.read(buffer)) != -1) {
+            file.write(buffer, 0, read);
+        }
+        if (file.size() != size) {
+            throw new IOException("Tamanho de \"" + path + "\" inválido!");
+        }
+        simulate(size);
+        synchronized (this) {
+            store(path, file.toByteArray());
+        }
+        return "memory://" + path;
+    }
+
+    @Override
+    public void putPart(String path, int partNumber, byte[] data, int offset, int length) throws IOException {
+        final int count = putCount.incrementAndGet();
+        if (failEvery > 0 && count % failEvery == 0) {
+            throw new IOException("Falha simulada no envio da parte " + partNumber + "!");
+        }
+        final byte[] copy = Arrays.copyOfRange(data, offset, offset + length);
+        simulate(length);
+        synchronized (this) {
+            Map<Integer, byte[]> fileParts = parts.get(path);
+            if (fileParts == null) {
+                fileParts = new HashMap<>();
+                parts.put(path, fileParts);
+            }
+            fileParts.put(partNumber, copy);
+        }
+    }
+
+    @Override
+    public Set<Integer> listParts(String path) throws IOException {
+        simulate(0);
+        synchronized (this) {
+            final Map<Integer, byte[]> fileParts = parts.get(path);
+            return fileParts != null ? new HashSet<>(fileParts.keySet()) : new HashSet<Integer>();
+        }
+    }
+
+    @Override
+    public String complete(String path, int partCount, long size) throws IOException {
+        simulate(0);
+        synchronized (this) {
+            final Map<Integer, byte[]> fileParts = parts.get(path);
+            final ByteArrayOutputStream file = new ByteArrayOutputStream();
+            for (int i = 0; i < partCount; i++) {
+                final byte[] part = fileParts != null ? fileParts.get(i) : null;
+                if (part == null) {
+                    throw new IOException("Parte " + i + " de \"" + path + "\" não encontrada!");
+                }
+                file.write(part);
+            }
+            if (file.size() != size) {
+                throw new IOException("Tamanho de \"" + path + "\" inválido!");
+            }
+            parts.remove(path);
+            store(path, file.toByteArray());
+        }
+        return "memory://" + path;
+    }
+
+    @Override
+    public void abort(String path, int partCount) throws IOException {
+        simulate(0);
+        synchronized (this) {
+            parts.remove(path);
+        }
+    }
+
+    @Override
+    public void delete(String path) throws IOException {
+        simulate(0);
+        synchronized (this) {
+            parts.remove(path);
+            files.remove(path);
+            updatedAt.remove(path);
+        }
+    }
+
+    @Override
+    public InputStream get(String path, long offset, long length) throws IOException {
+        final byte[] file;
+        synchronized (this) {
+            file = files.get(path);
+        }
+        if (file == null) {
+            simulate(0);
+            throw new FileNotFoundException("Arquivo \"" + path + "\" não encontrado!");
+        }
+        final int start = (int) Math.min(Math.max(offset, 0), file.length);
+        final int count = (int) (length < 0 ? file.length - start : Math.min(length, file.length - start));
+        simulate(count);
+        return new ByteArrayInputStream(file, start, count);
+    }
+
+    @Override
+    public StorageObject stat(String path) throws IOException {
+        simulate(0);
+        synchronized (this) {
+            final byte[] file = files.get(path);
+            return file != null ? new StorageObject(path, file.length, updatedAt.get(path)) : null;
+        }
+    }
+
+    @Override
+    public List<StorageObject> list(String prefix) throws IOException {
+        simulate(0);
+        synchronized (this) {
+            final List<StorageObject> objects = new ArrayList<>();
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                if (prefix == null || file.getKey().startsWith(prefix)) {
+                    objects.add(new StorageObject(file.getKey(), file.getValue().length, updatedAt.get(file.getKey())));
+                }
+            }
+            return objects;
+        }
+    }
+
+    private void store(String path, byte[] content) {
+        files.put(path, content);
+        updatedAt.put(path, System.currentTimeMillis());
+    }
+
+    // Espera a latência e a vez no link, fora do lock dos arquivos (as requisições seguem em paralelo)
+    private void simulate(long bytes) throws InterruptedIOException {
+        long waitNanos = latencyNanos;
+        final long bandwidth = bytesPerSecond;
+        if (bandwidth > 0 && bytes > 0) {
+            synchronized (link) {
+                final long now = System.nanoTime();
+                final long start = Math.max(now + latencyNanos, linkFreeAt);
+                linkFreeAt = start + (long) (bytes * 1e9 / bandwidth);
+                waitNanos = linkFreeAt - now;
+            }
+        }
+        if (waitNanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transferência interrompida!");
+        }
+    }
+
+}
@@ -0,0 +1,263 @@
+package br.com.dercilima.firebackuplib.upload;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import br.com.dercilima.firebackuplib.utils.BoundedInputStream;
+
+/**
+ * Destino em um diretório local (um cartão SD, uma pasta montada da rede, ou um diretório
+ * temporário nos testes e benchmarks). As partes de um upload ficam em "caminho.parts/" até o
+ * upload ser finalizado, quando são juntadas no arquivo "caminho". A localização retornada é a
+ * URI "file:" do arquivo.
+ */
+public class LocalStorageBackend implements StorageBackend {
+
+    private static final String PARTS_SUFFIX = ".parts";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File root;
+
+
+    /**
+     * @param root Diretório a partir do qual os caminhos são resolvidos
+     */
+    public LocalStorageBackend(File root) {
+        this.root = root;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    @Override
+    public String put(String path, InputStream data, long size) throws IOException {
+        final File file = resolve(path);
+        final File temp = new File(file.getPath() + TEMP_SUFFIX);
+        mkdirs(file.getParentFile());
+        try {
+            final long written = write(data, temp);
+            if (written != size) {
+                throw new IOException("Tamanho de \"" + path + "\" inválido!");
+            }
+            rename(temp, file);
+        } finally {
+            if (temp.exists()) {
+                temp.delete();
+            }
+        }
+        return file.toURI().toString();
+    }
+
+    @Override
+    public void putPart(String path, int partNumber, byte[] data, int offset, int length) throws IOException {
+        final File parts = getPartsDirectory(path);
+        mkdirs(parts);
+        final File part = new File(parts, partName(partNumber));
+        final File temp = new File(parts, partName(partNumber) + TEMP_SUFFIX);
+        final OutputStream output = new FileOutputStream(temp);
+        try {
+            output.write(data, offset, length);
+        } finally {
+            output.close();
+        }
+        rename(temp, part);
+    }
+
+    @Override
+    public Set<Integer> listParts(String path) throws IOException {
+        final Set<Integer> numbers = new HashSet<>();
+        final File[] files = getPartsDirectory(path).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().endsWith(TEMP_SUFFIX)) {
+                    try {
+                        numbers.add(Integer.parseInt(file.getName()));
+                    } catch (NumberFormatException e) {
+                        // Não é uma parte
+                    }
+                }
+            }
+        }
+        return numbers;
+    }
+
+    @Override
+    public String complete(String path, int partCount, long size) throws IOException {
+        final File file = resolve(path);
+        final File parts = getPartsDirectory(path);
+        final File temp = new File(file.getPath() + TEMP_SUFFIX);
+        final OutputStream output = new FileOutputStream(temp);
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long written = 0;
+            try {
+                for (int i = 0; i < partCount; i++) {
+                    final File part = new File(parts, partName(i));
+                    if (!part.isFile()) {
+                        throw new IOException("Parte " + i + " de \"" + path + "\" não encontrada!");
+                    }
+                    final InputStream input = new FileInputStream(part);
+                    try {
+                        int read;
+                        while ((read = input.read(buffer)) != -1) {
+                            output.write(buffer, 0, read);
+                            written += read;
+                        }
+                    } finally {
+                        input.close();
+                    }
+                }
+            } finally {
+                output.close();
+            }
+            if (written != size) {
+                throw new IOException("Tamanho de \"" + path + "\" inválido!");
+            }
+            rename(temp, file);
+        } finally {
+            if (temp.exists()) {
+                temp.delete();
+            }
+        }
+        deleteParts(path);
+        return file.toURI().toString();
+    }
+
+    @Override
+    public void abort(String path, int partCount) throws IOException {
+        deleteParts(path);
+    }
+
+    @Override
+    public void delete(String path) throws IOException {
+        final File file = resolve(path);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Não foi possível excluir \"" + path + "\"!");
+        }
+        deleteParts(path);
+    }
+
+    // Todas as partes ficam no mesmo diretório, então a quantidade não é necessária
+    private void deleteParts(String path) throws IOException {
+        final File parts = getPartsDirectory(path);
+        final File[] files = parts.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        if (parts.exists() && !parts.delete()) {
+            throw new IOException("Não foi possível excluir as partes de \"" + path + "\"!");
+        }
+    }
+
+    @Override
+    public InputStream get(String path, long offset, long length) throws IOException {
+        final File file = resolve(path);
+        if (!file.isFile()) {
+            throw new FileNotFoundException("Arquivo \"" + path + "\" não encontrado!");
+        }
+        return BoundedInputStream.range(new FileInputStream(file), offset, length);
+    }
+
+    @Override
+    public StorageObject stat(String path) throws IOException {
+        final File file = resolve(path);
+        return file.isFile() ? new StorageObject(path, file.length(), file.lastModified()) : null;
+    }
+
+    @Override
+    public List<StorageObject> list(String prefix) {
+        final List<StorageObject> objects = new ArrayList<>();
+        collect(root, "", prefix != null ? prefix : "", objects);
+        Collections.sort(objects, new Comparator<StorageObject>() {
+            @Override
+            public int compare(StorageObject o1, StorageObject o2) {
+                return o1.getPath().compareTo(o2.getPath());
+            }
+        });
+        return objects;
+    }
+
+    // Os diretórios de partes e os arquivos temporários não são arquivos finalizados
+    private static void collect(File dir, String base, String prefix, List<StorageObject> objects) {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final String path = base + file.getName();
+            if (file.isDirectory()) {
+                if (!file.getName().endsWith(PARTS_SUFFIX) && (path.startsWith(prefix) || prefix.startsWith(path + "/"))) {
+                    collect(file, path + "/", prefix, objects);
+                }
+            } else if (!file.getName().endsWith(TEMP_SUFFIX) && path.startsWith(prefix)) {
+                objects.add(new StorageObject(path, file.length(), file.lastModified()));
+            }
+        }
+    }
+
+    // O caminho não pode sair do diretório raiz
+    private File resolve(String path) throws IOException {
+        final File file = new File(root, path);
+        final String rootPath = root.getCanonicalPath() + File.separator;
+        if (path.isEmpty() || !file.getCanonicalPath().startsWith(rootPath)) {
+            throw new IOException("Caminho \"" + path + "\" inválido!");
+        }
+        return file;
+    }
+
+    private File getPartsDirectory(String path) throws IOException {
+        final File file = resolve(path);
+        return new File(file.getPath() + PARTS_SUFFIX);
+    }
+
+    private static long write(InputStream data, File file) throws IOException {
+        final OutputStream output = new FileOutputStream(file);
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long written = 0;
+            int read;
+            while ((read = data.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+                written += read;
+            }
+            return written;
+        } finally {
+            output.close();
+        }
+    }
+
+    private static void mkdirs(File dir) throws IOException {
+        if (dir != null && !dir.exists() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Não foi possível criar o diretório \"" + dir + "\"!");
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            throw new IOException("Não foi possível gravar \"" + to + "\"!");
+        }
+    }
+
+    private static String partName(int partNumber) {
+        return String.format(Locale.US, "%05d", partNumber);
+    }
+
+}
@@ -0,0 +1,366 @@
+package br.com.dercilima.firebackuplib.upload;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Envia o backup para o {@link StorageBackend} enquanto ele ainda está sendo gravado: os bytes
+ * escritos no stream ({@link #open}) são agrupados em partes e cada parte é enviada assim que
+ * fica completa. Assim, o tempo total fica perto do maior entre compactar e enviar, e não da soma.
+ * <p>
+ * As partes ficam em um conjunto fixo de buffers. Quando todos estão aguardando o envio, a
+ * escrita espera (backpressure), então a memória usada é no máximo bufferCount * partSize.
+ * <p>
+ * Opcionalmente, o backup também é gravado em um arquivo local. Nesse caso, se o upload falhar,
+ * o backup continua sendo gravado no arquivo e é salvo um checkpoint com as partes já enviadas,
+ * para que o {@link ChunkedUploader} termine o upload depois.
+ */
+public class PipelinedUploader {
+
+    private final StorageBackend backend;
+
+    private final File checkpointDir;
+
+    private int partSize = 4 * 1024 * 1024;
+
+    private int concurrency = 2;
+
+    private int bufferCount = 0;
+
+    private int maxRetries = 5;
+
+    private long retryDelayMillis = 1000;
+
+
+    /**
+     * @param backend       Destino do upload
+     * @param checkpointDir Diretório dos checkpoints (o mesmo do {@link ChunkedUploader})
+     */
+    public PipelinedUploader(StorageBackend backend, File checkpointDir) {
+        this.backend = backend;
+        this.checkpointDir = checkpointDir;
+    }
+
+    /**
+     * @param partSize Tamanho de cada parte, em bytes. O padrão é 4 MiB.
+     */
+    public PipelinedUploader setPartSize(int partSize) {
+        if (partSize < 64 * 1024) {
+            throw new IllegalArgumentException("O tamanho da parte precisa ser de pelo menos 64 KiB!");
+        }
+        this.partSize = partSize;
+        return this;
+    }
+
+    /**
+     * @param concurrency Quantidade de partes enviadas ao mesmo tempo. O padrão é 2.
+     */
+    public PipelinedUploader setConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency precisa ser maior que zero!");
+        }
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * @param bufferCount Quantidade de buffers de partes (no mínimo concurrency + 1). O padrão é concurrency + 2.
+     */
+    public PipelinedUploader setBufferCount(int bufferCount) {
+        this.bufferCount = bufferCount;
+        return this;
+    }
+
+    /**
+     * @param maxRetries       Quantidade de novas tentativas de cada parte. O padrão é 5.
+     * @param retryDelayMillis Espera antes da primeira nova tentativa, dobrada a cada tentativa. O padrão é 1 segundo.
+     */
+    public PipelinedUploader setRetries(int maxRetries, long retryDelayMillis) {
+        this.maxRetries = maxRetries;
+        this.retryDelayMillis = retryDelayMillis;
+        return this;
+    }
+
+    /**
+     * Inicia o upload. O upload é finalizado ao fechar o stream.
+     *
+     * @param remotePath  Caminho do arquivo no destino
+     * @param stagingFile Arquivo local onde o backup também é gravado, ou null para não gravar localmente
+     */
+    public Upload open(String remotePath, File stagingFile) throws IOException {
+        return new Upload(remotePath, stagingFile);
+    }
+
+    /**
+     * Stream do upload em andamento
+     */
+    public class Upload extends OutputStream {
+
+        private final String remotePath;
+
+        private final File stagingFile;
+
+        private final OutputStream staging;
+
+        private final ExecutorService executor;
+
+        private final BlockingQueue<byte[]> freeBuffers;
+
+        private final List<Future<Integer>> pending = new ArrayList<>();
+
+        private final List<Integer> uploadedParts = new ArrayList<>();
+
+        private byte[] current;
+
+        private int currentLength = 0;
+
+        private int partCount = 0;
+
+        private long size = 0;
+
+        // Erro do upload. Com o arquivo local, o backup continua sendo gravado apenas no arquivo.
+        private IOException error;
+
+        private String location;
+
+        private boolean closed = false;
+
+        // Partes reenviadas após um erro
+        private final AtomicInteger retries = new AtomicInteger();
+
+        Upload(String remotePath, File stagingFile) throws IOException {
+            this.remotePath = remotePath;
+            this.stagingFile = stagingFile;
+            this.staging = stagingFile != null ? new BufferedOutputStream(new FileOutputStream(stagingFile), 64 * 1024) : null;
+            final int buffers = Math.max(concurrency + 1, bufferCount > 0 ? bufferCount : concurrency + 2);
+            this.freeBuffers = new ArrayBlockingQueue<>(buffers);
+            for (int i = 0; i < buffers; i++) {
+                freeBuffers.add(new byte[partSize]);
+            }
+            this.executor = Executors.newFixedThreadPool(concurrency);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (staging != null) {
+                staging.write(b, off, len);
+            }
+            size += len;
+            if (error != null) {
+                return;
+            }
+            while (len > 0) {
+                if (current == null) {
+                    current = takeBuffer();
+                    if (current == null) {
+                        return;
+                    }
+                }
+                final int count = Math.min(len, current.length - currentLength);
+                System.arraycopy(b, off, current, currentLength, count);
+                currentLength += count;
+                off += count;
+                len -= count;
+                if (currentLength == current.length) {
+                    submit();
+                }
+            }
+        }
+
+        /**
+         * Grava a última parte, aguarda o envio de todas e finaliza o upload
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (staging != null) {
+                    staging.close();
+                }
+                if (error == null && (currentLength > 0 || partCount == 0)) {
+                    if (current == null) {
+                        current = takeBuffer();
+                    }
+                    if (current != null) {
+                        submit();
+                    }
+                }
+                waitPending();
+                if (error == null) {
+                    location = backend.complete(remotePath, partCount, size);
+                }
+            } catch (IOException e) {
+                failed(e);
+            } finally {
+                executor.shutdownNow();
+            }
+
+            if (error != null) {
+                if (stagingFile == null) {
+                    throw error;
+                }
+                // O upload continua depois, a partir do arquivo local
+                saveCheckpoint();
+            }
+        }
+
+        /**
+         * Cancela o upload (ex.: o backup falhou antes de terminar) e descarta as partes já enviadas.
+         * Não faz nada se o upload já foi finalizado.
+         */
+        public void abort() {
+            if (location != null) {
+                return;
+            }
+            closed = true;
+            executor.shutdownNow();
+            try {
+                if (staging != null) {
+                    staging.close();
+                }
+                backend.abort(remotePath, partCount);
+            } catch (IOException e) {
+                // As partes que sobrarem são substituídas no próximo upload com o mesmo caminho
+            }
+        }
+
+        /**
+         * Localização do arquivo no destino, depois que o stream foi fechado com sucesso
+         */
+        public String getLocation() {
+            return location;
+        }
+
+        /**
+         * Bytes gravados no stream
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Quantidade de partes reenviadas após um erro
+         */
+        public int getRetries() {
+            return retries.get();
+        }
+
+        /**
+         * Erro do upload (quando o backup também foi gravado no arquivo local), ou null
+         */
+        public IOException getError() {
+            return error;
+        }
+
+        private byte[] takeBuffer() throws IOException {
+            // Aguarda um buffer livre (backpressure) ou o primeiro erro de envio
+            while (true) {
+                try {
+                    final byte[] buffer = freeBuffers.poll(100, TimeUnit.MILLISECONDS);
+                    if (buffer != null) {
+                        return buffer;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Upload interrompido!");
+                }
+                collectDone();
+                if (error != null) {
+                    return null;
+                }
+            }
+        }
+
+        private void submit() throws IOException {
+            final byte[] data = current;
+            final int length = currentLength;
+            final int partNumber = partCount++;
+            current = null;
+            currentLength = 0;
+            pending.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    try {
+                        retries.addAndGet(ChunkedUploader.putPart(backend, remotePath, partNumber, data, length, maxRetries, retryDelayMillis));
+                        return partNumber;
+                    } finally {
+                        freeBuffers.add(data);
+                    }
+                }
+            }));
+            collectDone();
+        }
+
+        // Registra as partes já enviadas e o primeiro erro
+        private void collectDone() throws IOException {
+            for (int i = pending.size() - 1; i >= 0; i--) {
+                if (pending.get(i).isDone()) {
+                    collect(pending.remove(i));
+                }
+            }
+        }
+
+        private void waitPending() throws IOException {
+            while (!pending.isEmpty()) {
+                collect(pending.remove(0));
+            }
+        }
+
+        private void collect(Future<Integer> future) throws IOException {
+            try {
+                uploadedParts.add(future.get());
+            } catch (ExecutionException e) {
+                failed(e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Upload interrompido!");
+            }
+        }
+
+        private void failed(IOException e) throws IOException {
+            if (error == null) {
+                error = e;
+            }
+            // Sem o arquivo local, não há como continuar o backup
+            if (stagingFile == null) {
+                throw error;
+            }
+        }
+
+        private void saveCheckpoint() {
+            try {
+                final UploadCheckpoint checkpoint = new UploadCheckpoint(stagingFile, remotePath, partSize);
+                for (int partNumber : uploadedParts) {
+                    checkpoint.setDone(partNumber);
+                }
+                checkpoint.save(ChunkedUploader.getCheckpointFile(checkpointDir, remotePath));
+            } catch (IOException e) {
+                // Sem o checkpoint, o próximo upload envia todas as partes
+            }
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+package br.com.dercilima.firebackuplib.upload;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Destino remoto dos backups, usado pelo upload do BackupTask, pelo {@link ChunkedUploader} e pela
+ * retenção dos backups enviados. O arquivo é enviado de uma vez ({@link #put(String, InputStream, long)})
+ * ou em partes numeradas, que podem ser enviadas em qualquer ordem e ao mesmo tempo. Enviar de novo
+ * uma parte substitui a anterior. Os dois formatos são lidos, consultados e excluídos da mesma forma.
+ * <p>
+ * Além do Storage do Firebase, há destinos em um diretório ({@link LocalStorageBackend}) e em memória
+ * ({@link InMemoryStorageBackend}), para testar e medir o upload sem um projeto do Firebase.
+ */
+public interface StorageBackend {
+
+    /**
+     * Grava o arquivo inteiro, substituindo o anterior
+     *
+     * @param path Caminho do arquivo no destino
+     * @param data Conteúdo do arquivo (não é fechado)
+     * @param size Tamanho do conteúdo, em bytes
+     * @return Localização do arquivo no destino (ex.: a URL de download)
+     */
+    String put(String path, InputStream data, long size) throws IOException;
+
+    /**
+     * Grava uma parte do arquivo
+     *
+     * @param path       Caminho do arquivo no destino
+     * @param partNumber Número da parte (a partir de 0)
+     */
+    void putPart(String path, int partNumber, byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Partes do arquivo já gravadas no destino. Um destino que não consegue listar as partes
+     * retorna um conjunto vazio e, nesse caso, vale apenas o checkpoint local.
+     *
+     * @param path Caminho do arquivo no destino
+     */
+    Set<Integer> listParts(String path) throws IOException;
+
+    /**
+     * Finaliza o upload depois que todas as partes foram gravadas
+     *
+     * @param path      Caminho do arquivo no destino
+     * @param partCount Quantidade de partes
+     * @param size      Tamanho total do arquivo
+     * @return Localização do arquivo no destino (ex.: a URL de download)
+     */
+    String complete(String path, int partCount, long size) throws IOException;
+
+    /**
+     * Descarta as partes de um upload que não foi finalizado. Partes que não existem (nunca enviadas
+     * ou já excluídas) são ignoradas.
+     *
+     * @param path      Caminho do arquivo no destino
+     * @param partCount Quantidade de partes do upload (as partes 0 a partCount - 1 são descartadas)
+     */
+    void abort(String path, int partCount) throws IOException;
+
+    /**
+     * Exclui um arquivo finalizado (e as partes que restarem). Excluir um arquivo que não existe
+     * não é um erro.
+     *
+     * @param path Caminho do arquivo no destino
+     */
+    void delete(String path) throws IOException;
+
+    /**
+     * Lê um trecho de um arquivo finalizado
+     *
+     * @param path   Caminho do arquivo no destino
+     * @param offset Posição inicial, em bytes
+     * @param length Quantidade de bytes (-1 para ler até o fim)
+     * @throws FileNotFoundException Se o arquivo não existe
+     */
+    InputStream get(String path, long offset, long length) throws IOException;
+
+    /**
+     * Tamanho e data de um arquivo finalizado
+     *
+     * @param path Caminho do arquivo no destino
+     * @return O arquivo, ou null se ele não existe
+     */
+    StorageObject stat(String path) throws IOException;
+
+    /**
+     * Arquivos finalizados cujo caminho começa com o prefixo, em ordem alfabética
+     *
+     * @param prefix Prefixo dos caminhos (ex.: "ano/mes/"), ou "" para todos
+     * @throws IOException Se não foi possível listar (inclusive se o destino não lista os arquivos,
+     *                     como o {@link FirebaseStorageBackend})
+     */
+    List<StorageObject> list(String prefix) throws IOException;
+
+}
@@ -0,0 +1,44 @@
+package br.com.dercilima.firebackuplib.upload;
+
+/**
+ * Arquivo finalizado no destino remoto, retornado pelo {@link StorageBackend#stat(String)} e pelo
+ * {@link StorageBackend#list(String)}
+ */
+public class StorageObject {
+
+    private final String path;
+
+    private final long size;
+
+    private final long updatedAt;
+
+
+    /**
+     * @param path      Caminho do arquivo no destino
+     * @param size      Tamanho, em bytes
+     * @param updatedAt Data da última gravação, em milissegundos (0 se o destino não informa)
+     */
+    public StorageObject(String path, long size, long updatedAt) {
+        this.path = path;
+        this.size = size;
+        this.updatedAt = updatedAt;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    @Override
+    public String toString() {
+        return "path=[" + path + "] size=[" + size + "] updatedAt=[" + updatedAt + "]";
+    }
+
+}
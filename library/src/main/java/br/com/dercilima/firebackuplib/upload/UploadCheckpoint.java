@@ -0,0 +1,164 @@
+package br.com.dercilima.firebackuplib.upload;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Partes já enviadas de um upload, salvas em disco a cada parte finalizada.
+ * Se o upload for interrompido (falha de rede, app encerrado), ele continua a partir daqui.
+ */
+class UploadCheckpoint {
+
+    private static final int MAGIC = 0x46425543; // "FBUC"
+    private static final int VERSION = 1;
+
+    private final String localPath;
+
+    private final String remotePath;
+
+    // Arquivo local no momento do upload: se mudar, o checkpoint não vale mais
+    private final long fileLength;
+
+    private final long lastModified;
+
+    private final int partSize;
+
+    private final boolean[] done;
+
+
+    UploadCheckpoint(File file, String remotePath, int partSize) {
+        this(file.getAbsolutePath(), remotePath, file.length(), file.lastModified(), partSize,
+                new boolean[partCount(file.length(), partSize)]);
+    }
+
+    private UploadCheckpoint(String localPath, String remotePath, long fileLength, long lastModified, int partSize, boolean[] done) {
+        this.localPath = localPath;
+        this.remotePath = remotePath;
+        this.fileLength = fileLength;
+        this.lastModified = lastModified;
+        this.partSize = partSize;
+        this.done = done;
+    }
+
+    static int partCount(long fileLength, int partSize) {
+        // Um arquivo vazio ainda tem uma parte (vazia)
+        return (int) Math.max(1, (fileLength + partSize - 1) / partSize);
+    }
+
+    /**
+     * Indica se o checkpoint pertence ao upload deste arquivo, no estado atual do arquivo
+     */
+    boolean matches(File file, String remotePath, int partSize) {
+        return localPath.equals(file.getAbsolutePath())
+                && this.remotePath.equals(remotePath)
+                && fileLength == file.length()
+                && lastModified == file.lastModified()
+                && this.partSize == partSize;
+    }
+
+    String getLocalPath() {
+        return localPath;
+    }
+
+    String getRemotePath() {
+        return remotePath;
+    }
+
+    long getFileLength() {
+        return fileLength;
+    }
+
+    int getPartSize() {
+        return partSize;
+    }
+
+    int getPartCount() {
+        return done.length;
+    }
+
+    synchronized boolean isDone(int partNumber) {
+        return done[partNumber];
+    }
+
+    synchronized void setDone(int partNumber) {
+        done[partNumber] = true;
+    }
+
+    synchronized int getDoneCount() {
+        int count = 0;
+        for (boolean d : done) {
+            if (d) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Grava o checkpoint em disco. O arquivo é substituído com um rename, para nunca ficar pela metade.
+     */
+    synchronized void save(File file) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            data.writeInt(MAGIC);
+            data.writeByte(VERSION);
+            data.writeUTF(localPath);
+            data.writeUTF(remotePath);
+            data.writeLong(fileLength);
+            data.writeLong(lastModified);
+            data.writeInt(partSize);
+            data.writeInt(done.length);
+            for (boolean d : done) {
+                data.writeBoolean(d);
+            }
+        } finally {
+            data.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Não foi possível gravar o checkpoint \"" + file + "\"!");
+        }
+    }
+
+    /**
+     * Lê o checkpoint salvo em disco
+     *
+     * @return O checkpoint ou null caso o arquivo não exista ou esteja inválido
+     */
+    static UploadCheckpoint load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            final InputStream input = new BufferedInputStream(new FileInputStream(file));
+            try {
+                final DataInputStream data = new DataInputStream(input);
+                if (data.readInt() != MAGIC || data.readByte() != VERSION) {
+                    return null;
+                }
+                final String localPath = data.readUTF();
+                final String remotePath = data.readUTF();
+                final long fileLength = data.readLong();
+                final long lastModified = data.readLong();
+                final int partSize = data.readInt();
+                final boolean[] done = new boolean[data.readInt()];
+                for (int i = 0; i < done.length; i++) {
+                    done[i] = data.readBoolean();
+                }
+                return new UploadCheckpoint(localPath, remotePath, fileLength, lastModified, partSize, done);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+}
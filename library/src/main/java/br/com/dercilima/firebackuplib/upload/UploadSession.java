@@ -0,0 +1,115 @@
+package br.com.dercilima.firebackuplib.upload;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Sessão resumível de um upload para o Storage do Firebase, salva em disco assim que o Firebase
+ * informa a URI da sessão. Se o upload for interrompido, ele continua na mesma sessão.
+ */
+class UploadSession {
+
+    private static final int MAGIC = 0x46425553; // "FBUS"
+    private static final int VERSION = 1;
+
+    private final String localPath;
+
+    private final String remotePath;
+
+    // Arquivo local no momento do upload: se mudar, a sessão não vale mais
+    private final long fileLength;
+
+    private final long lastModified;
+
+    private final String sessionUri;
+
+
+    UploadSession(File file, String remotePath, String sessionUri) {
+        this(file.getAbsolutePath(), remotePath, file.length(), file.lastModified(), sessionUri);
+    }
+
+    private UploadSession(String localPath, String remotePath, long fileLength, long lastModified, String sessionUri) {
+        this.localPath = localPath;
+        this.remotePath = remotePath;
+        this.fileLength = fileLength;
+        this.lastModified = lastModified;
+        this.sessionUri = sessionUri;
+    }
+
+    /**
+     * Indica se a sessão pertence ao upload deste arquivo, no estado atual do arquivo
+     */
+    boolean matches(File file, String remotePath) {
+        return localPath.equals(file.getAbsolutePath())
+                && this.remotePath.equals(remotePath)
+                && fileLength == file.length()
+                && lastModified == file.lastModified();
+    }
+
+    String getLocalPath() {
+        return localPath;
+    }
+
+    String getRemotePath() {
+        return remotePath;
+    }
+
+    String getSessionUri() {
+        return sessionUri;
+    }
+
+    /**
+     * Grava a sessão em disco. O arquivo é substituído com um rename, para nunca ficar pela metade.
+     */
+    void save(File file) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            data.writeInt(MAGIC);
+            data.writeByte(VERSION);
+            data.writeUTF(localPath);
+            data.writeUTF(remotePath);
+            data.writeLong(fileLength);
+            data.writeLong(lastModified);
+            data.writeUTF(sessionUri);
+        } finally {
+            data.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Não foi possível gravar a sessão do upload \"" + file + "\"!");
+        }
+    }
+
+    /**
+     * Lê a sessão salva em disco
+     *
+     * @return A sessão ou null caso o arquivo não exista ou esteja inválido
+     */
+    static UploadSession load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            final InputStream input = new BufferedInputStream(new FileInputStream(file));
+            try {
+                final DataInputStream data = new DataInputStream(input);
+                if (data.readInt() != MAGIC || data.readByte() != VERSION) {
+                    return null;
+                }
+                return new UploadSession(data.readUTF(), data.readUTF(), data.readLong(), data.readLong(), data.readUTF());
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+}
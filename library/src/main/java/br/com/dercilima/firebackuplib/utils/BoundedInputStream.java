@@ -0,0 +1,103 @@
+package br.com.dercilima.firebackuplib.utils;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Lê no máximo a quantidade de bytes informada do stream de origem, a partir da posição atual
+ */
+public class BoundedInputStream extends FilterInputStream {
+
+    private long remaining;
+
+
+    /**
+     * @param limit Quantidade máxima de bytes (-1 para ler até o fim)
+     */
+    public BoundedInputStream(InputStream in, long limit) {
+        super(in);
+        this.remaining = limit < 0 ? Long.MAX_VALUE : limit;
+    }
+
+    /**
+     * Pula os primeiros bytes do stream e limita a leitura ao trecho. Se não conseguir pular, o
+     * stream de origem é fechado.
+     *
+     * @param offset Posição inicial do trecho
+     * @param length Tamanho do trecho (-1 para ler até o fim)
+     */
+    public static InputStream range(InputStream in, long offset, long length) throws IOException {
+        try {
+            skipFully(in, offset);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return new BoundedInputStream(in, length);
+    }
+
+    /**
+     * Pula exatamente a quantidade de bytes informada
+     *
+     * @throws EOFException Se o stream terminar antes
+     */
+    public static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            final long skipped = in.skip(count);
+            if (skipped > 0) {
+                count -= skipped;
+            } else if (in.read() >= 0) {
+                // Alguns streams só pulam depois de uma leitura
+                count--;
+            } else {
+                throw new EOFException("Fim do arquivo antes da posição informada!");
+            }
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        final int b = in.read();
+        if (b != -1) {
+            remaining--;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining <= 0) {
+            return len == 0 ? 0 : -1;
+        }
+        final int read = in.read(b, off, (int) Math.min(len, remaining));
+        if (read > 0) {
+            remaining -= read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        final long skipped = in.skip(Math.min(n, remaining));
+        if (skipped > 0) {
+            remaining -= skipped;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+}
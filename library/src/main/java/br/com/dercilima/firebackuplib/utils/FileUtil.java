@@ -1,18 +1,58 @@
 package br.com.dercilima.firebackuplib.utils;
 
 import android.content.Context;
-import android.util.Log;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
 
-import br.com.dercilima.firebackuplib.R;
-
+/**
+ * Cópia de arquivos com três estratégias de I/O, escolhidas pelo tamanho do arquivo ({@link Mode#AUTO}):
+ * <ul>
+ * <li>{@link Mode#DIRECT}: leituras alinhadas em blocos de 4 KiB para um buffer direto, que não passa pelo heap;</li>
+ * <li>{@link Mode#TRANSFER}: FileChannel.transferTo(), em que o kernel copia os dados (zero-copy);</li>
+ * <li>{@link Mode#MAPPED}: o arquivo de origem é mapeado em memória, em janelas de 64 MiB.</li>
+ * </ul>
+ * Todas as estratégias copiam em partes de tamanho fixo até o final do arquivo: o transferTo() pode
+ * copiar menos do que foi pedido, e uma chamada única truncava os bancos de dados grandes.
+ */
 public class FileUtil {
 
+    /**
+     * Estratégia de I/O da cópia
+     */
+    public enum Mode {
+        AUTO, DIRECT, TRANSFER, MAPPED
+    }
+
+    // Tamanho do bloco do sistema de arquivos, usado no alinhamento das leituras
+    static final int BLOCK_SIZE = 4 * 1024;
+
+    // Buffer direto (múltiplo do bloco)
+    static final int DIRECT_BUFFER_SIZE = 256 * 1024;
+
+    // Quantidade máxima de bytes pedida em cada transferTo() e em cada janela mapeada
+    static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+    static final long MAP_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * No modo AUTO, arquivos até este tamanho são copiados com o buffer direto
+     * (o custo de preparar o transferTo() ou o mapeamento é maior que a cópia)
+     */
+    public static final long DIRECT_MAX_SIZE = 1024 * 1024;
+
+    /**
+     * No modo AUTO, arquivos a partir deste tamanho são copiados com o mapeamento em memória
+     */
+    public static final long MAPPED_MIN_SIZE = 256L * 1024 * 1024;
+
+
     /*
      * Copia arquivos de um local para o outro
      *
@@ -23,29 +63,215 @@ public class FileUtil {
      * @param overwrite - Confirmação para sobrescrever os arquivos
      *
      * @throws IOException
+     *
+     * @deprecated O Context não é mais utilizado. Use copyFile(File, File, boolean).
      */
+    @Deprecated
     public static boolean copyFile(Context context, File origem, File destino, boolean overwrite) throws IOException {
+        return copyFile(origem, destino, overwrite);
+    }
 
+    /**
+     * Copia arquivos de um local para o outro, com a estratégia escolhida pelo tamanho
+     *
+     * @param origem    Arquivo de origem
+     * @param destino   Arquivo de destino
+     * @param overwrite Confirmação para sobrescrever o destino
+     * @return false se o destino já existe e não pode ser sobrescrito
+     */
+    public static boolean copyFile(File origem, File destino, boolean overwrite) throws IOException {
         if (destino.exists() && !overwrite) {
-            Log.d(context.getString(R.string.app_name) + " - FileUtil", destino.getName() + " já existe, ignorando...");
             return false;
         }
+        copy(origem, destino, Mode.AUTO, false);
+        return true;
+    }
 
-        final FileInputStream fisOrigem = new FileInputStream(origem);
-        final FileChannel fcOrigem = fisOrigem.getChannel();
+    /**
+     * Copia o arquivo de origem para o destino (sobrescrevendo)
+     *
+     * @param source Arquivo de origem
+     * @param dest   Arquivo de destino
+     * @param mode   Estratégia de I/O
+     * @param sync   Grava o destino em disco (fsync) antes de retornar
+     * @return Estratégia usada, bytes copiados e tempo gasto
+     * @throws EOFException se o arquivo de origem diminuir durante a cópia
+     */
+    public static CopyResult copy(File source, File dest, Mode mode, boolean sync) throws IOException {
+        return copy(source, dest, mode, sync, null);
+    }
 
-        final FileOutputStream fisDestino = new FileOutputStream(destino);
-        final FileChannel fcDestino = fisDestino.getChannel();
+    /**
+     * Copia o arquivo de origem para o destino (sobrescrevendo), informando ao monitor os bytes de cada
+     * parte copiada. Se o monitor indicar o cancelamento, a cópia para na parte atual. Se a cópia falhar
+     * ou for cancelada, o destino incompleto é excluído.
+     *
+     * @param monitor Monitor da cópia, ou null
+     * @see #copy(File, File, Mode, boolean)
+     */
+    public static CopyResult copy(File source, File dest, Mode mode, boolean sync, TransferMonitor monitor) throws IOException {
 
-        // Copiando
-        fcOrigem.transferTo(0, fcOrigem.size(), fcDestino);
+        final long start = System.nanoTime();
 
-        // Fechando
-        fisOrigem.close();
-        fisDestino.close();
+        boolean success = false;
+        final FileInputStream input = new FileInputStream(source);
+        try {
+            final FileOutputStream output = new FileOutputStream(dest);
+            try {
+                final FileChannel in = input.getChannel();
+                final FileChannel out = output.getChannel();
 
-        return true;
+                final long size = in.size();
+                final Mode used = mode == Mode.AUTO ? selectMode(size) : mode;
+
+                final long copied;
+                switch (used) {
+                    case MAPPED:
+                        copied = copyMapped(in, out, size, monitor);
+                        break;
+                    case TRANSFER:
+                        copied = copyTransfer(in, out, size, monitor);
+                        break;
+                    default:
+                        copied = copyDirect(in, out, 0, size, monitor);
+                        break;
+                }
+
+                if (sync) {
+                    out.force(true);
+                }
+
+                success = true;
+                return new CopyResult(used, copied, System.nanoTime() - start);
+
+            } finally {
+                try {
+                    output.close();
+                } finally {
+                    // Um destino incompleto seria lido como uma cópia válida (ex.: o snapshot do banco)
+                    if (!success) {
+                        dest.delete();
+                    }
+                }
+            }
+        } finally {
+            input.close();
+        }
     }
 
-}
+    /**
+     * Estratégia usada no modo AUTO para um arquivo do tamanho informado
+     */
+    public static Mode selectMode(long size) {
+        if (size <= DIRECT_MAX_SIZE) {
+            return Mode.DIRECT;
+        }
+        return size >= MAPPED_MIN_SIZE ? Mode.MAPPED : Mode.TRANSFER;
+    }
+
+    private static long copyTransfer(FileChannel in, FileChannel out, long size, TransferMonitor monitor) throws IOException {
+        long position = 0;
+        while (position < size) {
+            final long count = in.transferTo(position, Math.min(TRANSFER_CHUNK_SIZE, size - position), out);
+            if (count <= 0) {
+                // Alguns kernels e sistemas de arquivos deixam de transferir: o restante é copiado com o buffer
+                return position + copyDirect(in, out, position, size, monitor);
+            }
+            position += count;
+            onBytes(monitor, count);
+        }
+        return position;
+    }
+
+    private static long copyMapped(FileChannel in, FileChannel out, long size, TransferMonitor monitor) throws IOException {
+        long position = 0;
+        while (position < size) {
+            final MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_CHUNK_SIZE, size - position));
+            while (map.hasRemaining()) {
+                // Uma janela inteira pode ser gravada de uma vez, então a janela é gravada em partes do tamanho do transferTo()
+                final int end = map.limit();
+                map.limit((int) Math.min(end, map.position() + TRANSFER_CHUNK_SIZE));
+                final int count = out.write(map);
+                map.limit(end);
+                position += count;
+                onBytes(monitor, count);
+            }
+        }
+        return position;
+    }
+
+    // Copia de "position" até "size". As leituras começam em posições múltiplas do bloco
+    // (exceto a primeira, se "position" não for) e sempre preenchem o buffer inteiro.
+    private static long copyDirect(FileChannel in, FileChannel out, long position, long size, TransferMonitor monitor) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+        final long start = position;
+        while (position < size) {
+            buffer.clear();
+            buffer.limit((int) Math.min(DIRECT_BUFFER_SIZE - position % BLOCK_SIZE, size - position));
+            while (buffer.hasRemaining()) {
+                if (in.read(buffer, position + buffer.position()) == -1) {
+                    throw new EOFException("O arquivo de origem diminuiu durante a cópia!");
+                }
+            }
+            buffer.flip();
+            onBytes(monitor, buffer.remaining());
+            while (buffer.hasRemaining()) {
+                position += out.write(buffer);
+            }
+        }
+        return position - start;
+    }
+
+    private static void onBytes(TransferMonitor monitor, long count) throws IOException {
+        if (monitor != null) {
+            monitor.onBytes(count);
+        }
+    }
+
+    /**
+     * Resultado de uma cópia
+     */
+    public static class CopyResult {
+
+        private final Mode mode;
 
+        private final long bytes;
+
+        private final long elapsedNanos;
+
+        CopyResult(Mode mode, long bytes, long elapsedNanos) {
+            this.mode = mode;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * Estratégia usada (nunca AUTO)
+         */
+        public Mode getMode() {
+            return mode;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * Taxa da cópia, incluindo a abertura dos arquivos e o fsync
+         */
+        public long getBytesPerSecond() {
+            return elapsedNanos > 0 ? (long) (bytes * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos) : bytes;
+        }
+
+        @Override
+        public String toString() {
+            return "mode=[" + mode + "] bytes=[" + bytes + "] time=[" + TimeUnit.NANOSECONDS.toMillis(elapsedNanos)
+                    + " ms] rate=[" + getBytesPerSecond() / 1024 + " KiB/s]";
+        }
+    }
+
+}
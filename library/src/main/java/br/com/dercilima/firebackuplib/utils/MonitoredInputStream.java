@@ -0,0 +1,50 @@
+package br.com.dercilima.firebackuplib.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Informa ao {@link TransferMonitor} os bytes lidos, a cada leitura
+ */
+public class MonitoredInputStream extends FilterInputStream {
+
+    private final TransferMonitor monitor;
+
+
+    public MonitoredInputStream(InputStream in, TransferMonitor monitor) {
+        super(in);
+        this.monitor = monitor;
+    }
+
+    /**
+     * Retorna o stream de origem quando não há monitor
+     */
+    public static InputStream wrap(InputStream in, TransferMonitor monitor) {
+        return monitor != null ? new MonitoredInputStream(in, monitor) : in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int b = in.read();
+        if (b != -1) {
+            monitor.onBytes(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        final int read = in.read(b, off, len);
+        monitor.onBytes(read > 0 ? read : 0);
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        final long skipped = in.skip(n);
+        monitor.onBytes(skipped > 0 ? skipped : 0);
+        return skipped;
+    }
+
+}
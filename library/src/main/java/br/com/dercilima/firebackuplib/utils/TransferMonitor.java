@@ -0,0 +1,18 @@
+package br.com.dercilima.firebackuplib.utils;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Acompanha os bytes copiados, compactados ou enviados. É chamado a cada buffer pelos laços de
+ * cópia, para informar o progresso e para interromper a operação quando ela for cancelada.
+ * Pode ser chamado por mais de uma thread.
+ */
+public interface TransferMonitor {
+
+    /**
+     * @param count Bytes processados desde a última chamada (0 apenas confere o cancelamento)
+     * @throws InterruptedIOException se a operação foi cancelada
+     */
+    void onBytes(long count) throws InterruptedIOException;
+
+}
@@ -0,0 +1,323 @@
+package br.com.dercilima.firebackuplib.archive;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+import br.com.dercilima.firebackuplib.compress.Codec;
+import br.com.dercilima.firebackuplib.compress.DeflateCodec;
+import br.com.dercilima.firebackuplib.compress.FixedCodecPolicy;
+import br.com.dercilima.firebackuplib.compress.Lz4Codec;
+import br.com.dercilima.firebackuplib.compress.StoreCodec;
+import br.com.dercilima.firebackuplib.compress.ZstdCodec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ArchiveIntegrityTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int CENTRAL_HEADER = 0x02014b50;
+
+    // Trecho único, para localizar o conteúdo das entradas sem compressão dentro do zip
+    private static final byte[] MARKER = "#conteudo-da-entrada#".getBytes(UTF8);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTrip_everyCodec() throws IOException {
+        final Codec[] codecs = {
+                new StoreCodec(), new DeflateCodec(Deflater.BEST_SPEED), new Lz4Codec(), new ZstdCodec()};
+        final byte[] database = databaseLike(3 * 1024 * 1024 + 17);
+        final byte[] preferences = "<map><string name=\"k\">v</string></map>".getBytes(UTF8);
+        final byte[] opened = databaseLike(200 * 1024);
+
+        for (Codec codec : codecs) {
+            final File source = write(folder.newFile(), database);
+            final File archive = folder.newFile();
+
+            final ArchiveWriter writer = new ArchiveWriter(archive);
+            writer.setCodecPolicy(new FixedCodecPolicy(codec));
+            writer.putFile("databases/app.db", source);
+            writer.putStream("shared_prefs/config.xml", new ByteArrayInputStream(preferences));
+            final OutputStream entry = writer.openEntry("files/empty.bin");
+            entry.close();
+            final OutputStream other = writer.openEntry("files/opened.bin");
+            other.write(opened);
+            other.close();
+            writer.close();
+
+            final ArchiveReader reader = new ArchiveReader(archive);
+            try {
+                assertEquals(codec.toString(), "app.db", reader.nextEntry());
+                assertArrayEquals(codec.toString(), database, readAll(reader.getEntryStream()));
+                assertEquals("config.xml", reader.nextEntry());
+                assertArrayEquals(codec.toString(), preferences, readAll(reader.getEntryStream()));
+                assertEquals("empty.bin", reader.nextEntry());
+                assertEquals(0, readAll(reader.getEntryStream()).length);
+                assertEquals("opened.bin", reader.nextEntry());
+                assertArrayEquals(codec.toString(), opened, readAll(reader.getEntryStream()));
+                assertNull(reader.nextEntry());
+
+                final ArchiveManifest.Item item = reader.getManifest().getItem("databases/app.db");
+                assertEquals(database.length, item.getSize());
+                assertEquals(codec.getMethod(), item.getMethod());
+
+                reader.verify(false);
+                reader.verify(true);
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    @Test
+    public void storedFile_inArchiveFile_hasCrcInHeaderAndArchiveChecksum() throws IOException {
+        final byte[] database = databaseLike(300 * 1024 + 5);
+        final File source = write(folder.newFile(), database);
+
+        // O zip começa depois de outros dados do arquivo: o cabeçalho é corrigido na posição certa
+        final File archive = folder.newFile();
+        final byte[] prefix = "prefixo".getBytes(UTF8);
+        final FileOutputStream output = new FileOutputStream(archive);
+        final ArchiveWriter writer;
+        try {
+            output.write(prefix);
+            writer = new ArchiveWriter(output, output.getChannel());
+            writer.setCodecPolicy(new FixedCodecPolicy(new StoreCodec()));
+            writer.putFile("databases/app.db", source);
+            writer.putFile("databases/other.db", source);
+            writer.close();
+        } finally {
+            output.close();
+        }
+        final byte[] content = readAll(new FileInputStream(archive));
+        final byte[] zip = Arrays.copyOfRange(content, prefix.length, content.length);
+
+        // O ZipInputStream usa o CRC do cabeçalho local nas entradas sem compressão
+        final ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(zip));
+        try {
+            for (String name : new String[]{"databases/app.db", "databases/other.db"}) {
+                final ZipEntry entry = input.getNextEntry();
+                assertEquals(name, entry.getName());
+                assertEquals(crc(database), entry.getCrc());
+                assertArrayEquals(database, readEntry(input));
+            }
+        } finally {
+            input.close();
+        }
+
+        // O checksum do zip é o do conteúdo final, com os cabeçalhos corrigidos
+        assertEquals(crc(zip), writer.getChecksum());
+        final ArchiveReader reader = new ArchiveReader(write(folder.newFile(), zip));
+        try {
+            reader.verify(true);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void corruptedContent_failsVerificationAndCrc() throws IOException {
+        final File archive = storedArchive();
+
+        // Um bit trocado no conteúdo, sem mudar o tamanho
+        final RandomAccessFile file = new RandomAccessFile(archive, "rw");
+        try {
+            final long position = indexOf(archive, MARKER) + MARKER.length + 10;
+            file.seek(position);
+            final int b = file.read();
+            file.seek(position);
+            file.write(b ^ 0x04);
+        } finally {
+            file.close();
+        }
+
+        final ArchiveReader reader = new ArchiveReader(archive);
+        try {
+            assertFails(reader, false);
+            assertFails(reader, true);
+
+            // A leitura da entrada confere o CRC32 ao chegar no final
+            assertEquals("app.db", reader.nextEntry());
+            try {
+                readAll(reader.getEntryStream());
+                fail("O CRC da entrada corrompida não foi conferido");
+            } catch (ZipException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("corrompida"));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void wrongSizeInCentralDirectory_isDetected() throws IOException {
+        final File archive = storedArchive();
+        final byte[] content = readAll(new FileInputStream(archive));
+
+        // Tamanho descompactado da primeira entrada no diretório central, um byte a menos
+        final int header = indexOf(content, intLE(CENTRAL_HEADER));
+        final int size = getInt(content, header + 24);
+        final RandomAccessFile file = new RandomAccessFile(archive, "rw");
+        try {
+            file.seek(header + 24);
+            file.write(intLE(size - 1));
+        } finally {
+            file.close();
+        }
+
+        final ArchiveReader reader = new ArchiveReader(archive);
+        try {
+            assertEquals("app.db", reader.nextEntry());
+            try {
+                readAll(reader.getEntryStream());
+                fail("O tamanho errado da entrada não foi detectado");
+            } catch (ZipException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("inválido"));
+            }
+            assertFails(reader, true);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void truncatedArchive_isRejected() throws IOException {
+        final File archive = storedArchive();
+        final RandomAccessFile file = new RandomAccessFile(archive, "rw");
+        try {
+            file.setLength(file.length() / 2);
+        } finally {
+            file.close();
+        }
+
+        try {
+            new ArchiveReader(archive).close();
+            fail("O backup incompleto foi aberto");
+        } catch (ZipException e) {
+            // Sem o diretório central
+        }
+    }
+
+    // Backup com uma entrada sem compressão, cujo conteúdo pode ser localizado e alterado
+    private File storedArchive() throws IOException {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(MARKER);
+        data.write(databaseLike(100 * 1024));
+        final File source = write(folder.newFile(), data.toByteArray());
+
+        final File archive = folder.newFile();
+        final ArchiveWriter writer = new ArchiveWriter(archive);
+        writer.setCodecPolicy(new FixedCodecPolicy(new StoreCodec()));
+        writer.putFile("app.db", source);
+        writer.close();
+        return archive;
+    }
+
+    private static void assertFails(ArchiveReader reader, boolean full) throws IOException {
+        try {
+            reader.verify(full);
+            fail("A conferência " + (full ? "completa" : "rápida") + " não detectou o backup corrompido");
+        } catch (ZipException e) {
+            // Esperado
+        }
+    }
+
+    // Páginas parecidas com as de um banco SQLite: trechos repetidos e trechos aleatórios
+    static byte[] databaseLike(int length) {
+        final Random random = new Random(length);
+        final byte[] data = new byte[length];
+        final byte[] row = "cliente;pedido;valor;2018-10-01;".getBytes(UTF8);
+        for (int i = 0; i < length; i++) {
+            data[i] = (i / 4096) % 3 == 0 ? (byte) random.nextInt(256) : row[(i + i / 4096) % row.length];
+        }
+        return data;
+    }
+
+    static File write(File file, byte[] data) throws IOException {
+        final OutputStream output = new FileOutputStream(file);
+        try {
+            output.write(data);
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    private static long crc(byte[] data) {
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    // Lê a entrada atual sem fechar o stream do zip
+    private static byte[] readEntry(ZipInputStream input) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+
+    static byte[] readAll(InputStream input) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        try {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+        }
+        return output.toByteArray();
+    }
+
+    private static long indexOf(File file, byte[] pattern) throws IOException {
+        return indexOf(readAll(new FileInputStream(file)), pattern);
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        for (int i = 0; i + pattern.length <= data.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(data, i, i + pattern.length), pattern)) {
+                return i;
+            }
+        }
+        throw new AssertionError("Trecho não encontrado no backup");
+    }
+
+    private static byte[] intLE(int value) {
+        return new byte[]{(byte) value, (byte) (value >>> 8), (byte) (value >>> 16), (byte) (value >>> 24)};
+    }
+
+    private static int getInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+
+}
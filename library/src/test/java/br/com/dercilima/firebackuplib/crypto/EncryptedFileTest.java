@@ -0,0 +1,215 @@
+package br.com.dercilima.firebackuplib.crypto;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class EncryptedFileTest {
+
+    private static final int FRAME_SIZE = 1024;
+
+    // 9 frames inteiros e um pela metade
+    private static final int SIZE = 9 * FRAME_SIZE + FRAME_SIZE / 2;
+
+    private static final int STRIDE = FRAME_SIZE + FrameCipher.TAG_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final KeyProvider keys = new FixedKeyProvider("chave-1", 1);
+
+    @Test
+    public void roundTrip_everyFrame() throws IOException {
+        final byte[] content = random(1, SIZE);
+        final File file = encrypt(content);
+
+        final EncryptedFile encrypted = new EncryptedFile(file, keys);
+        try {
+            assertEquals(SIZE, encrypted.length());
+            assertArrayEquals(content, readAll(encrypted));
+        } finally {
+            encrypted.close();
+        }
+    }
+
+    @Test
+    public void truncatedAtFrameBoundary_isRejectedOnOpen() throws IOException {
+        // Sem o último frame, o frame anterior não está marcado como o último
+        final File file = encrypt(random(2, SIZE));
+        setLength(file, file.length() - (FRAME_SIZE / 2 + FrameCipher.TAG_SIZE));
+        assertOpenFails(file, keys);
+    }
+
+    @Test
+    public void truncatedInsideFrame_isRejectedOnOpen() throws IOException {
+        final File file = encrypt(random(3, SIZE));
+        setLength(file, file.length() - 100);
+        assertOpenFails(file, keys);
+    }
+
+    @Test
+    public void tamperedFrame_failsOnRead() throws IOException {
+        final File file = encrypt(random(4, SIZE));
+        final long headerSize = file.length() - (9L * STRIDE + FRAME_SIZE / 2 + FrameCipher.TAG_SIZE);
+
+        // Um bit trocado no quarto frame
+        final RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        try {
+            final long position = headerSize + 3L * STRIDE + 10;
+            raw.seek(position);
+            final int b = raw.read();
+            raw.seek(position);
+            raw.write(b ^ 0x01);
+        } finally {
+            raw.close();
+        }
+
+        final EncryptedFile encrypted = new EncryptedFile(file, keys);
+        try {
+            // Os outros frames continuam legíveis
+            encrypted.read(0, new byte[FRAME_SIZE], 0, FRAME_SIZE);
+            try {
+                encrypted.read(3L * FRAME_SIZE, new byte[FRAME_SIZE], 0, FRAME_SIZE);
+                fail("O frame alterado foi decriptografado");
+            } catch (IOException e) {
+                // Esperado
+            }
+        } finally {
+            encrypted.close();
+        }
+    }
+
+    @Test
+    public void swappedFrames_failOnRead() throws IOException {
+        final File file = encrypt(random(5, SIZE));
+        final long headerSize = file.length() - (9L * STRIDE + FRAME_SIZE / 2 + FrameCipher.TAG_SIZE);
+
+        // Cada frame é autenticado com o seu número: frames trocados de lugar não passam
+        final byte[] first = new byte[STRIDE];
+        final byte[] second = new byte[STRIDE];
+        final RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        try {
+            raw.seek(headerSize);
+            raw.readFully(first);
+            raw.readFully(second);
+            raw.seek(headerSize);
+            raw.write(second);
+            raw.write(first);
+        } finally {
+            raw.close();
+        }
+
+        final EncryptedFile encrypted = new EncryptedFile(file, keys);
+        try {
+            encrypted.read(0, new byte[FRAME_SIZE], 0, FRAME_SIZE);
+            fail("O frame fora de ordem foi decriptografado");
+        } catch (IOException e) {
+            // Esperado
+        } finally {
+            encrypted.close();
+        }
+    }
+
+    @Test
+    public void wrongKey_isRejectedOnOpen() throws IOException {
+        final File file = encrypt(random(6, SIZE));
+        assertOpenFails(file, new FixedKeyProvider("chave-1", 2));
+    }
+
+    private File encrypt(byte[] content) throws IOException {
+        final File file = folder.newFile();
+        final EncryptedOutputStream output = new EncryptedOutputStream(new FileOutputStream(file), keys, FRAME_SIZE);
+        try {
+            // Em escritas de tamanhos variados, que não coincidem com os frames
+            int offset = 0;
+            final Random random = new Random(content.length);
+            while (offset < content.length) {
+                final int count = Math.min(content.length - offset, 1 + random.nextInt(3 * FRAME_SIZE));
+                output.write(content, offset, count);
+                offset += count;
+            }
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    private static void assertOpenFails(File file, KeyProvider keyProvider) {
+        try {
+            new EncryptedFile(file, keyProvider).close();
+            fail("O backup inválido foi aberto");
+        } catch (IOException e) {
+            // Esperado
+        }
+    }
+
+    private static byte[] readAll(EncryptedFile file) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[700];
+        long position = 0;
+        int read;
+        while ((read = file.read(position, buffer, 0, buffer.length)) != -1) {
+            output.write(buffer, 0, read);
+            position += read;
+        }
+        return output.toByteArray();
+    }
+
+    private static void setLength(File file, long length) throws IOException {
+        final RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        try {
+            raw.setLength(length);
+        } finally {
+            raw.close();
+        }
+    }
+
+    private static byte[] random(long seed, int length) {
+        final byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    // Chave AES-128 gerada a partir de uma semente
+    private static class FixedKeyProvider implements KeyProvider {
+
+        private final String keyId;
+
+        private final SecretKey key;
+
+        FixedKeyProvider(String keyId, long seed) {
+            final byte[] bytes = new byte[16];
+            new Random(seed).nextBytes(bytes);
+            this.keyId = keyId;
+            this.key = new SecretKeySpec(bytes, "AES");
+        }
+
+        @Override
+        public String getCurrentKeyId() {
+            return keyId;
+        }
+
+        @Override
+        public SecretKey getKey(String keyId) throws IOException {
+            if (!this.keyId.equals(keyId)) {
+                throw new IOException("Chave \"" + keyId + "\" não encontrada!");
+            }
+            return key;
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+package br.com.dercilima.firebackuplib.engine;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import br.com.dercilima.firebackuplib.archive.ArchiveReader;
+import br.com.dercilima.firebackuplib.incremental.DeltaChain;
+import br.com.dercilima.firebackuplib.incremental.PageDelta;
+import br.com.dercilima.firebackuplib.snapshot.DatabaseCopy;
+import br.com.dercilima.firebackuplib.snapshot.PlainDatabaseCopy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IncrementalBackupTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int PAGE_SIZE = 4096;
+
+    private static final int PAGE_COUNT = 256;
+
+    private static final String DATABASE = "app.db";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File appDir;
+
+    private FileDataSource dataSource;
+
+    private File backups;
+
+    private File database;
+
+    @Before
+    public void setup() throws IOException {
+        appDir = folder.newFolder("app");
+        dataSource = new FileDataSource(appDir);
+        backups = folder.newFolder("backups");
+        database = dataSource.getDatabaseFile(DATABASE);
+    }
+
+    @Test
+    public void oneRowChange_deltaHasFewPages() throws IOException {
+        final byte[] v1 = sqliteLike(1);
+        write(database, v1);
+        backup(dataSource, "b1.zip");
+
+        // Um UPDATE de uma linha: a página folha da tabela e o contador de alterações da página 1
+        final byte[] v2 = updateRow(v1, 100);
+        write(database, v2);
+        backup(dataSource, "b2.zip");
+
+        final ArchiveReader reader = new ArchiveReader(new File(backups, "b2.zip"));
+        try {
+            assertFalse(reader.findEntry(DATABASE));
+            assertTrue(reader.findEntry(DATABASE + PageDelta.DELTA_SUFFIX));
+            final long size = reader.getManifest().getItem(DATABASE + PageDelta.DELTA_SUFFIX).getSize();
+            assertTrue(String.valueOf(size), size < 3 * PAGE_SIZE);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void chainOfThree_rebuildsEveryBackup() throws IOException {
+        final byte[] v1 = sqliteLike(2);
+        write(database, v1);
+        backup(dataSource, "b1.zip");
+
+        final byte[] v2 = updateRow(v1, 7);
+        write(database, v2);
+        backup(dataSource, "b2.zip");
+
+        // O banco cresce: páginas novas no fim, além de uma linha alterada
+        final byte[] v3 = Arrays.copyOf(updateRow(v2, 200), v2.length + 3 * PAGE_SIZE);
+        Arrays.fill(v3, v2.length, v3.length, (byte) 0x5A);
+        write(database, v3);
+        backup(dataSource, "b3.zip");
+
+        final DeltaChain chain = new DeltaChain(backups);
+        assertArrayEquals(v1, rebuild(chain, "b1.zip"));
+        assertArrayEquals(v2, rebuild(chain, "b2.zip"));
+        assertArrayEquals(v3, rebuild(chain, "b3.zip"));
+    }
+
+    @Test
+    public void copyWithReorganizedPages_isWrittenInFull() throws IOException {
+        final byte[] v1 = sqliteLike(3);
+        write(database, v1);
+        backup(dataSource, "b1.zip");
+
+        // Uma cópia como a do VACUUM INTO: o delta teria quase todas as páginas
+        final byte[] v2 = updateRow(v1, 50);
+        write(database, v2);
+        backup(new VacuumedDataSource(appDir), "b2.zip");
+
+        final ArchiveReader reader = new ArchiveReader(new File(backups, "b2.zip"));
+        try {
+            assertFalse(reader.findEntry(DATABASE + PageDelta.DELTA_SUFFIX));
+            assertTrue(reader.findEntry(DATABASE));
+            assertArrayEquals(v2, readAll(reader.getEntryStream()));
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void backup(DataSource source, String archiveName) throws IOException {
+        new BackupEngine(source, backups)
+                .addDatabase(DATABASE)
+                .setIncremental(true, 7)
+                .backup(new File(backups, archiveName));
+    }
+
+    private byte[] rebuild(DeltaChain chain, String archiveName) throws IOException {
+        final File target = folder.newFile();
+        chain.rebuild(archiveName, DATABASE, target);
+        return readAll(new FileInputStream(target));
+    }
+
+    // Banco com o cabeçalho do SQLite (tamanho da página nos bytes 16 e 17) e páginas aleatórias
+    private static byte[] sqliteLike(long seed) {
+        final byte[] data = new byte[PAGE_SIZE * PAGE_COUNT];
+        new Random(seed).nextBytes(data);
+        final byte[] magic = "SQLite format 3\0".getBytes(UTF8);
+        System.arraycopy(magic, 0, data, 0, magic.length);
+        data[16] = (byte) (PAGE_SIZE >>> 8);
+        data[17] = (byte) PAGE_SIZE;
+        return data;
+    }
+
+    // Altera alguns bytes de uma página e o contador de alterações do arquivo (bytes 24 a 27)
+    private static byte[] updateRow(byte[] database, int page) {
+        final byte[] data = database.clone();
+        for (int i = 0; i < 40; i++) {
+            data[page * PAGE_SIZE + 1000 + i] ^= 0x33;
+        }
+        data[27]++;
+        return data;
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        final OutputStream output = new FileOutputStream(file);
+        try {
+            output.write(data);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        try {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+        }
+        return output.toByteArray();
+    }
+
+    // Origem cujas cópias dos bancos não mantêm as páginas nas mesmas posições
+    private static class VacuumedDataSource extends FileDataSource {
+
+        VacuumedDataSource(File root) {
+            super(root);
+        }
+
+        @Override
+        public DatabaseCopy openDatabase(File databaseFile) throws FileNotFoundException {
+            return new PlainDatabaseCopy(databaseFile) {
+                @Override
+                public boolean isPageLayoutPreserved() {
+                    return false;
+                }
+            };
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+package br.com.dercilima.firebackuplib.engine;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import br.com.dercilima.firebackuplib.compress.FixedCodecPolicy;
+import br.com.dercilima.firebackuplib.compress.StoreCodec;
+import br.com.dercilima.firebackuplib.restore.RestoreTransaction;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class RestoreEngineRollbackTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Início do conteúdo de b.db, para localizá-lo no zip (gravado sem compressão)
+    private static final byte[] MARKER = "#banco-b#".getBytes(UTF8);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void corruptedBackup_leavesCurrentDataUntouched() throws IOException {
+        final FileDataSource dataSource = new FileDataSource(folder.newFolder("app"));
+        final File backups = folder.newFolder("backups");
+        final byte[] a = random(1, 200 * 1024);
+        final byte[] b = concat(MARKER, random(2, 300 * 1024));
+        write(dataSource.getDatabaseFile("a.db"), a);
+        write(dataSource.getDatabaseFile("b.db"), b);
+        final PreferencesEditor editor = dataSource.editPreferences("config");
+        editor.onString("servidor", "backup");
+        editor.commit();
+
+        final File good = new File(backups, "good.zip");
+        new BackupEngine(dataSource, backups)
+                .addDatabase("a.db")
+                .addDatabase("b.db")
+                .addPreferences("config")
+                .setCodecPolicy(new FixedCodecPolicy(new StoreCodec()))
+                .backup(good);
+
+        // Cópia do backup com um byte de b.db alterado
+        final byte[] archive = read(good);
+        archive[indexOf(archive, MARKER) + MARKER.length + 1000] ^= 0x20;
+        final File corrupted = write(new File(backups, "corrupted.zip"), archive);
+
+        // Dados atuais, diferentes dos do backup
+        final byte[] currentA = random(3, 50 * 1024);
+        final byte[] currentB = random(4, 70 * 1024);
+        write(dataSource.getDatabaseFile("a.db"), currentA);
+        write(dataSource.getDatabaseFile("b.db"), currentB);
+        final PreferencesEditor current = dataSource.editPreferences("config");
+        current.onString("servidor", "atual");
+        current.commit();
+
+        final RestoreEngine engine = new RestoreEngine(dataSource)
+                .addDatabase("a.db")
+                .addDatabase("b.db")
+                .addPreferences("config");
+        try {
+            engine.restore(corrupted);
+            fail("O backup corrompido foi restaurado");
+        } catch (IOException e) {
+            // Esperado
+        }
+
+        // Nada foi trocado e nenhum arquivo preparado ficou para trás
+        assertArrayEquals(currentA, read(dataSource.getDatabaseFile("a.db")));
+        assertArrayEquals(currentB, read(dataSource.getDatabaseFile("b.db")));
+        assertEquals("atual", dataSource.readPreferences("config").get("servidor"));
+        assertFalse(dataSource.getRestoreJournal().exists());
+        assertNoStagedFiles(dataSource.getDatabasesDir());
+        assertNoStagedFiles(dataSource.getPreferencesDir());
+
+        // O backup íntegro continua sendo restaurado normalmente
+        engine.restore(good);
+        assertArrayEquals(a, read(dataSource.getDatabaseFile("a.db")));
+        assertArrayEquals(b, read(dataSource.getDatabaseFile("b.db")));
+        assertEquals("backup", dataSource.readPreferences("config").get("servidor"));
+        assertNoStagedFiles(dataSource.getDatabasesDir());
+    }
+
+    @Test
+    public void truncatedBackup_leavesCurrentDataUntouched() throws IOException {
+        final FileDataSource dataSource = new FileDataSource(folder.newFolder("app"));
+        final File backups = folder.newFolder("backups");
+        write(dataSource.getDatabaseFile("a.db"), random(5, 100 * 1024));
+
+        final File backup = new File(backups, "backup.zip");
+        new BackupEngine(dataSource, backups).addDatabase("a.db").backup(backup);
+        final RandomAccessFile file = new RandomAccessFile(backup, "rw");
+        try {
+            file.setLength(file.length() - 10);
+        } finally {
+            file.close();
+        }
+
+        final byte[] current = random(6, 10 * 1024);
+        write(dataSource.getDatabaseFile("a.db"), current);
+        try {
+            new RestoreEngine(dataSource).addDatabase("a.db").restore(backup);
+            fail("O backup incompleto foi restaurado");
+        } catch (IOException e) {
+            // Esperado
+        }
+        assertArrayEquals(current, read(dataSource.getDatabaseFile("a.db")));
+        assertNoStagedFiles(dataSource.getDatabasesDir());
+    }
+
+    private static void assertNoStagedFiles(File dir) {
+        for (File file : dir.listFiles()) {
+            assertFalse(file.getName(), file.getName().endsWith(RestoreTransaction.STAGED_SUFFIX));
+            assertFalse(file.getName(), file.getName().endsWith(RestoreTransaction.ROLLBACK_SUFFIX));
+        }
+    }
+
+    private static byte[] random(long seed, int length) {
+        final byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        final byte[] data = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, data, first.length, second.length);
+        return data;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        for (int i = 0; i + pattern.length <= data.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(data, i, i + pattern.length), pattern)) {
+                return i;
+            }
+        }
+        throw new AssertionError("Trecho não encontrado no backup");
+    }
+
+    private static File write(File file, byte[] data) throws IOException {
+        final OutputStream output = new FileOutputStream(file);
+        try {
+            output.write(data);
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        final InputStream input = new FileInputStream(file);
+        try {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+package br.com.dercilima.firebackuplib.preferences;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PreferencesReaderTest {
+
+    @Test
+    public void binary_roundTripEveryType() throws IOException {
+        final Map<String, Object> values = allTypes();
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new PreferencesWriter(output).putAll(values).close();
+
+        assertEquals(values, read(output.toByteArray()));
+    }
+
+    @Test
+    public void binary_emptySetAndStringsLargerThanTheBuffer() throws IOException {
+        final char[] chars = new char[20000];
+        Arrays.fill(chars, 'ç');
+        final Map<String, Object> values = new LinkedHashMap<>();
+        values.put("vazio", new LinkedHashSet<String>());
+        values.put("longo", new String(chars));
+        values.put("conjunto_longo", new LinkedHashSet<>(Arrays.asList(new String(chars), "b")));
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new PreferencesWriter(output).putAll(values).close();
+
+        assertEquals(values, read(output.toByteArray()));
+    }
+
+    @Test
+    public void binary_corruptedContent_isRejected() throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new PreferencesWriter(output).putAll(allTypes()).close();
+        final byte[] data = output.toByteArray();
+
+        // Altera o primeiro byte do nome da primeira chave: o arquivo continua legível, só o CRC acusa
+        data[7] ^= 0x01;
+        try {
+            read(data);
+            fail("O arquivo corrompido foi aceito");
+        } catch (IOException e) {
+            // Esperado
+        }
+    }
+
+    @Test
+    public void legacy_serializedMapIsRead() throws IOException {
+        // Backups antigos: o HashMap de SharedPreferences.getAll() gravado com ObjectOutputStream
+        final Map<String, Object> values = new HashMap<>(allTypes());
+        values.put("conjunto", new HashSet<>(Arrays.asList("x", "y", "z")));
+
+        assertEquals(values, read(serialize(values)));
+    }
+
+    @Test
+    public void legacy_unexpectedClass_isRejected() throws IOException {
+        final Map<String, Object> values = new HashMap<>();
+        values.put("data", new Date());
+        try {
+            read(serialize(values));
+            fail("Uma classe fora das preferências foi desserializada");
+        } catch (IOException e) {
+            // Esperado
+        }
+    }
+
+    private static Map<String, Object> allTypes() {
+        final Map<String, Object> values = new LinkedHashMap<>();
+        values.put("ativo", true);
+        values.put("inativo", false);
+        values.put("contador", 42);
+        values.put("negativo", Integer.MIN_VALUE);
+        values.put("data", Long.MAX_VALUE);
+        values.put("desconto", -1L);
+        values.put("taxa", 0.15f);
+        values.put("nome", "Configuração ☕");
+        values.put("vazio", "");
+        values.put("conjunto", new LinkedHashSet<>(Arrays.asList("a", "b", "çã")));
+        return values;
+    }
+
+    private static byte[] serialize(Object object) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final ObjectOutputStream objects = new ObjectOutputStream(output);
+        try {
+            objects.writeObject(object);
+        } finally {
+            objects.close();
+        }
+        return output.toByteArray();
+    }
+
+    private static Map<String, Object> read(byte[] data) throws IOException {
+        final Map<String, Object> values = new LinkedHashMap<>();
+        PreferencesReader.read(new ByteArrayInputStream(data), new PreferencesReader.Handler() {
+            @Override
+            public void onBoolean(String key, boolean value) {
+                values.put(key, value);
+            }
+
+            @Override
+            public void onInt(String key, int value) {
+                values.put(key, value);
+            }
+
+            @Override
+            public void onLong(String key, long value) {
+                values.put(key, value);
+            }
+
+            @Override
+            public void onFloat(String key, float value) {
+                values.put(key, value);
+            }
+
+            @Override
+            public void onString(String key, String value) {
+                values.put(key, value);
+            }
+
+            @Override
+            public void onStringSet(String key, Set<String> set) {
+                values.put(key, set);
+            }
+        });
+        return values;
+    }
+
+}
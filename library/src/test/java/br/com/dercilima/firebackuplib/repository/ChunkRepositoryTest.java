@@ -0,0 +1,133 @@
+package br.com.dercilima.firebackuplib.repository;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkRepositoryTest {
+
+    private static final int SIZE = 4 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ChunkRepository repository;
+
+    @Before
+    public void setup() throws IOException {
+        repository = new ChunkRepository(folder.newFolder("repositorio"));
+    }
+
+    @Test
+    public void secondSnapshot_reusesUnchangedChunks() throws IOException {
+        final byte[] v1 = random(1, SIZE);
+        final SnapshotWriter first = repository.newSnapshot("s1", null);
+        first.putFile("app.db", write(folder.newFile(), v1));
+        first.commit();
+        assertEquals(SIZE, first.getNewBytes());
+        final int chunkCount = repository.getChunkStore().list().size();
+
+        // Bytes inseridos no meio deslocam o restante do arquivo: os cortes pelo conteúdo se realinham
+        final byte[] v2 = insert(v1, SIZE / 2, random(2, 100));
+        final SnapshotWriter second = repository.newSnapshot("s2", null);
+        second.putFile("app.db", write(folder.newFile(), v2));
+        second.commit();
+
+        assertEquals(v2.length, second.getTotalBytes());
+        assertTrue(String.valueOf(second.getNewBytes()), second.getNewBytes() <= 2 * Chunker.MAX_SIZE);
+        assertTrue(repository.getChunkStore().list().size() <= chunkCount + 2);
+
+        // Os dois snapshots compartilham quase todos os chunks
+        final Set<String> shared = hashes("s1");
+        shared.retainAll(hashes("s2"));
+        assertTrue(String.valueOf(shared.size()), shared.size() >= chunkCount - 2);
+
+        assertArrayEquals(v1, read("s1"));
+        assertArrayEquals(v2, read("s2"));
+    }
+
+    @Test
+    public void identicalSnapshot_writesNoNewChunks() throws IOException {
+        final File source = write(folder.newFile(), random(3, SIZE / 4));
+
+        final SnapshotWriter first = repository.newSnapshot("s1", null);
+        first.putFile("app.db", source);
+        first.commit();
+        final int chunkCount = repository.getChunkStore().list().size();
+
+        final SnapshotWriter second = repository.newSnapshot("s2", null);
+        second.putFile("app.db", source);
+        second.commit();
+
+        assertEquals(0, second.getNewBytes());
+        assertEquals(chunkCount, repository.getChunkStore().list().size());
+        assertEquals(hashes("s1"), hashes("s2"));
+    }
+
+    private Set<String> hashes(String snapshotName) throws IOException {
+        final Set<String> hashes = new HashSet<>();
+        for (Snapshot.FileEntry file : Snapshot.load(repository.getSnapshotFile(snapshotName)).getFiles()) {
+            for (ChunkStore.Chunk chunk : file.getChunks()) {
+                hashes.add(chunk.getHash());
+            }
+        }
+        return hashes;
+    }
+
+    private byte[] read(String snapshotName) throws IOException {
+        final SnapshotReader reader = repository.openSnapshot(snapshotName);
+        try {
+            assertEquals("app.db", reader.nextEntry());
+            final InputStream input = reader.getEntryStream();
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static byte[] insert(byte[] data, int position, byte[] inserted) {
+        final byte[] result = new byte[data.length + inserted.length];
+        System.arraycopy(data, 0, result, 0, position);
+        System.arraycopy(inserted, 0, result, position, inserted.length);
+        System.arraycopy(data, position, result, position + inserted.length, data.length - position);
+        return result;
+    }
+
+    private static byte[] random(long seed, int length) {
+        final byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static File write(File file, byte[] data) throws IOException {
+        final OutputStream output = new FileOutputStream(file);
+        try {
+            output.write(data);
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+}
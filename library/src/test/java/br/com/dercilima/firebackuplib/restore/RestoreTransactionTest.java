@@ -0,0 +1,171 @@
+package br.com.dercilima.firebackuplib.restore;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RestoreTransactionTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void commit_replacesFilesAndAppliesChanges() throws IOException {
+        final File dir = folder.newFolder();
+        final File a = write(new File(dir, "a.db"), "a-atual");
+        final File wal = write(new File(dir, "a.db-wal"), "wal-atual");
+        final File journal = new File(dir, "journal");
+
+        final RestoreTransaction transaction = new RestoreTransaction(journal);
+        write(transaction.stage(a), "a-restaurado");
+        final File created = new File(dir, "novo.db");
+        write(transaction.stage(created), "novo-restaurado");
+        transaction.delete(wal);
+        write(transaction.stageApply("prefs", new File(dir, "prefs.restore")), "prefs-restauradas");
+
+        final List<String> applied = new ArrayList<>();
+        transaction.commit(new RestoreTransaction.Applier() {
+            @Override
+            public void apply(String key, File staged) throws IOException {
+                applied.add(key + "=" + read(staged));
+            }
+        });
+
+        assertEquals("a-restaurado", read(a));
+        assertEquals("novo-restaurado", read(created));
+        assertFalse(wal.exists());
+        assertEquals("[prefs=prefs-restauradas]", applied.toString());
+        assertNoLeftovers(dir, journal);
+    }
+
+    @Test
+    public void failedCommit_putsOriginalFilesBack() throws IOException {
+        final File dir = folder.newFolder();
+        final File a = write(new File(dir, "a.db"), "a-atual");
+        final File b = write(new File(dir, "b.db"), "b-atual");
+        final File journal = new File(dir, "journal");
+
+        // A exclusão do arquivo preparado de b.db faz a troca de b.db falhar no meio do commit,
+        // depois de a.db já ter sido trocado
+        final RestoreTransaction transaction = new RestoreTransaction(journal);
+        write(transaction.stage(a), "a-restaurado");
+        transaction.delete(new File(b.getPath() + RestoreTransaction.STAGED_SUFFIX));
+        write(transaction.stage(b), "b-restaurado");
+
+        final boolean[] applied = {false};
+        try {
+            transaction.commit(new RestoreTransaction.Applier() {
+                @Override
+                public void apply(String key, File staged) {
+                    applied[0] = true;
+                }
+            });
+            fail("O commit deveria falhar");
+        } catch (IOException e) {
+            // Esperado
+        }
+
+        assertEquals("a-atual", read(a));
+        assertEquals("b-atual", read(b));
+        assertFalse(applied[0]);
+        assertFalse(journal.exists());
+        for (File file : dir.listFiles()) {
+            assertFalse(file.getName(), file.getName().endsWith(RestoreTransaction.ROLLBACK_SUFFIX));
+        }
+    }
+
+    @Test
+    public void rollbackBeforeCommit_keepsOriginalsAndDeletesStagedFiles() throws IOException {
+        final File dir = folder.newFolder();
+        final File a = write(new File(dir, "a.db"), "a-atual");
+        final File journal = new File(dir, "journal");
+
+        final RestoreTransaction transaction = new RestoreTransaction(journal);
+        final File staged = write(transaction.stage(a), "a-restaurado");
+        final File prefs = write(transaction.stageApply("prefs", new File(dir, "prefs.restore")), "prefs");
+        transaction.rollback();
+
+        assertEquals("a-atual", read(a));
+        assertFalse(staged.exists());
+        assertFalse(prefs.exists());
+        assertNoLeftovers(dir, journal);
+
+        try {
+            transaction.commit(null);
+            fail("O commit depois do rollback deveria falhar");
+        } catch (IllegalStateException e) {
+            // Esperado
+        }
+    }
+
+    @Test
+    public void recover_ignoresMissingJournalAndDiscardsIncompleteOne() throws IOException {
+        final File dir = folder.newFolder();
+        final File journal = new File(dir, "journal");
+        final RestoreTransaction.Applier applier = new RestoreTransaction.Applier() {
+            @Override
+            public void apply(String key, File staged) {
+                fail("Nenhuma alteração deveria ser aplicada");
+            }
+        };
+
+        assertFalse(RestoreTransaction.recover(journal, applier));
+
+        // Journal cortado no meio da gravação: nenhum arquivo chegou a ser trocado
+        write(journal, "FB");
+        assertTrue(RestoreTransaction.recover(journal, applier));
+        assertFalse(journal.exists());
+    }
+
+    private static void assertNoLeftovers(File dir, File journal) {
+        assertFalse(journal.exists());
+        for (File file : dir.listFiles()) {
+            assertFalse(file.getName(), file.getName().endsWith(RestoreTransaction.STAGED_SUFFIX));
+            assertFalse(file.getName(), file.getName().endsWith(RestoreTransaction.ROLLBACK_SUFFIX));
+        }
+    }
+
+    private static File write(File file, String content) throws IOException {
+        final OutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content.getBytes(UTF8));
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    private static String read(File file) throws IOException {
+        final InputStream input = new FileInputStream(file);
+        try {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            return new String(output.toByteArray(), UTF8);
+        } finally {
+            input.close();
+        }
+    }
+
+}
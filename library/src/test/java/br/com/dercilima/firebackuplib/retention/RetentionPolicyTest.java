@@ -0,0 +1,211 @@
+package br.com.dercilima.firebackuplib.retention;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import br.com.dercilima.firebackuplib.catalog.BackupCatalog;
+import br.com.dercilima.firebackuplib.catalog.CatalogEntry;
+import br.com.dercilima.firebackuplib.schedule.Clock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RetentionPolicyTest {
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void daily_keepsNewestOfEachDay() {
+        // A cada 6 horas, de 01/10 a 10/10
+        final List<CatalogEntry> entries = new ArrayList<>();
+        for (long time = at("2018-10-01 00:00"); time <= at("2018-10-10 18:00"); time += DAY / 4) {
+            entries.add(entry(time));
+        }
+
+        final Set<String> keep = new RetentionPolicy().setTimeZone(UTC).setDaily(7).select(entries, at("2018-10-11 00:00"));
+
+        assertEquals(names("2018-10-04 18:00", "2018-10-05 18:00", "2018-10-06 18:00", "2018-10-07 18:00",
+                "2018-10-08 18:00", "2018-10-09 18:00", "2018-10-10 18:00"), sorted(keep));
+    }
+
+    @Test
+    public void weekly_weeksStartOnMonday() {
+        // 01/10/2018 e 08/10/2018 são segundas-feiras
+        final List<CatalogEntry> entries = Arrays.asList(
+                entry(at("2018-10-01 10:00")),
+                entry(at("2018-10-07 23:00")),
+                entry(at("2018-10-08 01:00")),
+                entry(at("2018-10-10 12:00")));
+        final RetentionPolicy policy = new RetentionPolicy().setTimeZone(UTC).setKeepLast(0);
+
+        assertEquals(names("2018-10-07 23:00", "2018-10-10 12:00"),
+                sorted(policy.setWeekly(2).select(entries, at("2018-10-11 00:00"))));
+        // A semana de 01/10 a 07/10 já tem o backup de domingo
+        assertEquals(names("2018-10-07 23:00", "2018-10-10 12:00"),
+                sorted(policy.setWeekly(3).select(entries, at("2018-10-11 00:00"))));
+    }
+
+    @Test
+    public void grandfatherFatherSon_keepsDailyWeeklyAndMonthly() {
+        // Um backup por dia, às 02:00, de 01/01/2018 a 15/10/2018 (uma segunda-feira)
+        final List<CatalogEntry> entries = new ArrayList<>();
+        for (long time = at("2018-01-01 02:00"); time <= at("2018-10-15 02:00"); time += DAY) {
+            entries.add(entry(time));
+        }
+        Collections.shuffle(entries, new Random(7));
+
+        final RetentionPolicy policy = new RetentionPolicy()
+                .setTimeZone(UTC)
+                .setKeepLast(1)
+                .setDaily(7)
+                .setWeekly(4)
+                .setMonthly(6);
+        final Set<String> keep = policy.select(entries, at("2018-10-15 12:00"));
+
+        assertEquals(names(
+                // Mensais: o último backup de cada mês
+                "2018-05-31 02:00", "2018-06-30 02:00", "2018-07-31 02:00", "2018-08-31 02:00",
+                // Semanais: o último backup (domingo) de cada semana
+                "2018-09-30 02:00", "2018-10-07 02:00",
+                // Diários (o de 14/10 também é o da semana, e o de 15/10 também é o do mês)
+                "2018-10-09 02:00", "2018-10-10 02:00", "2018-10-11 02:00", "2018-10-12 02:00",
+                "2018-10-13 02:00", "2018-10-14 02:00", "2018-10-15 02:00"), sorted(keep));
+    }
+
+    @Test
+    public void periods_useThePolicyTimeZone() {
+        final List<CatalogEntry> entries = Arrays.asList(
+                entry(at("2018-10-01 01:00")),
+                entry(at("2018-09-30 23:00")),
+                entry(at("2018-09-30 12:00")));
+        final long now = at("2018-10-01 12:00");
+
+        assertEquals(names("2018-09-30 23:00", "2018-10-01 01:00"),
+                sorted(new RetentionPolicy().setTimeZone(UTC).setDaily(2).select(entries, now)));
+
+        // Em São Paulo (UTC-3), os três backups são do dia 30/09
+        final TimeZone saoPaulo = TimeZone.getTimeZone("America/Sao_Paulo");
+        assertEquals(names("2018-10-01 01:00"),
+                sorted(new RetentionPolicy().setTimeZone(saoPaulo).setDaily(2).select(entries, now)));
+    }
+
+    @Test
+    public void limits_keepNewestAndIncrementalBases() {
+        final CatalogEntry full = entry(at("2018-09-01 02:00"), 100);
+        final CatalogEntry old = entry(at("2018-09-15 02:00"), 100);
+        final CatalogEntry middle = entry(at("2018-10-01 02:00"), 100);
+        final CatalogEntry incremental = entry(at("2018-10-10 02:00"), 10)
+                .setBaseBackups(Collections.singletonList(full.getName()));
+        final List<CatalogEntry> entries = Arrays.asList(full, old, middle, incremental);
+        final long now = at("2018-10-11 00:00");
+
+        // O mensal de setembro passou da idade máxima, mas a base do incremental é mantida
+        assertEquals(sorted(Arrays.asList(full.getName(), incremental.getName())),
+                sorted(new RetentionPolicy().setTimeZone(UTC).setMonthly(3).setMaxAge(20 * DAY).select(entries, now)));
+
+        // O limite de tamanho conta a cadeia inteira: depois do incremental (110), só cabe mais um
+        assertEquals(sorted(Arrays.asList(full.getName(), middle.getName(), incremental.getName())),
+                sorted(new RetentionPolicy().setTimeZone(UTC).setKeepLast(4).setMaxTotalSize(210).select(entries, now)));
+
+        // O mais recente nunca é excluído, mesmo passando dos limites
+        assertEquals(sorted(Arrays.asList(full.getName(), incremental.getName())),
+                sorted(new RetentionPolicy().setKeepLast(0).setMaxTotalSize(1).setMaxAge(1).select(entries, now)));
+        assertTrue(new RetentionPolicy().select(new ArrayList<CatalogEntry>(), now).isEmpty());
+    }
+
+    @Test
+    public void applyLocal_deletesBackupsNotKept() throws IOException {
+        final File dir = folder.newFolder("backups");
+        final BackupCatalog catalog = BackupCatalog.forDirectory(dir);
+        final List<CatalogEntry> entries = new ArrayList<>();
+        for (long time = at("2018-10-01 02:00"); time <= at("2018-10-05 02:00"); time += DAY) {
+            final CatalogEntry entry = entry(time);
+            assertTrue(new File(dir, entry.getName()).createNewFile());
+            catalog.put(entry);
+            entries.add(entry);
+        }
+        // No catálogo, mas não mais no aparelho: não é considerado
+        catalog.put(entry(at("2018-09-01 02:00")));
+
+        final Clock clock = new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return at("2018-10-06 00:00");
+            }
+        };
+        final List<CatalogEntry> deleted = new RetentionEngine(catalog, clock)
+                .applyLocal(new RetentionPolicy().setTimeZone(UTC).setKeepLast(2));
+
+        assertEquals(3, deleted.size());
+        for (CatalogEntry entry : entries.subList(0, 3)) {
+            assertFalse(new File(dir, entry.getName()).exists());
+            assertNull(catalog.get(entry.getName()));
+        }
+        for (CatalogEntry entry : entries.subList(3, 5)) {
+            assertTrue(new File(dir, entry.getName()).exists());
+        }
+        assertEquals(3, catalog.list().size());
+    }
+
+    private static CatalogEntry entry(long createdAt) {
+        return entry(createdAt, 1024);
+    }
+
+    private static CatalogEntry entry(long createdAt, long size) {
+        return new CatalogEntry(name(createdAt), createdAt, size);
+    }
+
+    private static String name(long time) {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd-HHmm", Locale.US);
+        format.setTimeZone(UTC);
+        return "backup-" + format.format(time) + ".zip";
+    }
+
+    private static List<String> names(String... dates) {
+        final List<String> names = new ArrayList<>();
+        for (String date : dates) {
+            names.add(name(at(date)));
+        }
+        return sorted(names);
+    }
+
+    private static List<String> sorted(Collection<String> names) {
+        return new ArrayList<>(new TreeSet<>(names));
+    }
+
+    // Data em UTC, no formato "yyyy-MM-dd HH:mm"
+    private static long at(String date) {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.US);
+        format.setTimeZone(UTC);
+        try {
+            return format.parse(date).getTime();
+        } catch (ParseException e) {
+            throw new IllegalArgumentException(date, e);
+        }
+    }
+
+}
@@ -0,0 +1,256 @@
+package br.com.dercilima.firebackuplib.schedule;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BackupSchedulerTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    // 2018-10-01 00:00 UTC
+    private static final long START = 1538352000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File stateFile;
+
+    private FakeClock clock;
+
+    private FakeDeviceState device;
+
+    private RecordingRunner runner;
+
+    @Before
+    public void setup() throws IOException {
+        stateFile = new File(folder.newFolder(), "scheduler.state");
+        clock = new FakeClock(START);
+        device = new FakeDeviceState();
+        runner = new RecordingRunner();
+    }
+
+    @Test
+    public void runPending_runsAtIntervalWithoutJitter() throws IOException {
+        final BackupScheduler scheduler = newScheduler();
+        scheduler.register(new BackupJob("diario", 24 * HOUR).setJitter(0));
+
+        // A primeira execução é logo no registro
+        assertEquals(START, scheduler.getNextRunTime());
+        assertEquals(1, scheduler.runPending(runner));
+        assertEquals(START, scheduler.getLastRunTime("diario"));
+        assertEquals(START + 24 * HOUR, scheduler.getNextRunTime("diario"));
+
+        clock.advance(24 * HOUR - 1);
+        assertEquals(0, scheduler.runPending(runner));
+
+        clock.advance(1);
+        assertEquals(1, scheduler.runPending(runner));
+        assertEquals("[[diario], [diario]]", runner.passes.toString());
+        assertEquals(START + 48 * HOUR, scheduler.getNextRunTime());
+    }
+
+    @Test
+    public void jitter_delaysEachRunWithinLimit() throws IOException {
+        final BackupScheduler scheduler = newScheduler().setRandom(new Random(42));
+        final BackupJob job = new BackupJob("horario", HOUR).setJitter(10 * MINUTE).setFlex(0);
+        scheduler.register(job);
+
+        long previous = START;
+        final List<Long> delays = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            final long next = scheduler.getNextRunTime("horario");
+            final long expected = i == 0 ? START : previous + HOUR;
+            assertTrue("Antes do intervalo: " + next, next >= expected);
+            assertTrue("Passou do jitter: " + next, next < expected + 10 * MINUTE);
+            delays.add(next - expected);
+
+            clock.set(next);
+            assertEquals(1, scheduler.runPending(runner));
+            previous = next;
+        }
+        // Os atrasos variam (não é sempre o mesmo valor)
+        assertTrue(delays.toString(), new HashSet<>(delays).size() > 10);
+    }
+
+    @Test
+    public void constraints_waitUntilSatisfiedOrMaxDelay() throws IOException {
+        final BackupScheduler scheduler = newScheduler();
+        scheduler.register(new BackupJob("wifi", 24 * HOUR).setJitter(0)
+                .setConstraints(new Constraints().setRequiresUnmeteredNetwork(true).setRequiresCharging(true)));
+        scheduler.register(new BackupJob("limite", 24 * HOUR).setJitter(0).setMaxDelay(2 * HOUR)
+                .setConstraints(new Constraints().setRequiresIdle(true)));
+
+        assertEquals(0, scheduler.runPending(runner));
+
+        device.unmetered = true;
+        assertEquals(0, scheduler.runPending(runner));
+
+        device.charging = true;
+        assertEquals(1, scheduler.runPending(runner));
+        assertEquals("[[wifi]]", runner.passes.toString());
+
+        // Sem o aparelho ocioso, o job só é executado quando passa do atraso máximo
+        clock.advance(2 * HOUR - 1);
+        assertEquals(0, scheduler.runPending(runner));
+        clock.advance(1);
+        assertEquals(1, scheduler.runPending(runner));
+        assertEquals("[[wifi], [limite]]", runner.passes.toString());
+        assertEquals(START + 2 * HOUR + 24 * HOUR, scheduler.getNextRunTime("limite"));
+    }
+
+    @Test
+    public void flex_batchesJobsThatAreAlmostDue() throws IOException {
+        final BackupScheduler scheduler = newScheduler();
+        scheduler.register(new BackupJob("a", HOUR).setJitter(0));
+        scheduler.register(new BackupJob("b", 70 * MINUTE).setJitter(0));
+        scheduler.register(new BackupJob("c", 2 * HOUR).setJitter(0));
+        assertEquals(3, scheduler.runPending(runner));
+
+        // b falta 10 minutos (flex de 17,5), c falta 1 hora (flex de 30 minutos)
+        clock.advance(HOUR);
+        assertEquals(2, scheduler.runPending(runner));
+        assertEquals("[[a, b, c], [a, b]]", runner.passes.toString());
+        assertEquals(START + HOUR + 70 * MINUTE, scheduler.getNextRunTime("b"));
+
+        // Os jobs dentro do flex não são executados sozinhos
+        clock.set(START + 2 * HOUR - 20 * MINUTE);
+        assertEquals(0, scheduler.runPending(runner));
+    }
+
+    @Test
+    public void failedPass_retriesWithBackoffAndResetsOnSuccess() throws IOException {
+        final BackupScheduler scheduler = newScheduler().setRetryDelay(15 * MINUTE, HOUR);
+        scheduler.register(new BackupJob("falha", 24 * HOUR).setJitter(0));
+
+        runner.failures = 4;
+        final long[] delays = {15 * MINUTE, 30 * MINUTE, HOUR, HOUR};
+        for (long delay : delays) {
+            try {
+                scheduler.runPending(runner);
+                fail("A falha da passada deveria ser lançada");
+            } catch (IOException e) {
+                // Esperado
+            }
+            assertEquals(clock.now + delay, scheduler.getNextRunTime("falha"));
+            assertEquals(0, scheduler.getLastRunTime("falha"));
+            clock.set(scheduler.getNextRunTime("falha"));
+        }
+
+        assertEquals(1, scheduler.runPending(runner));
+        assertEquals(clock.now, scheduler.getLastRunTime("falha"));
+        assertEquals(clock.now + 24 * HOUR, scheduler.getNextRunTime("falha"));
+    }
+
+    @Test
+    public void state_survivesRestartAndClockGoingBack() throws IOException {
+        final BackupScheduler scheduler = newScheduler();
+        scheduler.register(new BackupJob("diario", 24 * HOUR).setJitter(0));
+        scheduler.runPending(runner);
+
+        // Outra instância do app: o agendamento salvo é mantido
+        clock.advance(HOUR);
+        final BackupScheduler restarted = newScheduler();
+        restarted.register(new BackupJob("diario", 24 * HOUR).setJitter(0));
+        assertEquals(START + 24 * HOUR, restarted.getNextRunTime("diario"));
+        assertEquals(START, restarted.getLastRunTime("diario"));
+        assertEquals(0, restarted.runPending(runner));
+
+        // O relógio do aparelho voltou dois dias: o job é agendado de novo a partir de agora
+        clock.set(START - 48 * HOUR);
+        final BackupScheduler back = newScheduler();
+        back.register(new BackupJob("diario", 24 * HOUR).setJitter(0));
+        assertEquals(clock.now, back.getNextRunTime("diario"));
+        assertEquals(1, back.runPending(runner));
+
+        assertTrue(back.unregister("diario"));
+        assertEquals(-1, newScheduler().getNextRunTime("diario"));
+        assertEquals(0, newScheduler().getLastRunTime("diario"));
+    }
+
+    private BackupScheduler newScheduler() {
+        return new BackupScheduler(stateFile, device, clock);
+    }
+
+    private static class FakeClock implements Clock {
+
+        long now;
+
+        FakeClock(long now) {
+            this.now = now;
+        }
+
+        void advance(long millis) {
+            now += millis;
+        }
+
+        void set(long now) {
+            this.now = now;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    private static class FakeDeviceState implements DeviceState {
+
+        boolean charging = false;
+
+        boolean unmetered = false;
+
+        boolean idle = false;
+
+        @Override
+        public boolean isCharging() {
+            return charging;
+        }
+
+        @Override
+        public boolean isUnmeteredNetwork() {
+            return unmetered;
+        }
+
+        @Override
+        public boolean isIdle() {
+            return idle;
+        }
+    }
+
+    // Guarda os nomes dos jobs de cada passada; falha nas primeiras "failures" passadas
+    private static class RecordingRunner implements JobRunner {
+
+        final List<List<String>> passes = new ArrayList<>();
+
+        int failures = 0;
+
+        @Override
+        public void run(List<BackupJob> jobs) throws IOException {
+            if (failures > 0) {
+                failures--;
+                throw new IOException("Falha simulada");
+            }
+            final List<String> names = new ArrayList<>();
+            for (BackupJob job : jobs) {
+                names.add(job.getName());
+            }
+            passes.add(names);
+        }
+    }
+
+}
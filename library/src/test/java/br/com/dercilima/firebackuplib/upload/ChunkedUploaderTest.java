@@ -0,0 +1,208 @@
+package br.com.dercilima.firebackuplib.upload;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ChunkedUploaderTest {
+
+    private static final int PART_SIZE = 64 * 1024;
+
+    private static final String REMOTE_PATH = "backups/2018/10/backup.zip";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File checkpointDir;
+
+    private RecordingBackend backend;
+
+    private File file;
+
+    private byte[] content;
+
+    @Before
+    public void setup() throws IOException {
+        checkpointDir = folder.newFolder("checkpoints");
+        backend = new RecordingBackend();
+        // 9 partes inteiras e uma pela metade
+        content = random(1, 9 * PART_SIZE + PART_SIZE / 2);
+        file = write(folder.newFile("backup.zip"), content);
+    }
+
+    @Test
+    public void interruptedUpload_resumesWithMissingPartsOnly() throws IOException {
+        // A quinta parte falha sem novas tentativas: o upload é interrompido com 4 partes enviadas
+        backend.setFailEvery(5);
+        try {
+            newUploader().upload(file, REMOTE_PATH);
+            fail("O upload deveria falhar");
+        } catch (IOException e) {
+            // Esperado
+        }
+        // A parte seguinte pode ter começado antes do cancelamento
+        final List<Integer> first = backend.sentParts();
+        assertEquals("[0, 1, 2, 3]", first.subList(0, 4).toString());
+        assertFalse(first.contains(4));
+        assertTrue(ChunkedUploader.hasPendingUpload(checkpointDir, file));
+        assertNull(backend.getFile(REMOTE_PATH));
+
+        // Outra instância do app, com a rede de volta
+        backend.setFailEvery(0);
+        backend.sent.clear();
+        final String location = newUploader().upload(file, REMOTE_PATH);
+
+        assertEquals("memory://" + REMOTE_PATH, location);
+        assertEquals(missing(first), backend.sentParts());
+        assertArrayEquals(content, backend.getFile(REMOTE_PATH));
+        assertFalse(ChunkedUploader.hasPendingUpload(checkpointDir, file));
+    }
+
+    @Test
+    public void partsAlreadyInBackend_areNotSentAgain() throws IOException {
+        backend.setFailEvery(3);
+        try {
+            newUploader().upload(file, REMOTE_PATH);
+            fail("O upload deveria falhar");
+        } catch (IOException e) {
+            // Esperado
+        }
+
+        // Partes que chegaram ao destino depois do último checkpoint salvo (o app foi encerrado antes)
+        backend.setFailEvery(0);
+        backend.putPart(REMOTE_PATH, 2, content, 2 * PART_SIZE, PART_SIZE);
+        backend.putPart(REMOTE_PATH, 7, content, 7 * PART_SIZE, PART_SIZE);
+        final List<Integer> inBackend = backend.sentParts();
+        assertTrue(inBackend.containsAll(Arrays.asList(0, 1, 2, 7)));
+        backend.sent.clear();
+
+        final List<String> locations = newUploader().resumePending();
+
+        assertEquals(Collections.singletonList("memory://" + REMOTE_PATH), locations);
+        assertEquals(missing(inBackend), backend.sentParts());
+        assertArrayEquals(content, backend.getFile(REMOTE_PATH));
+    }
+
+    @Test
+    public void changedFile_discardsCheckpointAndStartsOver() throws IOException {
+        backend.setFailEvery(4);
+        try {
+            newUploader().upload(file, REMOTE_PATH);
+            fail("O upload deveria falhar");
+        } catch (IOException e) {
+            // Esperado
+        }
+
+        // Outro backup no mesmo arquivo local: as partes enviadas não servem mais
+        final byte[] other = random(2, 3 * PART_SIZE);
+        write(file, other);
+        assertTrue(file.setLastModified(file.lastModified() + 2000));
+        backend.setFailEvery(0);
+        backend.sent.clear();
+
+        newUploader().upload(file, REMOTE_PATH);
+
+        // As partes do upload anterior são descartadas pela quantidade do checkpoint, não pelas que chegaram
+        assertEquals(Collections.singletonList(10), backend.aborted);
+        assertEquals("[0, 1, 2]", backend.sentParts().toString());
+        assertArrayEquals(other, backend.getFile(REMOTE_PATH));
+    }
+
+    @Test
+    public void failedParts_areRetried() throws IOException {
+        // Com uma parte por vez, nenhuma parte falha duas vezes seguidas
+        backend.setFailEvery(3);
+        final ChunkedUploader uploader = new ChunkedUploader(backend, checkpointDir)
+                .setPartSize(PART_SIZE)
+                .setConcurrency(1)
+                .setRetries(1, 1);
+
+        uploader.upload(file, REMOTE_PATH);
+
+        assertArrayEquals(content, backend.getFile(REMOTE_PATH));
+        assertTrue(String.valueOf(uploader.getRetries()), uploader.getRetries() >= 3);
+        assertEquals(10 + uploader.getRetries(), backend.getPutCount());
+        assertFalse(ChunkedUploader.hasPendingUpload(checkpointDir, file));
+    }
+
+    // Uma parte por vez e sem novas tentativas, para que a interrupção seja sempre no mesmo ponto
+    private ChunkedUploader newUploader() {
+        return new ChunkedUploader(backend, checkpointDir)
+                .setPartSize(PART_SIZE)
+                .setConcurrency(1)
+                .setRetries(0, 0);
+    }
+
+    // Partes do arquivo que não estão na lista
+    private static List<Integer> missing(List<Integer> sent) {
+        final List<Integer> parts = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            if (!sent.contains(i)) {
+                parts.add(i);
+            }
+        }
+        return parts;
+    }
+
+    private static byte[] random(long seed, int length) {
+        final byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static File write(File file, byte[] data) throws IOException {
+        final OutputStream output = new FileOutputStream(file);
+        try {
+            output.write(data);
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    // Guarda o número de cada parte gravada com sucesso
+    private static class RecordingBackend extends InMemoryStorageBackend {
+
+        final List<Integer> sent = Collections.synchronizedList(new ArrayList<Integer>());
+
+        // Quantidade de partes de cada abort()
+        final List<Integer> aborted = Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Override
+        public void putPart(String path, int partNumber, byte[] data, int offset, int length) throws IOException {
+            super.putPart(path, partNumber, data, offset, length);
+            sent.add(partNumber);
+        }
+
+        @Override
+        public void abort(String path, int partCount) throws IOException {
+            super.abort(path, partCount);
+            aborted.add(partCount);
+        }
+
+        List<Integer> sentParts() {
+            final List<Integer> parts = new ArrayList<>(sent);
+            Collections.sort(parts);
+            return parts;
+        }
+    }
+
+}
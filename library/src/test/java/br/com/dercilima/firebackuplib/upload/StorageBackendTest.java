@@ -0,0 +1,223 @@
+package br.com.dercilima.firebackuplib.upload;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Contrato do {@link StorageBackend}, conferido nos destinos que não dependem do Firebase
+ */
+@RunWith(Parameterized.class)
+public class StorageBackendTest {
+
+    private static final String LOCAL = "local";
+
+    private static final String MEMORY = "memória";
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> backends() {
+        return Arrays.asList(new Object[]{LOCAL}, new Object[]{MEMORY});
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final String type;
+
+    private StorageBackend backend;
+
+    public StorageBackendTest(String type) {
+        this.type = type;
+    }
+
+    @Before
+    public void setup() throws IOException {
+        backend = LOCAL.equals(type) ? new LocalStorageBackend(folder.newFolder("destino")) : new InMemoryStorageBackend();
+    }
+
+    @Test
+    public void get_range() throws IOException {
+        final byte[] content = random(1, 1000);
+        put("backup.zip", content);
+
+        assertArrayEquals(content, read(backend.get("backup.zip", 0, -1)));
+        assertArrayEquals(Arrays.copyOfRange(content, 100, 300), read(backend.get("backup.zip", 100, 200)));
+        assertArrayEquals(Arrays.copyOfRange(content, 900, 1000), read(backend.get("backup.zip", 900, -1)));
+
+        // Um trecho que passa do fim é cortado no fim do arquivo
+        assertArrayEquals(Arrays.copyOfRange(content, 950, 1000), read(backend.get("backup.zip", 950, 500)));
+        assertEquals(0, read(backend.get("backup.zip", 1000, -1)).length);
+    }
+
+    @Test
+    public void get_missingFile_throwsFileNotFound() throws IOException {
+        try {
+            backend.get("nao_existe.zip", 0, -1).close();
+            fail("Arquivo inexistente foi lido");
+        } catch (FileNotFoundException e) {
+            // Esperado
+        }
+    }
+
+    @Test
+    public void stat_sizeAndMissingFile() throws IOException {
+        put("ano/backup.zip", random(2, 1234));
+
+        final StorageObject object = backend.stat("ano/backup.zip");
+        assertEquals("ano/backup.zip", object.getPath());
+        assertEquals(1234, object.getSize());
+        assertTrue(object.getUpdatedAt() > 0);
+
+        assertNull(backend.stat("ano/nao_existe.zip"));
+    }
+
+    @Test
+    public void put_replacesPreviousFile() throws IOException {
+        put("backup.zip", random(3, 500));
+        final byte[] content = random(4, 200);
+        put("backup.zip", content);
+
+        assertEquals(200, backend.stat("backup.zip").getSize());
+        assertArrayEquals(content, read(backend.get("backup.zip", 0, -1)));
+    }
+
+    @Test
+    public void put_wrongSize_keepsPreviousFile() throws IOException {
+        final byte[] content = random(5, 100);
+        put("backup.zip", content);
+        try {
+            backend.put("backup.zip", new ByteArrayInputStream(random(6, 50)), 60);
+            fail("Tamanho diferente foi aceito");
+        } catch (IOException e) {
+            // Esperado
+        }
+        assertArrayEquals(content, read(backend.get("backup.zip", 0, -1)));
+    }
+
+    @Test
+    public void parts_completeJoinsInOrder() throws IOException {
+        final byte[] content = random(7, 2500);
+
+        // Partes fora de ordem e uma enviada duas vezes
+        backend.putPart("backup.zip", 2, content, 2000, 500);
+        backend.putPart("backup.zip", 0, random(8, 1000), 0, 1000);
+        backend.putPart("backup.zip", 1, content, 1000, 1000);
+        backend.putPart("backup.zip", 0, content, 0, 1000);
+
+        assertEquals(new HashSet<>(Arrays.asList(0, 1, 2)), backend.listParts("backup.zip"));
+        assertNull(backend.stat("backup.zip"));
+
+        backend.complete("backup.zip", 3, content.length);
+        assertArrayEquals(content, read(backend.get("backup.zip", 0, -1)));
+        assertTrue(backend.listParts("backup.zip").isEmpty());
+    }
+
+    @Test
+    public void parts_missingPart_failsToComplete() throws IOException {
+        backend.putPart("backup.zip", 0, random(9, 100), 0, 100);
+        backend.putPart("backup.zip", 2, random(10, 100), 0, 100);
+        try {
+            backend.complete("backup.zip", 3, 300);
+            fail("Upload incompleto foi finalizado");
+        } catch (IOException e) {
+            // Esperado
+        }
+        assertNull(backend.stat("backup.zip"));
+    }
+
+    @Test
+    public void abort_discardsParts() throws IOException {
+        backend.putPart("backup.zip", 0, random(11, 100), 0, 100);
+        backend.putPart("backup.zip", 1, random(12, 100), 0, 100);
+
+        backend.abort("backup.zip", 2);
+        assertTrue(backend.listParts("backup.zip").isEmpty());
+
+        // Descartar de novo, ou um upload que nunca existiu, não é um erro
+        backend.abort("backup.zip", 2);
+        backend.abort("outro.zip", 5);
+    }
+
+    @Test
+    public void delete_removesFileAndToleratesMissing() throws IOException {
+        put("backup.zip", random(13, 100));
+        backend.delete("backup.zip");
+        assertNull(backend.stat("backup.zip"));
+
+        backend.delete("backup.zip");
+        backend.delete("nunca_existiu.zip");
+    }
+
+    @Test
+    public void list_sortedByPrefixWithoutUnfinishedUploads() throws IOException {
+        put("2024/02/b.zip", random(14, 10));
+        put("2024/01/a.zip", random(15, 20));
+        put("2023/12/z.zip", random(16, 30));
+        put("2024/01/c.zip", random(17, 40));
+        backend.putPart("2024/01/pendente.zip", 0, random(18, 10), 0, 10);
+
+        assertEquals(Arrays.asList("2023/12/z.zip", "2024/01/a.zip", "2024/01/c.zip", "2024/02/b.zip"), paths(backend.list("")));
+        assertEquals(Arrays.asList("2024/01/a.zip", "2024/01/c.zip", "2024/02/b.zip"), paths(backend.list("2024/")));
+        assertEquals(Arrays.asList("2024/01/a.zip", "2024/01/c.zip"), paths(backend.list("2024/01/")));
+        assertEquals(Collections.<String>emptyList(), paths(backend.list("2025/")));
+
+        final List<StorageObject> objects = backend.list("2024/01/a");
+        assertEquals(1, objects.size());
+        assertEquals(20, objects.get(0).getSize());
+    }
+
+    private void put(String path, byte[] content) throws IOException {
+        backend.put(path, new ByteArrayInputStream(content), content.length);
+    }
+
+    private static List<String> paths(List<StorageObject> objects) {
+        final List<String> paths = new ArrayList<>();
+        for (StorageObject object : objects) {
+            paths.add(object.getPath());
+        }
+        return paths;
+    }
+
+    private static byte[] read(InputStream input) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[128];
+        try {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] random(long seed, int length) {
+        final byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+}